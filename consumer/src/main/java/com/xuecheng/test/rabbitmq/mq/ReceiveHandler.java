@@ -2,40 +2,192 @@ package com.xuecheng.test.rabbitmq.mq;
 
 import com.rabbitmq.client.Channel;
 import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.claimcheck.ClaimCheckBody;
+import com.xuecheng.test.rabbitmq.mq.claimcheck.ClaimCheckResolver;
+import com.xuecheng.test.rabbitmq.mq.coalesce.NotificationCoalescer;
+import com.xuecheng.test.rabbitmq.mq.delivery.DeliveryView;
+import com.xuecheng.test.rabbitmq.mq.envelope.EnvelopeCodec;
+import com.xuecheng.test.rabbitmq.mq.envelope.EnvelopeUnpacker;
+import com.xuecheng.test.rabbitmq.mq.preference.PreferenceCache;
+import com.xuecheng.test.rabbitmq.mq.preference.UserPreference;
+import com.xuecheng.test.rabbitmq.mq.rpc.RpcResponder;
+import com.xuecheng.test.rabbitmq.mq.selector.SelectorFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
 /**
  * RabbitMQ的消息接收处理类
  */
 @Component
 public class ReceiveHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReceiveHandler.class);
+
+    private final ClaimCheckResolver claimCheckResolver;
+    private final NotificationCoalescer notificationCoalescer;
+    private final PreferenceCache preferenceCache;
+    private final SelectorFilter selectorFilter;
+    private final RpcResponder rpcResponder;
+    private final EnvelopeUnpacker envelopeUnpacker;
+
+    public ReceiveHandler(ClaimCheckResolver claimCheckResolver, NotificationCoalescer notificationCoalescer,
+                          PreferenceCache preferenceCache, SelectorFilter selectorFilter, RpcResponder rpcResponder,
+                          EnvelopeUnpacker envelopeUnpacker) {
+        this.claimCheckResolver = claimCheckResolver;
+        this.notificationCoalescer = notificationCoalescer;
+        this.preferenceCache = preferenceCache;
+        this.selectorFilter = selectorFilter;
+        this.rpcResponder = rpcResponder;
+        this.envelopeUnpacker = envelopeUnpacker;
+    }
+
     /**
      * 收到邮件消息
      *
-     * @param msg     消息字符串
-     * @param message 消息对象
-     * @param channel 消息通道
+     * @param delivery 消息的只读视图，用到内容时才解码
+     * @param channel  消息通道
      */
     @RabbitListener(queues = {RabbitMQConfig.QUEUE_INFORM_EMAIL})
-    public void receiveEmailMsg(String msg, Message message, Channel channel) {
-        //得到消息体
-        byte[] body = message.getBody();
-        System.out.println("接收到邮件消息 => " + msg);
+    public void receiveEmailMsg(DeliveryView delivery, Channel channel) {
+        dispatch("email", delivery, channel, this::handleEmail);
     }
 
     /**
      * 收到短信消息
      *
-     * @param msg     消息字符串
-     * @param message 消息对象
-     * @param channel 消息通道
+     * @param delivery 消息的只读视图，用到内容时才解码
+     * @param channel  消息通道
      */
     @RabbitListener(queues = {RabbitMQConfig.QUEUE_INFORM_SMS})
-    public void receiveSmsMsg(String msg, Message message, Channel channel) {
-        //得到消息体
-        byte[] body = message.getBody();
+    public void receiveSmsMsg(DeliveryView delivery, Channel channel) {
+        dispatch("sms", delivery, channel, this::handleSms);
+    }
+
+    /**
+     * 处理邮件消息，@RabbitListener和流消费模式共用
+     *
+     * @param msg 消息字符串
+     */
+    public void handleEmail(String msg) {
+        System.out.println("接收到邮件消息 => " + msg);
+    }
+
+    /**
+     * 处理短信消息，@RabbitListener和流消费模式共用
+     *
+     * @param msg 消息字符串
+     */
+    public void handleSms(String msg) {
         System.out.println("接收到短信消息 => " + msg);
     }
-}
\ No newline at end of file
+
+    /**
+     * 得到消息内容后交给处理方法
+     *
+     * @param type     通知类型
+     * @param delivery 消息的只读视图
+     * @param channel  消息通道
+     * @param handler  处理方法
+     */
+    private void dispatch(String type, DeliveryView delivery, Channel channel, Consumer<String> handler) {
+        Message message = delivery.message();
+        if (filtered(type, message.getMessageProperties())) {
+            if (ClaimCheckResolver.isClaimCheck(message)) {
+                claimCheckResolver.release(message);
+            }
+            if (notificationCoalescer.isEnabled()) {
+                ack(channel, message.getMessageProperties().getDeliveryTag());
+            }
+            rpcResponder.reply(channel, message.getMessageProperties(), RpcResponder.REJECTED);
+            return;
+        }
+        if (EnvelopeCodec.isEnvelope(message)) {
+            //多条小消息打包的信封，拆开后逐条处理，不经过合并器，合并器开启时容器是手动ack，由拆包方负责ack
+            envelopeUnpacker.dispatch(message, channel, handler, notificationCoalescer.isEnabled());
+            rpcResponder.reply(channel, message.getMessageProperties(), RpcResponder.ACCEPTED);
+            return;
+        }
+        //大消息只发送了引用，从本地文件存储读取消息体，处理成功后才释放引用
+        //处理失败重新入队的消息不释放，同一消息体的其他队列和隔离的副本还会用到
+        ClaimCheckBody claimed = ClaimCheckResolver.isClaimCheck(message) ? claimCheckResolver.resolve(message) : null;
+        String text = claimed != null ? claimed.text() : delivery.text();
+        Runnable release = claimed == null ? null : () -> claimCheckResolver.release(claimed);
+        if (notificationCoalescer.isEnabled()) {
+            //同一用户的通知合并后再处理，由合并器负责ack，ack成功后释放引用
+            MessageProperties properties = message.getMessageProperties();
+            notificationCoalescer.offer(type, properties.getHeaders().get(NotificationCoalescer.HEADER_USER_ID),
+                    text, channel, properties.getDeliveryTag(), handler, release);
+        } else {
+            handler.accept(text);
+            if (release != null) {
+                release.run();
+            }
+        }
+        //带replyTo的请求回复受理结果
+        rpcResponder.reply(channel, message.getMessageProperties(), RpcResponder.ACCEPTED);
+    }
+
+    /**
+     * 处理流队列的消息，流消费模式（StreamOffsetConsumer）使用
+     * <p>
+     * 和监听方法一样按选择器和用户偏好过滤，引用消息读取消息体后处理，不经过合并器，也不回复RPC请求（重放时会重复回复）
+     * 流队列的消息消费后仍然保留，回溯重放时还要读取消息体，所以不释放引用，由最长保留时间回收
+     * 信封消息不支持：失败消息的重发依赖重新入队和投递次数，流队列都没有，记录后跳过
+     *
+     * @param type    通知类型，email或sms
+     * @param message 消息
+     * @return 是否交给了处理方法，被过滤或跳过时返回false
+     */
+    public boolean dispatchStream(String type, Message message) {
+        if (filtered(type, message.getMessageProperties())) {
+            return false;
+        }
+        if (EnvelopeCodec.isEnvelope(message)) {
+            LOGGER.warn("流消费模式不支持信封消息，跳过：{}", message.getMessageProperties());
+            return false;
+        }
+        String text = ClaimCheckResolver.isClaimCheck(message)
+                ? claimCheckResolver.resolve(message).text()
+                : new String(message.getBody(), StandardCharsets.UTF_8);
+        if ("email".equals(type)) {
+            handleEmail(text);
+        } else {
+            handleSms(text);
+        }
+        return true;
+    }
+
+    /**
+     * 不满足选择器的消息，以及用户之后关闭了这类通知的（RoutingKey是发送时的偏好），在解码消息体之前丢弃
+     */
+    private boolean filtered(String type, MessageProperties properties) {
+        return !selectorFilter.accept(type, properties)
+                || optedOut(type, properties.getHeaders().get(NotificationCoalescer.HEADER_USER_ID));
+    }
+
+    /**
+     * 用户是否关闭了这类通知，查不到用户时按原RoutingKey处理
+     */
+    private boolean optedOut(String type, Object userId) {
+        if (!preferenceCache.isEnabled() || userId == null) {
+            return false;
+        }
+        UserPreference preference = preferenceCache.get(String.valueOf(userId));
+        return preference != null && !preference.wants(type);
+    }
+
+    private void ack(Channel channel, long deliveryTag) {
+        try {
+            channel.basicAck(deliveryTag, false);
+        } catch (IOException e) {
+            LOGGER.warn("ack失败，消息将在通道关闭后重新投递", e);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.xuecheng.test.rabbitmq.mq.admin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 消费方的管理接口，开启方式：xuecheng.mq.admin.enabled=true
+ * <p>
+ * 消费方没有引入spring-boot-starter-web，这里用JDK自带的HttpServer，只处理几个运维请求，不影响启动时间
+ * 没有鉴权，默认只监听127.0.0.1
+ * 请求参数从查询字符串和表单格式的请求体中读取，返回纯文本
+ */
+@Component
+public class AdminServer implements DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdminServer.class);
+
+    private final boolean enabled;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public AdminServer(@Value("${xuecheng.mq.admin.enabled:false}") boolean enabled,
+                       @Value("${xuecheng.mq.admin.host:127.0.0.1}") String host,
+                       @Value("${xuecheng.mq.admin.port:44100}") int port) throws IOException {
+        this.enabled = enabled;
+        if (!enabled) {
+            this.server = null;
+            this.executor = null;
+            return;
+        }
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "mq-admin");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+        LOGGER.info("管理接口已启动：http://{}:{}", host, server.getAddress().getPort());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 注册一个接口，没有开启时忽略
+     *
+     * @param path     路径，例如/tuning
+     * @param endpoint 处理方法
+     */
+    public void register(String path, Endpoint endpoint) {
+        if (!enabled) {
+            return;
+        }
+        server.createContext(path, exchange -> handle(exchange, endpoint));
+    }
+
+    private void handle(HttpExchange exchange, Endpoint endpoint) throws IOException {
+        int status = 200;
+        String response;
+        try {
+            Map<String, String> params = parse(exchange.getRequestURI().getRawQuery());
+            params.putAll(parse(readBody(exchange.getRequestBody())));
+            response = endpoint.handle(exchange.getRequestMethod(), params);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            status = 400;
+            response = e.getMessage();
+        } catch (Exception e) {
+            LOGGER.warn("管理接口出错：{}", exchange.getRequestURI(), e);
+            status = 500;
+            response = e.toString();
+        }
+        byte[] body = (response + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 解析a=1&b=2格式的参数
+     */
+    static Map<String, String> parse(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new LinkedHashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key.trim(), "UTF-8"), URLDecoder.decode(value.trim(), "UTF-8"));
+        }
+        return params;
+    }
+
+    @Override
+    public void destroy() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 一个管理接口
+     */
+    public interface Endpoint {
+        /**
+         * @param method GET、POST等
+         * @param params 请求参数
+         * @return 返回的文本，参数不合法时抛出IllegalArgumentException，返回400
+         */
+        String handle(String method, Map<String, String> params) throws Exception;
+    }
+}
@@ -0,0 +1,110 @@
+package com.xuecheng.test.rabbitmq.mq.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并并发的加载请求
+ * <p>
+ * 多个消费线程同时未命中时，第一个请求等待一个很短的窗口（或凑够maxBatch个key），
+ * 然后把窗口内所有请求的key合并成一次批量加载，其他请求等待结果
+ */
+public class BatchingLoader<K, V> implements TinyLfuCache.BulkLoader<K, V> {
+    private final TinyLfuCache.BulkLoader<K, V> delegate;
+    private final long windowNanos;
+    private final int maxBatch;
+    private List<Request<K, V>> pending = new ArrayList<>();
+    private int pendingKeys;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public BatchingLoader(TinyLfuCache.BulkLoader<K, V> delegate, long windowMillis, int maxBatch) {
+        this.delegate = delegate;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBatch = maxBatch;
+    }
+
+    @Override
+    public Map<K, V> loadAll(Collection<K> keys) throws Exception {
+        requests.incrementAndGet();
+        Request<K, V> request = new Request<>(keys);
+        boolean leader;
+        List<Request<K, V>> batch = null;
+        synchronized (this) {
+            leader = pending.isEmpty();
+            pending.add(request);
+            pendingKeys += keys.size();
+            if (pendingKeys >= maxBatch) {
+                notifyAll();
+            }
+            if (leader) {
+                long deadline = System.nanoTime() + windowNanos;
+                long remaining;
+                while (pendingKeys < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                pendingKeys = 0;
+            }
+        }
+        if (leader) {
+            run(batch);
+        }
+        try {
+            return request.result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new IllegalStateException(cause);
+        }
+    }
+
+    private void run(List<Request<K, V>> batch) {
+        batches.incrementAndGet();
+        Set<K> keys = new LinkedHashSet<>();
+        for (Request<K, V> request : batch) {
+            keys.addAll(request.keys);
+        }
+        try {
+            Map<K, V> result = delegate.loadAll(keys);
+            for (Request<K, V> request : batch) {
+                request.result.complete(result);
+            }
+        } catch (Exception | Error e) {
+            for (Request<K, V> request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 收到的加载请求数
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * 实际调用批量加载的次数
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    private static final class Request<K, V> {
+        private final Collection<K> keys;
+        private final CompletableFuture<Map<K, V>> result = new CompletableFuture<>();
+
+        private Request(Collection<K> keys) {
+            this.keys = keys;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.xuecheng.test.rabbitmq.mq.cache;
+
+/**
+ * 访问频率的近似统计，Count-Min Sketch，每个计数器4位，最大15
+ * <p>
+ * 每个key对应4个计数器，取最小值作为频率；累计次数达到容量的10倍时所有计数器减半，
+ * 让过去的热点逐渐冷却，新的热点有机会进入缓存
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maximumSize) {
+        int capacity = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1;
+        this.table = new long[capacity];
+        this.mask = capacity - 1;
+        this.sampleSize = 10 * Math.max(maximumSize, 16);
+    }
+
+    /**
+     * 估计的访问次数，0到15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            long h = rehash(hash, i);
+            int index = (int) (h >>> 8) & mask;
+            int shift = (int) (h & 15) << 2;
+            frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 15));
+        }
+        return frequency;
+    }
+
+    /**
+     * 记录一次访问
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            long h = rehash(hash, i);
+            int index = (int) (h >>> 8) & mask;
+            int shift = (int) (h & 15) << 2;
+            if (((table[index] >>> shift) & 15) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    private static long rehash(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[(i + 1) & 3];
+        return h ^ (h >>> 32);
+    }
+}
@@ -0,0 +1,341 @@
+package com.xuecheng.test.rabbitmq.mq.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 有上限的本地缓存，W-TinyLFU淘汰策略
+ * <p>
+ * 新数据先进入窗口区（1%，LRU），被挤出窗口后进入主区的试用段；主区满时，
+ * 窗口挤出的候选和试用段最久未访问的数据比较访问频率（FrequencySketch），频率高的留下
+ * 试用段中再次被访问的数据升级到保护段（主区的80%）
+ * 这样一次性访问的大量用户（例如群发）不会把经常收到通知的用户挤出缓存
+ * <p>
+ * 过期前refresh-after时间内被访问的数据在后台重新加载，访问方直接拿到旧值，不需要等待（refresh-ahead）
+ * 加载不到的key缓存为空值（negative caching），有效期较短，避免不存在的用户每次都查库
+ * 未命中的key一次批量加载
+ */
+public class TinyLfuCache<K, V> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TinyLfuCache.class);
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * 批量加载，返回的map中没有的key视为不存在
+     */
+    public interface BulkLoader<K, V> {
+        Map<K, V> loadAll(Collection<K> keys) throws Exception;
+    }
+
+    private final int maximumSize;
+    private final int windowMax;
+    private final int protectedMax;
+    private final long expireNanos;
+    private final long refreshNanos;
+    private final long negativeNanos;
+    private final BulkLoader<K, V> loader;
+    private final Executor refreshExecutor;
+    private final FrequencySketch sketch;
+    private final Map<K, Node<K, V>> data = new HashMap<>();
+    private final Node<K, V>[] heads;
+    private final int[] sizes = new int[3];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maximumSize     最多缓存多少个key，包括空值
+     * @param expireMillis    有效期
+     * @param refreshMillis   加载后多久开始后台刷新，应小于有效期
+     * @param negativeMillis  空值的有效期
+     * @param loader          批量加载
+     * @param refreshExecutor 后台刷新的线程
+     */
+    @SuppressWarnings("unchecked")
+    public TinyLfuCache(int maximumSize, long expireMillis, long refreshMillis, long negativeMillis,
+                        BulkLoader<K, V> loader, Executor refreshExecutor) {
+        this.maximumSize = maximumSize;
+        this.windowMax = Math.max(1, maximumSize / 100);
+        this.protectedMax = (maximumSize - windowMax) * 80 / 100;
+        this.expireNanos = TimeUnit.MILLISECONDS.toNanos(expireMillis);
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+        this.negativeNanos = TimeUnit.MILLISECONDS.toNanos(negativeMillis);
+        this.loader = loader;
+        this.refreshExecutor = refreshExecutor;
+        this.sketch = new FrequencySketch(maximumSize);
+        this.heads = new Node[3];
+        for (int i = 0; i < heads.length; i++) {
+            Node<K, V> head = new Node<>(null);
+            head.prev = head;
+            head.next = head;
+            heads[i] = head;
+        }
+    }
+
+    /**
+     * 读取一个key，不存在时返回null
+     */
+    public V get(K key) {
+        return getAll(Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * 批量读取，未命中的key一次加载
+     *
+     * @return 存在的key和值
+     */
+    public Map<K, V> getAll(Collection<K> keys) {
+        Map<K, V> result = new HashMap<>();
+        List<K> missing = new ArrayList<>();
+        List<K> stale = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            for (K key : keys) {
+                sketch.increment(key);
+                Node<K, V> node = data.get(key);
+                if (node == null || now - node.expiresAt >= 0) {
+                    misses.incrementAndGet();
+                    missing.add(key);
+                    continue;
+                }
+                onAccess(node);
+                if (node.value == null) {
+                    negativeHits.incrementAndGet();
+                    continue;
+                }
+                hits.incrementAndGet();
+                result.put(key, node.value);
+                if (!node.refreshing && now - node.refreshAt >= 0) {
+                    node.refreshing = true;
+                    stale.add(key);
+                }
+            }
+        }
+        if (!stale.isEmpty()) {
+            refreshes.addAndGet(stale.size());
+            refreshExecutor.execute(() -> {
+                try {
+                    load(stale);
+                } catch (RuntimeException e) {
+                    //刷新失败继续使用旧值，直到过期
+                    LOGGER.warn("后台刷新缓存失败：{}", e.toString());
+                }
+            });
+        }
+        if (!missing.isEmpty()) {
+            result.putAll(load(missing));
+        }
+        return result;
+    }
+
+    private Map<K, V> load(List<K> keys) {
+        Map<K, V> loaded;
+        try {
+            loads.incrementAndGet();
+            loaded = loader.loadAll(keys);
+        } catch (Exception e) {
+            loadFailures.incrementAndGet();
+            synchronized (this) {
+                for (K key : keys) {
+                    Node<K, V> node = data.get(key);
+                    if (node != null) {
+                        node.refreshing = false;
+                    }
+                }
+            }
+            throw new IllegalStateException("加载缓存失败", e);
+        }
+        long now = System.nanoTime();
+        Map<K, V> found = new HashMap<>();
+        synchronized (this) {
+            for (K key : keys) {
+                V value = loaded.get(key);
+                put(key, value, now);
+                if (value != null) {
+                    found.put(key, value);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 移除一个key，数据变更时调用
+     */
+    public synchronized void invalidate(K key) {
+        Node<K, V> node = data.remove(key);
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+    private void put(K key, V value, long now) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            node = new Node<>(key);
+            data.put(key, node);
+            link(node, WINDOW);
+        }
+        node.value = value;
+        node.refreshing = false;
+        if (value == null) {
+            node.expiresAt = now + negativeNanos;
+            node.refreshAt = node.expiresAt;
+        } else {
+            node.expiresAt = now + expireNanos;
+            node.refreshAt = now + refreshNanos;
+        }
+        evict();
+    }
+
+    private void onAccess(Node<K, V> node) {
+        int queue = node.queue;
+        unlink(node);
+        if (queue == PROBATION) {
+            link(node, PROTECTED);
+            while (sizes[PROTECTED] > protectedMax) {
+                Node<K, V> demoted = heads[PROTECTED].next;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            link(node, queue);
+        }
+    }
+
+    private void evict() {
+        while (sizes[WINDOW] > windowMax) {
+            Node<K, V> candidate = heads[WINDOW].next;
+            unlink(candidate);
+            link(candidate, PROBATION);
+        }
+        while (data.size() > maximumSize) {
+            Node<K, V> victim = first(PROBATION);
+            if (victim == null) {
+                victim = first(PROTECTED) != null ? first(PROTECTED) : first(WINDOW);
+                remove(victim);
+                continue;
+            }
+            Node<K, V> candidate = heads[PROBATION].prev;
+            if (candidate != victim && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                remove(candidate);
+            } else {
+                remove(victim);
+            }
+        }
+    }
+
+    private void remove(Node<K, V> node) {
+        unlink(node);
+        data.remove(node.key);
+        evictions.incrementAndGet();
+    }
+
+    private Node<K, V> first(int queue) {
+        Node<K, V> head = heads[queue];
+        return head.next == head ? null : head.next;
+    }
+
+    private void link(Node<K, V> node, int queue) {
+        Node<K, V> head = heads[queue];
+        node.queue = queue;
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        sizes[queue]++;
+    }
+
+    private void unlink(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        sizes[node.queue]--;
+    }
+
+    public synchronized int size() {
+        return data.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * 命中空值的次数
+     */
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 调用批量加载的次数，包括后台刷新
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getLoadFailures() {
+        return loadFailures.get();
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * 命中率，空值命中也算命中
+     */
+    public double getHitRatio() {
+        long hit = hits.get() + negativeHits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("缓存%d个，命中率%.2f，命中%d，空值命中%d，未命中%d，加载%d次，失败%d次，刷新%d，淘汰%d",
+                size(), getHitRatio(), hits.get(), negativeHits.get(), misses.get(), loads.get(),
+                loadFailures.get(), refreshes.get(), evictions.get());
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private V value;
+        private long expiresAt;
+        private long refreshAt;
+        private boolean refreshing;
+        private int queue;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+
+        private Node(K key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.xuecheng.test.rabbitmq.mq.claimcheck;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 消息体的LRU缓存，按字节数限制大小，所有监听共用
+ * <p>
+ * 按引用扇出时，同一个消息体会投递到多个队列，同一进程内的多个监听只需要读取一次文件
+ * 消息体按内容寻址，不会被修改，缓存不需要失效，文件被回收后缓存中的副本仍然有效
+ */
+public class BlobCache {
+    private final long maxBytes;
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes 最多缓存多少字节，0表示不缓存
+     */
+    public BlobCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 读取消息体，不在缓存中时调用loader加载
+     * 加载在锁外进行，并发加载同一个消息体时可能重复读取，结果相同，不影响正确性
+     *
+     * @return 只读的缓冲区，每次返回独立的position
+     */
+    public ByteBuffer get(String hash, Function<String, ByteBuffer> loader) {
+        synchronized (this) {
+            ByteBuffer cached = entries.get(hash);
+            if (cached != null) {
+                hits++;
+                return cached.duplicate();
+            }
+            misses++;
+        }
+        ByteBuffer loaded = loader.apply(hash).asReadOnlyBuffer();
+        int size = loaded.remaining();
+        if (size <= maxBytes) {
+            synchronized (this) {
+                if (entries.put(hash, loaded) == null) {
+                    bytes += size;
+                }
+                evict();
+            }
+        }
+        return loaded.duplicate();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, ByteBuffer>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().remaining();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * 当前缓存的字节数
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * 命中率
+     */
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
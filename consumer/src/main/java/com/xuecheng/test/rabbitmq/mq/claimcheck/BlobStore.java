@@ -0,0 +1,168 @@
+package com.xuecheng.test.rabbitmq.mq.claimcheck;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 大消息体的本地文件存储（消费方），和发送方的BlobStore使用同一个目录
+ * <p>
+ * 目录结构：
+ * {dir}/{hash前2位}/{hash}.blob 消息体
+ * {dir}/{hash前2位}/{hash}.refs 引用计数，文本格式，修改时加文件锁，保证多进程安全
+ * <p>
+ * 大消息体通过内存映射读取，不复制到堆内；小消息体直接读到堆内，避免每条消息都建立映射
+ * 引用计数减到0时不立即删除，由sweep在宽限期后回收，防止ack失败重新投递时文件已经不在了
+ */
+public class BlobStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobStore.class);
+    /**
+     * 小于这个大小的消息体直接读到堆内
+     */
+    private static final int HEAP_READ_LIMIT = 64 * 1024;
+
+    private final Path dir;
+
+    public BlobStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * 内存映射读取消息体
+     *
+     * @param hash 内容的sha256
+     * @return 只读的映射缓冲区
+     */
+    public MappedByteBuffer map(String hash) {
+        Path blob = blobFile(hash);
+        try (FileChannel channel = FileChannel.open(blob, StandardOpenOption.READ)) {
+            //映射建立后关闭通道不影响读取
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            throw new IllegalStateException("消息体不存在，可能已经被回收：" + hash, e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取消息体失败：" + blob, e);
+        }
+    }
+
+    /**
+     * 读取消息体，小的读到堆内，大的内存映射
+     *
+     * @param hash 内容的sha256
+     */
+    public ByteBuffer read(String hash) {
+        Path blob = blobFile(hash);
+        try {
+            if (Files.size(blob) < HEAP_READ_LIMIT) {
+                return ByteBuffer.wrap(Files.readAllBytes(blob));
+            }
+        } catch (NoSuchFileException e) {
+            throw new IllegalStateException("消息体不存在，可能已经被回收：" + hash, e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取消息体失败：" + blob, e);
+        }
+        return map(hash);
+    }
+
+    /**
+     * 消息处理完成，减少一个引用
+     *
+     * @return 剩余的引用数
+     */
+    public int release(String hash) {
+        try {
+            return addRefs(hash, -1);
+        } catch (IOException e) {
+            throw new UncheckedIOException("修改引用计数失败：" + hash, e);
+        }
+    }
+
+    /**
+     * 回收文件
+     * 引用计数为0且超过宽限期的，以及超过最长保留时间的（发送方或消费方异常退出留下的）
+     *
+     * @param graceMillis 引用计数为0后的宽限期
+     * @param maxAgeMillis 最长保留时间
+     * @return 回收的文件数
+     */
+    public int sweep(long graceMillis, long maxAgeMillis) {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(dir)) {
+            for (Path shard : shards) {
+                if (!Files.isDirectory(shard)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> refsFiles = Files.newDirectoryStream(shard, "*.refs")) {
+                    for (Path refs : refsFiles) {
+                        String name = refs.getFileName().toString();
+                        String hash = name.substring(0, name.length() - ".refs".length());
+                        if (sweepOne(hash, now, graceMillis, maxAgeMillis)) {
+                            removed++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("回收消息体文件失败", e);
+        }
+        return removed;
+    }
+
+    private synchronized boolean sweepOne(String hash, long now, long graceMillis, long maxAgeMillis)
+            throws IOException {
+        Path blob = blobFile(hash);
+        Path refs = blob.resolveSibling(hash + ".refs");
+        try (FileChannel channel = FileChannel.open(refs, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            long age = now - Files.getLastModifiedTime(refs).toMillis();
+            int count = readCount(channel);
+            if ((count <= 0 && age >= graceMillis) || age >= maxAgeMillis) {
+                Files.deleteIfExists(blob);
+                Files.delete(refs);
+                return true;
+            }
+            return false;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    synchronized int addRefs(String hash, int delta) throws IOException {
+        Path refs = blobFile(hash).resolveSibling(hash + ".refs");
+        try (FileChannel channel = FileChannel.open(refs,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            int count = readCount(channel) + delta;
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(String.valueOf(count).getBytes(StandardCharsets.UTF_8)), 0);
+            return count;
+        }
+    }
+
+    private static int readCount(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        channel.read(buffer, 0);
+        String text = new String(buffer.array(), StandardCharsets.UTF_8).trim();
+        return text.isEmpty() ? 0 : Integer.parseInt(text);
+    }
+
+    Path blobFile(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash + ".blob");
+    }
+}
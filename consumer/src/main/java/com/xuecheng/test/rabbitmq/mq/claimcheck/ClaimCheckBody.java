@@ -0,0 +1,53 @@
+package com.xuecheng.test.rabbitmq.mq.claimcheck;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 通过引用读取的消息体，第一次访问时才读取，经过共享的缓存
+ */
+public class ClaimCheckBody {
+    private final BlobStore blobStore;
+    private final BlobCache blobCache;
+    private final String hash;
+    private final int size;
+    private ByteBuffer buffer;
+
+    ClaimCheckBody(BlobStore blobStore, BlobCache blobCache, String hash, int size) {
+        this.blobStore = blobStore;
+        this.blobCache = blobCache;
+        this.hash = hash;
+        this.size = size;
+    }
+
+    /**
+     * 内容的sha256
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * 消息体大小，来自消息头，不需要读取文件
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * 只读的消息体，每次返回独立的position
+     */
+    public synchronized ByteBuffer buffer() {
+        if (buffer == null) {
+            buffer = blobCache.get(hash, blobStore::read);
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * 按UTF-8解码成字符串
+     */
+    public String text() {
+        return StandardCharsets.UTF_8.decode(buffer()).toString();
+    }
+}
@@ -0,0 +1,95 @@
+package com.xuecheng.test.rabbitmq.mq.claimcheck;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Paths;
+import java.util.Map;
+
+/**
+ * Claim-Check模式的消费方，把消息中的引用解析成消息体
+ * <p>
+ * 消息处理成功后调用release减少引用计数，文件由定时任务在宽限期后回收
+ * 按引用扇出的消息体会被多个队列的监听读取，经过共享的LRU缓存只读取一次
+ */
+@Component
+public class ClaimCheckResolver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClaimCheckResolver.class);
+    /**
+     * 引用的消息头，值为消息体的sha256，和发送方ClaimCheckPublisher一致
+     */
+    public static final String HEADER_CLAIM_CHECK = "x-claim-check";
+    /**
+     * 原消息体的大小
+     */
+    public static final String HEADER_CLAIM_CHECK_SIZE = "x-claim-check-size";
+
+    private final BlobStore blobStore;
+    private final BlobCache blobCache;
+    private final long graceMillis;
+    private final long maxAgeMillis;
+
+    public ClaimCheckResolver(@Value("${xuecheng.mq.claim-check.dir:claim-check}") String dir,
+                              @Value("${xuecheng.mq.claim-check.grace-ms:300000}") long graceMillis,
+                              @Value("${xuecheng.mq.claim-check.max-age-ms:604800000}") long maxAgeMillis,
+                              @Value("${xuecheng.mq.claim-check.cache-bytes:67108864}") long cacheBytes) {
+        this.blobStore = new BlobStore(Paths.get(dir));
+        this.blobCache = new BlobCache(cacheBytes);
+        this.graceMillis = graceMillis;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * 是否为引用消息
+     */
+    public static boolean isClaimCheck(Message message) {
+        return message.getMessageProperties().getHeaders().containsKey(HEADER_CLAIM_CHECK);
+    }
+
+    /**
+     * 解析引用，此时还不会读取文件
+     */
+    public ClaimCheckBody resolve(Message message) {
+        Map<String, Object> headers = message.getMessageProperties().getHeaders();
+        String hash = String.valueOf(headers.get(HEADER_CLAIM_CHECK));
+        Object size = headers.get(HEADER_CLAIM_CHECK_SIZE);
+        return new ClaimCheckBody(blobStore, blobCache, hash, size instanceof Number ? ((Number) size).intValue() : -1);
+    }
+
+    /**
+     * 消息处理完成，释放引用
+     */
+    public void release(ClaimCheckBody body) {
+        blobStore.release(body.getHash());
+    }
+
+    /**
+     * 不处理就丢弃的引用消息，只释放引用，不读取文件
+     */
+    public void release(Message message) {
+        blobStore.release(String.valueOf(message.getMessageProperties().getHeaders().get(HEADER_CLAIM_CHECK)));
+    }
+
+    public BlobCache getBlobCache() {
+        return blobCache;
+    }
+
+    /**
+     * 定时回收不再引用的文件
+     */
+    @Scheduled(fixedDelayString = "${xuecheng.mq.claim-check.gc-interval-ms:60000}")
+    public void sweep() {
+        int removed = blobStore.sweep(graceMillis, maxAgeMillis);
+        if (removed > 0) {
+            LOGGER.info("回收了{}个消息体文件", removed);
+        }
+        if (blobCache.getHits() + blobCache.getMisses() > 0) {
+            LOGGER.info("消息体缓存：命中率{}，{}字节，淘汰{}次", String.format("%.2f", blobCache.getHitRatio()),
+                    blobCache.getBytes(), blobCache.getEvictions());
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.xuecheng.test.rabbitmq.mq.coalesce;
+
+import com.rabbitmq.client.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * 通知合并（防抖），开启方式：xuecheng.mq.coalesce.enabled=true
+ * <p>
+ * 同一个用户在窗口期内收到的多条同类通知，合并成一条摘要后再交给处理方法，减少调用短信、邮件网关的次数
+ * 用户通过消息头x-user-id识别，没有该消息头的消息直接处理
+ * <p>
+ * 缓存中的消息在合并处理完成后才ack，所以开启后监听容器使用手动ack，并且prefetch要大于窗口期内的消息数
+ * 内存有上限：用户数超过max-keys时新用户的消息直接处理，单个用户的消息数达到max-per-key时提前合并
+ * 停止前调用drain()：立即处理缓存中的消息并ack，之后收到的消息直接处理，监听容器关闭通道时不会留下未ack的消息
+ */
+@Component
+public class NotificationCoalescer implements InitializingBean, DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationCoalescer.class);
+    /**
+     * 用户标识的消息头
+     */
+    public static final String HEADER_USER_ID = "x-user-id";
+    /**
+     * 摘要中多条消息之间的分隔符
+     */
+    public static final String DIGEST_SEPARATOR = "\n";
+
+    private final boolean enabled;
+    private final long windowMillis;
+    private final int maxKeys;
+    private final int maxPerKey;
+    private final long tickMillis;
+    private final LongSupplier clock;
+
+    /**
+     * 合并的key -> 窗口期内的消息
+     */
+    private final Map<String, Batch> batches = new HashMap<>();
+    private TimingWheel<Batch> wheel;
+    private ScheduledExecutorService ticker;
+    private volatile boolean draining;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong emitted = new AtomicLong();
+
+    public NotificationCoalescer(@Value("${xuecheng.mq.coalesce.enabled:false}") boolean enabled,
+                                 @Value("${xuecheng.mq.coalesce.window-ms:3000}") long windowMillis,
+                                 @Value("${xuecheng.mq.coalesce.max-keys:100000}") int maxKeys,
+                                 @Value("${xuecheng.mq.coalesce.max-per-key:50}") int maxPerKey,
+                                 @Value("${xuecheng.mq.coalesce.tick-ms:100}") long tickMillis) {
+        this(enabled, windowMillis, maxKeys, maxPerKey, tickMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock 毫秒时间，测试时可以替换
+     */
+    NotificationCoalescer(boolean enabled, long windowMillis, int maxKeys, int maxPerKey, long tickMillis,
+                          LongSupplier clock) {
+        this.enabled = enabled;
+        this.windowMillis = windowMillis;
+        this.maxKeys = maxKeys;
+        this.maxPerKey = maxPerKey;
+        this.tickMillis = tickMillis;
+        this.clock = clock;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        init();
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "notification-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 创建时间轮，不启动后台线程，测试时由调用方推进时钟并调用tick()
+     */
+    void init() {
+        wheel = new TimingWheel<>((int) Math.max(2, windowMillis / tickMillis * 2), tickMillis, clock.getAsLong());
+    }
+
+    /**
+     * 接收一条消息，由合并器负责处理和ack
+     *
+     * @param type        通知类型，例如email、sms，不同类型分开合并
+     * @param userId      用户标识，为空时直接处理
+     * @param msg         消息内容
+     * @param channel     消息通道，用于ack
+     * @param deliveryTag 消息的deliveryTag
+     * @param handler     处理方法，参数为合并后的摘要
+     */
+    public void offer(String type, Object userId, String msg, Channel channel, long deliveryTag,
+                      Consumer<String> handler) {
+        offer(type, userId, msg, channel, deliveryTag, handler, null);
+    }
+
+    /**
+     * 接收一条消息，由合并器负责处理和ack
+     *
+     * @param acked 这条消息ack成功后调用，例如释放Claim-Check引用，处理失败重新入队时不调用，可以为null
+     */
+    public void offer(String type, Object userId, String msg, Channel channel, long deliveryTag,
+                      Consumer<String> handler, Runnable acked) {
+        received.incrementAndGet();
+        Batch ready = null;
+        synchronized (this) {
+            if (userId != null && !draining) {
+                String key = type + ":" + userId;
+                Batch batch = batches.get(key);
+                if (batch == null && batches.size() < maxKeys) {
+                    batch = new Batch(key, handler);
+                    batches.put(key, batch);
+                    wheel.schedule(batch, clock.getAsLong() + windowMillis);
+                }
+                if (batch != null) {
+                    batch.add(msg, channel, deliveryTag, acked);
+                    if (batch.messages.size() < maxPerKey) {
+                        return;
+                    }
+                    batches.remove(key);
+                    ready = batch;
+                }
+            }
+        }
+        if (ready == null) {
+            //没有用户标识、超过了内存上限或者正在停止，直接处理
+            ready = new Batch(null, handler);
+            ready.add(msg, channel, deliveryTag, acked);
+        }
+        emit(ready);
+    }
+
+    /**
+     * 时间轮推进，处理到期的合并批次
+     */
+    void tick() {
+        List<Batch> expired = new ArrayList<>();
+        synchronized (this) {
+            for (Batch batch : wheel.advance(clock.getAsLong())) {
+                //提前合并过的批次已经从map中移除，这里跳过
+                if (batches.get(batch.key) == batch) {
+                    batches.remove(batch.key);
+                    expired.add(batch);
+                }
+            }
+        }
+        for (Batch batch : expired) {
+            emit(batch);
+        }
+    }
+
+    private void emit(Batch batch) {
+        if (batch.emitted) {
+            return;
+        }
+        batch.emitted = true;
+        emitted.incrementAndGet();
+        //已经ack的条数，ack中途失败时只nack后面的，同一个deliveryTag确认两次会导致通道被关闭
+        int acked = 0;
+        try {
+            batch.handler.accept(String.join(DIGEST_SEPARATOR, batch.messages));
+            for (; acked < batch.deliveryTags.size(); acked++) {
+                batch.channels.get(acked).basicAck(batch.deliveryTags.get(acked), false);
+                runAcked(batch.acked.get(acked));
+            }
+        } catch (RuntimeException | IOException e) {
+            LOGGER.error("处理合并的消息失败，重新入队：{}", batch.key, e);
+            nack(batch, acked);
+        }
+    }
+
+    private void runAcked(Runnable acked) {
+        if (acked == null) {
+            return;
+        }
+        try {
+            acked.run();
+        } catch (RuntimeException e) {
+            LOGGER.warn("ack后的回调出错", e);
+        }
+    }
+
+    /**
+     * 从第from条开始nack，前面的已经ack
+     */
+    private void nack(Batch batch, int from) {
+        try {
+            for (int i = from; i < batch.deliveryTags.size(); i++) {
+                batch.channels.get(i).basicNack(batch.deliveryTags.get(i), false, true);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("nack失败，消息将在通道关闭后重新投递", e);
+        }
+    }
+
+    /**
+     * 收到的消息数
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * 交给处理方法的次数
+     */
+    public long getEmitted() {
+        return emitted.get();
+    }
+
+    /**
+     * 合并比例，收到的消息数 / 处理次数
+     */
+    public double getCoalesceRatio() {
+        long count = emitted.get();
+        return count == 0 ? 1.0 : (double) received.get() / count;
+    }
+
+    /**
+     * 正在等待合并的用户数
+     */
+    public synchronized int getPendingKeys() {
+        return batches.size();
+    }
+
+    /**
+     * 停止合并：立即处理缓存中的所有批次，之后收到的消息不再等待窗口期
+     *
+     * @return 提前处理的消息数
+     */
+    public int drain() {
+        List<Batch> pending;
+        synchronized (this) {
+            draining = true;
+            pending = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        int messages = 0;
+        for (Batch batch : pending) {
+            messages += batch.messages.size();
+            emit(batch);
+        }
+        return messages;
+    }
+
+    /**
+     * 取消drain()，恢复合并
+     */
+    public void resume() {
+        draining = false;
+    }
+
+    @Override
+    public void destroy() {
+        if (wheel == null) {
+            return;
+        }
+        if (ticker != null) {
+            ticker.shutdown();
+        }
+        drain();
+        LOGGER.info("通知合并：收到{}条，处理{}次，合并比例{}", received.get(), emitted.get(),
+                String.format("%.2f", getCoalesceRatio()));
+    }
+
+    /**
+     * 一个用户在窗口期内的消息
+     */
+    private static final class Batch {
+        private final String key;
+        private final Consumer<String> handler;
+        private final List<String> messages = new ArrayList<>();
+        /**
+         * deliveryTag只在所属的通道内有效，并发消费时同一个用户的消息可能来自不同通道
+         */
+        private final List<Channel> channels = new ArrayList<>();
+        private final List<Long> deliveryTags = new ArrayList<>();
+        private final List<Runnable> acked = new ArrayList<>();
+        private boolean emitted;
+
+        private Batch(String key, Consumer<String> handler) {
+            this.key = key;
+            this.handler = handler;
+        }
+
+        private void add(String msg, Channel channel, long deliveryTag, Runnable onAcked) {
+            messages.add(msg);
+            channels.add(channel);
+            deliveryTags.add(deliveryTag);
+            acked.add(onAcked);
+        }
+    }
+}
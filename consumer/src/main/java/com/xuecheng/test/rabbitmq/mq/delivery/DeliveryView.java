@@ -0,0 +1,126 @@
+package com.xuecheng.test.rabbitmq.mq.delivery;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 收到的消息的只读视图，不复制消息体，也不提前解码
+ * <p>
+ * 消息体就是客户端从AMQP帧组装出来的那个数组，这里只包装成只读的ByteBuffer
+ * 只做转发、按消息头过滤或计数的处理不需要访问消息内容，也就不会产生复制和解码
+ * 需要内容时通过text()、asLong()、as()按需解码，解码结果会缓存
+ */
+public final class DeliveryView {
+    private final Message message;
+    private final byte[] body;
+    private final Map<String, Object> headers;
+    private final Charset charset;
+
+    private String text;
+    private Function<ByteBuffer, ?> decoder;
+    private Object decoded;
+
+    public DeliveryView(Message message) {
+        this.message = message;
+        this.body = message.getBody() == null ? new byte[0] : message.getBody();
+        MessageProperties properties = message.getMessageProperties();
+        this.headers = properties == null ? Collections.<String, Object>emptyMap() : properties.getHeaders();
+        String encoding = properties == null ? null : properties.getContentEncoding();
+        this.charset = encoding == null ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+    }
+
+    /**
+     * 原始消息，转发时直接使用，不复制消息体
+     */
+    public Message message() {
+        return message;
+    }
+
+    /**
+     * 只读的消息体视图，每次返回独立的position
+     */
+    public ByteBuffer body() {
+        return ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+
+    /**
+     * 消息体大小
+     */
+    public int size() {
+        return body.length;
+    }
+
+    /**
+     * 消息头
+     */
+    public Object header(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * 消息头的字符串值，消息头中的字符串可能是LongString，统一转成String
+     */
+    public String headerAsString(String name) {
+        Object value = headers.get(name);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * 按消息的编码解码成字符串，默认UTF-8
+     */
+    public String text() {
+        if (text == null) {
+            text = new String(body, charset);
+        }
+        return text;
+    }
+
+    /**
+     * 消息体为十进制整数时，直接从字节解析，不创建字符串
+     * 按负数累加，Long.MIN_VALUE也能表示，超出long范围时抛出NumberFormatException
+     */
+    public long asLong() {
+        int i = 0;
+        boolean negative = body.length > 0 && body[0] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == body.length) {
+            throw new NumberFormatException("消息体不是整数");
+        }
+        long value = 0;
+        try {
+            for (; i < body.length; i++) {
+                int digit = body[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("消息体不是整数");
+                }
+                value = Math.subtractExact(Math.multiplyExact(value, 10), digit);
+            }
+            return negative ? value : Math.negateExact(value);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("消息体超出long的范围");
+        }
+    }
+
+    /**
+     * 用自定义的解码方法解码，结果按解码方法缓存
+     *
+     * @param decoder 解码方法，参数为只读的消息体
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T as(Function<ByteBuffer, T> decoder) {
+        if (this.decoder != decoder) {
+            this.decoded = decoder.apply(body());
+            this.decoder = decoder;
+        }
+        return (T) decoded;
+    }
+}
@@ -0,0 +1,26 @@
+package com.xuecheng.test.rabbitmq.mq.delivery;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+/**
+ * 监听方法的消息转换器，把消息包装成DeliveryView，不复制、不解码
+ * <p>
+ * 默认的SimpleMessageConverter会把每条文本消息都解码成String，即使监听方法用不到
+ */
+public class DeliveryViewMessageConverter implements MessageConverter {
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) {
+        if (object instanceof DeliveryView) {
+            return ((DeliveryView) object).message();
+        }
+        throw new MessageConversionException("只支持DeliveryView：" + object.getClass());
+    }
+
+    @Override
+    public Object fromMessage(Message message) {
+        return new DeliveryView(message);
+    }
+}
@@ -0,0 +1,330 @@
+package com.xuecheng.test.rabbitmq.mq.drain;
+
+import com.rabbitmq.client.Channel;
+import com.xuecheng.test.rabbitmq.mq.admin.AdminServer;
+import com.xuecheng.test.rabbitmq.mq.coalesce.NotificationCoalescer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 优雅停止，开启方式：xuecheng.mq.drain.enabled=true
+ * <p>
+ * 直接关闭时，已经预取到本地缓冲、还没处理的消息和批量ack中还没提交的消息，要等通道关闭后由MQ重新投递，
+ * 滚动发布时同一批消息在新实例上再处理一次，延迟和重复都会突增
+ * 这里在应用关闭时（ContextClosedEvent，早于监听容器的停止）先做一次排空：
+ * 1. 批量ack的容器改为逐条ack，正在进行的批次处理完当前消息后立即提交
+ * 2. 通知合并中的消息立即处理并ack，之后的消息不再等待窗口期
+ * 3. 所有容器同时停止，容器先发送basic.cancel，MQ不再投递新消息，再处理本地缓冲中的消息：
+ * mode=finish逐条处理完；mode=handback不处理，按收到的顺序逐条拒绝并重新入队，MQ放回原来的位置，由其他实例按顺序消费
+ * 4. 超过timeout-ms没有处理完的消息由通道关闭后重新投递
+ * <p>
+ * 没有开启时，应用关闭时只把通知合并中的消息立即处理并ack，不能等到合并器销毁时才处理，那时监听容器已经关闭了通道
+ * <p>
+ * handback在自动ack时通过抛出异常拒绝，需要default-requeue-rejected为true（默认值）
+ * 管理接口：GET /drain查看上一次排空的结果，POST /drain在发布前手动排空，POST /drain?action=resume恢复消费
+ */
+@Component
+public class GracefulDrain implements ApplicationListener<ContextClosedEvent> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GracefulDrain.class);
+
+    public static final String MODE_FINISH = "finish";
+    public static final String MODE_HANDBACK = "handback";
+
+    private final Supplier<Collection<MessageListenerContainer>> containers;
+    private final NotificationCoalescer notificationCoalescer;
+    private final boolean enabled;
+    private final String mode;
+    private final long timeoutMillis;
+    private final boolean manualAck;
+
+    private volatile boolean draining;
+    private volatile boolean handingBack;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder handedBack = new LongAdder();
+    /**
+     * 排空前各容器的批量ack条数，恢复时还原
+     */
+    private final Map<SimpleMessageListenerContainer, Integer> txSizes = new IdentityHashMap<>();
+    private volatile Report lastReport;
+
+    @Autowired
+    public GracefulDrain(RabbitListenerEndpointRegistry registry, RabbitProperties rabbitProperties,
+                         NotificationCoalescer notificationCoalescer, AdminServer adminServer,
+                         @Value("${xuecheng.mq.drain.enabled:false}") boolean enabled,
+                         @Value("${xuecheng.mq.drain.mode:" + MODE_FINISH + "}") String mode,
+                         @Value("${xuecheng.mq.drain.timeout-ms:20000}") long timeoutMillis) {
+        this(registry::getListenerContainers, notificationCoalescer, enabled, mode, timeoutMillis,
+                notificationCoalescer.isEnabled(),
+                !Boolean.FALSE.equals(rabbitProperties.getListener().getSimple().getDefaultRequeueRejected()));
+        if (enabled) {
+            adminServer.register("/drain", this::handle);
+        }
+    }
+
+    GracefulDrain(Supplier<Collection<MessageListenerContainer>> containers,
+                  NotificationCoalescer notificationCoalescer, boolean enabled, String mode, long timeoutMillis,
+                  boolean manualAck, boolean requeueRejected) {
+        if (!MODE_FINISH.equals(mode) && !MODE_HANDBACK.equals(mode)) {
+            throw new IllegalArgumentException("xuecheng.mq.drain.mode只能是finish或handback：" + mode);
+        }
+        if (MODE_HANDBACK.equals(mode) && !manualAck && !requeueRejected) {
+            throw new IllegalArgumentException("自动ack时handback需要spring.rabbitmq.listener.default-requeue-rejected=true，"
+                    + "否则交还的消息会被丢弃");
+        }
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("xuecheng.mq.drain.timeout-ms必须大于0");
+        }
+        this.containers = containers;
+        this.notificationCoalescer = notificationCoalescer;
+        this.enabled = enabled;
+        this.mode = mode;
+        this.timeoutMillis = timeoutMillis;
+        this.manualAck = manualAck;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 加到监听容器的adviceChain的最前面，交还的消息不经过重试和毒消息隔离
+     */
+    public MethodInterceptor advice() {
+        return invocation -> {
+            Object[] arguments = invocation.getArguments();
+            if (!draining || arguments.length < 2 || !(arguments[0] instanceof Channel)
+                    || !(arguments[1] instanceof Message)) {
+                return invocation.proceed();
+            }
+            if (!handingBack) {
+                Object result = invocation.proceed();
+                processed.increment();
+                return result;
+            }
+            handedBack.increment();
+            if (manualAck) {
+                long deliveryTag = ((Message) arguments[1]).getMessageProperties().getDeliveryTag();
+                ((Channel) arguments[0]).basicNack(deliveryTag, false, true);
+                return null;
+            }
+            //自动ack时由容器拒绝并重新入队
+            throw new HandbackException();
+        };
+    }
+
+    @Override
+    public void onApplicationEvent(ContextClosedEvent event) {
+        if (enabled) {
+            if (!draining) {
+                drain();
+            }
+        } else if (notificationCoalescer.isEnabled()) {
+            int coalesced = notificationCoalescer.drain();
+            LOGGER.info("应用关闭，通知合并中的{}条消息已处理", coalesced);
+        }
+    }
+
+    /**
+     * 排空并停止所有监听容器，返回耗时和处理的消息数
+     */
+    public synchronized Report drain() {
+        long start = System.nanoTime();
+        processed.reset();
+        handedBack.reset();
+        List<MessageListenerContainer> running = new ArrayList<>();
+        for (MessageListenerContainer container : containers.get()) {
+            if (!container.isRunning()) {
+                continue;
+            }
+            running.add(container);
+            if (container instanceof SimpleMessageListenerContainer) {
+                SimpleMessageListenerContainer simple = (SimpleMessageListenerContainer) container;
+                Object txSize = new DirectFieldAccessor(simple).getPropertyValue("txSize");
+                txSizes.putIfAbsent(simple, (Integer) txSize);
+                simple.setTxSize(1);
+                simple.setShutdownTimeout(timeoutMillis);
+            }
+        }
+        draining = true;
+        handingBack = MODE_HANDBACK.equals(mode);
+        int coalesced = notificationCoalescer.isEnabled() ? notificationCoalescer.drain() : 0;
+        LOGGER.info("开始排空{}个监听容器，方式{}，合并中的{}条消息已处理", running.size(), mode, coalesced);
+
+        //同时停止，避免一个容器排空时其他容器还在接收新消息
+        List<Thread> stoppers = new ArrayList<>();
+        for (MessageListenerContainer container : running) {
+            Thread thread = new Thread(container::stop, "mq-drain-" + stoppers.size());
+            thread.setDaemon(true);
+            thread.start();
+            stoppers.add(thread);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis + 1000);
+        for (Thread thread : stoppers) {
+            try {
+                thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int unfinished = 0;
+        for (MessageListenerContainer container : running) {
+            if (container instanceof SimpleMessageListenerContainer) {
+                unfinished += ((SimpleMessageListenerContainer) container).getActiveConsumerCount();
+            }
+        }
+        Report report = new Report(mode, running.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                processed.sum(), handedBack.sum(), coalesced, unfinished);
+        lastReport = report;
+        if (unfinished > 0) {
+            LOGGER.warn("排空超时：{}，未完成的消息将在通道关闭后重新投递", report);
+        } else {
+            LOGGER.info("排空完成：{}", report);
+        }
+        return report;
+    }
+
+    /**
+     * 取消排空，恢复批量ack和通知合并，重新启动监听容器
+     */
+    public synchronized void resume() {
+        draining = false;
+        handingBack = false;
+        if (notificationCoalescer.isEnabled()) {
+            notificationCoalescer.resume();
+        }
+        for (Map.Entry<SimpleMessageListenerContainer, Integer> entry : txSizes.entrySet()) {
+            entry.getKey().setTxSize(entry.getValue());
+        }
+        txSizes.clear();
+        for (MessageListenerContainer container : containers.get()) {
+            if (!container.isRunning()) {
+                container.start();
+            }
+        }
+        LOGGER.info("已恢复消费");
+    }
+
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    private String handle(String method, Map<String, String> params) {
+        if ("GET".equals(method)) {
+            Report report = lastReport;
+            return report == null ? "没有排空过" : report.toString();
+        }
+        String action = params.getOrDefault("action", "drain");
+        if ("drain".equals(action)) {
+            return drain().toString();
+        }
+        if ("resume".equals(action)) {
+            resume();
+            return "已恢复消费";
+        }
+        throw new IllegalArgumentException("action只能是drain或resume：" + action);
+    }
+
+    /**
+     * 一次排空的结果
+     */
+    public static final class Report {
+        private final String mode;
+        private final int containers;
+        private final long millis;
+        private final long processed;
+        private final long handedBack;
+        private final int coalesced;
+        private final int unfinished;
+
+        Report(String mode, int containers, long millis, long processed, long handedBack, int coalesced,
+               int unfinished) {
+            this.mode = mode;
+            this.containers = containers;
+            this.millis = millis;
+            this.processed = processed;
+            this.handedBack = handedBack;
+            this.coalesced = coalesced;
+            this.unfinished = unfinished;
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        public int getContainers() {
+            return containers;
+        }
+
+        /**
+         * 排空耗时
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * 排空期间处理完的消息数
+         */
+        public long getProcessed() {
+            return processed;
+        }
+
+        /**
+         * 交还给MQ重新入队的消息数
+         */
+        public long getHandedBack() {
+            return handedBack;
+        }
+
+        /**
+         * 通知合并中提前处理的消息数
+         */
+        public int getCoalesced() {
+            return coalesced;
+        }
+
+        /**
+         * 超时时还没退出的消费者数，为0表示全部排空
+         */
+        public int getUnfinished() {
+            return unfinished;
+        }
+
+        @Override
+        public String toString() {
+            return "方式=" + mode + " 容器=" + containers + " 耗时=" + millis + "ms 处理=" + processed
+                    + " 交还=" + handedBack + " 合并提前处理=" + coalesced + " 未完成的消费者=" + unfinished;
+        }
+    }
+
+    /**
+     * 排空时交还消息，容器捕获后拒绝并重新入队，不需要堆栈
+     */
+    private static final class HandbackException extends RuntimeException {
+        private HandbackException() {
+            super("排空中，消息交还给MQ", null, false, false);
+        }
+    }
+}
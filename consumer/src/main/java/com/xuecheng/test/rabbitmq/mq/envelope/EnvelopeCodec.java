@@ -0,0 +1,120 @@
+package com.xuecheng.test.rabbitmq.mq.envelope;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 信封消息的编码，多条同一RoutingKey的小消息打包成一条AMQP消息，发送方和消费方各有一份，需要保持一致
+ * <p>
+ * 消息体格式：版本号（1字节），条数（变长整数），每条的长度（变长整数），然后依次是每条的内容
+ * 索引放在前面，消费方读完索引就能定位每一条，不需要复制消息体
+ * 100条100字节的消息，索引约102字节，省去了99组method、header、body帧和MQ上99条消息的记录
+ */
+public final class EnvelopeCodec {
+    /**
+     * 信封消息的contentType，消费方据此识别
+     */
+    public static final String CONTENT_TYPE = "application/vnd.xuecheng.envelope";
+    /**
+     * 消息头：信封中的消息条数
+     */
+    public static final String HEADER_COUNT = "x-envelope-count";
+    /**
+     * 消息头：第几次投递，处理失败的消息重新打包发送时加1
+     */
+    public static final String HEADER_ATTEMPT = "x-envelope-attempt";
+    private static final byte VERSION = 1;
+
+    private EnvelopeCodec() {
+    }
+
+    public static boolean isEnvelope(Message message) {
+        MessageProperties properties = message.getMessageProperties();
+        return properties != null && CONTENT_TYPE.equals(properties.getContentType());
+    }
+
+    /**
+     * 打包
+     */
+    public static byte[] encode(List<byte[]> items) {
+        int payload = 0;
+        for (byte[] item : items) {
+            payload += item.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload + 1 + 5 * (items.size() + 1));
+        out.write(VERSION);
+        writeVarint(out, items.size());
+        for (byte[] item : items) {
+            writeVarint(out, item.length);
+        }
+        for (byte[] item : items) {
+            out.write(item, 0, item.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 拆包，返回每条消息的只读视图，和消息体共用同一个数组
+     *
+     * @throws IllegalArgumentException 格式不对
+     */
+    public static List<ByteBuffer> decode(byte[] body) {
+        ByteBuffer in = ByteBuffer.wrap(body);
+        try {
+            if (in.get() != VERSION) {
+                throw new IllegalArgumentException("不支持的信封版本：" + body[0]);
+            }
+            int count = readVarint(in);
+            if (count < 0 || count > body.length) {
+                throw new IllegalArgumentException("信封条数不对：" + count);
+            }
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                lengths[i] = readVarint(in);
+            }
+            List<ByteBuffer> items = new ArrayList<>(count);
+            int offset = in.position();
+            for (int length : lengths) {
+                if (length < 0 || offset + length > body.length) {
+                    throw new IllegalArgumentException("信封索引和消息体长度不一致");
+                }
+                items.add(ByteBuffer.wrap(body, offset, length).slice().asReadOnlyBuffer());
+                offset += length;
+            }
+            if (offset != body.length) {
+                throw new IllegalArgumentException("信封消息体有多余的内容");
+            }
+            return items;
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException) {
+                throw e;
+            }
+            throw new IllegalArgumentException("信封格式错误", e);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("变长整数过长");
+    }
+}
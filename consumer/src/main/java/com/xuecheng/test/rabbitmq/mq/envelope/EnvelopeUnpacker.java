@@ -0,0 +1,172 @@
+package com.xuecheng.test.rabbitmq.mq.envelope;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.xuecheng.test.rabbitmq.mq.admin.AdminServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 拆开信封消息，逐条交给处理方法，发送方见EnvelopePublisher，格式见EnvelopeCodec
+ * <p>
+ * 一个信封只能整体ack，为了让每条消息仍然是“处理成功才算消费”：
+ * 处理失败的几条重新打包，投递次数加1，先发回原队列再ack原信封，处理成功的不会重复处理；
+ * 投递次数达到max-attempts后，只剩失败消息的信封被拒绝且不重新入队，有死信交换机时进入死信队列
+ * 信封中的消息不经过通知合并器，也没有单独的消息头
+ */
+@Component
+public class EnvelopeUnpacker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnvelopeUnpacker.class);
+
+    private final int maxAttempts;
+    private final MessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+    private final LongAdder envelopes = new LongAdder();
+    private final LongAdder logical = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder republished = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public EnvelopeUnpacker(@Value("${xuecheng.mq.envelope.max-attempts:3}") int maxAttempts,
+                            AdminServer adminServer) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("max-attempts必须大于0");
+        }
+        this.maxAttempts = maxAttempts;
+        adminServer.register("/envelope", (method, params) -> toString());
+    }
+
+    /**
+     * 拆开信封并逐条处理
+     *
+     * @param message   信封消息
+     * @param channel   收到消息的通道，失败的消息在这个通道上发回原队列
+     * @param handler   单条消息的处理方法
+     * @param manualAck 容器是否是手动ack模式，是的话这里负责ack或拒绝信封
+     * @throws AmqpRejectAndDontRequeueException 投递次数用完，整个信封都是失败的消息
+     */
+    public void dispatch(Message message, Channel channel, Consumer<String> handler, boolean manualAck) {
+        MessageProperties properties = message.getMessageProperties();
+        List<ByteBuffer> items = EnvelopeCodec.decode(message.getBody());
+        Charset charset = properties.getContentEncoding() == null
+                ? StandardCharsets.UTF_8 : Charset.forName(properties.getContentEncoding());
+        envelopes.increment();
+        logical.add(items.size());
+        List<byte[]> failures = new ArrayList<>();
+        RuntimeException lastError = null;
+        for (ByteBuffer item : items) {
+            try {
+                handler.accept(charset.decode(item.duplicate()).toString());
+            } catch (RuntimeException e) {
+                lastError = e;
+                byte[] copy = new byte[item.remaining()];
+                item.duplicate().get(copy);
+                failures.add(copy);
+            }
+        }
+        if (failures.isEmpty()) {
+            settle(channel, properties, manualAck, true);
+            return;
+        }
+        failed.add(failures.size());
+        int attempt = attempt(properties);
+        if (attempt >= maxAttempts && failures.size() == items.size()) {
+            rejected.add(failures.size());
+            LOGGER.error("信封中{}条消息处理{}次都失败，拒绝：队列={}", failures.size(), attempt,
+                    properties.getConsumerQueue(), lastError);
+            if (manualAck) {
+                settle(channel, properties, true, false);
+                return;
+            }
+            throw new AmqpRejectAndDontRequeueException("信封中的消息处理" + attempt + "次都失败", lastError);
+        }
+        //达到次数后最后再投递一次，这时信封里只剩失败的消息，整体拒绝不会影响成功的消息
+        int next = Math.min(attempt + 1, maxAttempts);
+        try {
+            channel.basicPublish("", properties.getConsumerQueue(), republishProperties(properties, failures.size(), next),
+                    EnvelopeCodec.encode(failures));
+        } catch (IOException e) {
+            //没能发回去就整体重新投递，成功的消息会被再处理一次
+            throw new IllegalStateException("信封中失败的消息发回队列失败", e);
+        }
+        republished.add(failures.size());
+        LOGGER.warn("信封中{}条消息中有{}条处理失败，第{}次重新投递：队列={} 错误={}", items.size(), failures.size(),
+                next, properties.getConsumerQueue(), lastError.toString());
+        settle(channel, properties, manualAck, true);
+    }
+
+    private AMQP.BasicProperties republishProperties(MessageProperties original, int count, int attempt) {
+        AMQP.BasicProperties properties = propertiesConverter.fromMessageProperties(original,
+                StandardCharsets.UTF_8.name());
+        Map<String, Object> headers = new HashMap<>();
+        if (properties.getHeaders() != null) {
+            headers.putAll(properties.getHeaders());
+        }
+        headers.put(EnvelopeCodec.HEADER_COUNT, count);
+        headers.put(EnvelopeCodec.HEADER_ATTEMPT, attempt);
+        return properties.builder().headers(headers).deliveryMode(2).build();
+    }
+
+    private static int attempt(MessageProperties properties) {
+        Object attempt = properties.getHeaders().get(EnvelopeCodec.HEADER_ATTEMPT);
+        return attempt instanceof Number ? ((Number) attempt).intValue() : 1;
+    }
+
+    private static void settle(Channel channel, MessageProperties properties, boolean manualAck, boolean ack) {
+        if (!manualAck) {
+            return;
+        }
+        try {
+            if (ack) {
+                channel.basicAck(properties.getDeliveryTag(), false);
+            } else {
+                channel.basicReject(properties.getDeliveryTag(), false);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("信封ack失败，将在通道关闭后重新投递", e);
+        }
+    }
+
+    public long getEnvelopes() {
+        return envelopes.sum();
+    }
+
+    public long getLogical() {
+        return logical.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getRepublished() {
+        return republished.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "信封" + getEnvelopes() + "个，拆出" + getLogical() + "条，失败" + getFailed() + "条，重新投递"
+                + getRepublished() + "条，拒绝" + getRejected() + "条";
+    }
+}
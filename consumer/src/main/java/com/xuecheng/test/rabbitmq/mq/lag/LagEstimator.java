@@ -0,0 +1,86 @@
+package com.xuecheng.test.rabbitmq.mq.lag;
+
+/**
+ * 一个队列的积压估算，由采样线程调用，不是线程安全的
+ * <p>
+ * 被动声明只能拿到积压和消费者数，速度按两次采样的差值计算：
+ * 消费速度取本实例每个消费者的速度乘以消费者数，积压的变化速度加上消费速度就是流入速度
+ * 速度都做指数平滑，避免一次抖动就触发扩缩容
+ */
+public class LagEstimator {
+    /**
+     * 指数平滑的系数，越大越跟随最新的采样
+     */
+    static final double ALPHA = 0.3;
+
+    private final String queue;
+    private final ScalingPolicy policy;
+
+    private long lastMillis = -1;
+    private long lastDepth;
+    private long lastDelivered;
+    private long lastBusyNanos;
+    private double netRate = Double.NaN;
+    private double localRate = Double.NaN;
+    private double capacity = Double.NaN;
+
+    public LagEstimator(String queue, ScalingPolicy policy) {
+        this.queue = queue;
+        this.policy = policy;
+    }
+
+    /**
+     * 加入一次采样
+     *
+     * @param now            采样时间，毫秒
+     * @param depth          被动声明得到的积压
+     * @param consumers      被动声明得到的消费者数
+     * @param localConsumers 本实例的消费者数
+     * @param delivered      本实例累计处理的消息数
+     * @param busyNanos      本实例所有消费线程累计处理消息的时间
+     * @param inFlight       本实例正在处理的消息数
+     * @return 估算结果
+     */
+    public QueueLag update(long now, long depth, int consumers, int localConsumers, long delivered, long busyNanos,
+                           long inFlight) {
+        if (lastMillis >= 0 && now > lastMillis) {
+            double seconds = (now - lastMillis) / 1000.0;
+            netRate = smooth(netRate, (depth - lastDepth) / seconds);
+            localRate = smooth(localRate, (delivered - lastDelivered) / seconds);
+            double busySeconds = (busyNanos - lastBusyNanos) / 1e9;
+            if (busySeconds > 0.001 && delivered > lastDelivered) {
+                //所有消费线程的处理时间合计，除出来就是单个消费者忙碌时每秒能处理多少条
+                capacity = smooth(capacity, (delivered - lastDelivered) / busySeconds);
+            }
+        }
+        lastMillis = now;
+        lastDepth = depth;
+        lastDelivered = delivered;
+        lastBusyNanos = busyNanos;
+
+        double deliverRate = Double.NaN;
+        if (!Double.isNaN(localRate)) {
+            deliverRate = localConsumers > 0 ? localRate * consumers / localConsumers : 0;
+        }
+        double net = Double.isNaN(netRate) ? 0 : netRate;
+        double publishRate = Double.isNaN(deliverRate) ? Double.NaN : Math.max(0, deliverRate + net);
+        double drainSeconds;
+        if (depth == 0) {
+            drainSeconds = 0;
+        } else if (net < 0) {
+            drainSeconds = depth / -net;
+        } else {
+            drainSeconds = Double.POSITIVE_INFINITY;
+        }
+        double predictedDepth = Math.max(0, depth + net * policy.getHorizonSeconds());
+        int desired = policy.desiredConsumers(predictedDepth, Double.isNaN(publishRate) ? 0 : publishRate,
+                capacity, consumers);
+        ScaleSignal signal = Double.isNaN(netRate) ? ScaleSignal.HOLD : policy.signal(desired, consumers, net);
+        return new QueueLag(queue, now, depth, consumers, localConsumers, inFlight, publishRate, deliverRate, net,
+                capacity, drainSeconds, predictedDepth, desired, signal);
+    }
+
+    private static double smooth(double previous, double sample) {
+        return Double.isNaN(previous) ? sample : previous + ALPHA * (sample - previous);
+    }
+}
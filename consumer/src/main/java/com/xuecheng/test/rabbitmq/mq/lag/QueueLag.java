@@ -0,0 +1,148 @@
+package com.xuecheng.test.rabbitmq.mq.lag;
+
+/**
+ * 一个队列某次采样的积压情况，不可变
+ */
+public final class QueueLag {
+    private final String queue;
+    private final long sampledAt;
+    private final long depth;
+    private final int consumers;
+    private final int localConsumers;
+    private final long localInFlight;
+    private final double publishRate;
+    private final double deliverRate;
+    private final double netRate;
+    private final double consumerCapacity;
+    private final double drainSeconds;
+    private final double predictedDepth;
+    private final int desiredConsumers;
+    private final ScaleSignal signal;
+
+    QueueLag(String queue, long sampledAt, long depth, int consumers, int localConsumers, long localInFlight,
+             double publishRate, double deliverRate, double netRate, double consumerCapacity, double drainSeconds,
+             double predictedDepth, int desiredConsumers, ScaleSignal signal) {
+        this.queue = queue;
+        this.sampledAt = sampledAt;
+        this.depth = depth;
+        this.consumers = consumers;
+        this.localConsumers = localConsumers;
+        this.localInFlight = localInFlight;
+        this.publishRate = publishRate;
+        this.deliverRate = deliverRate;
+        this.netRate = netRate;
+        this.consumerCapacity = consumerCapacity;
+        this.drainSeconds = drainSeconds;
+        this.predictedDepth = predictedDepth;
+        this.desiredConsumers = desiredConsumers;
+        this.signal = signal;
+    }
+
+    public String getQueue() {
+        return queue;
+    }
+
+    /**
+     * 采样时间，毫秒
+     */
+    public long getSampledAt() {
+        return sampledAt;
+    }
+
+    /**
+     * 队列中等待投递的消息数，不含已投递未确认的
+     */
+    public long getDepth() {
+        return depth;
+    }
+
+    /**
+     * 队列上所有实例的消费者数
+     */
+    public int getConsumers() {
+        return consumers;
+    }
+
+    /**
+     * 本实例的消费者数
+     */
+    public int getLocalConsumers() {
+        return localConsumers;
+    }
+
+    /**
+     * 本实例正在处理、还没有确认的消息数
+     */
+    public long getLocalInFlight() {
+        return localInFlight;
+    }
+
+    /**
+     * 估算的流入速度，条/秒，第一次采样时为NaN
+     */
+    public double getPublishRate() {
+        return publishRate;
+    }
+
+    /**
+     * 估算的所有消费者的消费速度，条/秒，按本实例每个消费者的速度乘以消费者数
+     */
+    public double getDeliverRate() {
+        return deliverRate;
+    }
+
+    /**
+     * 积压的变化速度，条/秒，正数表示在增长
+     */
+    public double getNetRate() {
+        return netRate;
+    }
+
+    /**
+     * 单个消费者的处理能力，条/秒，按消费线程实际处理消息的时间计算
+     */
+    public double getConsumerCapacity() {
+        return consumerCapacity;
+    }
+
+    /**
+     * 按当前趋势消化完积压需要的秒数，积压在增长时为Infinity，没有积压时为0
+     */
+    public double getDrainSeconds() {
+        return drainSeconds;
+    }
+
+    public double getPredictedDepth() {
+        return predictedDepth;
+    }
+
+    /**
+     * 需要的消费者数（所有实例合计）
+     */
+    public int getDesiredConsumers() {
+        return desiredConsumers;
+    }
+
+    public ScaleSignal getSignal() {
+        return signal;
+    }
+
+    /**
+     * 按本实例在所有消费者中的占比，换算成本实例需要的消费者数
+     */
+    public int getLocalDesiredConsumers() {
+        if (consumers == 0 || localConsumers == 0) {
+            return desiredConsumers;
+        }
+        return Math.max(1, (int) Math.ceil(desiredConsumers * (double) localConsumers / consumers));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s 积压=%d 消费者=%d(本实例%d) 处理中=%d 流入=%.1f/s 消费=%.1f/s 变化=%+.1f/s "
+                        + "单个消费者能力=%.1f/s 消化时间=%s 预测积压=%.0f 需要消费者=%d 信号=%s",
+                queue, depth, consumers, localConsumers, localInFlight, publishRate, deliverRate, netRate,
+                consumerCapacity, Double.isInfinite(drainSeconds) ? "无法消化" : String.format("%.0fs", drainSeconds),
+                predictedDepth, desiredConsumers, signal);
+    }
+}
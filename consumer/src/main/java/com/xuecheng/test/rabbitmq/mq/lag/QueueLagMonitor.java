@@ -0,0 +1,276 @@
+package com.xuecheng.test.rabbitmq.mq.lag;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.admin.AdminServer;
+import com.xuecheng.test.rabbitmq.mq.tuning.ListenerSettings;
+import com.xuecheng.test.rabbitmq.mq.tuning.ListenerTuner;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 队列积压和消费延迟的监控，开启方式：xuecheng.mq.lag.enabled=true
+ * <p>
+ * 定时在一个专用通道上被动声明队列，得到积压和消费者数，和本实例的处理计数一起估算流入和消费速度、
+ * 消化完积压需要的时间，以及需要多少个消费者
+ * 被动声明不会创建或修改队列，只是一次往返，开销很小；采样间隔不低于1秒，查询接口只返回最近一次的结果，
+ * 外部系统频繁拉取也不会增加对MQ的请求
+ * <p>
+ * 导出方式：GET /lag查看，GET /lag?format=prometheus给外部扩缩容组件（例如KEDA、HPA的Prometheus适配器）
+ * 开启xuecheng.mq.lag.auto-scale时，按信号通过ListenerTuner调整本实例的并发数
+ */
+@Component
+public class QueueLagMonitor implements DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueueLagMonitor.class);
+    /**
+     * 最小采样间隔
+     */
+    static final long MIN_INTERVAL_MILLIS = 1000;
+
+    private final ConnectionFactory connectionFactory;
+    private final RabbitListenerEndpointRegistry registry;
+    private final ListenerTuner listenerTuner;
+    private final boolean enabled;
+    private final boolean autoScale;
+    private final long cooldownMillis;
+    private final Map<String, LagEstimator> estimators = new LinkedHashMap<>();
+    private final Map<String, LocalCounters> counters = new ConcurrentHashMap<>();
+    private final Map<String, QueueLag> latest = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastScaled = new ConcurrentHashMap<>();
+
+    private Channel channel;
+    private long lastSample;
+
+    public QueueLagMonitor(ConnectionFactory connectionFactory, RabbitListenerEndpointRegistry registry,
+                           ListenerTuner listenerTuner, AdminServer adminServer,
+                           @Value("${xuecheng.mq.lag.enabled:false}") boolean enabled,
+                           @Value("${xuecheng.mq.lag.queues:" + RabbitMQConfig.QUEUE_INFORM_EMAIL + ","
+                                   + RabbitMQConfig.QUEUE_INFORM_SMS + "}") String[] queues,
+                           @Value("${xuecheng.mq.lag.target-drain-seconds:60}") double targetDrainSeconds,
+                           @Value("${xuecheng.mq.lag.horizon-seconds:30}") double horizonSeconds,
+                           @Value("${xuecheng.mq.lag.target-utilization:0.8}") double targetUtilization,
+                           @Value("${xuecheng.mq.lag.min-consumers:1}") int minConsumers,
+                           @Value("${xuecheng.mq.lag.max-consumers:16}") int maxConsumers,
+                           @Value("${xuecheng.mq.lag.auto-scale:false}") boolean autoScale,
+                           @Value("${xuecheng.mq.lag.cooldown-ms:60000}") long cooldownMillis) {
+        this.connectionFactory = connectionFactory;
+        this.registry = registry;
+        this.listenerTuner = listenerTuner;
+        this.enabled = enabled;
+        this.autoScale = autoScale;
+        this.cooldownMillis = cooldownMillis;
+        ScalingPolicy policy = new ScalingPolicy(targetDrainSeconds, horizonSeconds, targetUtilization,
+                minConsumers, maxConsumers);
+        for (String queue : queues) {
+            estimators.put(queue.trim(), new LagEstimator(queue.trim(), policy));
+        }
+        if (enabled) {
+            adminServer.register("/lag", this::handle);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 加到监听容器的adviceChain中，按队列统计处理的消息数、处理时间和正在处理的消息数
+     */
+    public MethodInterceptor advice() {
+        return invocation -> {
+            Object[] arguments = invocation.getArguments();
+            if (arguments.length < 2 || !(arguments[1] instanceof Message)) {
+                return invocation.proceed();
+            }
+            String queue = ((Message) arguments[1]).getMessageProperties().getConsumerQueue();
+            LocalCounters local = counters(queue == null ? "" : queue);
+            local.inFlight.increment();
+            long start = System.nanoTime();
+            try {
+                return invocation.proceed();
+            } finally {
+                local.busyNanos.add(System.nanoTime() - start);
+                local.delivered.increment();
+                local.inFlight.decrement();
+            }
+        };
+    }
+
+    private LocalCounters counters(String queue) {
+        return counters.computeIfAbsent(queue, q -> new LocalCounters());
+    }
+
+    @Scheduled(fixedDelayString = "${xuecheng.mq.lag.interval-ms:5000}")
+    public void poll() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastSample < MIN_INTERVAL_MILLIS) {
+            return;
+        }
+        lastSample = now;
+        Map<String, Integer> localConsumers = localConsumers();
+        for (Map.Entry<String, LagEstimator> entry : estimators.entrySet()) {
+            String queue = entry.getKey();
+            AMQP.Queue.DeclareOk declareOk = declarePassive(queue);
+            if (declareOk == null) {
+                continue;
+            }
+            LocalCounters local = counters(queue);
+            QueueLag lag = entry.getValue().update(now, declareOk.getMessageCount(), declareOk.getConsumerCount(),
+                    localConsumers.getOrDefault(queue, 0), local.delivered.sum(), local.busyNanos.sum(),
+                    local.inFlight.sum());
+            QueueLag previous = latest.put(queue, lag);
+            if (previous == null || previous.getSignal() != lag.getSignal()) {
+                LOGGER.info("队列积压：{}", lag);
+            }
+            if (autoScale) {
+                scale(lag, now);
+            }
+        }
+    }
+
+    /**
+     * 在专用通道上被动声明，队列不存在时MQ会关闭通道，下次重新创建
+     */
+    private AMQP.Queue.DeclareOk declarePassive(String queue) {
+        try {
+            if (channel == null || !channel.isOpen()) {
+                channel = connectionFactory.createConnection().createChannel(false);
+            }
+            return channel.queueDeclarePassive(queue);
+        } catch (Exception e) {
+            LOGGER.warn("查询队列{}的积压失败：{}", queue, e.getMessage());
+            closeChannel();
+            return null;
+        }
+    }
+
+    /**
+     * 本实例每个队列的消费者数
+     */
+    private Map<String, Integer> localConsumers() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (MessageListenerContainer container : registry.getListenerContainers()) {
+            if (container instanceof SimpleMessageListenerContainer && container.isRunning()) {
+                SimpleMessageListenerContainer simple = (SimpleMessageListenerContainer) container;
+                for (String queue : simple.getQueueNames()) {
+                    result.merge(queue, simple.getActiveConsumerCount(), Integer::sum);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 按信号调整本实例的并发数，两次调整至少间隔cooldown-ms，等新的消费者的效果体现在采样中
+     */
+    private void scale(QueueLag lag, long now) {
+        if (lag.getSignal() == ScaleSignal.HOLD || lag.getLocalConsumers() == 0) {
+            return;
+        }
+        Long last = lastScaled.get(lag.getQueue());
+        if (last != null && now - last < cooldownMillis) {
+            return;
+        }
+        int target = lag.getLocalDesiredConsumers();
+        if (target == listenerTuner.settings(lag.getQueue()).getConcurrency()) {
+            return;
+        }
+        try {
+            listenerTuner.apply(lag.getQueue(),
+                    Collections.singletonMap(ListenerSettings.CONCURRENCY, String.valueOf(target)), "lag");
+            lastScaled.put(lag.getQueue(), now);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            LOGGER.warn("按积压调整{}的并发数失败：{}", lag.getQueue(), e.getMessage());
+        }
+    }
+
+    /**
+     * 最近一次采样的结果，还没有采样的队列不在其中
+     */
+    public Map<String, QueueLag> latest() {
+        return Collections.unmodifiableMap(latest);
+    }
+
+    private String handle(String method, Map<String, String> params) {
+        if ("prometheus".equals(params.get("format"))) {
+            return prometheus(latest.values());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (QueueLag lag : latest.values()) {
+            sb.append(lag).append('\n');
+        }
+        return sb.length() == 0 ? "还没有采样" : sb.toString().trim();
+    }
+
+    /**
+     * Prometheus的文本格式
+     */
+    static String prometheus(Iterable<QueueLag> lags) {
+        StringBuilder sb = new StringBuilder();
+        gauge(sb, "xuecheng_mq_queue_depth", "队列中等待投递的消息数", lags, QueueLag::getDepth);
+        gauge(sb, "xuecheng_mq_queue_consumers", "队列上的消费者数", lags, QueueLag::getConsumers);
+        gauge(sb, "xuecheng_mq_queue_local_in_flight", "本实例正在处理的消息数", lags, QueueLag::getLocalInFlight);
+        gauge(sb, "xuecheng_mq_queue_publish_rate", "估算的流入速度，条/秒", lags, QueueLag::getPublishRate);
+        gauge(sb, "xuecheng_mq_queue_deliver_rate", "估算的消费速度，条/秒", lags, QueueLag::getDeliverRate);
+        gauge(sb, "xuecheng_mq_queue_drain_seconds", "消化完积压需要的秒数", lags, QueueLag::getDrainSeconds);
+        gauge(sb, "xuecheng_mq_queue_desired_consumers", "需要的消费者数", lags, QueueLag::getDesiredConsumers);
+        gauge(sb, "xuecheng_mq_queue_scale_signal", "1扩容，-1缩容，0不变", lags, lag -> lag.getSignal().getValue());
+        return sb.toString().trim();
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, Iterable<QueueLag> lags,
+                              ToDoubleFunction<QueueLag> value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        for (QueueLag lag : lags) {
+            double v = value.applyAsDouble(lag);
+            String text = Double.isNaN(v) ? "NaN" : Double.isInfinite(v) ? "+Inf"
+                    : v == Math.rint(v) ? String.valueOf((long) v) : String.format(Locale.ROOT, "%.3f", v);
+            sb.append(name).append("{queue=\"").append(lag.getQueue()).append("\"} ").append(text).append('\n');
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (Exception ignored) {
+                //通道已经关闭
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        closeChannel();
+    }
+
+    private static final class LocalCounters {
+        final LongAdder delivered = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAdder inFlight = new LongAdder();
+    }
+}
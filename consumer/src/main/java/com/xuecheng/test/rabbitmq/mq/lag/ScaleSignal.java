@@ -0,0 +1,29 @@
+package com.xuecheng.test.rabbitmq.mq.lag;
+
+/**
+ * 扩缩容信号
+ */
+public enum ScaleSignal {
+    /**
+     * 按当前的流入速度和消费能力，目标时间内消化不完积压，需要增加消费者
+     */
+    UP(1),
+    /**
+     * 积压没有增长，减少消费者后仍能在目标时间内消化
+     */
+    DOWN(-1),
+    HOLD(0);
+
+    private final int value;
+
+    ScaleSignal(int value) {
+        this.value = value;
+    }
+
+    /**
+     * 导出给外部扩缩容组件的数值：1扩容、-1缩容、0不变
+     */
+    public int getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,84 @@
+package com.xuecheng.test.rabbitmq.mq.lag;
+
+/**
+ * 根据预测的积压、流入速度和单个消费者的处理能力计算需要的消费者数
+ * <p>
+ * 需要的处理速度 = 流入速度 + 预测的积压 / 目标消化时间
+ * 需要的消费者数 = 需要的处理速度 / (单个消费者的处理能力 * 目标利用率)
+ * 处理能力按消费线程实际处理消息的时间计算，不是实际的消费速度，队列空闲时也能算出可以缩容到多少
+ */
+public final class ScalingPolicy {
+    private final double targetDrainSeconds;
+    private final double horizonSeconds;
+    private final double targetUtilization;
+    private final int minConsumers;
+    private final int maxConsumers;
+
+    /**
+     * @param targetDrainSeconds 积压的目标消化时间
+     * @param horizonSeconds     按积压的变化趋势预测多久之后的积压
+     * @param targetUtilization  消费者的目标利用率，留出余量应对波动，0到1之间
+     * @param minConsumers       最少的消费者数
+     * @param maxConsumers       最多的消费者数
+     */
+    public ScalingPolicy(double targetDrainSeconds, double horizonSeconds, double targetUtilization,
+                         int minConsumers, int maxConsumers) {
+        if (targetDrainSeconds <= 0 || horizonSeconds < 0 || targetUtilization <= 0 || targetUtilization > 1) {
+            throw new IllegalArgumentException("target-drain-seconds必须大于0，target-utilization在0到1之间");
+        }
+        if (minConsumers < 1 || maxConsumers < minConsumers) {
+            throw new IllegalArgumentException("min-consumers必须大于0且不大于max-consumers");
+        }
+        this.targetDrainSeconds = targetDrainSeconds;
+        this.horizonSeconds = horizonSeconds;
+        this.targetUtilization = targetUtilization;
+        this.minConsumers = minConsumers;
+        this.maxConsumers = maxConsumers;
+    }
+
+    public double getHorizonSeconds() {
+        return horizonSeconds;
+    }
+
+    public double getTargetDrainSeconds() {
+        return targetDrainSeconds;
+    }
+
+    /**
+     * 需要的消费者数
+     *
+     * @param predictedDepth 预测的积压
+     * @param publishRate    流入速度，条/秒
+     * @param capacity       单个消费者的处理能力，条/秒，NaN表示还不知道
+     * @param consumers      当前的消费者数
+     */
+    public int desiredConsumers(double predictedDepth, double publishRate, double capacity, int consumers) {
+        if (Double.isNaN(capacity) || capacity <= 0) {
+            //还没有处理过消息，有积压但没有消费者时至少要有一个
+            return clamp(predictedDepth > 0 && consumers == 0 ? 1 : consumers);
+        }
+        double required = publishRate + predictedDepth / targetDrainSeconds;
+        return clamp((int) Math.ceil(required / (capacity * targetUtilization)));
+    }
+
+    /**
+     * 扩缩容信号，缩容只在积压没有增长时进行，避免来回调整
+     *
+     * @param desired   需要的消费者数
+     * @param consumers 当前的消费者数
+     * @param netRate   积压的变化速度，条/秒
+     */
+    public ScaleSignal signal(int desired, int consumers, double netRate) {
+        if (desired > consumers) {
+            return ScaleSignal.UP;
+        }
+        if (desired < consumers && netRate <= 0) {
+            return ScaleSignal.DOWN;
+        }
+        return ScaleSignal.HOLD;
+    }
+
+    private int clamp(int consumers) {
+        return Math.max(minConsumers, Math.min(maxConsumers, consumers));
+    }
+}
@@ -0,0 +1,126 @@
+package com.xuecheng.test.rabbitmq.mq.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延迟直方图，对数分桶，相对误差约3%，记录是无锁的，适合在发送和确认的热路径上使用
+ * <p>
+ * 小于64的值每个值一个桶，之后每个2的幂区间分成32个桶，最大可以记录2^40（微秒约12天）
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int LINEAR_LIMIT = SUB_COUNT * 2;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一个值，负数按0处理
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(index(v));
+        total.incrementAndGet();
+        updateMax(v);
+    }
+
+    /**
+     * 记录的值的个数
+     */
+    public long count() {
+        return total.get();
+    }
+
+    /**
+     * 最大值
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * 百分位数
+     *
+     * @param percentile 0到100，例如99.9
+     * @return 百分位数所在桶的上界，不超过最大值
+     */
+    public long percentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 合并另一个直方图
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.addAndGet(other.total.get());
+        updateMax(other.max.get());
+    }
+
+    /**
+     * 一个桶中的个数，和addToBucket一起用于按桶持久化和恢复
+     */
+    long bucketCount(int index) {
+        return counts.get(index);
+    }
+
+    /**
+     * 恢复一个桶中的个数，最大值通过updateMax单独恢复
+     */
+    void addToBucket(int index, long count) {
+        counts.addAndGet(index, count);
+        total.addAndGet(count);
+    }
+
+    void updateMax(long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //重试
+        }
+    }
+
+    static int index(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        if (exponent == MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BITS;
+        int sub = (int) ((value >>> shift) & (SUB_COUNT - 1));
+        return LINEAR_LIMIT + (exponent - SUB_BITS - 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = (index - LINEAR_LIMIT) / SUB_COUNT + SUB_BITS + 1;
+        int sub = (index - LINEAR_LIMIT) % SUB_COUNT;
+        int shift = exponent - SUB_BITS;
+        return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,76 @@
+package com.xuecheng.test.rabbitmq.mq.metrics;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 监听方法的性能数据记录，开启方式：xuecheng.mq.metrics.enabled=true
+ * <p>
+ * 每秒处理成功（handle）和失败（handle-failed）的次数和耗时写入本地文件，查询用MetricsQuery
+ * 放在adviceChain的最里层，只统计监听方法本身，不含限流等待和重试间隔
+ */
+@Component
+public class ListenerMetrics implements DisposableBean {
+    private final boolean enabled;
+    private final MetricsRecorder recorder;
+    private final MetricsRecorder.Series handle;
+    private final MetricsRecorder.Series failed;
+
+    @Autowired
+    public ListenerMetrics(@Value("${xuecheng.mq.metrics.enabled:false}") boolean enabled,
+                           @Value("${xuecheng.mq.metrics.dir:metrics}") String dir,
+                           @Value("${xuecheng.mq.metrics.node:}") String node,
+                           @Value("${xuecheng.mq.metrics.max-file-bytes:67108864}") long maxFileBytes,
+                           @Value("${xuecheng.mq.metrics.max-files:24}") int maxFiles) throws IOException {
+        this(enabled ? new MetricsRecorder(new MetricsFile.Writer(Paths.get(dir),
+                StringUtils.hasText(node) ? node : MetricsFile.localNode("consumer"), maxFileBytes, maxFiles),
+                System::currentTimeMillis) : null);
+        if (enabled) {
+            recorder.start();
+        }
+    }
+
+    ListenerMetrics(MetricsRecorder recorder) {
+        this.enabled = recorder != null;
+        this.recorder = recorder;
+        this.handle = enabled ? recorder.series(MetricsRecorder.SERIES_HANDLE) : null;
+        this.failed = enabled ? recorder.series(MetricsRecorder.SERIES_HANDLE_FAILED) : null;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 加到监听容器的adviceChain的最后
+     */
+    public MethodInterceptor advice() {
+        return invocation -> {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                Object result = invocation.proceed();
+                success = true;
+                return result;
+            } finally {
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                (success ? handle : failed).record(micros);
+            }
+        };
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+}
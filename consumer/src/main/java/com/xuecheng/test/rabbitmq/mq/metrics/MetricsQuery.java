@@ -0,0 +1,215 @@
+package com.xuecheng.test.rabbitmq.mq.metrics;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 查询性能数据文件的命令行工具，可以合并多个节点的文件
+ * <p>
+ * 用法：MetricsQuery [--from 2026-10-19T08:00:00] [--to 2026-10-19T09:00:00] [--step 60]
+ * [--series publish,confirm,handle] [--by-node] 文件或目录...
+ * <p>
+ * 时间是本地时间，也可以是秒级时间戳，不指定时不限制；目录下的.xcm文件都会读取，各节点的文件复制到一起后直接查询
+ * 按step秒分段输出每个指标的次数、每秒次数和延迟百分位数（微秒），默认合并所有节点，--by-node按节点分开
+ */
+public final class MetricsQuery {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    /**
+     * 每个分段一个直方图，分段太多时内存不够
+     */
+    private static final int MAX_ROWS = 100000;
+    private static final String ALL_NODES = "*";
+
+    private MetricsQuery() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        try {
+            run(args, System.out);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("用法：MetricsQuery [--from 时间] [--to 时间] [--step 秒] [--series publish,handle] "
+                    + "[--by-node] 文件或目录...");
+            System.exit(2);
+        }
+    }
+
+    /**
+     * 执行查询，结果输出到out
+     *
+     * @return 输出的行数，不含表头
+     */
+    public static int run(String[] args, PrintStream out) throws IOException {
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        long step = 60;
+        Set<String> series = null;
+        boolean byNode = false;
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--from":
+                    from = parseTime(value(args, ++i));
+                    break;
+                case "--to":
+                    to = parseTime(value(args, ++i));
+                    break;
+                case "--step":
+                    step = Long.parseLong(value(args, ++i));
+                    if (step < 1) {
+                        throw new IllegalArgumentException("--step必须大于0");
+                    }
+                    break;
+                case "--series":
+                    series = new HashSet<>(Arrays.asList(value(args, ++i).split(",")));
+                    break;
+                case "--by-node":
+                    byNode = true;
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("不支持的参数：" + args[i]);
+                    }
+                    paths.add(Paths.get(args[i]));
+            }
+        }
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("没有指定文件或目录");
+        }
+        Map<Key, Row> rows = aggregate(files(paths), from, to, step, series, byNode);
+        out.printf("%-19s %-24s %-14s %10s %10s %8s %8s %8s %8s%n",
+                "时间", "节点", "指标", "次数", "每秒", "p50", "p99", "p99.9", "最大");
+        for (Map.Entry<Key, Row> entry : rows.entrySet()) {
+            Key key = entry.getKey();
+            Row row = entry.getValue();
+            LatencyHistogram histogram = row.histogram;
+            out.printf("%-19s %-24s %-14s %10d %10.1f %8d %8d %8d %8d%n",
+                    TIME.format(LocalDateTime.ofInstant(Instant.ofEpochSecond(key.second), ZoneId.systemDefault())),
+                    key.node, key.series, row.count, (double) row.count / step,
+                    histogram.percentile(50), histogram.percentile(99), histogram.percentile(99.9), histogram.max());
+        }
+        return rows.size();
+    }
+
+    /**
+     * 按（分段开始时间，节点，指标）合并
+     */
+    static Map<Key, Row> aggregate(List<Path> files, long from, long to, long step, Set<String> series,
+                                   boolean byNode) throws IOException {
+        Map<Key, Row> rows = new TreeMap<>();
+        for (Path file : files) {
+            MetricsFile.read(file, from, to, record -> {
+                long second = Math.floorDiv(record.getEpochSecond(), step) * step;
+                String node = byNode ? record.getNode() : ALL_NODES;
+                for (MetricsFile.Sample sample : record.getSamples()) {
+                    if (series != null && !series.contains(sample.getName())) {
+                        continue;
+                    }
+                    Row row = rows.computeIfAbsent(new Key(second, node, sample.getName()), key -> new Row());
+                    row.count += sample.getCount();
+                    row.histogram.merge(sample.getHistogram());
+                    if (rows.size() > MAX_ROWS) {
+                        throw new IllegalArgumentException("结果超过" + MAX_ROWS + "行，缩小时间范围或调大--step");
+                    }
+                }
+            });
+        }
+        return rows;
+    }
+
+    static List<Path> files(List<Path> paths) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            if (!Files.isDirectory(path)) {
+                files.add(path);
+                continue;
+            }
+            try (Stream<Path> stream = Files.walk(path)) {
+                files.addAll(stream.filter(file -> file.getFileName().toString().endsWith(MetricsFile.SUFFIX))
+                        .sorted().collect(Collectors.toList()));
+            }
+        }
+        return files;
+    }
+
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(args[index - 1] + "缺少参数值");
+        }
+        return args[index];
+    }
+
+    /**
+     * 本地时间2026-10-19T08:00:00，或者秒级时间戳
+     */
+    static long parseTime(String value) {
+        if (value.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(value);
+        }
+        return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+
+    static final class Key implements Comparable<Key> {
+        private final long second;
+        private final String node;
+        private final String series;
+
+        private Key(long second, String node, String series) {
+            this.second = second;
+            this.node = node;
+            this.series = series;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int result = Long.compare(second, other.second);
+            if (result == 0) {
+                result = node.compareTo(other.node);
+            }
+            return result != 0 ? result : series.compareTo(other.series);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return second == key.second && node.equals(key.node) && series.equals(key.series);
+        }
+
+        @Override
+        public int hashCode() {
+            return (Long.hashCode(second) * 31 + node.hashCode()) * 31 + series.hashCode();
+        }
+    }
+
+    static final class Row {
+        private long count;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        long getCount() {
+            return count;
+        }
+
+        LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+}
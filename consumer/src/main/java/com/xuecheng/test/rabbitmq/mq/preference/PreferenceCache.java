@@ -0,0 +1,105 @@
+package com.xuecheng.test.rabbitmq.mq.preference;
+
+import com.xuecheng.test.rabbitmq.mq.cache.BatchingLoader;
+import com.xuecheng.test.rabbitmq.mq.cache.TinyLfuCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 用户偏好缓存，开启方式：xuecheng.mq.preference.enabled=true，并注册PreferenceLoader的Bean
+ * <p>
+ * 每条通知都要查询用户的联系方式和偏好，直接查库的话数据库压力和消息量成正比
+ * 这里用W-TinyLFU缓存，并发消费线程的未命中在batch-window-ms内合并成一次批量查询
+ */
+@Component
+public class PreferenceCache implements DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PreferenceCache.class);
+
+    private final boolean enabled;
+    private final BatchingLoader<String, UserPreference> batchingLoader;
+    private final TinyLfuCache<String, UserPreference> cache;
+    private final ExecutorService refreshExecutor;
+
+    public PreferenceCache(ObjectProvider<PreferenceLoader> loaderProvider,
+                           @Value("${xuecheng.mq.preference.enabled:false}") boolean enabled,
+                           @Value("${xuecheng.mq.preference.max-size:100000}") int maxSize,
+                           @Value("${xuecheng.mq.preference.expire-ms:600000}") long expireMillis,
+                           @Value("${xuecheng.mq.preference.refresh-ms:300000}") long refreshMillis,
+                           @Value("${xuecheng.mq.preference.negative-ms:60000}") long negativeMillis,
+                           @Value("${xuecheng.mq.preference.batch-window-ms:2}") long batchWindowMillis,
+                           @Value("${xuecheng.mq.preference.batch-size:100}") int batchSize) {
+        PreferenceLoader loader = loaderProvider.getIfAvailable();
+        if (enabled && loader == null) {
+            LOGGER.warn("没有PreferenceLoader的Bean，所有用户都按不存在处理");
+        }
+        this.enabled = enabled && loader != null;
+        PreferenceLoader delegate = loader != null ? loader : userIds -> Collections.emptyMap();
+        this.batchingLoader = new BatchingLoader<>(delegate::loadAll, batchWindowMillis, batchSize);
+        this.refreshExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "preference-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.cache = new TinyLfuCache<>(maxSize, expireMillis, refreshMillis, negativeMillis,
+                batchingLoader, refreshExecutor);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 查询一个用户，不存在时返回null
+     */
+    public UserPreference get(String userId) {
+        return cache.get(userId);
+    }
+
+    /**
+     * 批量查询，未命中的一次加载
+     */
+    public Map<String, UserPreference> getAll(Collection<String> userIds) {
+        return cache.getAll(userIds);
+    }
+
+    /**
+     * 用户修改了偏好，移除缓存
+     */
+    public void invalidate(String userId) {
+        cache.invalidate(userId);
+    }
+
+    public TinyLfuCache<String, UserPreference> getCache() {
+        return cache;
+    }
+
+    /**
+     * 合并后实际的批量查询次数
+     */
+    public long getBatchLoads() {
+        return batchingLoader.getBatches();
+    }
+
+    @Scheduled(fixedDelayString = "${xuecheng.mq.preference.stats-interval-ms:60000}")
+    public void logStats() {
+        if (enabled) {
+            LOGGER.info("用户偏好{}，合并后查询{}次", cache, batchingLoader.getBatches());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,16 @@
+package com.xuecheng.test.rabbitmq.mq.preference;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 从数据库或用户服务批量查询用户偏好，由业务方提供实现并注册为Bean
+ */
+public interface PreferenceLoader {
+
+    /**
+     * @param userIds 用户标识
+     * @return 查到的用户，没有的不放入map
+     */
+    Map<String, UserPreference> loadAll(Collection<String> userIds) throws Exception;
+}
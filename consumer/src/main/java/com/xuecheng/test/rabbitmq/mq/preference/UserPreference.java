@@ -0,0 +1,78 @@
+package com.xuecheng.test.rabbitmq.mq.preference;
+
+/**
+ * 用户的联系方式和通知偏好
+ */
+public class UserPreference {
+    private String userId;
+    private String email;
+    private String phone;
+    private boolean emailEnabled;
+    private boolean smsEnabled;
+
+    public UserPreference() {
+    }
+
+    public UserPreference(String userId, String email, String phone, boolean emailEnabled, boolean smsEnabled) {
+        this.userId = userId;
+        this.email = email;
+        this.phone = phone;
+        this.emailEnabled = emailEnabled;
+        this.smsEnabled = smsEnabled;
+    }
+
+    /**
+     * 是否接收某类通知
+     *
+     * @param type email或sms
+     */
+    public boolean wants(String type) {
+        if ("email".equals(type)) {
+            return emailEnabled && email != null;
+        }
+        if ("sms".equals(type)) {
+            return smsEnabled && phone != null;
+        }
+        return false;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public String getPhone() {
+        return phone;
+    }
+
+    public void setPhone(String phone) {
+        this.phone = phone;
+    }
+
+    public boolean isEmailEnabled() {
+        return emailEnabled;
+    }
+
+    public void setEmailEnabled(boolean emailEnabled) {
+        this.emailEnabled = emailEnabled;
+    }
+
+    public boolean isSmsEnabled() {
+        return smsEnabled;
+    }
+
+    public void setSmsEnabled(boolean smsEnabled) {
+        this.smsEnabled = smsEnabled;
+    }
+}
@@ -0,0 +1,81 @@
+package com.xuecheng.test.rabbitmq.mq.quarantine;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按指纹统计处理失败的次数，重新投递后仍然累加
+ * <p>
+ * 有上限，避免大量不同的消息失败（例如下游故障）时占满内存：
+ * 超过上限时先清理超过ttl没有再失败的指纹，仍然超过时随机清理十分之一，被清理的指纹重新计数
+ */
+public class FailureTracker {
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Map<Long, Failure> failures = new ConcurrentHashMap<>();
+
+    public FailureTracker(int maxSize, long ttlMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("max-tracked必须大于0");
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * 记录一次失败
+     *
+     * @return 包括这次在内的失败次数
+     */
+    public int recordFailure(long fingerprint, long now) {
+        Failure failure = failures.get(fingerprint);
+        if (failure == null) {
+            if (failures.size() >= maxSize) {
+                evict(now);
+            }
+            failure = failures.computeIfAbsent(fingerprint, k -> new Failure());
+        }
+        if (now - failure.lastMillis > ttlMillis) {
+            //很久之前的失败不算，可能是当时下游故障
+            failure.count.set(0);
+        }
+        failure.lastMillis = now;
+        return failure.count.incrementAndGet();
+    }
+
+    /**
+     * 清除计数，隔离或重放后调用
+     */
+    public void reset(long fingerprint) {
+        failures.remove(fingerprint);
+    }
+
+    public int failures(long fingerprint) {
+        Failure failure = failures.get(fingerprint);
+        return failure == null ? 0 : failure.count.get();
+    }
+
+    public int size() {
+        return failures.size();
+    }
+
+    private synchronized void evict(long now) {
+        if (failures.size() < maxSize) {
+            return;
+        }
+        failures.values().removeIf(failure -> now - failure.lastMillis > ttlMillis);
+        int toRemove = failures.size() - maxSize + Math.max(1, maxSize / 10);
+        Iterator<Long> iterator = failures.keySet().iterator();
+        while (toRemove-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static final class Failure {
+        final AtomicInteger count = new AtomicInteger();
+        volatile long lastMillis;
+    }
+}
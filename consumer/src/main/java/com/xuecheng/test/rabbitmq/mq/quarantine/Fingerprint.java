@@ -0,0 +1,62 @@
+package com.xuecheng.test.rabbitmq.mq.quarantine;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 消息的指纹，64位哈希
+ * <p>
+ * 只在处理失败时计算，不需要抗碰撞，每8字节做一次乘法和移位混合（和xxHash、MurmurHash的做法类似），
+ * 比MD5、SHA快一个数量级。队列名也参与哈希，同样的内容在不同队列中分别计数
+ */
+public final class Fingerprint {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+
+    private Fingerprint() {
+    }
+
+    public static long of(String queue, byte[] body) {
+        long hash = mix(PRIME3, queue == null ? new byte[0] : queue.getBytes(StandardCharsets.UTF_8));
+        return mix(hash, body == null ? new byte[0] : body);
+    }
+
+    /**
+     * 16位十六进制，用于消息头和管理接口
+     */
+    public static String toHex(long fingerprint) {
+        String hex = Long.toHexString(fingerprint);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    public static long fromHex(String hex) {
+        return Long.parseUnsignedLong(hex, 16);
+    }
+
+    private static long mix(long seed, byte[] data) {
+        long hash = seed ^ (data.length * PRIME1);
+        int i = 0;
+        for (; i + 8 <= data.length; i += 8) {
+            long k = (data[i] & 0xFFL)
+                    | (data[i + 1] & 0xFFL) << 8
+                    | (data[i + 2] & 0xFFL) << 16
+                    | (data[i + 3] & 0xFFL) << 24
+                    | (data[i + 4] & 0xFFL) << 32
+                    | (data[i + 5] & 0xFFL) << 40
+                    | (data[i + 6] & 0xFFL) << 48
+                    | (data[i + 7] & 0xFFL) << 56;
+            hash ^= Long.rotateLeft(k * PRIME2, 31) * PRIME1;
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME3;
+        }
+        for (; i < data.length; i++) {
+            hash ^= (data[i] & 0xFFL) * PRIME3;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+        //最后打散，让低位也受所有输入影响
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        return hash ^ (hash >>> 32);
+    }
+}
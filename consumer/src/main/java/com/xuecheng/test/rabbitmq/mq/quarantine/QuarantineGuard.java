@@ -0,0 +1,335 @@
+package com.xuecheng.test.rabbitmq.mq.quarantine;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.admin.AdminServer;
+import com.xuecheng.test.rabbitmq.mq.coalesce.NotificationCoalescer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.RabbitUtils;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 毒消息隔离，开启方式：xuecheng.mq.quarantine.enabled=true
+ * <p>
+ * 处理失败的消息会被重新投递，格式错误的消息每次都失败，一直占着消费者和prefetch的位置
+ * 这里在处理失败时计算消息的指纹，同一条消息失败threshold次后，转发到隔离队列并ack，不再重新投递
+ * 处理成功的消息不计算指纹，正常的吞吐量不受影响
+ * <p>
+ * 转发使用收到消息的同一个通道，先发送再ack，通道上的顺序保证不会丢消息，断线时可能在隔离队列中重复
+ * 管理接口：GET /quarantine查看隔离队列中的消息，POST /quarantine?action=replay&fingerprint=...重新发送到原来的队列，
+ * action=discard删除，fingerprint=all表示全部
+ * <p>
+ * 重放经过默认交换机直接发送到隔离前所在的队列，不经过原来的交换机，其他已经处理成功的队列不会再收到
+ * 重放的通道开启发送确认，确认后才从隔离队列删除，原队列不存在（消息被退回）时留在隔离队列
+ */
+@Component
+public class QuarantineGuard {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuarantineGuard.class);
+
+    public static final String HEADER_FINGERPRINT = "x-quarantine-fingerprint";
+    public static final String HEADER_QUEUE = "x-quarantine-queue";
+    public static final String HEADER_EXCHANGE = "x-quarantine-exchange";
+    public static final String HEADER_ROUTING_KEY = "x-quarantine-routing-key";
+    public static final String HEADER_FAILURES = "x-quarantine-failures";
+    public static final String HEADER_ERROR = "x-quarantine-error";
+    public static final String HEADER_TIME = "x-quarantine-time";
+    /**
+     * 错误信息最多保留的字符数
+     */
+    private static final int MAX_ERROR_LENGTH = 512;
+    /**
+     * 重放时等待确认的时间
+     */
+    private static final long CONFIRM_TIMEOUT_MILLIS = 5000;
+
+    private final ConnectionFactory connectionFactory;
+    private final boolean enabled;
+    private final boolean manualAck;
+    private final String quarantineQueue;
+    private final int threshold;
+    private final FailureTracker tracker;
+    private final MessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+    private final LongAdder quarantined = new LongAdder();
+
+    @Autowired
+    public QuarantineGuard(ConnectionFactory connectionFactory, NotificationCoalescer notificationCoalescer,
+                           AdminServer adminServer,
+                           @Value("${xuecheng.mq.quarantine.enabled:false}") boolean enabled,
+                           @Value("${xuecheng.mq.quarantine.queue:" + RabbitMQConfig.QUEUE_INFORM_QUARANTINE + "}") String quarantineQueue,
+                           @Value("${xuecheng.mq.quarantine.threshold:3}") int threshold,
+                           @Value("${xuecheng.mq.quarantine.max-tracked:100000}") int maxTracked,
+                           @Value("${xuecheng.mq.quarantine.ttl-ms:600000}") long ttlMillis) {
+        this(connectionFactory, notificationCoalescer.isEnabled(), enabled, quarantineQueue, threshold,
+                new FailureTracker(maxTracked, ttlMillis));
+        if (enabled) {
+            adminServer.register("/quarantine", this::handle);
+        }
+    }
+
+    QuarantineGuard(ConnectionFactory connectionFactory, boolean manualAck, boolean enabled, String quarantineQueue,
+                    int threshold, FailureTracker tracker) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold必须大于0");
+        }
+        this.connectionFactory = connectionFactory;
+        this.manualAck = manualAck;
+        this.enabled = enabled;
+        this.quarantineQueue = quarantineQueue;
+        this.threshold = threshold;
+        this.tracker = tracker;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 加到监听容器的adviceChain中，放在重试之后，隔离后不再重试
+     */
+    public MethodInterceptor advice() {
+        return invocation -> {
+            Object[] arguments = invocation.getArguments();
+            if (arguments.length < 2 || !(arguments[0] instanceof Channel) || !(arguments[1] instanceof Message)) {
+                return invocation.proceed();
+            }
+            try {
+                return invocation.proceed();
+            } catch (Throwable e) {
+                if (!onFailure((Channel) arguments[0], (Message) arguments[1], e)) {
+                    throw e;
+                }
+                //已经转发到隔离队列，正常返回，由容器ack
+                return null;
+            }
+        };
+    }
+
+    /**
+     * 记录失败，达到阈值时转发到隔离队列
+     *
+     * @return 是否已经隔离，没有隔离时由容器按原来的方式重新投递
+     */
+    boolean onFailure(Channel channel, Message message, Throwable error) {
+        MessageProperties properties = message.getMessageProperties();
+        long fingerprint = Fingerprint.of(properties.getConsumerQueue(), message.getBody());
+        int failures = tracker.recordFailure(fingerprint, System.currentTimeMillis());
+        if (failures < threshold) {
+            return false;
+        }
+        try {
+            channel.basicPublish("", quarantineQueue, false, quarantineProperties(properties, fingerprint, failures, error),
+                    message.getBody());
+            if (manualAck) {
+                channel.basicAck(properties.getDeliveryTag(), false);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("转发到隔离队列失败，消息将重新投递", e);
+            return false;
+        }
+        tracker.reset(fingerprint);
+        quarantined.increment();
+        LOGGER.warn("消息失败{}次，已隔离：队列={} 指纹={} 错误={}", failures, properties.getConsumerQueue(),
+                Fingerprint.toHex(fingerprint), rootMessage(error));
+        return true;
+    }
+
+    private AMQP.BasicProperties quarantineProperties(MessageProperties original, long fingerprint, int failures,
+                                                      Throwable error) {
+        AMQP.BasicProperties properties = propertiesConverter.fromMessageProperties(original,
+                StandardCharsets.UTF_8.name());
+        Map<String, Object> headers = new HashMap<>();
+        if (properties.getHeaders() != null) {
+            headers.putAll(properties.getHeaders());
+        }
+        headers.put(HEADER_FINGERPRINT, Fingerprint.toHex(fingerprint));
+        headers.put(HEADER_QUEUE, String.valueOf(original.getConsumerQueue()));
+        headers.put(HEADER_EXCHANGE, original.getReceivedExchange() == null ? "" : original.getReceivedExchange());
+        headers.put(HEADER_ROUTING_KEY, String.valueOf(original.getReceivedRoutingKey()));
+        headers.put(HEADER_FAILURES, failures);
+        headers.put(HEADER_ERROR, rootMessage(error));
+        headers.put(HEADER_TIME, System.currentTimeMillis());
+        //隔离的消息要保留，持久化
+        return properties.builder().headers(headers).deliveryMode(2).build();
+    }
+
+    private static String rootMessage(Throwable error) {
+        Throwable root = error;
+        while (root.getCause() != null && root.getCause() != root) {
+            root = root.getCause();
+        }
+        String message = root.getClass().getSimpleName() + ": " + root.getMessage();
+        return message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) : message;
+    }
+
+    /**
+     * 已经隔离的消息数
+     */
+    public long getQuarantined() {
+        return quarantined.sum();
+    }
+
+    public FailureTracker getTracker() {
+        return tracker;
+    }
+
+    private String handle(String method, Map<String, String> params) throws IOException {
+        int limit = Integer.parseInt(params.getOrDefault("limit", "100"));
+        if (!"POST".equals(method)) {
+            return inspect(limit);
+        }
+        String action = params.get("action");
+        String fingerprint = params.get("fingerprint");
+        if (fingerprint == null || !("replay".equals(action) || "discard".equals(action))) {
+            throw new IllegalArgumentException("需要参数action=replay|discard和fingerprint=指纹|all");
+        }
+        int count = process(fingerprint, limit, "replay".equals(action));
+        return ("replay".equals(action) ? "已重放" : "已删除") + count + "条";
+    }
+
+    /**
+     * 查看隔离队列中的消息，按指纹汇总
+     * 取出后全部nack回到隔离队列，通道来自缓存，关闭时不一定真正关闭，不能依赖关闭通道退回消息
+     */
+    String inspect(int limit) throws IOException {
+        Map<String, String> summary = new LinkedHashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        Channel channel = openChannel();
+        try {
+            long lastTag = -1;
+            for (int i = 0; i < limit; i++) {
+                GetResponse response = channel.basicGet(quarantineQueue, false);
+                if (response == null) {
+                    break;
+                }
+                lastTag = response.getEnvelope().getDeliveryTag();
+                Map<String, Object> headers = response.getProps().getHeaders();
+                String fingerprint = String.valueOf(headers.get(HEADER_FINGERPRINT));
+                counts.merge(fingerprint, 1, Integer::sum);
+                summary.putIfAbsent(fingerprint, "队列=" + headers.get(HEADER_QUEUE)
+                        + " RoutingKey=" + headers.get(HEADER_ROUTING_KEY)
+                        + " 失败次数=" + headers.get(HEADER_FAILURES)
+                        + " 大小=" + response.getBody().length
+                        + " 错误=" + headers.get(HEADER_ERROR));
+            }
+            if (lastTag >= 0) {
+                channel.basicNack(lastTag, true, true);
+            }
+        } finally {
+            close(channel);
+        }
+        StringBuilder sb = new StringBuilder("已隔离").append(quarantined.sum()).append("条，跟踪中的指纹")
+                .append(tracker.size()).append("个");
+        summary.forEach((fingerprint, line) -> sb.append('\n').append(fingerprint).append(" x")
+                .append(counts.get(fingerprint)).append(' ').append(line));
+        return sb.toString();
+    }
+
+    /**
+     * 重放或删除隔离队列中的消息，最多检查limit条，不匹配的和重放失败的nack回到隔离队列
+     * 重放逐条等待确认，确认后立即ack，中途失败时已经重放的消息不会重复
+     *
+     * @return 处理的条数
+     */
+    int process(String fingerprint, int limit, boolean replay) throws IOException {
+        int processed = 0;
+        Channel channel = openChannel();
+        AtomicBoolean returned = new AtomicBoolean();
+        if (replay) {
+            //确认模式的通道不放回缓存，避免影响其他使用者
+            RabbitUtils.setPhysicalCloseRequired(channel, true);
+            channel.confirmSelect();
+            channel.addReturnListener((replyCode, replyText, exchange, routingKey, properties, body) ->
+                    returned.set(true));
+        }
+        try {
+            List<Long> skipped = new ArrayList<>();
+            for (int i = 0; i < limit; i++) {
+                GetResponse response = channel.basicGet(quarantineQueue, false);
+                if (response == null) {
+                    break;
+                }
+                long tag = response.getEnvelope().getDeliveryTag();
+                Map<String, Object> headers = response.getProps().getHeaders();
+                String hex = String.valueOf(headers.get(HEADER_FINGERPRINT));
+                if (!"all".equals(fingerprint) && !fingerprint.equals(hex)) {
+                    skipped.add(tag);
+                    continue;
+                }
+                if (replay) {
+                    String queue = String.valueOf(headers.get(HEADER_QUEUE));
+                    Map<String, Object> original = new HashMap<>(headers);
+                    original.keySet().removeIf(name -> name.startsWith("x-quarantine-"));
+                    returned.set(false);
+                    channel.basicPublish("", queue, true, response.getProps().builder().headers(original).build(),
+                            response.getBody());
+                    waitForConfirm(channel);
+                    //退回先于确认到达
+                    if (returned.get()) {
+                        LOGGER.warn("重放失败，队列{}不存在，消息留在隔离队列：指纹={}", queue, hex);
+                        skipped.add(tag);
+                        continue;
+                    }
+                    //重放后重新计数
+                    tracker.reset(Fingerprint.fromHex(hex));
+                }
+                channel.basicAck(tag, false);
+                processed++;
+            }
+            for (Long tag : skipped) {
+                channel.basicNack(tag, false, true);
+            }
+        } finally {
+            close(channel);
+        }
+        LOGGER.info("隔离队列：{}指纹{}的消息{}条", replay ? "重放" : "删除", fingerprint, processed);
+        return processed;
+    }
+
+    /**
+     * 等待重放的消息确认，失败时通道被关闭，未ack的消息回到隔离队列
+     */
+    private static void waitForConfirm(Channel channel) throws IOException {
+        try {
+            channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待重放确认被中断", e);
+        } catch (TimeoutException e) {
+            throw new IOException("等待重放确认超时", e);
+        }
+    }
+
+    private Channel openChannel() {
+        return connectionFactory.createConnection().createChannel(false);
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            LOGGER.debug("关闭通道失败", e);
+        }
+    }
+}
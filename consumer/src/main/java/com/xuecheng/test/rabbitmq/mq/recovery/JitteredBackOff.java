@@ -0,0 +1,47 @@
+package com.xuecheng.test.rabbitmq.mq.recovery;
+
+import org.springframework.util.backoff.BackOff;
+import org.springframework.util.backoff.BackOffExecution;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 带随机抖动的指数退避
+ * <p>
+ * 第n次的间隔上限为min(max, initial * multiplier^n)，实际间隔在上限的一半到上限之间随机
+ * MQ重启时所有实例同时断开，固定间隔会让它们在同一时刻一起重连，随机抖动把重连分散开
+ */
+public class JitteredBackOff implements BackOff {
+    private final long initialMillis;
+    private final long maxMillis;
+    private final double multiplier;
+
+    /**
+     * @param initialMillis 第一次重试的间隔上限，设置得小一些，MQ切换到其他节点时可以在1秒内恢复
+     * @param maxMillis     间隔上限
+     * @param multiplier    每次的倍数
+     */
+    public JitteredBackOff(long initialMillis, long maxMillis, double multiplier) {
+        if (initialMillis <= 0 || maxMillis < initialMillis || multiplier < 1) {
+            throw new IllegalArgumentException("退避参数不正确");
+        }
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+        this.multiplier = multiplier;
+    }
+
+    @Override
+    public BackOffExecution start() {
+        return new BackOffExecution() {
+            private double ceiling = initialMillis;
+
+            @Override
+            public long nextBackOff() {
+                long current = (long) Math.min(ceiling, maxMillis);
+                ceiling = Math.min(ceiling * multiplier, maxMillis);
+                long half = current / 2;
+                return half + ThreadLocalRandom.current().nextLong(current - half + 1);
+            }
+        };
+    }
+}
@@ -0,0 +1,81 @@
+package com.xuecheng.test.rabbitmq.mq.recovery;
+
+import com.xuecheng.test.rabbitmq.mq.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.listener.AsyncConsumerStartedEvent;
+import org.springframework.amqp.rabbit.listener.ListenerContainerConsumerFailedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 统计消费者从断开到恢复的耗时
+ * <p>
+ * 监听容器的消费者失败时记录时间，同一个容器的消费者重新启动（重新声明队列、重新注册消费者）后计算耗时
+ * 自己管理通道的消费者（例如StreamOffsetConsumer）恢复后调用recovered()
+ */
+@Component
+public class ListenerRecoveryMonitor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListenerRecoveryMonitor.class);
+
+    /**
+     * 容器 -> 第一次失败的时间
+     */
+    private final Map<Object, Long> downSince = new ConcurrentHashMap<>();
+    private final LatencyHistogram recoveryMillis = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+
+    @EventListener
+    public void onConsumerFailed(ListenerContainerConsumerFailedEvent event) {
+        failures.incrementAndGet();
+        if (!event.isFatal()) {
+            downSince.putIfAbsent(event.getSource(), System.nanoTime());
+        }
+    }
+
+    @EventListener
+    public void onConsumerStarted(AsyncConsumerStartedEvent event) {
+        Long since = downSince.remove(event.getSource());
+        if (since != null) {
+            recovered(String.valueOf(event.getSource()), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since));
+        }
+    }
+
+    /**
+     * 记录一次恢复
+     *
+     * @param source 消费者
+     * @param millis 从断开到恢复的耗时
+     */
+    public void recovered(String source, long millis) {
+        recoveryMillis.record(millis);
+        LOGGER.info("消费者{}已恢复，耗时{}ms，累计恢复{}次，p99 {}ms", source, millis,
+                recoveryMillis.count(), recoveryMillis.percentile(99));
+    }
+
+    /**
+     * 恢复的次数
+     */
+    public long getRecoveries() {
+        return recoveryMillis.count();
+    }
+
+    /**
+     * 消费者失败的次数，一次断开每个消费者各算一次
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * 恢复耗时的分布，单位毫秒
+     */
+    public LatencyHistogram getRecoveryMillis() {
+        return recoveryMillis;
+    }
+}
@@ -0,0 +1,68 @@
+package com.xuecheng.test.rabbitmq.mq.rpc;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 回复请求/响应模式的调用，发送方见RpcClient
+ * <p>
+ * 只有带replyTo的消息需要回复，回复发到默认交换机，RoutingKey就是replyTo（direct reply-to时是amq.rabbitmq.reply-to.xxx），
+ * 带上请求的correlationId。回复的是受理结果：消息已经交给处理方法或者合并器时回复ACCEPTED，被过滤时回复REJECTED
+ * 处理出错时不回复，消息会被重新投递，由调用方按超时处理
+ */
+@Component
+public class RpcResponder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RpcResponder.class);
+
+    public static final String ACCEPTED = "ACCEPTED";
+    public static final String REJECTED = "REJECTED";
+
+    private final LongAdder replies = new LongAdder();
+
+    /**
+     * 回复，没有replyTo的消息忽略
+     *
+     * @param channel 收到请求的通道
+     * @param request 请求的消息属性
+     * @param status  受理结果
+     */
+    public void reply(Channel channel, MessageProperties request, String status) {
+        String replyTo = request.getReplyTo();
+        if (replyTo == null) {
+            return;
+        }
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .correlationId(correlationId(request)).build();
+        try {
+            channel.basicPublish("", replyTo, properties, status.getBytes(StandardCharsets.UTF_8));
+            replies.increment();
+        } catch (IOException e) {
+            //调用方会超时
+            LOGGER.warn("回复{}失败：{}", replyTo, e.getMessage());
+        }
+    }
+
+    /**
+     * 请求的correlationId，SpringAMQP 1.7的监听容器默认只转换成byte[]，按UTF-8还原成字符串
+     */
+    @SuppressWarnings("deprecation")
+    static String correlationId(MessageProperties request) {
+        if (request.getCorrelationIdString() != null) {
+            return request.getCorrelationIdString();
+        }
+        byte[] correlationId = request.getCorrelationId();
+        return correlationId == null ? null : new String(correlationId, StandardCharsets.UTF_8);
+    }
+
+    public long getReplies() {
+        return replies.sum();
+    }
+}
@@ -0,0 +1,188 @@
+package com.xuecheng.test.rabbitmq.mq.selector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按消息头过滤消息的选择器，语法见SelectorParser
+ * <p>
+ * 表达式编译成决策树：每个节点读取一个消息头，按取值在HashMap中找到下一个节点，叶子节点就是结果。
+ * 每个消息头在一条路径上最多读取一次，匹配时不再解释语法树，也不分配对象，也没有生成字节码，
+ * 耗时只和用到的消息头个数有关，和表达式写得多长、有多少个IN的值无关
+ * <p>
+ * 编译过程：按出现顺序取一个消息头，对表达式中出现过的每个值、其他值、不存在三种情况分别代入并化简，
+ * 化简后的表达式相同的分支共用一个节点，所以实际是一个有向无环图
+ */
+public final class Selector {
+    /**
+     * 决策树节点数的上限，超过时说明表达式太复杂，应该拆成多个队列
+     */
+    static final int MAX_NODES = 10_000;
+
+    private static final Selector ALL = new Selector("", SelectorExpression.TRUE, Node.TRUE, 1);
+
+    private final String expression;
+    private final SelectorExpression tree;
+    private final Node root;
+    private final int nodes;
+
+    private Selector(String expression, SelectorExpression tree, Node root, int nodes) {
+        this.expression = expression;
+        this.tree = tree;
+        this.root = root;
+        this.nodes = nodes;
+    }
+
+    /**
+     * 编译选择器
+     *
+     * @param expression 表达式，为空时匹配所有消息
+     * @return 选择器
+     * @throws IllegalArgumentException 语法错误或者表达式太复杂
+     */
+    public static Selector compile(String expression) {
+        if (expression == null || expression.trim().isEmpty()) {
+            return ALL;
+        }
+        SelectorExpression tree = SelectorParser.parse(expression);
+        Map<String, Set<String>> values = new LinkedHashMap<>();
+        tree.collect(values);
+        Compiler compiler = new Compiler(new ArrayList<>(values.entrySet()));
+        Node root = compiler.compile(tree, 0);
+        return new Selector(expression.trim(), tree, root, compiler.created + 2);
+    }
+
+    /**
+     * 匹配所有消息的选择器
+     */
+    public static Selector all() {
+        return ALL;
+    }
+
+    /**
+     * 按决策树判断消息头是否满足条件
+     */
+    public boolean matches(Map<String, Object> headers) {
+        Node node = root;
+        while (node.header != null) {
+            String value = SelectorExpression.headerValue(headers, node.header);
+            if (value == null) {
+                node = node.absent;
+            } else {
+                Node next = node.branches.get(value);
+                node = next == null ? node.other : next;
+            }
+        }
+        return node == Node.TRUE;
+    }
+
+    /**
+     * 逐个节点解释执行语法树，结果和matches相同，用于测试和基准测试的对照
+     */
+    public boolean evaluate(Map<String, Object> headers) {
+        return tree.evaluate(headers);
+    }
+
+    /**
+     * 是否匹配所有消息
+     */
+    public boolean isAll() {
+        return root == Node.TRUE;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * 决策树的节点数，包括两个叶子节点
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+    @Override
+    public String toString() {
+        return isAll() ? "ALL" : tree.toString();
+    }
+
+    /**
+     * 决策树节点，header为null的是叶子节点
+     */
+    private static final class Node {
+        static final Node TRUE = new Node(null, null, null, null);
+        static final Node FALSE = new Node(null, null, null, null);
+
+        final String header;
+        final Map<String, Node> branches;
+        final Node other;
+        final Node absent;
+
+        Node(String header, Map<String, Node> branches, Node other, Node absent) {
+            this.header = header;
+            this.branches = branches;
+            this.other = other;
+            this.absent = absent;
+        }
+    }
+
+    private static final class Compiler {
+        private final List<Map.Entry<String, Set<String>>> headers;
+        /**
+         * 化简后的表达式到节点，相同的子表达式只编译一次
+         */
+        private final Map<String, Node> nodes = new HashMap<>();
+        private int created;
+
+        Compiler(List<Map.Entry<String, Set<String>>> headers) {
+            this.headers = headers;
+        }
+
+        /**
+         * @param expression 已经代入了前index个消息头的表达式
+         * @param index      下一个要判断的消息头
+         */
+        Node compile(SelectorExpression expression, int index) {
+            if (expression == SelectorExpression.TRUE) {
+                return Node.TRUE;
+            }
+            if (expression == SelectorExpression.FALSE) {
+                return Node.FALSE;
+            }
+            String key = index + ":" + expression;
+            Node node = nodes.get(key);
+            if (node != null) {
+                return node;
+            }
+            Map.Entry<String, Set<String>> header = headers.get(index);
+            String name = header.getKey();
+            Node other = compile(expression.assign(name, SelectorExpression.OTHER), index + 1);
+            Node absent = compile(expression.assign(name, null), index + 1);
+            Map<String, Node> branches = new HashMap<>();
+            boolean allSame = other == absent;
+            for (String value : header.getValue()) {
+                Node branch = compile(expression.assign(name, value), index + 1);
+                //和其他值结果相同的不需要单独的分支
+                if (branch != other) {
+                    branches.put(value, branch);
+                    allSame = false;
+                }
+            }
+            if (allSame) {
+                //这个消息头不影响结果，例如已经被化简掉了
+                node = other;
+            } else {
+                if (++created > MAX_NODES) {
+                    throw new IllegalArgumentException("选择器太复杂，决策树超过" + MAX_NODES + "个节点");
+                }
+                node = new Node(name, branches, other, absent);
+            }
+            nodes.put(key, node);
+            return node;
+        }
+    }
+}
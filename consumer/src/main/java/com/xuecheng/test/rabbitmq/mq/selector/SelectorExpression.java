@@ -0,0 +1,249 @@
+package com.xuecheng.test.rabbitmq.mq.selector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 选择器的语法树
+ * <p>
+ * 只有四种节点：常量、消息头条件、NOT、AND/OR，=、!=、IN、EXISTS都转成消息头条件加NOT，
+ * 编译成决策树时只需要处理消息头条件的取值
+ */
+abstract class SelectorExpression {
+    static final SelectorExpression TRUE = new Constant(true);
+    static final SelectorExpression FALSE = new Constant(false);
+    /**
+     * 存在但不是表达式中出现过的值，按引用比较
+     */
+    static final String OTHER = new String("\u0000other");
+
+    /**
+     * 逐个节点解释执行
+     */
+    abstract boolean evaluate(Map<String, Object> headers);
+
+    /**
+     * 把消息头name的取值代入，返回化简后的表达式
+     *
+     * @param name  消息头
+     * @param value 取值，OTHER表示存在但不是表达式中出现过的值，null表示不存在
+     */
+    abstract SelectorExpression assign(String name, String value);
+
+    /**
+     * 按出现顺序收集消息头和每个消息头出现过的值
+     */
+    abstract void collect(Map<String, Set<String>> values);
+
+    static SelectorExpression constant(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    static String headerValue(Map<String, Object> headers, String name) {
+        Object value = headers.get(name);
+        //AMQP中的字符串消息头可能是LongString，toString即可
+        return value == null ? null : value instanceof String ? (String) value : value.toString();
+    }
+
+    static SelectorExpression not(SelectorExpression operand) {
+        if (operand instanceof Constant) {
+            return constant(operand == FALSE);
+        }
+        if (operand instanceof Not) {
+            return ((Not) operand).operand;
+        }
+        return new Not(operand);
+    }
+
+    static SelectorExpression and(List<SelectorExpression> operands) {
+        return junction(true, operands);
+    }
+
+    static SelectorExpression or(List<SelectorExpression> operands) {
+        return junction(false, operands);
+    }
+
+    /**
+     * 化简AND/OR：AND去掉TRUE、遇到FALSE即为FALSE，OR反之
+     */
+    private static SelectorExpression junction(boolean and, List<SelectorExpression> operands) {
+        SelectorExpression identity = constant(and);
+        SelectorExpression absorbing = constant(!and);
+        List<SelectorExpression> kept = new ArrayList<>(operands.size());
+        for (SelectorExpression operand : operands) {
+            if (operand == absorbing) {
+                return absorbing;
+            }
+            if (operand != identity) {
+                kept.add(operand);
+            }
+        }
+        if (kept.isEmpty()) {
+            return identity;
+        }
+        return kept.size() == 1 ? kept.get(0) : new Junction(and, kept);
+    }
+
+    static final class Constant extends SelectorExpression {
+        private final boolean value;
+
+        private Constant(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean evaluate(Map<String, Object> headers) {
+            return value;
+        }
+
+        @Override
+        SelectorExpression assign(String name, String headerValue) {
+            return this;
+        }
+
+        @Override
+        void collect(Map<String, Set<String>> values) {
+        }
+
+        @Override
+        public String toString() {
+            return value ? "TRUE" : "FALSE";
+        }
+    }
+
+    /**
+     * 消息头条件：values为null时表示存在，否则表示取值是其中之一
+     */
+    static final class Test extends SelectorExpression {
+        private final String name;
+        private final Set<String> values;
+
+        Test(String name, Set<String> values) {
+            this.name = name;
+            this.values = values == null ? null : Collections.unmodifiableSet(new LinkedHashSet<>(values));
+        }
+
+        @Override
+        boolean evaluate(Map<String, Object> headers) {
+            String value = headerValue(headers, name);
+            return value != null && (values == null || values.contains(value));
+        }
+
+        @Override
+        SelectorExpression assign(String headerName, String value) {
+            if (!name.equals(headerName)) {
+                return this;
+            }
+            if (value == null) {
+                return FALSE;
+            }
+            return constant(values == null || (value != OTHER && values.contains(value)));
+        }
+
+        @Override
+        void collect(Map<String, Set<String>> collected) {
+            Set<String> set = collected.computeIfAbsent(name, k -> new LinkedHashSet<>());
+            if (values != null) {
+                set.addAll(values);
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (values == null) {
+                return name + " EXISTS";
+            }
+            StringBuilder sb = new StringBuilder(name).append(" IN (");
+            boolean first = true;
+            for (String value : values) {
+                sb.append(first ? "" : ", ").append('\'').append(value.replace("'", "''")).append('\'');
+                first = false;
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    static final class Not extends SelectorExpression {
+        private final SelectorExpression operand;
+
+        private Not(SelectorExpression operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean evaluate(Map<String, Object> headers) {
+            return !operand.evaluate(headers);
+        }
+
+        @Override
+        SelectorExpression assign(String name, String value) {
+            SelectorExpression assigned = operand.assign(name, value);
+            return assigned == operand ? this : not(assigned);
+        }
+
+        @Override
+        void collect(Map<String, Set<String>> values) {
+            operand.collect(values);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + operand;
+        }
+    }
+
+    static final class Junction extends SelectorExpression {
+        private final boolean and;
+        private final List<SelectorExpression> operands;
+
+        private Junction(boolean and, List<SelectorExpression> operands) {
+            this.and = and;
+            this.operands = operands;
+        }
+
+        @Override
+        boolean evaluate(Map<String, Object> headers) {
+            for (SelectorExpression operand : operands) {
+                if (operand.evaluate(headers) != and) {
+                    return !and;
+                }
+            }
+            return and;
+        }
+
+        @Override
+        SelectorExpression assign(String name, String value) {
+            List<SelectorExpression> assigned = new ArrayList<>(operands.size());
+            boolean changed = false;
+            for (SelectorExpression operand : operands) {
+                SelectorExpression next = operand.assign(name, value);
+                changed |= next != operand;
+                assigned.add(next);
+            }
+            if (!changed) {
+                return this;
+            }
+            return and ? and(assigned) : or(assigned);
+        }
+
+        @Override
+        void collect(Map<String, Set<String>> values) {
+            for (SelectorExpression operand : operands) {
+                operand.collect(values);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < operands.size(); i++) {
+                sb.append(i == 0 ? "" : and ? " AND " : " OR ").append(operands.get(i));
+            }
+            return sb.append(')').toString();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.xuecheng.test.rabbitmq.mq.selector;
+
+import com.xuecheng.test.rabbitmq.mq.admin.AdminServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 消费方按消息头过滤通知，配置方式：xuecheng.mq.selector.email、xuecheng.mq.selector.sms
+ * <p>
+ * 消息头交换机只能按等值条件路由，IN、NOT、OR这类条件在这里判断，不满足的消息在解码消息体之前丢弃（ack）
+ * 开启管理接口时，GET /selector查看选择器和丢弃数，POST /selector?type=email&expression=...在运行中替换
+ */
+@Component
+public class SelectorFilter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SelectorFilter.class);
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public SelectorFilter(AdminServer adminServer,
+                          @Value("${xuecheng.mq.selector.email:}") String email,
+                          @Value("${xuecheng.mq.selector.sms:}") String sms) {
+        //配置错误时启动失败，不要等到收到消息
+        update("email", email);
+        update("sms", sms);
+        adminServer.register("/selector", this::handle);
+    }
+
+    /**
+     * 消息是否需要处理
+     *
+     * @param type       通知类型
+     * @param properties 消息属性
+     */
+    public boolean accept(String type, MessageProperties properties) {
+        Entry entry = entries.get(type);
+        if (entry == null || entry.selector.isAll()) {
+            return true;
+        }
+        if (entry.selector.matches(properties.getHeaders())) {
+            entry.accepted.increment();
+            return true;
+        }
+        entry.dropped.increment();
+        return false;
+    }
+
+    /**
+     * 替换选择器，计数清零
+     *
+     * @param type       通知类型
+     * @param expression 表达式，为空时不过滤
+     * @return 编译后的选择器
+     */
+    public Selector update(String type, String expression) {
+        Selector selector = Selector.compile(expression);
+        entries.put(type, new Entry(selector));
+        if (!selector.isAll()) {
+            LOGGER.info("{}通知的选择器：{}，决策树{}个节点", type, selector.getExpression(), selector.getNodes());
+        }
+        return selector;
+    }
+
+    public long dropped(String type) {
+        Entry entry = entries.get(type);
+        return entry == null ? 0 : entry.dropped.sum();
+    }
+
+    private String handle(String method, Map<String, String> params) {
+        if ("POST".equals(method)) {
+            String type = params.get("type");
+            if (type == null || !entries.containsKey(type)) {
+                throw new IllegalArgumentException("type应该是" + entries.keySet());
+            }
+            Selector selector = update(type, params.get("expression"));
+            return type + "：" + selector;
+        }
+        StringBuilder sb = new StringBuilder();
+        entries.forEach((type, entry) -> sb.append(type).append("：").append(entry.selector)
+                .append("，节点数=").append(entry.selector.getNodes())
+                .append("，通过=").append(entry.accepted.sum())
+                .append("，丢弃=").append(entry.dropped.sum()).append('\n'));
+        return sb.toString().trim();
+    }
+
+    private static final class Entry {
+        final Selector selector;
+        final LongAdder accepted = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+
+        Entry(Selector selector) {
+            this.selector = selector;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.xuecheng.test.rabbitmq.mq.selector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 选择器的解析，语法：
+ * <pre>
+ * expr      := and (OR and)*
+ * and       := unary (AND unary)*
+ * unary     := NOT unary | '(' expr ')' | condition
+ * condition := header '=' value | header '!=' value | header [NOT] IN '(' value (',' value)* ')' | header EXISTS
+ * </pre>
+ * 关键字不区分大小写；值可以用单引号括起来，单引号本身写两次；不带引号的值和消息头名可以包含字母、数字和_.-:
+ * 例如：tenant IN ('acme', 'globex') AND locale = zh-CN AND NOT test EXISTS
+ */
+final class SelectorParser {
+    private final String text;
+    private int pos;
+    /**
+     * 当前token，quoted为true时是带引号的值，不会被当成关键字或符号
+     */
+    private String token;
+    private boolean quoted;
+
+    private SelectorParser(String text) {
+        this.text = text;
+    }
+
+    static SelectorExpression parse(String text) {
+        SelectorParser parser = new SelectorParser(text);
+        parser.next();
+        if (parser.token == null) {
+            return SelectorExpression.TRUE;
+        }
+        SelectorExpression expression = parser.or();
+        if (parser.token != null) {
+            throw parser.error("多余的内容");
+        }
+        return expression;
+    }
+
+    private SelectorExpression or() {
+        List<SelectorExpression> operands = new ArrayList<>();
+        operands.add(and());
+        while (keyword("OR")) {
+            next();
+            operands.add(and());
+        }
+        return SelectorExpression.or(operands);
+    }
+
+    private SelectorExpression and() {
+        List<SelectorExpression> operands = new ArrayList<>();
+        operands.add(unary());
+        while (keyword("AND")) {
+            next();
+            operands.add(unary());
+        }
+        return SelectorExpression.and(operands);
+    }
+
+    private SelectorExpression unary() {
+        if (keyword("NOT")) {
+            next();
+            return SelectorExpression.not(unary());
+        }
+        if (symbol("(")) {
+            next();
+            SelectorExpression expression = or();
+            expect(")");
+            return expression;
+        }
+        return condition();
+    }
+
+    private SelectorExpression condition() {
+        if (token == null || quoted || isSymbol()) {
+            throw error("应该是消息头名");
+        }
+        String name = token;
+        next();
+        if (symbol("=")) {
+            next();
+            return new SelectorExpression.Test(name, Collections.singleton(value()));
+        }
+        if (symbol("!=")) {
+            next();
+            return SelectorExpression.not(new SelectorExpression.Test(name, Collections.singleton(value())));
+        }
+        if (keyword("EXISTS")) {
+            next();
+            return new SelectorExpression.Test(name, null);
+        }
+        boolean negate = false;
+        if (keyword("NOT")) {
+            negate = true;
+            next();
+        }
+        if (!keyword("IN")) {
+            throw error("应该是=、!=、IN或EXISTS");
+        }
+        next();
+        expect("(");
+        Set<String> values = new LinkedHashSet<>();
+        values.add(value());
+        while (symbol(",")) {
+            next();
+            values.add(value());
+        }
+        expect(")");
+        SelectorExpression test = new SelectorExpression.Test(name, values);
+        return negate ? SelectorExpression.not(test) : test;
+    }
+
+    private String value() {
+        if (token == null || (!quoted && isSymbol())) {
+            throw error("应该是值");
+        }
+        String value = token;
+        next();
+        return value;
+    }
+
+    private void expect(String symbol) {
+        if (!symbol(symbol)) {
+            throw error("应该是" + symbol);
+        }
+        next();
+    }
+
+    private boolean keyword(String keyword) {
+        return token != null && !quoted && token.toUpperCase(Locale.ROOT).equals(keyword);
+    }
+
+    private boolean symbol(String symbol) {
+        return token != null && !quoted && token.equals(symbol);
+    }
+
+    private boolean isSymbol() {
+        return "(".equals(token) || ")".equals(token) || ",".equals(token) || "=".equals(token) || "!=".equals(token);
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("选择器语法错误，位置" + pos + "：" + message + "，" + text);
+    }
+
+    /**
+     * 读取下一个token，结束时token为null
+     */
+    private void next() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        quoted = false;
+        if (pos >= text.length()) {
+            token = null;
+            return;
+        }
+        char c = text.charAt(pos);
+        if (c == '(' || c == ')' || c == ',' || c == '=') {
+            token = String.valueOf(c);
+            pos++;
+            return;
+        }
+        if (c == '!' || c == '<') {
+            String op = text.startsWith("!=", pos) ? "!=" : text.startsWith("<>", pos) ? "<>" : null;
+            if (op == null) {
+                throw error("不支持的运算符");
+            }
+            token = "!=";
+            pos += 2;
+            return;
+        }
+        if (c == '\'') {
+            StringBuilder sb = new StringBuilder();
+            pos++;
+            while (true) {
+                if (pos >= text.length()) {
+                    throw error("引号没有结束");
+                }
+                char ch = text.charAt(pos++);
+                if (ch == '\'') {
+                    if (pos < text.length() && text.charAt(pos) == '\'') {
+                        sb.append('\'');
+                        pos++;
+                        continue;
+                    }
+                    break;
+                }
+                sb.append(ch);
+            }
+            token = sb.toString();
+            quoted = true;
+            return;
+        }
+        int start = pos;
+        while (pos < text.length() && isWordChar(text.charAt(pos))) {
+            pos++;
+        }
+        if (start == pos) {
+            throw error("不支持的字符" + c);
+        }
+        token = text.substring(start, pos);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-' || c == ':';
+    }
+}
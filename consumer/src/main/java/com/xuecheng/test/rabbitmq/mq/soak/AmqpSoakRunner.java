@@ -0,0 +1,138 @@
+package com.xuecheng.test.rabbitmq.mq.soak;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.xuecheng.test.rabbitmq.mq.metrics.LatencyHistogram;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 使用真实MQ和监听容器的测试
+ * <p>
+ * 测试期间后台线程持续往队列补充消息，保持队列中至少有minDepth条，消费者不会因为没有消息而空闲
+ * 消息直接发到队列（默认交换机），不经过通配符交换机，建议使用单独的虚拟机，避免和真实的通知混在一起
+ * 延迟统计的是监听方法的处理时间
+ * <p>
+ * 每轮测试使用自己创建的非持久化、自动删除的临时队列，结束后删除，不会清空或重新声明已有的队列
+ * 不指定队列名时由服务端生成名字，指定时队列不能已经存在
+ */
+public class AmqpSoakRunner implements SoakRunner {
+    private final ConnectionFactory connectionFactory;
+    private final String queue;
+    private final int minDepth;
+    private final int bodySize;
+
+    /**
+     * @param queue 临时队列的名字，为空时由服务端生成
+     */
+    public AmqpSoakRunner(ConnectionFactory connectionFactory, String queue, int minDepth, int bodySize) {
+        this.connectionFactory = connectionFactory;
+        this.queue = queue;
+        this.minDepth = minDepth;
+        this.bodySize = bodySize;
+    }
+
+    @Override
+    public SoakResult run(int prefetch, int concurrency, int ackBatch, HandlerCostModel model, long durationMillis)
+            throws Exception {
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong handled = new AtomicLong();
+        Connection connection = connectionFactory.createConnection();
+        Channel channel = connection.createChannel(false);
+        String name;
+        try {
+            name = declareQueue(connection, channel);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+
+        SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(connectionFactory);
+        container.setQueueNames(name);
+        container.setPrefetchCount(prefetch);
+        container.setConcurrentConsumers(concurrency);
+        container.setTxSize(ackBatch);
+        container.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        container.setMessageListener((MessageListener) message -> {
+            long begin = System.nanoTime();
+            model.handle(ThreadLocalRandom.current());
+            latency.record((System.nanoTime() - begin) / 1000);
+            handled.incrementAndGet();
+        });
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        try {
+            topUp(channel, name);
+            container.start();
+            while (System.nanoTime() < deadline) {
+                topUp(channel, name);
+                Thread.sleep(50);
+            }
+        } finally {
+            container.stop();
+            container.destroy();
+            try {
+                //自动删除的队列在消费者都取消后已经被删除，再删一次不会报错
+                channel.queueDelete(name);
+            } finally {
+                closeQuietly(channel);
+            }
+        }
+        return new SoakResult(prefetch, concurrency, ackBatch, handled.get(), System.nanoTime() - start, latency);
+    }
+
+    /**
+     * 声明这一轮使用的临时队列，指定的名字已经有队列时拒绝，避免清空或删除真实的队列
+     */
+    private String declareQueue(Connection connection, Channel channel) throws IOException {
+        if (!StringUtils.hasText(queue)) {
+            return channel.queueDeclare("", false, false, true, null).getQueue();
+        }
+        boolean exists;
+        //队列不存在时被动声明会关闭通道，用单独的通道检查
+        Channel probe = connection.createChannel(false);
+        try {
+            probe.queueDeclarePassive(queue);
+            exists = true;
+        } catch (IOException e) {
+            exists = false;
+        } finally {
+            closeQuietly(probe);
+        }
+        if (exists) {
+            throw new IllegalStateException("队列" + queue + "已经存在，压测只使用自己创建的临时队列，换一个名字或者不指定");
+        }
+        return channel.queueDeclare(queue, false, false, true, null).getQueue();
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        } catch (Exception e) {
+            //测试工具，关闭失败不影响结果
+        }
+    }
+
+    private void topUp(Channel channel, String name) throws Exception {
+        int depth = channel.queueDeclarePassive(name).getMessageCount();
+        byte[] body = new byte[bodySize];
+        new Random().nextBytes(body);
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().contentType("text/plain").build();
+        for (int i = depth; i < minDepth * 2; i++) {
+            channel.basicPublish("", name, properties, body);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.xuecheng.test.rabbitmq.mq.soak;
+
+/**
+ * 模拟计算的结果写到这里，JIT不能把没有用到结果的计算当作死代码删掉
+ */
+final class Blackhole {
+    static volatile long sink;
+
+    private Blackhole() {
+    }
+}
@@ -0,0 +1,75 @@
+package com.xuecheng.test.rabbitmq.mq.soak;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 模拟的消息处理开销
+ */
+public interface HandlerCostModel {
+
+    /**
+     * 处理一条消息
+     */
+    void handle(Random random);
+
+    /**
+     * 解析开销模型
+     * cpu:微秒 占用CPU计算指定时间
+     * io:毫秒 固定等待，模拟调用网关、数据库
+     * heavy:毫秒:alpha:上限毫秒 帕累托分布的等待，大部分很快，少数很慢
+     */
+    static HandlerCostModel parse(String spec) {
+        String[] parts = spec.split(":");
+        switch (parts[0]) {
+            case "cpu":
+                return cpuBound(Long.parseLong(parts[1]));
+            case "io":
+                return fixedLatency(Long.parseLong(parts[1]));
+            case "heavy":
+                return heavyTail(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+                        Long.parseLong(parts[3]));
+            default:
+                throw new IllegalArgumentException("不支持的开销模型：" + spec);
+        }
+    }
+
+    /**
+     * CPU密集，忙等指定的微秒数
+     */
+    static HandlerCostModel cpuBound(long micros) {
+        return random -> {
+            long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+            long x = random.nextLong();
+            while (System.nanoTime() < end) {
+                x ^= x << 13;
+                x ^= x >>> 7;
+                x ^= x << 17;
+            }
+            //写入volatile字段，防止循环被优化掉
+            Blackhole.sink = x;
+        };
+    }
+
+    /**
+     * 固定延迟的IO
+     */
+    static HandlerCostModel fixedLatency(long millis) {
+        return random -> LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * 重尾延迟的IO，帕累托分布
+     *
+     * @param scaleMillis 最小延迟
+     * @param alpha       形状参数，越小尾巴越长，常用1.1到2
+     * @param capMillis   上限，模拟调用超时
+     */
+    static HandlerCostModel heavyTail(double scaleMillis, double alpha, long capMillis) {
+        return random -> {
+            double millis = scaleMillis / Math.pow(1 - random.nextDouble(), 1 / alpha);
+            LockSupport.parkNanos((long) (Math.min(millis, capMillis) * 1_000_000));
+        };
+    }
+}
@@ -0,0 +1,111 @@
+package com.xuecheng.test.rabbitmq.mq.soak;
+
+import com.xuecheng.test.rabbitmq.mq.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 不需要MQ的模拟测试，模拟prefetch的信用机制和网络往返
+ * <p>
+ * 队列中的消息无限多，每个消费者开始时收到prefetch条消息，
+ * ack发出后经过一个往返（ack到达MQ + 新消息到达客户端），才能收到同样数量的新消息
+ * 和监听容器一样，prefetch小于ackBatch时按ackBatch计算，空闲时把未ack的消息ack掉
+ */
+public class SimulatedSoakRunner implements SoakRunner {
+    /**
+     * 空闲多久后ack剩余的消息，对应监听容器的receiveTimeout，这里取小一些
+     */
+    private static final long IDLE_ACK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final long rttNanos;
+
+    /**
+     * @param rttMicros 客户端和MQ之间的网络往返时间
+     */
+    public SimulatedSoakRunner(long rttMicros) {
+        this.rttNanos = TimeUnit.MICROSECONDS.toNanos(rttMicros);
+    }
+
+    @Override
+    public SoakResult run(int prefetch, int concurrency, int ackBatch, HandlerCostModel model, long durationMillis)
+            throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong handled = new AtomicLong();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        List<Thread> consumers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Random random = new Random(i);
+            Thread consumer = new Thread(() -> consume(Math.max(prefetch, ackBatch), ackBatch, model, random,
+                    deadline, latency, handled), "soak-consumer-" + i);
+            consumers.add(consumer);
+            consumer.start();
+        }
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+        return new SoakResult(prefetch, concurrency, ackBatch, handled.get(), System.nanoTime() - start, latency);
+    }
+
+    private void consume(int prefetch, int ackBatch, HandlerCostModel model, Random random, long deadline,
+                         LatencyHistogram latency, AtomicLong handled) {
+        DelayQueue<Delivery> inbox = new DelayQueue<>();
+        long now = System.nanoTime();
+        for (int i = 0; i < prefetch; i++) {
+            inbox.add(new Delivery(now + rttNanos / 2));
+        }
+        int unacked = 0;
+        try {
+            while (System.nanoTime() < deadline) {
+                Delivery delivery = inbox.poll(IDLE_ACK_NANOS, TimeUnit.NANOSECONDS);
+                if (delivery == null) {
+                    unacked = ack(inbox, unacked);
+                    continue;
+                }
+                model.handle(random);
+                latency.record((System.nanoTime() - delivery.arrivalNanos) / 1000);
+                handled.incrementAndGet();
+                if (++unacked >= ackBatch) {
+                    unacked = ack(inbox, unacked);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * ack后，MQ补发同样数量的消息，一个往返后到达
+     */
+    private int ack(DelayQueue<Delivery> inbox, int unacked) {
+        long arrival = System.nanoTime() + rttNanos;
+        for (int i = 0; i < unacked; i++) {
+            inbox.add(new Delivery(arrival));
+        }
+        return 0;
+    }
+
+    private static final class Delivery implements Delayed {
+        private final long arrivalNanos;
+
+        private Delivery(long arrivalNanos) {
+            this.arrivalNanos = arrivalNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(arrivalNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(arrivalNanos, ((Delivery) other).arrivalNanos);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.xuecheng.test.rabbitmq.mq.soak;
+
+import com.xuecheng.test.rabbitmq.mq.metrics.LatencyHistogram;
+
+/**
+ * 一组参数的测试结果
+ */
+public class SoakResult {
+    private final int prefetch;
+    private final int concurrency;
+    private final int ackBatch;
+    private final long handled;
+    private final long elapsedNanos;
+    private final LatencyHistogram latencyMicros;
+
+    public SoakResult(int prefetch, int concurrency, int ackBatch, long handled, long elapsedNanos,
+                      LatencyHistogram latencyMicros) {
+        this.prefetch = prefetch;
+        this.concurrency = concurrency;
+        this.ackBatch = ackBatch;
+        this.handled = handled;
+        this.elapsedNanos = elapsedNanos;
+        this.latencyMicros = latencyMicros;
+    }
+
+    /**
+     * 吞吐量，条/秒
+     */
+    public double getThroughput() {
+        return handled * 1e9 / elapsedNanos;
+    }
+
+    public LatencyHistogram getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    /**
+     * 表头，和toRow()对应
+     */
+    public static String header() {
+        return String.format("%8s %11s %8s %12s %10s %10s %10s", "prefetch", "concurrency", "ackBatch",
+                "条/秒", "p50(us)", "p99(us)", "max(us)");
+    }
+
+    /**
+     * 一行结果
+     */
+    public String toRow() {
+        return String.format("%8d %11d %8d %12.0f %10d %10d %10d", prefetch, concurrency, ackBatch,
+                getThroughput(), latencyMicros.percentile(50), latencyMicros.percentile(99), latencyMicros.max());
+    }
+}
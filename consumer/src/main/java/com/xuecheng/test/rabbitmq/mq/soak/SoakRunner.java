@@ -0,0 +1,17 @@
+package com.xuecheng.test.rabbitmq.mq.soak;
+
+/**
+ * 按一组消费参数运行一段时间，统计吞吐量和延迟
+ */
+public interface SoakRunner {
+
+    /**
+     * @param prefetch       每个消费者的prefetch
+     * @param concurrency    消费者个数
+     * @param ackBatch       每处理多少条ack一次，对应监听容器的txSize
+     * @param model          处理开销
+     * @param durationMillis 运行时长
+     */
+    SoakResult run(int prefetch, int concurrency, int ackBatch, HandlerCostModel model, long durationMillis)
+            throws Exception;
+}
@@ -0,0 +1,85 @@
+package com.xuecheng.test.rabbitmq.mq.startup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 连接预热，ConnectionFactory创建后立即在后台建立连接和通道，和容器的其余初始化同时进行
+ * <p>
+ * 原来连接在第一次使用时才建立，TCP握手、AMQP握手、声明交换机和队列都算在第一条消息上
+ * 预热的通道关闭后回到CachingConnectionFactory的通道缓存，监听容器和RabbitTemplate直接复用
+ * MQ不可用时只打印警告，第一次使用时按原来的方式连接
+ */
+@Component
+public class ConnectionPrewarmer implements BeanPostProcessor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPrewarmer.class);
+
+    private final boolean enabled;
+    private final int channels;
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    public ConnectionPrewarmer(@Value("${xuecheng.mq.startup.prewarm:true}") boolean enabled,
+                               @Value("${xuecheng.mq.startup.prewarm-channels:2}") int channels) {
+        this.enabled = enabled;
+        this.channels = channels;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (enabled && bean instanceof ConnectionFactory && started.compareAndSet(false, true)) {
+            Thread thread = new Thread(() -> prewarm((ConnectionFactory) bean), "connection-prewarm");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return bean;
+    }
+
+    private void prewarm(ConnectionFactory connectionFactory) {
+        long start = System.nanoTime();
+        try {
+            Connection connection = connectionFactory.createConnection();
+            //每个通道的打开都要等MQ回复，并行打开
+            List<Thread> openers = new ArrayList<>();
+            for (int i = 0; i < channels; i++) {
+                Thread opener = new Thread(() -> openChannel(connection), "channel-prewarm-" + i);
+                opener.setDaemon(true);
+                opener.start();
+                openers.add(opener);
+            }
+            for (Thread opener : openers) {
+                opener.join();
+            }
+            LOGGER.info("预热连接和{}个通道耗时{}ms", channels,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (AmqpException e) {
+            LOGGER.warn("预热连接失败，第一次使用时再连接：{}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void openChannel(Connection connection) {
+        try {
+            //关闭后回到通道缓存
+            connection.createChannel(false).close();
+        } catch (Exception e) {
+            LOGGER.debug("预热通道失败：{}", e.toString());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.xuecheng.test.rabbitmq.mq.startup;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 记录启动耗时：JVM启动到容器就绪，JVM启动到处理完第一条消息
+ * <p>
+ * xuecheng.mq.startup.exit=ready时就绪后退出，用于生成AppCDS归档的训练运行
+ * xuecheng.mq.startup.exit=first-message时处理完第一条消息后退出，用于StartupBenchmark
+ */
+@Component
+public class StartupTimer implements ApplicationListener<ApplicationReadyEvent>, ApplicationContextAware {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StartupTimer.class);
+    public static final String EXIT_READY = "ready";
+    public static final String EXIT_FIRST_MESSAGE = "first-message";
+
+    private final String exit;
+    private final AtomicBoolean firstMessage = new AtomicBoolean();
+    private ApplicationContext applicationContext;
+    private volatile long readyMillis = -1;
+    private volatile long firstMessageMillis = -1;
+
+    public StartupTimer(@Value("${xuecheng.mq.startup.exit:}") String exit) {
+        this.exit = exit;
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext) {
+        this.applicationContext = applicationContext;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        readyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        LOGGER.info("启动耗时：JVM启动到就绪{}ms", readyMillis);
+        if (EXIT_READY.equals(exit)) {
+            exit();
+        }
+    }
+
+    /**
+     * 加到监听容器的adviceChain中，第一条消息处理完时记录耗时
+     */
+    public MethodInterceptor advice() {
+        return invocation -> {
+            Object result = invocation.proceed();
+            if (!firstMessage.get() && firstMessage.compareAndSet(false, true)) {
+                firstMessageMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+                LOGGER.info("启动耗时：JVM启动到处理完第一条消息{}ms", firstMessageMillis);
+                if (EXIT_FIRST_MESSAGE.equals(exit)) {
+                    exit();
+                }
+            }
+            return result;
+        };
+    }
+
+    /**
+     * 在其他线程中关闭，消费线程返回后容器才能ack并停止
+     */
+    private void exit() {
+        new Thread(() -> System.exit(SpringApplication.exit(applicationContext)), "startup-exit").start();
+    }
+
+    public long getReadyMillis() {
+        return readyMillis;
+    }
+
+    public long getFirstMessageMillis() {
+        return firstMessageMillis;
+    }
+}
@@ -0,0 +1,352 @@
+package com.xuecheng.test.rabbitmq.mq.stream;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.ReceiveHandler;
+import com.xuecheng.test.rabbitmq.mq.admin.AdminServer;
+import com.xuecheng.test.rabbitmq.mq.recovery.JitteredBackOff;
+import com.xuecheng.test.rabbitmq.mq.recovery.ListenerRecoveryMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.util.backoff.BackOffExecution;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 流队列消费者，队列类型为stream时使用，开启方式：xuecheng.mq.stream.enabled=true
+ * <p>
+ * 流队列的消息被消费后不会删除，消费者通过x-stream-offset参数指定从哪里开始消费，
+ * 这里把每条消息的offset记录在本地（StreamOffsetStore），重启后从上次的位置继续，也可以回溯到任意时间点重放
+ * <p>
+ * 起始位置xuecheng.mq.stream.start-from：
+ * stored：从本地记录的位置继续（默认），没有记录时从头开始
+ * first、last、next：流队列的内置位置
+ * 数字：指定offset
+ * 2026-10-19T08:00:00：指定时间点
+ * PT6H：最近6个小时（ISO-8601时长）
+ * <p>
+ * 连接断开后按带抖动的指数退避重新订阅，从本地记录的位置继续，已处理未提交的offset在重新订阅前写入文件
+ * <p>
+ * 消息经过ReceiveHandler.dispatchStream：按选择器和用户偏好过滤，引用消息读取消息体，信封消息不支持，记录后跳过
+ * 管理接口：GET /stream查看各队列已提交的offset，POST /stream?from=...回溯，格式同start-from
+ */
+@Component
+@ConditionalOnProperty(name = "xuecheng.mq.stream.enabled", havingValue = "true")
+public class StreamOffsetConsumer implements SmartLifecycle {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamOffsetConsumer.class);
+    /**
+     * 流队列消息头和消费参数中的offset
+     */
+    private static final String STREAM_OFFSET = "x-stream-offset";
+
+    private final ConnectionFactory connectionFactory;
+    private final ReceiveHandler receiveHandler;
+    private final StreamOffsetStore offsetStore;
+    private final int prefetch;
+    private final int ackEvery;
+    private final String startFrom;
+    private final JitteredBackOff recoveryBackOff;
+    private final ListenerRecoveryMonitor recoveryMonitor;
+    private final MessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+
+    private Channel channel;
+    /**
+     * 队列名称 -> consumerTag
+     */
+    private final Map<String, String> consumerTags = new LinkedHashMap<>();
+    /**
+     * 还没ack的最大deliveryTag，和未ack的条数
+     */
+    private long lastDeliveryTag;
+    private int unacked;
+    private volatile boolean running;
+    private volatile boolean recovering;
+
+    public StreamOffsetConsumer(ConnectionFactory connectionFactory,
+                                ReceiveHandler receiveHandler,
+                                @Value("${xuecheng.mq.stream.offset-dir:stream-offsets}") String offsetDir,
+                                @Value("${xuecheng.mq.stream.commit-every:100}") int commitEvery,
+                                @Value("${xuecheng.mq.stream.prefetch:500}") int prefetch,
+                                @Value("${xuecheng.mq.stream.start-from:stored}") String startFrom,
+                                JitteredBackOff recoveryBackOff,
+                                ListenerRecoveryMonitor recoveryMonitor,
+                                AdminServer adminServer) {
+        this.connectionFactory = connectionFactory;
+        this.receiveHandler = receiveHandler;
+        this.offsetStore = new StreamOffsetStore(Paths.get(offsetDir), commitEvery);
+        this.prefetch = prefetch;
+        //流队列靠ack补充credit，批量ack的间隔不能超过prefetch，否则会卡住
+        this.ackEvery = Math.max(1, Math.min(commitEvery, prefetch / 2));
+        this.startFrom = startFrom;
+        this.recoveryBackOff = recoveryBackOff;
+        this.recoveryMonitor = recoveryMonitor;
+        adminServer.register("/stream", this::handle);
+    }
+
+    @Override
+    public synchronized void start() {
+        try {
+            open(startFrom);
+            running = true;
+        } catch (IOException e) {
+            throw new IllegalStateException("启动流队列消费者失败", e);
+        }
+    }
+
+    private void open(String from) throws IOException {
+        Connection connection = connectionFactory.createConnection();
+        channel = connection.createChannel(false);
+        //流队列必须设置prefetch
+        channel.basicQos(prefetch);
+        subscribe(RabbitMQConfig.QUEUE_INFORM_EMAIL, from);
+        subscribe(RabbitMQConfig.QUEUE_INFORM_SMS, from);
+    }
+
+    /**
+     * 通道意外关闭，两个队列的消费者都会收到通知，只需要恢复一次
+     */
+    private void onShutdown(ShutdownSignalException cause) {
+        if (!running || recovering || cause.isInitiatedByApplication()) {
+            return;
+        }
+        recovering = true;
+        LOGGER.warn("流队列通道断开，开始重新订阅：{}", cause.getMessage());
+        Thread thread = new Thread(this::recover, "stream-consumer-recovery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void recover() {
+        long downSince = System.nanoTime();
+        BackOffExecution execution = recoveryBackOff.start();
+        try {
+            while (running) {
+                Thread.sleep(execution.nextBackOff());
+                synchronized (this) {
+                    if (!running) {
+                        return;
+                    }
+                    //未ack的消息不再有效，已处理的offset写入文件，从下一条继续
+                    consumerTags.clear();
+                    unacked = 0;
+                    offsetStore.flush();
+                    try {
+                        open("stored");
+                        recoveryMonitor.recovered("stream-consumer",
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - downSince));
+                        return;
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.warn("重新订阅流队列失败：{}", e.toString());
+                        closeChannel();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            recovering = false;
+        }
+    }
+
+    /**
+     * 回溯到指定位置重新消费，格式同xuecheng.mq.stream.start-from
+     * 取消订阅后已经在路上的消息属于旧的consumerTag，会被忽略
+     *
+     * @param from 起始位置
+     */
+    public synchronized void rewind(String from) throws IOException {
+        if (!running) {
+            throw new IllegalStateException("流队列消费者没有运行");
+        }
+        //先检查格式，避免取消订阅后才发现参数不合法
+        for (String queue : consumerTags.keySet()) {
+            resolveOffset(queue, from);
+        }
+        for (Map.Entry<String, String> entry : consumerTags.entrySet()) {
+            channel.basicCancel(entry.getValue());
+        }
+        ackPending();
+        offsetStore.flush();
+        for (String queue : consumerTags.keySet().toArray(new String[0])) {
+            subscribe(queue, from);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        try {
+            for (String consumerTag : consumerTags.values()) {
+                channel.basicCancel(consumerTag);
+            }
+            ackPending();
+        } catch (IOException e) {
+            LOGGER.warn("停止流队列消费者时出错", e);
+        } finally {
+            consumerTags.clear();
+            offsetStore.flush();
+            closeChannel();
+        }
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        //最后启动，最先停止
+        return Integer.MAX_VALUE;
+    }
+
+    private void subscribe(String queue, String from) throws IOException {
+        Object offset = resolveOffset(queue, from);
+        String consumerTag = channel.basicConsume(queue, false,
+                Collections.<String, Object>singletonMap(STREAM_OFFSET, offset),
+                new StreamConsumer(channel, queue));
+        consumerTags.put(queue, consumerTag);
+        LOGGER.info("流队列{}从{}开始消费", queue, offset);
+    }
+
+    private String handle(String method, Map<String, String> params) throws IOException {
+        if ("POST".equals(method)) {
+            String from = params.get("from");
+            if (from == null || from.isEmpty()) {
+                throw new IllegalArgumentException("缺少参数from");
+            }
+            rewind(from);
+            return "已回溯到" + from;
+        }
+        StringBuilder report = new StringBuilder();
+        for (String queue : new String[]{RabbitMQConfig.QUEUE_INFORM_EMAIL, RabbitMQConfig.QUEUE_INFORM_SMS}) {
+            report.append(queue).append(" 已提交offset=").append(offsetStore.committed(queue)).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * 把起始位置配置转换成x-stream-offset参数，格式不合法时抛出IllegalArgumentException
+     */
+    Object resolveOffset(String queue, String from) {
+        if ("stored".equals(from)) {
+            Long committed = offsetStore.committed(queue);
+            return committed == null ? "first" : committed + 1;
+        }
+        if ("first".equals(from) || "last".equals(from) || "next".equals(from)) {
+            return from;
+        }
+        if (from.matches("\\d+")) {
+            return Long.valueOf(from);
+        }
+        try {
+            if (from.startsWith("P")) {
+                return Date.from(Instant.now().minus(Duration.parse(from)));
+            }
+            return Date.from(LocalDateTime.parse(from).atZone(ZoneId.systemDefault()).toInstant());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("无法识别的起始位置：" + from, e);
+        }
+    }
+
+    private synchronized void onDelivery(String consumerTag, String queue, Envelope envelope,
+                                         AMQP.BasicProperties properties, byte[] body) throws IOException {
+        if (!consumerTag.equals(consumerTags.get(queue))) {
+            //回溯或停止时已经取消的订阅，offset是旧的，不能记录
+            return;
+        }
+        Message message = new Message(body, propertiesConverter.toMessageProperties(properties, envelope,
+                StandardCharsets.UTF_8.name()));
+        try {
+            receiveHandler.dispatchStream(RabbitMQConfig.QUEUE_INFORM_EMAIL.equals(queue) ? "email" : "sms", message);
+        } catch (RuntimeException e) {
+            //流队列不支持重新入队，处理失败只能记录下来，由回溯重放来补偿
+            LOGGER.error("处理流队列{}的消息失败：{}", queue, new String(body, StandardCharsets.UTF_8), e);
+        }
+        Object offset = properties.getHeaders() == null ? null : properties.getHeaders().get(STREAM_OFFSET);
+        if (offset instanceof Number) {
+            offsetStore.track(queue, ((Number) offset).longValue());
+        }
+        lastDeliveryTag = envelope.getDeliveryTag();
+        if (++unacked >= ackEvery) {
+            ackPending();
+        }
+    }
+
+    private void ackPending() throws IOException {
+        if (unacked > 0 && channel.isOpen()) {
+            channel.basicAck(lastDeliveryTag, true);
+        }
+        unacked = 0;
+    }
+
+    private void closeChannel() {
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.close();
+            }
+        } catch (IOException | TimeoutException e) {
+            LOGGER.warn("关闭流队列通道失败", e);
+        }
+    }
+
+    /**
+     * 单个流队列的消费回调
+     */
+    private class StreamConsumer extends DefaultConsumer {
+        private final String queue;
+
+        StreamConsumer(Channel channel, String queue) {
+            super(channel);
+            this.queue = queue;
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+                throws IOException {
+            onDelivery(consumerTag, queue, envelope, properties, body);
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            onShutdown(sig);
+        }
+    }
+}
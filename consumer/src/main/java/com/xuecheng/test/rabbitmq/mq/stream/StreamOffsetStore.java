@@ -0,0 +1,113 @@
+package com.xuecheng.test.rabbitmq.mq.stream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 流队列消费位置（offset）的本地存储
+ * <p>
+ * 每个队列一个文件，文件内容为最后一条已处理消息的offset
+ * 为了减少磁盘IO，offset先记录在内存中，每处理commitEvery条消息才写一次文件，停止消费时再把剩余的写入
+ * 写文件时先写临时文件再原子替换，进程崩溃时最多重复消费最后一个批次的消息
+ */
+public class StreamOffsetStore {
+    /**
+     * offset文件所在目录
+     */
+    private final Path dir;
+    /**
+     * 每处理多少条消息提交一次
+     */
+    private final int commitEvery;
+    /**
+     * 队列名称 -> 最新处理的offset，还没写入文件
+     */
+    private final Map<String, Long> tracked = new HashMap<>();
+    /**
+     * 队列名称 -> 距离上次提交处理了多少条
+     */
+    private final Map<String, Integer> uncommitted = new HashMap<>();
+
+    public StreamOffsetStore(Path dir, int commitEvery) {
+        if (commitEvery < 1) {
+            throw new IllegalArgumentException("commitEvery必须大于0");
+        }
+        this.dir = dir;
+        this.commitEvery = commitEvery;
+    }
+
+    /**
+     * 读取已提交的offset
+     *
+     * @param queue 队列名称
+     * @return 已提交的offset，从未提交过返回null
+     */
+    public synchronized Long committed(String queue) {
+        Path file = offsetFile(queue);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            return text.isEmpty() ? null : Long.valueOf(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取offset文件失败：" + file, e);
+        }
+    }
+
+    /**
+     * 记录一条已处理消息的offset，满一个批次时写入文件
+     * 回溯消费后offset会变小，所以这里直接覆盖，不取最大值
+     *
+     * @param queue  队列名称
+     * @param offset 消息的offset
+     */
+    public synchronized void track(String queue, long offset) {
+        tracked.put(queue, offset);
+        int count = uncommitted.merge(queue, 1, Integer::sum);
+        if (count >= commitEvery) {
+            commit(queue);
+        }
+    }
+
+    /**
+     * 把某个队列内存中的offset写入文件
+     *
+     * @param queue 队列名称
+     */
+    public synchronized void commit(String queue) {
+        Long offset = tracked.remove(queue);
+        uncommitted.remove(queue);
+        if (offset == null) {
+            return;
+        }
+        Path file = offsetFile(queue);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(dir);
+            Files.write(tmp, String.valueOf(offset).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("写入offset文件失败：" + file, e);
+        }
+    }
+
+    /**
+     * 提交所有队列的offset
+     */
+    public synchronized void flush() {
+        for (String queue : tracked.keySet().toArray(new String[0])) {
+            commit(queue);
+        }
+    }
+
+    private Path offsetFile(String queue) {
+        return dir.resolve(queue + ".offset");
+    }
+}
@@ -0,0 +1,208 @@
+package com.xuecheng.test.rabbitmq.mq.tenant;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按租户的赤字轮转（Deficit Round Robin）调度，多个工作线程从这里取任务
+ * <p>
+ * 每个租户一个先进先出的队列，轮到某个租户时它的额度增加 quantum × 权重，额度够就取出队头的任务并扣除任务的代价，
+ * 不够就轮到下一个租户，额度留到下一轮；队列空了额度清零，空闲的租户不能攒额度
+ * 所有租户都有任务时，每个租户处理的代价之和按权重分配；只有一个租户有任务时它可以用满全部工作线程
+ */
+public class DeficitRoundRobin<T> {
+    private final long quantum;
+    private final Map<String, Flow<T>> flows = new LinkedHashMap<>();
+    /**
+     * 有任务的租户，按轮转顺序
+     */
+    private final ArrayDeque<Flow<T>> active = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int size;
+
+    /**
+     * @param quantum 每轮每份权重增加的额度，不小于最大的单个任务代价时每轮至少能处理一个任务
+     */
+    public DeficitRoundRobin(long quantum) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("quantum必须大于0");
+        }
+        this.quantum = quantum;
+    }
+
+    public void addTenant(String tenant, int weight) {
+        lock.lock();
+        try {
+            flows.put(tenant, new Flow<>(tenant, weight));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 添加任务
+     *
+     * @param cost 代价，例如1（按条数公平）或消息体字节数（按流量公平）
+     */
+    public void offer(String tenant, T item, long cost) {
+        lock.lock();
+        try {
+            Flow<T> flow = flows.get(tenant);
+            if (flow == null) {
+                throw new IllegalArgumentException("没有配置的租户：" + tenant);
+            }
+            if (flow.items.isEmpty()) {
+                active.addLast(flow);
+            }
+            flow.items.addLast(new Entry<>(item, cost));
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出下一个任务，没有任务时等待
+     *
+     * @return 任务，超时返回null
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (size == 0) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 不等待，没有任务时返回null
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            return size == 0 ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private T next() {
+        while (true) {
+            Flow<T> flow = active.peekFirst();
+            if (!flow.granted) {
+                flow.deficit += quantum * flow.weight;
+                flow.granted = true;
+            }
+            Entry<T> head = flow.items.peekFirst();
+            if (head.cost <= flow.deficit) {
+                flow.deficit -= head.cost;
+                flow.items.removeFirst();
+                flow.served++;
+                flow.servedCost += head.cost;
+                size--;
+                if (flow.items.isEmpty()) {
+                    flow.deficit = 0;
+                    flow.granted = false;
+                    active.removeFirst();
+                }
+                return head.item;
+            }
+            //额度不够，这一轮结束，轮到下一个租户
+            flow.granted = false;
+            active.removeFirst();
+            active.addLast(flow);
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 租户排队中的任务数
+     */
+    public int size(String tenant) {
+        lock.lock();
+        try {
+            return flows.get(tenant).items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 租户已经取出的任务数
+     */
+    public long served(String tenant) {
+        lock.lock();
+        try {
+            return flows.get(tenant).served;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 租户已经取出的任务代价之和
+     */
+    public long servedCost(String tenant) {
+        lock.lock();
+        try {
+            return flows.get(tenant).servedCost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Flow<T> {
+        private final String tenant;
+        private final int weight;
+        private final ArrayDeque<Entry<T>> items = new ArrayDeque<>();
+        private long deficit;
+        /**
+         * 这一轮是否已经加过额度，同一轮内连续取多个任务时只加一次
+         */
+        private boolean granted;
+        private long served;
+        private long servedCost;
+
+        Flow(String tenant, int weight) {
+            this.tenant = tenant;
+            this.weight = weight;
+        }
+
+        @Override
+        public String toString() {
+            return tenant;
+        }
+    }
+
+    private static final class Entry<T> {
+        private final T item;
+        private final long cost;
+
+        Entry(T item, long cost) {
+            this.item = item;
+            this.cost = cost;
+        }
+    }
+}
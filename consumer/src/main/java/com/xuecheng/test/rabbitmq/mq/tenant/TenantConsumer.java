@@ -0,0 +1,309 @@
+package com.xuecheng.test.rabbitmq.mq.tenant;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.ReceiveHandler;
+import com.xuecheng.test.rabbitmq.mq.admin.AdminServer;
+import com.xuecheng.test.rabbitmq.mq.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按租户隔离的消费者，开启方式：xuecheng.mq.tenant.enabled=true
+ * <p>
+ * 每个虚拟机一个连接，每个租户一个通道，租户的邮件和短信两个消费者各分一半prefetch（每份权重的条数×权重），
+ * 限制一个租户最多占用多少未确认的消息；用的是消费者级的prefetch，仲裁队列和流队列不支持通道级（global）的prefetch；
+ * 收到的消息按租户放进赤字轮转调度器，由固定数量的工作线程取出处理，所有租户都有积压时按权重分配处理能力，
+ * 一个租户突发大量消息只会在MQ上排队，不会挤占其他租户
+ * 处理失败的消息重新入队，停止时排队中未处理的消息在通道关闭后由MQ重新投递
+ * 每个租户分别统计吞吐量和从收到到处理完的延迟，见管理接口/tenants
+ * <p>
+ * 消息体直接交给ReceiveHandler.handleEmail/handleSms处理，不经过@RabbitListener的处理流程，以下功能对租户队列不生效：
+ * 选择器过滤（xuecheng.mq.selector）、用户偏好退订（xuecheng.mq.preference）、通知合并（xuecheng.mq.coalesce）、
+ * 大消息引用（claim-check）的读取和释放、信封（envelope）拆包，以及监听容器adviceChain上的重试、隔离和性能数据记录；
+ * 发送方给租户交换机发送时不要使用这些功能
+ */
+@Component
+@ConditionalOnProperty(name = "xuecheng.mq.tenant.enabled", havingValue = "true")
+public class TenantConsumer implements SmartLifecycle {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TenantConsumer.class);
+
+    private final RabbitProperties rabbitProperties;
+    private final ReceiveHandler receiveHandler;
+    private final List<TenantSpec> specs;
+    private final int prefetchPerWeight;
+    private final int workerCount;
+    private final Map<String, Object> queueArguments;
+    private final DeficitRoundRobin<Delivery> scheduler;
+    private final Map<String, TenantStats> stats = new LinkedHashMap<>();
+
+    private final Map<String, Connection> connections = new LinkedHashMap<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running;
+    private long lastSample = System.nanoTime();
+
+    public TenantConsumer(RabbitProperties rabbitProperties,
+                          ReceiveHandler receiveHandler,
+                          AdminServer adminServer,
+                          @Value("${xuecheng.mq.tenant.tenants}") String tenants,
+                          @Value("${xuecheng.mq.tenant.isolation:queue}") String isolation,
+                          @Value("${xuecheng.mq.tenant.vhost-prefix:tenant-}") String vhostPrefix,
+                          @Value("${xuecheng.mq.tenant.prefetch-per-weight:20}") int prefetchPerWeight,
+                          @Value("${xuecheng.mq.tenant.workers:4}") int workerCount,
+                          @Value("${xuecheng.mq.queue-type:classic}") String queueType,
+                          @Value("${xuecheng.mq.stream.max-age:}") String streamMaxAge,
+                          @Value("${xuecheng.mq.backlog.queue-mode:}") String queueMode,
+                          @Value("${xuecheng.mq.backlog.max-length:0}") long maxLength,
+                          @Value("${xuecheng.mq.backlog.max-length-bytes:0}") long maxLengthBytes,
+                          @Value("${xuecheng.mq.backlog.overflow:}") String overflow) {
+        this.rabbitProperties = rabbitProperties;
+        this.receiveHandler = receiveHandler;
+        this.specs = TenantSpec.parse(tenants, isolation, rabbitProperties.determineVirtualHost(), vhostPrefix);
+        this.prefetchPerWeight = prefetchPerWeight;
+        this.workerCount = workerCount;
+        this.queueArguments = RabbitMQConfig.backlogArguments(RabbitMQConfig.queueArguments(queueType, streamMaxAge),
+                queueType, queueMode, maxLength, maxLengthBytes, overflow);
+        //按条数公平，每轮每份权重处理一条
+        this.scheduler = new DeficitRoundRobin<>(1);
+        for (TenantSpec spec : specs) {
+            scheduler.addTenant(spec.getName(), spec.getWeight());
+            stats.put(spec.getName(), new TenantStats());
+        }
+        adminServer.register("/tenants", (method, params) -> report());
+    }
+
+    @Override
+    public synchronized void start() {
+        running = true;
+        try {
+            for (TenantSpec spec : specs) {
+                subscribe(spec);
+            }
+        } catch (IOException | TimeoutException e) {
+            stop();
+            throw new IllegalStateException("启动租户消费者失败", e);
+        }
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::work, "tenant-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        LOGGER.info("租户消费者已启动：{}，{}个工作线程", specs, workerCount);
+    }
+
+    private void subscribe(TenantSpec spec) throws IOException, TimeoutException {
+        Connection connection = connections.get(spec.getVhost());
+        if (connection == null) {
+            connection = connection(spec.getVhost());
+            connections.put(spec.getVhost(), connection);
+        }
+        Channel channel = connection.createChannel();
+        spec.declareTopology(channel, queueArguments);
+        //两个消费者各分一半，global=false：仲裁队列和流队列不支持通道级的prefetch
+        channel.basicQos(Math.max(1, (prefetchPerWeight * spec.getWeight() + 1) / 2), false);
+        channel.basicConsume(spec.getEmailQueue(), false, new TenantDeliveryConsumer(channel, spec.getName(), "email"));
+        channel.basicConsume(spec.getSmsQueue(), false, new TenantDeliveryConsumer(channel, spec.getName(), "sms"));
+    }
+
+    private Connection connection(String vhost) throws IOException, TimeoutException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(rabbitProperties.determineHost());
+        factory.setPort(rabbitProperties.determinePort());
+        factory.setUsername(rabbitProperties.determineUsername());
+        factory.setPassword(rabbitProperties.determinePassword());
+        factory.setVirtualHost(vhost);
+        return factory.newConnection("tenant-consumer-" + vhost);
+    }
+
+    private void work() {
+        while (running) {
+            Delivery delivery;
+            try {
+                delivery = scheduler.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (delivery != null) {
+                handle(delivery);
+            }
+        }
+    }
+
+    private void handle(Delivery delivery) {
+        TenantStats tenant = stats.get(delivery.tenant);
+        String msg = new String(delivery.body, StandardCharsets.UTF_8);
+        try {
+            if ("email".equals(delivery.type)) {
+                receiveHandler.handleEmail(msg);
+            } else {
+                receiveHandler.handleSms(msg);
+            }
+            delivery.channel.basicAck(delivery.deliveryTag, false);
+            tenant.handled.incrementAndGet();
+        } catch (IOException e) {
+            LOGGER.warn("租户{}的消息ack失败，将在通道关闭后重新投递", delivery.tenant, e);
+        } catch (RuntimeException e) {
+            tenant.failed.incrementAndGet();
+            LOGGER.error("处理租户{}的消息失败：{}", delivery.tenant, msg, e);
+            nack(delivery);
+        }
+        tenant.latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - delivery.receivedNanos));
+    }
+
+    private void nack(Delivery delivery) {
+        try {
+            delivery.channel.basicNack(delivery.deliveryTag, false, true);
+        } catch (IOException e) {
+            LOGGER.warn("nack失败，消息将在通道关闭后重新投递", e);
+        }
+    }
+
+    /**
+     * 定时计算每个租户的吞吐量
+     */
+    @Scheduled(fixedDelayString = "${xuecheng.mq.tenant.stats-interval-ms:5000}")
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - lastSample) / 1e9;
+        lastSample = now;
+        for (TenantStats tenant : stats.values()) {
+            long handled = tenant.handled.get();
+            tenant.rate = (handled - tenant.lastHandled) / seconds;
+            tenant.lastHandled = handled;
+        }
+    }
+
+    /**
+     * 管理接口/tenants的内容，每个租户一行
+     */
+    synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        for (TenantSpec spec : specs) {
+            TenantStats tenant = stats.get(spec.getName());
+            LatencyHistogram latency = tenant.latencyMicros;
+            report.append(String.format("%s 权重=%d 虚拟机=%s 吞吐量=%.1f条/秒 收到=%d 处理=%d 失败=%d 排队=%d "
+                            + "延迟p50=%dus p99=%dus max=%dus%n", spec.getName(), spec.getWeight(), spec.getVhost(),
+                    tenant.rate, tenant.delivered.get(), tenant.handled.get(), tenant.failed.get(),
+                    scheduler.size(spec.getName()), latency.percentile(50), latency.percentile(99), latency.max()));
+        }
+        return report.toString().trim();
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        for (Thread worker : workers) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.clear();
+        //关闭连接后未ack的消息（包括排队中的）由MQ重新投递
+        for (Connection connection : connections.values()) {
+            try {
+                if (connection.isOpen()) {
+                    connection.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("关闭租户连接失败", e);
+            }
+        }
+        connections.clear();
+        //排队中的消息随通道关闭已经无效
+        while (scheduler.poll() != null) {
+            //丢弃
+        }
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        //最后启动，最先停止
+        return Integer.MAX_VALUE;
+    }
+
+    private static final class Delivery {
+        private final String tenant;
+        private final String type;
+        private final Channel channel;
+        private final long deliveryTag;
+        private final byte[] body;
+        private final long receivedNanos = System.nanoTime();
+
+        Delivery(String tenant, String type, Channel channel, long deliveryTag, byte[] body) {
+            this.tenant = tenant;
+            this.type = type;
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+            this.body = body;
+        }
+    }
+
+    private static final class TenantStats {
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong handled = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final LatencyHistogram latencyMicros = new LatencyHistogram();
+        private long lastHandled;
+        private double rate;
+    }
+
+    /**
+     * 一个租户队列的消费回调，只负责放进调度器，不在连接的回调线程中处理
+     */
+    private class TenantDeliveryConsumer extends DefaultConsumer {
+        private final String tenant;
+        private final String type;
+
+        TenantDeliveryConsumer(Channel channel, String tenant, String type) {
+            super(channel);
+            this.tenant = tenant;
+            this.type = type;
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            stats.get(tenant).delivered.incrementAndGet();
+            scheduler.offer(tenant, new Delivery(tenant, type, getChannel(), envelope.getDeliveryTag(), body), 1);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.xuecheng.test.rabbitmq.mq.tenant;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * 一个租户，以及它的资源在MQ上的位置，发送方和消费方各有一份，需要保持一致
+ * <p>
+ * 两种隔离方式：
+ * queue：共用spring.rabbitmq.virtualHost，每个租户有自己的交换机和队列，名称加上.租户名后缀
+ * vhost：每个租户一个虚拟机（前缀+租户名），交换机和队列的名称不变，权限、连接数和队列上限都可以在MQ上按虚拟机单独设置
+ */
+public class TenantSpec {
+    public static final String ISOLATION_QUEUE = "queue";
+    public static final String ISOLATION_VHOST = "vhost";
+    private static final Pattern NAME = Pattern.compile("[a-z0-9][a-z0-9_-]*");
+
+    private final String name;
+    private final int weight;
+    private final boolean vhostIsolation;
+    private final String vhost;
+
+    private TenantSpec(String name, int weight, boolean vhostIsolation, String vhost) {
+        this.name = name;
+        this.weight = weight;
+        this.vhostIsolation = vhostIsolation;
+        this.vhost = vhost;
+    }
+
+    /**
+     * 解析租户列表
+     *
+     * @param tenants      租户名*权重，逗号分隔，权重默认1，例如acme*3,globex
+     * @param isolation    queue或vhost
+     * @param sharedVhost  queue方式共用的虚拟机
+     * @param vhostPrefix  vhost方式的虚拟机名称前缀
+     */
+    public static List<TenantSpec> parse(String tenants, String isolation, String sharedVhost, String vhostPrefix) {
+        if (!ISOLATION_QUEUE.equals(isolation) && !ISOLATION_VHOST.equals(isolation)) {
+            throw new IllegalArgumentException("不支持的租户隔离方式：" + isolation);
+        }
+        boolean byVhost = ISOLATION_VHOST.equals(isolation);
+        List<TenantSpec> result = new ArrayList<>();
+        Set<String> names = new LinkedHashSet<>();
+        for (String item : tenants.split(",")) {
+            String spec = item.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int star = spec.indexOf('*');
+            String name = star < 0 ? spec : spec.substring(0, star).trim();
+            int weight = star < 0 ? 1 : Integer.parseInt(spec.substring(star + 1).trim());
+            if (!NAME.matcher(name).matches()) {
+                throw new IllegalArgumentException("租户名只能包含小写字母、数字、-和_：" + name);
+            }
+            if (weight < 1) {
+                throw new IllegalArgumentException("租户" + name + "的权重必须大于0");
+            }
+            if (!names.add(name)) {
+                throw new IllegalArgumentException("租户重复：" + name);
+            }
+            result.add(new TenantSpec(name, weight, byVhost, byVhost ? vhostPrefix + name : sharedVhost));
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("没有配置租户");
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public String getVhost() {
+        return vhost;
+    }
+
+    public String getExchange() {
+        return resource(RabbitMQConfig.EXCHANGE_TOPICS_INFORM);
+    }
+
+    public String getEmailQueue() {
+        return resource(RabbitMQConfig.QUEUE_INFORM_EMAIL);
+    }
+
+    public String getSmsQueue() {
+        return resource(RabbitMQConfig.QUEUE_INFORM_SMS);
+    }
+
+    /**
+     * 声明租户的交换机和两个队列，绑定关系和RabbitMQConfig一致，vhost方式时虚拟机需要预先在MQ上创建
+     *
+     * @param channel   租户虚拟机上的通道
+     * @param arguments 队列参数，和RabbitMQConfig声明共享队列时一致
+     */
+    public void declareTopology(Channel channel, Map<String, Object> arguments) throws IOException {
+        channel.exchangeDeclare(getExchange(), BuiltinExchangeType.TOPIC, true);
+        channel.queueDeclare(getEmailQueue(), true, false, false, arguments);
+        channel.queueDeclare(getSmsQueue(), true, false, false, arguments);
+        channel.queueBind(getEmailQueue(), getExchange(), RabbitMQConfig.ROUTINGKEY_EMAIL);
+        channel.queueBind(getSmsQueue(), getExchange(), RabbitMQConfig.ROUTINGKEY_SMS);
+    }
+
+    private String resource(String base) {
+        return vhostIsolation ? base : base + "." + name;
+    }
+
+    @Override
+    public String toString() {
+        return name + "*" + weight + "@" + vhost;
+    }
+}
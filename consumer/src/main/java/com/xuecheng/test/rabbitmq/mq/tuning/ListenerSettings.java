@@ -0,0 +1,150 @@
+package com.xuecheng.test.rabbitmq.mq.tuning;
+
+import java.util.Map;
+
+/**
+ * 一个监听容器的可调参数，不可变，修改时生成新的对象
+ */
+public final class ListenerSettings {
+    public static final String PREFETCH = "prefetch";
+    public static final String CONCURRENCY = "concurrency";
+    public static final String MAX_CONCURRENCY = "max-concurrency";
+    public static final String BATCH_SIZE = "batch-size";
+    public static final String RATE_LIMIT = "rate-limit";
+
+    /**
+     * 每个消费者最多预取多少条未确认的消息
+     */
+    private final int prefetch;
+    /**
+     * 消费者数量
+     */
+    private final int concurrency;
+    /**
+     * 消息多时最多扩容到多少个消费者
+     */
+    private final int maxConcurrency;
+    /**
+     * 处理多少条消息后批量ack一次，对应容器的txSize
+     */
+    private final int batchSize;
+    /**
+     * 每秒最多处理多少条消息，所有消费者共享，0为不限制
+     */
+    private final double rateLimit;
+
+    public ListenerSettings(int prefetch, int concurrency, int maxConcurrency, int batchSize, double rateLimit) {
+        if (prefetch < 1 || concurrency < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("prefetch、concurrency、batch-size必须大于0");
+        }
+        if (maxConcurrency < concurrency) {
+            throw new IllegalArgumentException("max-concurrency不能小于concurrency");
+        }
+        if (rateLimit < 0) {
+            throw new IllegalArgumentException("rate-limit不能小于0");
+        }
+        this.prefetch = prefetch;
+        this.concurrency = concurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.batchSize = batchSize;
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * 在当前参数的基础上修改，只修改changes中出现的参数
+     * 只调大concurrency时max-concurrency跟着调大
+     *
+     * @throws IllegalArgumentException 参数名不认识或者值不合法
+     */
+    public ListenerSettings with(Map<String, String> changes) {
+        int newPrefetch = prefetch;
+        int newConcurrency = concurrency;
+        Integer newMaxConcurrency = null;
+        int newBatchSize = batchSize;
+        double newRateLimit = rateLimit;
+        for (Map.Entry<String, String> entry : changes.entrySet()) {
+            String value = entry.getValue().trim();
+            try {
+                switch (entry.getKey()) {
+                    case PREFETCH:
+                        newPrefetch = Integer.parseInt(value);
+                        break;
+                    case CONCURRENCY:
+                        newConcurrency = Integer.parseInt(value);
+                        break;
+                    case MAX_CONCURRENCY:
+                        newMaxConcurrency = Integer.parseInt(value);
+                        break;
+                    case BATCH_SIZE:
+                        newBatchSize = Integer.parseInt(value);
+                        break;
+                    case RATE_LIMIT:
+                        newRateLimit = Double.parseDouble(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("不支持的参数：" + entry.getKey());
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("参数" + entry.getKey() + "不是数字：" + value);
+            }
+        }
+        int max = newMaxConcurrency != null ? newMaxConcurrency : Math.max(maxConcurrency, newConcurrency);
+        return new ListenerSettings(newPrefetch, newConcurrency, max, newBatchSize, newRateLimit);
+    }
+
+    /**
+     * prefetch和batch-size只在创建消费者时生效，修改后需要替换消费者
+     */
+    public boolean needsRestart(ListenerSettings next) {
+        return prefetch != next.prefetch || batchSize != next.batchSize;
+    }
+
+    /**
+     * 和新参数的差异，例如prefetch 1->250，没有差异时返回空字符串
+     */
+    public String diff(ListenerSettings next) {
+        StringBuilder builder = new StringBuilder();
+        append(builder, PREFETCH, prefetch, next.prefetch);
+        append(builder, CONCURRENCY, concurrency, next.concurrency);
+        append(builder, MAX_CONCURRENCY, maxConcurrency, next.maxConcurrency);
+        append(builder, BATCH_SIZE, batchSize, next.batchSize);
+        append(builder, RATE_LIMIT, rateLimit, next.rateLimit);
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, String name, Number from, Number to) {
+        if (from.doubleValue() == to.doubleValue()) {
+            return;
+        }
+        if (builder.length() > 0) {
+            builder.append(", ");
+        }
+        builder.append(name).append(' ').append(from).append("->").append(to);
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    @Override
+    public String toString() {
+        return PREFETCH + "=" + prefetch + " " + CONCURRENCY + "=" + concurrency + " " + MAX_CONCURRENCY + "="
+                + maxConcurrency + " " + BATCH_SIZE + "=" + batchSize + " " + RATE_LIMIT + "=" + rateLimit;
+    }
+}
@@ -0,0 +1,343 @@
+package com.xuecheng.test.rabbitmq.mq.tuning;
+
+import com.xuecheng.test.rabbitmq.mq.admin.AdminServer;
+import com.xuecheng.test.rabbitmq.mq.coalesce.NotificationCoalescer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 运行中调整@RabbitListener监听容器的参数，开启方式：xuecheng.mq.tuning.enabled=true
+ * <p>
+ * 两个入口：管理接口POST /tuning，以及定期检查的参数文件，文件修改后自动生效
+ * 参数文件是properties格式，prefetch=250对所有队列生效，queue_inform_email.prefetch=250只对一个队列生效
+ * <p>
+ * 并发数和限流直接修改，减少的消费者先处理完已经预取的消息再退出
+ * prefetch和batch-size只在创建消费者时生效，修改后逐个取消旧的消费者并创建新的消费者，
+ * 旧的消费者处理完本地缓冲中的消息、批量ack之后才关闭通道，消息不会丢失也不会重复投递
+ * 通知合并开启时，合并中的消息要在窗口结束后用原来的通道ack，不能关闭通道，此时只允许调大并发数和修改限流
+ * <p>
+ * 每次调整记入审计日志，调整时记下调整前的吞吐量，过audit-window-ms后记下调整后的吞吐量
+ */
+@Component
+public class ListenerTuner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListenerTuner.class);
+
+    private final Supplier<Collection<MessageListenerContainer>> containers;
+    private final ListenerSettings initial;
+    private final boolean coalescing;
+    private final boolean enabled;
+    private final Path file;
+    private final TuningAudit audit;
+    private final long auditWindowMillis;
+    /**
+     * 队列 -> 当前参数、限流器和吞吐量
+     */
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+    private final List<PendingResult> pendingResults = new ArrayList<>();
+    private long fileModified;
+
+    @Autowired
+    public ListenerTuner(RabbitListenerEndpointRegistry registry, RabbitProperties rabbitProperties,
+                         NotificationCoalescer notificationCoalescer, AdminServer adminServer,
+                         @Value("${xuecheng.mq.tuning.enabled:false}") boolean enabled,
+                         @Value("${xuecheng.mq.tuning.file:}") String file,
+                         @Value("${xuecheng.mq.tuning.audit-file:tuning-audit.log}") String auditFile,
+                         @Value("${xuecheng.mq.tuning.audit-window-ms:60000}") long auditWindowMillis) {
+        this(registry::getListenerContainers, initialSettings(rabbitProperties.getListener().getSimple()),
+                notificationCoalescer.isEnabled(), enabled, StringUtils.hasText(file) ? Paths.get(file) : null,
+                new TuningAudit(StringUtils.hasText(auditFile) ? Paths.get(auditFile) : null), auditWindowMillis);
+        if (enabled) {
+            adminServer.register("/tuning", this::handle);
+        }
+    }
+
+    ListenerTuner(Supplier<Collection<MessageListenerContainer>> containers, ListenerSettings initial,
+                  boolean coalescing, boolean enabled, Path file, TuningAudit audit, long auditWindowMillis) {
+        this.containers = containers;
+        this.initial = initial;
+        this.coalescing = coalescing;
+        this.enabled = enabled;
+        this.file = file;
+        this.audit = audit;
+        this.auditWindowMillis = auditWindowMillis;
+    }
+
+    /**
+     * 启动时的参数和SimpleRabbitListenerContainerFactoryConfigurer一致，没有配置的取容器的默认值
+     */
+    private static ListenerSettings initialSettings(RabbitProperties.AmqpContainer listener) {
+        int prefetch = listener.getPrefetch() != null ? listener.getPrefetch()
+                : SimpleMessageListenerContainer.DEFAULT_PREFETCH_COUNT;
+        int concurrency = listener.getConcurrency() != null ? listener.getConcurrency() : 1;
+        int maxConcurrency = listener.getMaxConcurrency() != null ? listener.getMaxConcurrency() : concurrency;
+        int batchSize = listener.getTransactionSize() != null ? listener.getTransactionSize() : 1;
+        return new ListenerSettings(prefetch, concurrency, maxConcurrency, batchSize, 0);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 加到监听容器的adviceChain中，按队列限流并统计吞吐量
+     */
+    public MethodInterceptor advice() {
+        return invocation -> {
+            Object[] arguments = invocation.getArguments();
+            if (arguments.length < 2 || !(arguments[1] instanceof Message)) {
+                return invocation.proceed();
+            }
+            String queue = ((Message) arguments[1]).getMessageProperties().getConsumerQueue();
+            Target target = target(queue == null ? "" : queue);
+            try {
+                target.limiter.acquire();
+            } catch (InterruptedException e) {
+                //容器停止时会中断消费线程，消息照常处理，由容器决定是否继续
+                Thread.currentThread().interrupt();
+            }
+            Object result = invocation.proceed();
+            target.meter.record();
+            return result;
+        };
+    }
+
+    private Target target(String queue) {
+        return targets.computeIfAbsent(queue, q -> new Target(initial));
+    }
+
+    /**
+     * 修改参数
+     *
+     * @param queue   队列名，为空时修改所有监听容器
+     * @param changes 参数名 -> 新值，参数名见ListenerSettings
+     * @param source  修改来源，记入审计日志
+     * @return 修改后的参数
+     * @throws IllegalArgumentException 队列不存在或者参数不合法，此时不会修改任何容器
+     * @throws IllegalStateException    通知合并开启时不允许的修改
+     */
+    public synchronized String apply(String queue, Map<String, String> changes, String source) {
+        List<SimpleMessageListenerContainer> matched = new ArrayList<>();
+        for (MessageListenerContainer container : containers.get()) {
+            if (container instanceof SimpleMessageListenerContainer
+                    && (!StringUtils.hasText(queue) || queueOf((SimpleMessageListenerContainer) container).equals(queue))) {
+                matched.add((SimpleMessageListenerContainer) container);
+            }
+        }
+        if (matched.isEmpty()) {
+            throw new IllegalArgumentException("没有监听队列" + queue + "的容器");
+        }
+        //先全部校验再修改，避免只改了一部分容器
+        List<ListenerSettings> nextSettings = new ArrayList<>();
+        for (SimpleMessageListenerContainer container : matched) {
+            ListenerSettings current = target(queueOf(container)).settings;
+            ListenerSettings next = current.with(changes);
+            if (coalescing && (current.needsRestart(next) || next.getConcurrency() < current.getConcurrency())) {
+                throw new IllegalStateException("通知合并开启时只能调大并发数和修改限流，修改prefetch、batch-size或减少消费者需要重启");
+            }
+            nextSettings.add(next);
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < matched.size(); i++) {
+            SimpleMessageListenerContainer container = matched.get(i);
+            String name = queueOf(container);
+            Target target = target(name);
+            ListenerSettings current = target.settings;
+            ListenerSettings next = nextSettings.get(i);
+            String diff = current.diff(next);
+            if (!diff.isEmpty()) {
+                configure(container, target, current, next);
+                String entry = source + " " + name + " " + diff;
+                audit.record(entry + " 调整前吞吐量=" + rate(target));
+                pendingResults.add(new PendingResult(System.currentTimeMillis() + auditWindowMillis, entry, target));
+            }
+            result.append(name).append(' ').append(next).append('\n');
+        }
+        return result.toString().trim();
+    }
+
+    private void configure(SimpleMessageListenerContainer container, Target target, ListenerSettings current,
+                           ListenerSettings next) {
+        target.limiter.setRate(next.getRateLimit());
+        //调大时先调上限，调小时先调并发数，保证并发数始终不超过上限
+        if (next.getConcurrency() > current.getMaxConcurrency()) {
+            container.setMaxConcurrentConsumers(next.getMaxConcurrency());
+            container.setConcurrentConsumers(next.getConcurrency());
+        } else {
+            container.setConcurrentConsumers(next.getConcurrency());
+            container.setMaxConcurrentConsumers(next.getMaxConcurrency());
+        }
+        if (current.needsRestart(next)) {
+            container.setPrefetchCount(next.getPrefetch());
+            container.setTxSize(next.getBatchSize());
+            if (container.isRunning()) {
+                //队列没有变化，只是借用队列变化时的处理逐个替换消费者，新的消费者使用新的prefetch和txSize
+                container.addQueueNames();
+            }
+        }
+        target.settings = next;
+    }
+
+    /**
+     * 当前参数、消费者数量和吞吐量
+     */
+    public String describe() {
+        StringBuilder builder = new StringBuilder();
+        for (MessageListenerContainer container : containers.get()) {
+            if (!(container instanceof SimpleMessageListenerContainer)) {
+                continue;
+            }
+            SimpleMessageListenerContainer simple = (SimpleMessageListenerContainer) container;
+            String name = queueOf(simple);
+            Target target = target(name);
+            builder.append(name).append(' ').append(target.settings)
+                    .append(" 运行中=").append(simple.isRunning())
+                    .append(" 消费者=").append(simple.getActiveConsumerCount())
+                    .append(" 吞吐量(10s)=").append(String.format("%.1f/s", target.meter.rate(10)))
+                    .append(" 吞吐量(60s)=").append(String.format("%.1f/s", target.meter.rate(60)))
+                    .append('\n');
+        }
+        return builder.toString().trim();
+    }
+
+    /**
+     * GET查看当前参数，POST修改参数，queue参数指定队列
+     */
+    private String handle(String method, Map<String, String> params) {
+        String queue = params.remove("queue");
+        if (params.isEmpty()) {
+            return describe();
+        }
+        if (!"POST".equals(method)) {
+            throw new IllegalArgumentException("修改参数请使用POST");
+        }
+        return apply(queue, params, "http");
+    }
+
+    /**
+     * 检查参数文件，补记调整后的吞吐量
+     */
+    @Scheduled(fixedDelayString = "${xuecheng.mq.tuning.poll-ms:1000}")
+    public void poll() {
+        if (!enabled) {
+            return;
+        }
+        if (file != null) {
+            try {
+                reloadIfModified();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("参数文件{}没有生效：{}", file, e.getMessage());
+            }
+        }
+        recordResults(System.currentTimeMillis());
+    }
+
+    synchronized void reloadIfModified() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        if (modified == fileModified) {
+            return;
+        }
+        fileModified = modified;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        //不带队列名的参数对所有队列生效，先应用，带队列名的再覆盖
+        Map<String, String> common = new LinkedHashMap<>();
+        Map<String, Map<String, String>> byQueue = new LinkedHashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            int dot = key.lastIndexOf('.');
+            if (dot < 0) {
+                common.put(key, properties.getProperty(key));
+            } else {
+                byQueue.computeIfAbsent(key.substring(0, dot), q -> new LinkedHashMap<>())
+                        .put(key.substring(dot + 1), properties.getProperty(key));
+            }
+        }
+        if (!common.isEmpty()) {
+            apply(null, common, "file");
+        }
+        for (Map.Entry<String, Map<String, String>> entry : byQueue.entrySet()) {
+            apply(entry.getKey(), entry.getValue(), "file");
+        }
+    }
+
+    synchronized void recordResults(long now) {
+        Iterator<PendingResult> iterator = pendingResults.iterator();
+        while (iterator.hasNext()) {
+            PendingResult pending = iterator.next();
+            if (pending.dueMillis <= now) {
+                audit.record(pending.entry + " 调整后吞吐量=" + rate(pending.target));
+                iterator.remove();
+            }
+        }
+    }
+
+    private String rate(Target target) {
+        int seconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(auditWindowMillis));
+        return String.format("%.1f/s", target.meter.rate(seconds));
+    }
+
+    private static String queueOf(SimpleMessageListenerContainer container) {
+        return String.join(",", container.getQueueNames());
+    }
+
+    /**
+     * 队列当前的参数
+     */
+    public ListenerSettings settings(String queue) {
+        return target(queue).settings;
+    }
+
+    private static final class Target {
+        private volatile ListenerSettings settings;
+        private final RateLimiter limiter;
+        private final ThroughputMeter meter = new ThroughputMeter();
+
+        private Target(ListenerSettings settings) {
+            this.settings = settings;
+            this.limiter = new RateLimiter(settings.getRateLimit());
+        }
+    }
+
+    private static final class PendingResult {
+        private final long dueMillis;
+        private final String entry;
+        private final Target target;
+
+        private PendingResult(long dueMillis, String entry, Target target) {
+            this.dueMillis = dueMillis;
+            this.entry = entry;
+            this.target = target;
+        }
+    }
+}
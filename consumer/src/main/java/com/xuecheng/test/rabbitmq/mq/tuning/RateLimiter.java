@@ -0,0 +1,52 @@
+package com.xuecheng.test.rabbitmq.mq.tuning;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可以在运行中调整速率的限流器，调用方按固定间隔放行，不允许突发
+ * <p>
+ * 消费线程在这里等待时不取新消息，预取的消息用完后MQ就不再投递，积压留在队列中，不会堆在消费方内存里
+ */
+public class RateLimiter {
+    private volatile double permitsPerSecond;
+    private long nextFreeNanos;
+
+    public RateLimiter(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * 修改速率，0为不限制，下一次acquire时生效
+     */
+    public void setRate(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * 取得一个许可，必要时等待
+     *
+     * @return 等待的纳秒数
+     */
+    public long acquire() throws InterruptedException {
+        double rate = permitsPerSecond;
+        if (rate <= 0) {
+            return 0;
+        }
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNanos);
+            nextFreeNanos = start + interval;
+            wait = start - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return wait;
+    }
+}
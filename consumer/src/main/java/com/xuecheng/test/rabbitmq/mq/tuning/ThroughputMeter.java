@@ -0,0 +1,59 @@
+package com.xuecheng.test.rabbitmq.mq.tuning;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * 按秒计数的吞吐量统计，保留最近两分钟，用于对比调整参数前后的吞吐量
+ */
+public class ThroughputMeter {
+    private static final int SLOTS = 120;
+
+    private final LongSupplier clock;
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+
+    public ThroughputMeter() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock 毫秒时钟，测试时替换
+     */
+    public ThroughputMeter(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * 记录处理完一条消息
+     */
+    public void record() {
+        long second = clock.getAsLong() / 1000;
+        int slot = (int) (second % SLOTS);
+        if (seconds.get(slot) != second) {
+            synchronized (this) {
+                if (seconds.get(slot) != second) {
+                    counts.set(slot, 0);
+                    seconds.set(slot, second);
+                }
+            }
+        }
+        counts.incrementAndGet(slot);
+    }
+
+    /**
+     * 最近windowSeconds秒（不含当前这一秒）的平均每秒条数
+     */
+    public double rate(int windowSeconds) {
+        int window = Math.max(1, Math.min(windowSeconds, SLOTS - 1));
+        long current = clock.getAsLong() / 1000;
+        long total = 0;
+        for (long second = current - window; second < current; second++) {
+            int slot = (int) (second % SLOTS);
+            if (seconds.get(slot) == second) {
+                total += counts.get(slot);
+            }
+        }
+        return (double) total / window;
+    }
+}
@@ -0,0 +1,48 @@
+package com.xuecheng.test.rabbitmq.mq.tuning;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * 参数调整的审计日志，每行一条记录，只追加
+ * 每次调整记两行：调整时记下参数变化和调整前的吞吐量，过一个统计窗口后记下调整后的吞吐量
+ */
+public class TuningAudit {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TuningAudit.class);
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Path file;
+
+    /**
+     * @param file 审计文件，为null时只写日志
+     */
+    public TuningAudit(Path file) {
+        this.file = file;
+    }
+
+    public synchronized void record(String entry) {
+        String line = LocalDateTime.now().format(FORMAT) + " " + entry;
+        LOGGER.info("参数调整：{}", entry);
+        if (file == null) {
+            return;
+        }
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.write(file, (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            LOGGER.warn("写入审计日志失败：{}", file, e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.xuecheng.test.rabbitmq.benchmark;
+
+import com.xuecheng.test.rabbitmq.mq.delivery.DeliveryView;
+import com.xuecheng.test.rabbitmq.mq.delivery.DeliveryViewMessageConverter;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.function.ToLongFunction;
+
+/**
+ * 消息体处理的内存分配基准测试，不需要MQ
+ * <p>
+ * 对比默认的SimpleMessageConverter（每条消息解码成String）和DeliveryView（只读视图，按需解码），
+ * 统计每条消息分配的字节数和耗时
+ * 直接运行main方法，参数：消息体大小，默认1024
+ */
+public class DeliveryAllocationBenchmark {
+    private static final int MESSAGES = 1_000_000;
+
+    public static void main(String[] args) {
+        int bodySize = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'a');
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_TEXT_PLAIN);
+        properties.setContentEncoding("UTF-8");
+        properties.setHeader("x-user-id", "u1");
+        Message message = new Message(body, properties);
+
+        MessageConverter simple = new SimpleMessageConverter();
+        MessageConverter view = new DeliveryViewMessageConverter();
+
+        //预热后再统计
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            run(print, "SimpleMessageConverter解码为String", m -> ((String) simple.fromMessage(m)).length(), message);
+            run(print, "DeliveryView只按消息头过滤和计数", m -> {
+                DeliveryView delivery = (DeliveryView) view.fromMessage(m);
+                return "u1".equals(delivery.headerAsString("x-user-id")) ? delivery.size() : 0;
+            }, message);
+            run(print, "DeliveryView读取ByteBuffer", m -> ((DeliveryView) view.fromMessage(m)).body().get(0), message);
+            run(print, "DeliveryView解码为String", m -> ((DeliveryView) view.fromMessage(m)).text().length(), message);
+        }
+    }
+
+    private static void run(boolean print, String name, ToLongFunction<Message> handler, Message message) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long sink = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            sink += handler.applyAsLong(message);
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        if (print) {
+            System.out.println(String.format("%-32s 每条分配%8.1f字节  每条%6.1f纳秒  (%d)", name,
+                    allocated / (double) MESSAGES, nanos / (double) MESSAGES, sink));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.xuecheng.test.rabbitmq.benchmark;
+
+import com.xuecheng.test.rabbitmq.mq.selector.Selector;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * 选择器的基准测试，不需要MQ
+ * <p>
+ * 同一个过滤条件（租户是acme或globex、语言是zh-CN、需要发送邮件）分别用四种方式判断：
+ * 通配符RoutingKey匹配（每个租户一个绑定，和topic交换机的算法一致）、解释执行语法树、
+ * 编译后的决策树、先解码消息体再用决策树判断（没有在解码前丢弃时的开销）
+ * 统计每条消息的耗时和分配的字节数
+ * 直接运行main方法，参数：消息体大小，默认1024
+ */
+public class SelectorBenchmark {
+    private static final int MESSAGES = 5_000_000;
+    private static final String[] TENANTS = {"acme", "globex", "initech", "umbrella", "hooli", "stark"};
+    private static final String[] LOCALES = {"zh-CN", "en", "ja"};
+    private static final String EXPRESSION =
+            "tenant IN ('acme', 'globex') AND locale = 'zh-CN' AND inform-email = 'true'";
+    /**
+     * 同样的条件用RoutingKey表达：inform.租户.语言.通知类型，IN需要每个值一个绑定
+     */
+    private static final String[] PATTERNS = {"inform.acme.zh-CN.#.email.#", "inform.globex.zh-CN.#.email.#"};
+
+    public static void main(String[] args) {
+        int bodySize = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'a');
+        Random random = new Random(41);
+        Message[] messages = new Message[1024];
+        String[] routingKeys = new String[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            String tenant = TENANTS[random.nextInt(TENANTS.length)];
+            String locale = LOCALES[random.nextInt(LOCALES.length)];
+            boolean email = random.nextBoolean();
+            boolean sms = !email || random.nextBoolean();
+            MessageProperties properties = new MessageProperties();
+            properties.setContentEncoding("UTF-8");
+            properties.setHeader("tenant", tenant);
+            properties.setHeader("locale", locale);
+            properties.setHeader("user-id", "u" + i);
+            if (email) {
+                properties.setHeader("inform-email", "true");
+            }
+            if (sms) {
+                properties.setHeader("inform-sms", "true");
+            }
+            messages[i] = new Message(body, properties);
+            routingKeys[i] = "inform." + tenant + "." + locale + (email ? ".email" : "") + (sms ? ".sms" : "");
+        }
+        Selector selector = Selector.compile(EXPRESSION);
+        System.out.println("选择器：" + selector + "，决策树" + selector.getNodes() + "个节点");
+
+        //预热后再统计
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            run(print, "通配符RoutingKey匹配", i -> {
+                for (String pattern : PATTERNS) {
+                    if (topicMatches(pattern, routingKeys[i])) {
+                        return true;
+                    }
+                }
+                return false;
+            });
+            run(print, "解释执行语法树", i -> selector.evaluate(messages[i].getMessageProperties().getHeaders()));
+            run(print, "编译后的决策树", i -> selector.matches(messages[i].getMessageProperties().getHeaders()));
+            run(print, "先解码消息体再判断", i -> {
+                Message message = messages[i];
+                String text = new String(message.getBody(), StandardCharsets.UTF_8);
+                return selector.matches(message.getMessageProperties().getHeaders()) && !text.isEmpty();
+            });
+        }
+    }
+
+    private static void run(boolean print, String name, IntPredicate filter) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long accepted = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            if (filter.test(i & 1023)) {
+                accepted++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        if (print) {
+            System.out.println(String.format("%-20s 每条%6.1f纳秒  每条分配%8.1f字节  通过%.1f%%", name,
+                    nanos / (double) MESSAGES, allocated / (double) MESSAGES, accepted * 100.0 / MESSAGES));
+        }
+    }
+
+    /**
+     * topic交换机的匹配算法，和发送方的TopicMatcher一致
+     */
+    private static boolean topicMatches(String pattern, String routingKey) {
+        return topicMatches(pattern.split("\\.", -1), 0, routingKey.split("\\.", -1), 0);
+    }
+
+    private static boolean topicMatches(String[] pattern, int p, String[] key, int k) {
+        if (p == pattern.length) {
+            return k == key.length;
+        }
+        if ("#".equals(pattern[p])) {
+            for (int i = k; i <= key.length; i++) {
+                if (topicMatches(pattern, p + 1, key, i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (k == key.length) {
+            return false;
+        }
+        if ("*".equals(pattern[p]) || pattern[p].equals(key[k])) {
+            return topicMatches(pattern, p + 1, key, k + 1);
+        }
+        return false;
+    }
+}
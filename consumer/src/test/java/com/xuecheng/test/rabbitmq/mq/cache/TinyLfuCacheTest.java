@@ -0,0 +1,119 @@
+package com.xuecheng.test.rabbitmq.mq.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * W-TinyLFU缓存的测试
+ */
+public class TinyLfuCacheTest {
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicInteger version = new AtomicInteger();
+
+    /**
+     * 加载"u"开头的key，值带上当前版本号
+     */
+    private Map<String, String> load(Collection<String> keys) {
+        loads.incrementAndGet();
+        Map<String, String> result = new HashMap<>();
+        for (String key : keys) {
+            if (key.startsWith("u")) {
+                result.put(key, key + "@" + version.get());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 一次性访问的大量key不会把经常访问的key挤出去
+     */
+    @Test
+    public void frequentKeysSurviveScan() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(100, 60000, 60000, 60000, this::load, Runnable::run);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                cache.get("u-hot-" + i);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            cache.get("u-scan-" + i);
+        }
+        long missesBefore = cache.getMisses();
+        for (int i = 0; i < 50; i++) {
+            cache.get("u-hot-" + i);
+        }
+        assertTrue(cache.getMisses() - missesBefore <= 5);
+        assertEquals(100, cache.size());
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    @Test
+    public void bulkLoadsMissesAndCachesAbsentKeys() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(100, 60000, 60000, 60000, this::load, Runnable::run);
+        Map<String, String> values = cache.getAll(Arrays.asList("u1", "u2", "u3", "missing"));
+        assertEquals(3, values.size());
+        assertEquals(1, loads.get());
+
+        assertNull(cache.get("missing"));
+        cache.getAll(Arrays.asList("u1", "u2"));
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getNegativeHits());
+        assertEquals(2, cache.getHits());
+    }
+
+    /**
+     * 过了刷新时间，访问方先拿到旧值，后台加载新值
+     */
+    @Test
+    public void refreshesAhead() throws Exception {
+        List<Runnable> background = new ArrayList<>();
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(100, 60000, 20, 60000, this::load, background::add);
+        assertEquals("u1@0", cache.get("u1"));
+        version.set(1);
+        Thread.sleep(30);
+
+        assertEquals("u1@0", cache.get("u1"));
+        assertEquals(1, background.size());
+        cache.get("u1");
+        assertEquals(1, background.size());
+        background.get(0).run();
+        assertEquals("u1@1", cache.get("u1"));
+        assertEquals(1, cache.getRefreshes());
+    }
+
+    /**
+     * 并发的未命中合并成一次加载
+     */
+    @Test
+    public void batchesConcurrentMisses() throws Exception {
+        BatchingLoader<String, String> batching = new BatchingLoader<>(this::load, 200, 8);
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(100, 60000, 60000, 60000, batching, Runnable::run);
+        CountDownLatch done = new CountDownLatch(8);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String key = "u" + i;
+            Thread thread = new Thread(() -> {
+                assertEquals(key + "@0", cache.get(key));
+                done.countDown();
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        done.await();
+        assertEquals(8, batching.getRequests());
+        assertEquals(1, batching.getBatches());
+        assertEquals(1, loads.get());
+    }
+}
@@ -0,0 +1,54 @@
+package com.xuecheng.test.rabbitmq.mq.claimcheck;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 消息体LRU缓存的测试
+ */
+public class BlobCacheTest {
+    private final AtomicInteger loads = new AtomicInteger();
+    private final Function<String, ByteBuffer> loader = hash -> {
+        loads.incrementAndGet();
+        return ByteBuffer.wrap(new byte[100]);
+    };
+
+    /**
+     * 同一个消息体被多个队列的监听读取，只加载一次
+     */
+    @Test
+    public void loadsEachBlobOnce() {
+        BlobCache cache = new BlobCache(1000);
+        ByteBuffer first = cache.get("a", loader);
+        first.get(new byte[50]);
+        ByteBuffer second = cache.get("a", loader);
+
+        assertEquals(1, loads.get());
+        assertEquals(100, second.remaining());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * 超过字节数上限时淘汰最久没有访问的
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        BlobCache cache = new BlobCache(250);
+        cache.get("a", loader);
+        cache.get("b", loader);
+        cache.get("a", loader);
+        cache.get("c", loader);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(200, cache.getBytes());
+        cache.get("a", loader);
+        cache.get("b", loader);
+        assertEquals(4, loads.get());
+    }
+}
@@ -0,0 +1,70 @@
+package com.xuecheng.test.rabbitmq.mq.claimcheck;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 消费方大消息体存储的测试，发送方写入的文件在这里直接构造
+ */
+public class BlobStoreTest {
+    private static final String HASH = "ab12";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 引用全部释放并且过了宽限期才回收
+     */
+    @Test
+    public void sweepsReleasedBlobsAfterGrace() throws Exception {
+        BlobStore store = new BlobStore(folder.getRoot().toPath());
+        Path blob = writeBlob(store, "附件内容", 2);
+
+        assertEquals("附件内容", StandardCharsets.UTF_8.decode(store.map(HASH)).toString());
+        assertEquals(1, store.release(HASH));
+        assertEquals(0, store.sweep(0, Long.MAX_VALUE));
+        assertTrue(Files.exists(blob));
+
+        assertEquals(0, store.release(HASH));
+        assertEquals(0, store.sweep(60000, Long.MAX_VALUE));
+        assertEquals(1, store.sweep(0, Long.MAX_VALUE));
+        assertFalse(Files.exists(blob));
+    }
+
+    /**
+     * 被选择器或者偏好丢弃的引用消息只释放引用，不读取文件
+     */
+    @Test
+    public void resolverReleasesDroppedMessage() throws Exception {
+        ClaimCheckResolver resolver = new ClaimCheckResolver(folder.getRoot().toString(), 0, Long.MAX_VALUE, 1024);
+        BlobStore store = new BlobStore(folder.getRoot().toPath());
+        Path blob = writeBlob(store, "附件内容", 1);
+        MessageProperties properties = new MessageProperties();
+        properties.setHeader(ClaimCheckResolver.HEADER_CLAIM_CHECK, HASH);
+        Message message = new Message(new byte[0], properties);
+
+        resolver.release(message);
+        assertEquals(0, resolver.getBlobCache().getMisses());
+        assertEquals(1, store.sweep(0, Long.MAX_VALUE));
+        assertFalse(Files.exists(blob));
+    }
+
+    private Path writeBlob(BlobStore store, String text, int refs) throws Exception {
+        Path blob = store.blobFile(HASH);
+        Files.createDirectories(blob.getParent());
+        Files.write(blob, text.getBytes(StandardCharsets.UTF_8));
+        store.addRefs(HASH, refs);
+        return blob;
+    }
+}
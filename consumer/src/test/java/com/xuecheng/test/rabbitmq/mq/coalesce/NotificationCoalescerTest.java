@@ -0,0 +1,146 @@
+package com.xuecheng.test.rabbitmq.mq.coalesce;
+
+import com.rabbitmq.client.Channel;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 通知合并和时间轮的测试
+ */
+public class NotificationCoalescerTest {
+
+    @Test
+    public void wheelExpiresOnlyDueTasks() {
+        TimingWheel<String> wheel = new TimingWheel<>(8, 10, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 200);
+        assertEquals(0, wheel.advance(19).size());
+        assertEquals("[a]", wheel.advance(30).toString());
+        //超过一圈的任务要等到对应的那一圈
+        assertEquals(0, wheel.advance(120).size());
+        assertEquals("[b]", wheel.advance(500).toString());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void mergesSameUserWithinWindow() {
+        AtomicLong now = new AtomicLong(1000);
+        NotificationCoalescer coalescer = new NotificationCoalescer(true, 50, 100, 3, 10, now::get);
+        coalescer.init();
+        List<Long> acks = new ArrayList<>();
+        Channel channel = recordingChannel(acks);
+        List<String> digests = new ArrayList<>();
+        try {
+            coalescer.offer("email", "u1", "m1", channel, 1, digests::add);
+            coalescer.offer("email", "u1", "m2", channel, 2, digests::add);
+            coalescer.offer("email", "u2", "m3", channel, 3, digests::add);
+            coalescer.offer("email", null, "m4", channel, 4, digests::add);
+            assertEquals("[m4]", digests.toString());
+
+            //窗口期内不处理
+            now.addAndGet(40);
+            coalescer.tick();
+            assertEquals(1, digests.size());
+
+            now.addAndGet(20);
+            coalescer.tick();
+            assertEquals(3, digests.size());
+            assertEquals("m1\nm2", digests.get(1).contains("m1") ? digests.get(1) : digests.get(2));
+            assertEquals(4.0 / 3, coalescer.getCoalesceRatio(), 0.001);
+            acks.sort(null);
+            assertEquals("[1, 2, 3, 4]", acks.toString());
+        } finally {
+            coalescer.destroy();
+        }
+    }
+
+    @Test
+    public void flushesEarlyWhenPerKeyLimitReached() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(true, 60000, 100, 2, 10, () -> 0L);
+        coalescer.init();
+        List<String> digests = new ArrayList<>();
+        try {
+            Channel channel = recordingChannel(new ArrayList<>());
+            coalescer.offer("sms", "u1", "a", channel, 1, digests::add);
+            coalescer.offer("sms", "u1", "b", channel, 2, digests::add);
+            assertEquals("[a\nb]", digests.toString());
+            assertEquals(0, coalescer.getPendingKeys());
+        } finally {
+            coalescer.destroy();
+        }
+    }
+
+    /**
+     * ack成功后才回调，处理失败重新入队的消息不回调（Claim-Check引用不能提前释放）
+     */
+    @Test
+    public void ackedCallbackRunsOnlyAfterAck() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(true, 60000, 100, 1, 10, () -> 0L);
+        coalescer.init();
+        List<Long> acks = new ArrayList<>();
+        Channel channel = recordingChannel(acks);
+        List<String> released = new ArrayList<>();
+        try {
+            coalescer.offer("email", "u1", "ok", channel, 1, msg -> {
+            }, () -> released.add("ok"));
+            coalescer.offer("email", "u2", "bad", channel, 2, msg -> {
+                throw new IllegalStateException("网关不可用");
+            }, () -> released.add("bad"));
+            assertEquals("[ok]", released.toString());
+            assertEquals("[1]", acks.toString());
+        } finally {
+            coalescer.destroy();
+        }
+    }
+
+    /**
+     * ack中途失败时，已经ack的消息不再nack
+     */
+    @Test
+    public void nacksOnlyUnackedTagsWhenAckFails() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(true, 60000, 100, 3, 10, () -> 0L);
+        coalescer.init();
+        List<String> calls = new ArrayList<>();
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+                    if ("basicAck".equals(method.getName()) || "basicNack".equals(method.getName())) {
+                        calls.add(method.getName() + " " + args[0]);
+                        if ("basicAck".equals(method.getName()) && (Long) args[0] == 2) {
+                            throw new IOException("连接已断开");
+                        }
+                    }
+                    return null;
+                });
+        try {
+            for (long tag = 1; tag <= 3; tag++) {
+                coalescer.offer("sms", "u1", "m" + tag, channel, tag, msg -> {
+                });
+            }
+            assertEquals("[basicAck 1, basicAck 2, basicNack 2, basicNack 3]", calls.toString());
+        } finally {
+            coalescer.destroy();
+        }
+    }
+
+    /**
+     * 只记录basicAck的通道
+     */
+    private static Channel recordingChannel(List<Long> acks) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    if ("basicAck".equals(method.getName())) {
+                        synchronized (acks) {
+                            acks.add((Long) args[0]);
+                        }
+                    }
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,43 @@
+package com.xuecheng.test.rabbitmq.mq.delivery;
+
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * 消息只读视图的整数解析
+ */
+public class DeliveryViewTest {
+
+    @Test
+    public void asLong() {
+        assertEquals(0, view("0").asLong());
+        assertEquals(-42, view("-42").asLong());
+        assertEquals(Long.MAX_VALUE, view(String.valueOf(Long.MAX_VALUE)).asLong());
+        assertEquals(Long.MIN_VALUE, view(String.valueOf(Long.MIN_VALUE)).asLong());
+        assertInvalid("");
+        assertInvalid("-");
+        assertInvalid("1a");
+        assertInvalid("9223372036854775808");
+        assertInvalid("-9223372036854775809");
+        assertInvalid("12345678901234567890");
+    }
+
+    private static DeliveryView view(String body) {
+        return new DeliveryView(new Message(body.getBytes(StandardCharsets.UTF_8), new MessageProperties()));
+    }
+
+    private static void assertInvalid(String body) {
+        try {
+            view(body).asLong();
+            fail("应该不是合法的整数：" + body);
+        } catch (NumberFormatException expected) {
+            //不是整数或者超出范围
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.xuecheng.test.rabbitmq.mq.drain;
+
+import com.rabbitmq.client.Channel;
+import com.xuecheng.test.rabbitmq.mq.coalesce.NotificationCoalescer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.support.StaticApplicationContext;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 优雅停止的测试，假的监听容器在stop()时把本地缓冲中的消息逐条交给advice，和取消订阅后的容器一样
+ */
+public class GracefulDrainTest {
+    private final List<String> calls = new ArrayList<>();
+    private final Channel channel = recordingChannel();
+
+    @Test
+    public void finishProcessesBufferedAndFlushesCoalescer() throws Exception {
+        NotificationCoalescer coalescer = new NotificationCoalescer(true, 60000, 100, 50, 10);
+        coalescer.afterPropertiesSet();
+        List<String> digests = new ArrayList<>();
+        try {
+            coalescer.offer("email", "u1", "a", channel, 1, digests::add);
+            coalescer.offer("email", "u1", "b", channel, 2, digests::add);
+            FakeContainer container = new FakeContainer(3, 4);
+            GracefulDrain drain = new GracefulDrain(() -> Collections.singletonList(container), coalescer, true,
+                    GracefulDrain.MODE_FINISH, 1000, true, true);
+            container.advice = drain.advice();
+
+            GracefulDrain.Report report = drain.drain();
+            assertEquals("[a\nb]", digests.toString());
+            assertEquals("[ack 1, ack 2, handle 3, handle 4]", calls.toString());
+            assertEquals(2, report.getProcessed());
+            assertEquals(0, report.getHandedBack());
+            assertEquals(2, report.getCoalesced());
+            assertEquals(0, report.getUnfinished());
+            assertFalse(container.isRunning());
+
+            //排空后收到的消息不再等待窗口期
+            coalescer.offer("email", "u1", "c", channel, 5, digests::add);
+            assertEquals("[a\nb, c]", digests.toString());
+
+            drain.resume();
+            assertTrue(container.isRunning());
+            coalescer.offer("email", "u1", "d", channel, 6, digests::add);
+            assertEquals(1, coalescer.getPendingKeys());
+        } finally {
+            coalescer.destroy();
+        }
+    }
+
+    /**
+     * 没有开启排空时，应用关闭时也要在容器关闭通道之前处理并ack合并中的消息，容器照常由Spring停止
+     */
+    @Test
+    public void disabledStillFlushesCoalescerOnClose() throws Exception {
+        NotificationCoalescer coalescer = new NotificationCoalescer(true, 60000, 100, 50, 10);
+        coalescer.afterPropertiesSet();
+        List<String> digests = new ArrayList<>();
+        try {
+            coalescer.offer("sms", "u1", "a", channel, 1, digests::add);
+            FakeContainer container = new FakeContainer(2);
+            GracefulDrain drain = new GracefulDrain(() -> Collections.singletonList(container), coalescer, false,
+                    GracefulDrain.MODE_FINISH, 1000, true, true);
+
+            drain.onApplicationEvent(new ContextClosedEvent(new StaticApplicationContext()));
+            assertEquals("[a]", digests.toString());
+            assertEquals("[ack 1]", calls.toString());
+            assertTrue(container.isRunning());
+            assertNull(drain.getLastReport());
+        } finally {
+            coalescer.destroy();
+        }
+    }
+
+    /**
+     * 手动ack时按收到的顺序逐条nack并重新入队，不调用监听方法
+     */
+    @Test
+    public void handbackRequeuesBufferedInOrder() throws Exception {
+        NotificationCoalescer coalescer = new NotificationCoalescer(false, 3000, 100, 50, 100);
+        FakeContainer container = new FakeContainer(7, 8, 9);
+        GracefulDrain drain = new GracefulDrain(() -> Collections.singletonList(container), coalescer, true,
+                GracefulDrain.MODE_HANDBACK, 1000, true, true);
+        container.advice = drain.advice();
+
+        GracefulDrain.Report report = drain.drain();
+        assertEquals("[nack 7 requeue=true, nack 8 requeue=true, nack 9 requeue=true]", calls.toString());
+        assertEquals(3, report.getHandedBack());
+        assertEquals(0, report.getProcessed());
+        assertEquals(report, drain.getLastReport());
+    }
+
+    /**
+     * 自动ack时抛出异常由容器拒绝，拒绝的消息不重新入队时不能使用handback
+     */
+    @Test
+    public void handbackWithAutoAckThrowsAndRequiresRequeue() throws Throwable {
+        NotificationCoalescer coalescer = new NotificationCoalescer(false, 3000, 100, 50, 100);
+        try {
+            new GracefulDrain(Collections::emptyList, coalescer, true, GracefulDrain.MODE_HANDBACK, 1000, false, false);
+            fail("default-requeue-rejected=false时handback会丢消息");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("default-requeue-rejected"));
+        }
+
+        GracefulDrain drain = new GracefulDrain(Collections::emptyList, coalescer, true,
+                GracefulDrain.MODE_HANDBACK, 1000, false, true);
+        MethodInterceptor advice = drain.advice();
+        assertEquals("ok", advice.invoke(invocation(message(1))));
+        drain.drain();
+        try {
+            advice.invoke(invocation(message(2)));
+            fail("排空中的消息应该交还");
+        } catch (RuntimeException expected) {
+            assertEquals("[handle 1]", calls.toString());
+        }
+    }
+
+    private Message message(long deliveryTag) {
+        MessageProperties properties = new MessageProperties();
+        properties.setDeliveryTag(deliveryTag);
+        properties.setConsumerQueue("queue_inform_email");
+        return new Message(("m" + deliveryTag).getBytes(StandardCharsets.UTF_8), properties);
+    }
+
+    /**
+     * 监听容器调用invokeListener(channel, message)
+     */
+    private MethodInvocation invocation(Message message) {
+        return new MethodInvocation() {
+            @Override
+            public Method getMethod() {
+                return null;
+            }
+
+            @Override
+            public Object[] getArguments() {
+                return new Object[]{channel, message};
+            }
+
+            @Override
+            public Object proceed() {
+                calls.add("handle " + message.getMessageProperties().getDeliveryTag());
+                return "ok";
+            }
+
+            @Override
+            public Object getThis() {
+                return null;
+            }
+
+            @Override
+            public AccessibleObject getStaticPart() {
+                return null;
+            }
+        };
+    }
+
+    private Channel recordingChannel() {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    if ("basicAck".equals(method.getName())) {
+                        calls.add("ack " + args[0]);
+                    } else if ("basicNack".equals(method.getName())) {
+                        calls.add("nack " + args[0] + " requeue=" + args[2]);
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * 停止时处理本地缓冲中的消息
+     */
+    private final class FakeContainer implements MessageListenerContainer {
+        private final Collection<Long> buffered;
+        private MethodInterceptor advice;
+        private boolean running = true;
+
+        private FakeContainer(long... deliveryTags) {
+            this.buffered = new ArrayList<>();
+            for (long deliveryTag : deliveryTags) {
+                buffered.add(deliveryTag);
+            }
+        }
+
+        @Override
+        public void stop() {
+            for (long deliveryTag : buffered) {
+                try {
+                    advice.invoke(invocation(message(deliveryTag)));
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            buffered.clear();
+            running = false;
+        }
+
+        @Override
+        public void stop(Runnable callback) {
+            stop();
+            callback.run();
+        }
+
+        @Override
+        public void start() {
+            running = true;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return running;
+        }
+
+        @Override
+        public boolean isAutoStartup() {
+            return true;
+        }
+
+        @Override
+        public int getPhase() {
+            return 0;
+        }
+
+        @Override
+        public void setupMessageListener(Object messageListener) {
+        }
+
+        @Override
+        public MessageConverter getMessageConverter() {
+            return null;
+        }
+    }
+}
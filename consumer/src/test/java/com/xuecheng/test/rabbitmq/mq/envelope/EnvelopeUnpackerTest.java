@@ -0,0 +1,99 @@
+package com.xuecheng.test.rabbitmq.mq.envelope;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.xuecheng.test.rabbitmq.mq.admin.AdminServer;
+import org.junit.Test;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * 信封拆包和部分失败的处理
+ */
+public class EnvelopeUnpackerTest {
+
+    @Test
+    public void republishesOnlyFailedMessages() throws Exception {
+        List<Object[]> calls = new ArrayList<>();
+        EnvelopeUnpacker unpacker = new EnvelopeUnpacker(3, new AdminServer(false, null, 0));
+        List<String> handled = new ArrayList<>();
+        Consumer<String> handler = text -> {
+            if (text.startsWith("bad")) {
+                throw new IllegalStateException("处理失败");
+            }
+            handled.add(text);
+        };
+        unpacker.dispatch(envelope(null, "ok1", "bad1", "ok2", "bad2"), recordingChannel(calls), handler, true);
+        assertEquals(Arrays.asList("ok1", "ok2"), handled);
+        //失败的两条发回原队列，然后ack原信封
+        assertEquals("basicPublish", calls.get(0)[0]);
+        assertEquals("queue_inform_sms", calls.get(0)[2]);
+        AMQP.BasicProperties properties = (AMQP.BasicProperties) calls.get(0)[3];
+        assertEquals(2, properties.getHeaders().get(EnvelopeCodec.HEADER_ATTEMPT));
+        assertEquals(2, EnvelopeCodec.decode((byte[]) calls.get(0)[4]).size());
+        assertEquals("basicAck", calls.get(1)[0]);
+        assertEquals(4, unpacker.getLogical());
+        assertEquals(2, unpacker.getRepublished());
+    }
+
+    @Test
+    public void rejectsWhenAttemptsExhausted() throws Exception {
+        List<Object[]> calls = new ArrayList<>();
+        EnvelopeUnpacker unpacker = new EnvelopeUnpacker(3, new AdminServer(false, null, 0));
+        Consumer<String> failing = text -> {
+            throw new IllegalStateException("处理失败");
+        };
+        try {
+            unpacker.dispatch(envelope(3, "bad1", "bad2"), recordingChannel(calls), failing, false);
+            fail("投递次数用完应该拒绝");
+        } catch (AmqpRejectAndDontRequeueException expected) {
+            assertEquals(0, calls.size());
+        }
+        //手动ack模式下自己拒绝
+        unpacker.dispatch(envelope(3, "bad1"), recordingChannel(calls), failing, true);
+        assertEquals("basicReject", calls.get(0)[0]);
+        assertEquals(3, unpacker.getRejected());
+    }
+
+    private static Message envelope(Integer attempt, String... texts) {
+        List<byte[]> items = new ArrayList<>();
+        for (String text : texts) {
+            items.add(text.getBytes(StandardCharsets.UTF_8));
+        }
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(EnvelopeCodec.CONTENT_TYPE);
+        properties.setConsumerQueue("queue_inform_sms");
+        properties.setDeliveryTag(7);
+        if (attempt != null) {
+            properties.setHeader(EnvelopeCodec.HEADER_ATTEMPT, attempt);
+        }
+        return new Message(EnvelopeCodec.encode(items), properties);
+    }
+
+    /**
+     * 记录方法名和参数的通道
+     */
+    private static Channel recordingChannel(List<Object[]> calls) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    if (method.getName().startsWith("basic")) {
+                        Object[] call = new Object[args.length + 1];
+                        call[0] = method.getName();
+                        System.arraycopy(args, 0, call, 1, args.length);
+                        calls.add(call);
+                    }
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,88 @@
+package com.xuecheng.test.rabbitmq.mq.lag;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 积压估算和扩缩容信号的测试
+ */
+public class LagEstimatorTest {
+    private static final long SECOND = 1_000_000_000L;
+    private final ScalingPolicy policy = new ScalingPolicy(60, 30, 0.8, 1, 16);
+
+    /**
+     * 流入速度超过消费能力，积压持续增长，需要扩容
+     */
+    @Test
+    public void growingBacklogScalesUp() {
+        LagEstimator estimator = new LagEstimator("q", policy);
+        QueueLag lag = estimator.update(0, 0, 2, 2, 0, 0, 0);
+        assertEquals(ScaleSignal.HOLD, lag.getSignal());
+        //2个消费者都满负荷，每个100条/秒，流入300条/秒，积压每秒增长100条
+        for (int i = 1; i <= 10; i++) {
+            lag = estimator.update(i * 1000L, i * 100L, 2, 2, i * 200L, i * 2 * SECOND, 2);
+        }
+        assertEquals(200, lag.getDeliverRate(), 1);
+        assertEquals(300, lag.getPublishRate(), 1);
+        assertEquals(100, lag.getNetRate(), 1);
+        assertEquals(100, lag.getConsumerCapacity(), 1);
+        assertTrue(Double.isInfinite(lag.getDrainSeconds()));
+        //(300 + (1000 + 100 * 30) / 60) / (100 * 0.8) = 4.58
+        assertEquals(5, lag.getDesiredConsumers());
+        assertEquals(ScaleSignal.UP, lag.getSignal());
+    }
+
+    /**
+     * 积压在下降，按下降速度估算消化时间
+     */
+    @Test
+    public void drainingBacklogEstimatesTime() {
+        LagEstimator estimator = new LagEstimator("q", policy);
+        estimator.update(0, 10_000, 4, 4, 0, 0, 0);
+        QueueLag lag = null;
+        //4个消费者每秒合计400条，流入100条/秒，积压每秒下降300条
+        for (int i = 1; i <= 10; i++) {
+            lag = estimator.update(i * 1000L, 10_000 - i * 300L, 4, 4, i * 400L, i * 4 * SECOND, 4);
+        }
+        assertEquals(7000, lag.getDepth());
+        assertEquals(7000 / 300.0, lag.getDrainSeconds(), 0.5);
+        assertEquals(100, lag.getPublishRate(), 1);
+        //(100 + (7000 - 300 * 30) / 60) / 80 = 1.25，积压在下降，可以缩容
+        assertEquals(2, lag.getDesiredConsumers());
+        assertEquals(ScaleSignal.DOWN, lag.getSignal());
+    }
+
+    /**
+     * 队列空闲时按处理能力计算，消费速度低也能缩容；多实例时换算成本实例的并发数
+     */
+    @Test
+    public void idleQueueScalesDown() {
+        LagEstimator estimator = new LagEstimator("q", policy);
+        estimator.update(0, 0, 8, 4, 0, 0, 0);
+        QueueLag lag = null;
+        //本实例4个消费者每秒处理40条，每条只用1ms
+        for (int i = 1; i <= 5; i++) {
+            lag = estimator.update(i * 1000L, 0, 8, 4, i * 40L, i * 40 * SECOND / 1000, 0);
+        }
+        assertEquals(0, lag.getDrainSeconds(), 0);
+        assertEquals(80, lag.getPublishRate(), 1);
+        assertEquals(1, lag.getDesiredConsumers());
+        assertEquals(ScaleSignal.DOWN, lag.getSignal());
+        assertEquals(1, lag.getLocalDesiredConsumers());
+    }
+
+    @Test
+    public void prometheusFormat() {
+        LagEstimator estimator = new LagEstimator("queue_inform_email", policy);
+        estimator.update(0, 0, 1, 1, 0, 0, 0);
+        QueueLag lag = estimator.update(1000, 50, 1, 1, 10, SECOND / 10, 1);
+        String text = QueueLagMonitor.prometheus(Collections.singletonList(lag));
+        assertTrue(text, text.contains("xuecheng_mq_queue_depth{queue=\"queue_inform_email\"} 50\n"));
+        assertTrue(text, text.contains("xuecheng_mq_queue_drain_seconds{queue=\"queue_inform_email\"} +Inf\n"));
+        assertTrue(text, text.contains("# TYPE xuecheng_mq_queue_scale_signal gauge"));
+    }
+}
@@ -0,0 +1,81 @@
+package com.xuecheng.test.rabbitmq.mq.metrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 性能数据查询的测试，两个节点的文件放在不同目录，按分段合并
+ */
+public class MetricsQueryTest {
+    private static final long START = 1_800_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mergesNodesPerStep() throws Exception {
+        Path node1 = Files.createDirectories(folder.getRoot().toPath().resolve("node-1"));
+        Path node2 = Files.createDirectories(folder.getRoot().toPath().resolve("node-2"));
+        //第一个节点每秒10次，耗时100微秒，第二个节点每秒5次，耗时20000微秒，各写两分钟
+        write(node1, "node-1", 10, 100);
+        write(node2, "node-2", 5, 20000);
+        List<Path> files = MetricsQuery.files(Arrays.asList(folder.getRoot().toPath()));
+
+        Map<MetricsQuery.Key, MetricsQuery.Row> merged = MetricsQuery.aggregate(files, Long.MIN_VALUE, Long.MAX_VALUE,
+                60, null, false);
+        assertEquals(2, merged.size());
+        for (MetricsQuery.Row row : merged.values()) {
+            assertEquals(60 * 15, row.getCount());
+            //三分之一的消息来自慢的节点
+            assertEquals(101, row.getHistogram().percentile(50));
+            assertEquals(20000, row.getHistogram().max());
+        }
+
+        Map<MetricsQuery.Key, MetricsQuery.Row> byNode = MetricsQuery.aggregate(files, START + 60, START + 90,
+                60, null, true);
+        assertEquals(2, byNode.size());
+        long total = 0;
+        for (MetricsQuery.Row row : byNode.values()) {
+            total += row.getCount();
+        }
+        assertEquals(30 * 15, total);
+    }
+
+    @Test
+    public void printsTable() throws Exception {
+        write(folder.getRoot().toPath(), "node-1", 10, 100);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int rows = MetricsQuery.run(new String[]{"--step", "120", "--series", MetricsRecorder.SERIES_HANDLE,
+                "--from", String.valueOf(START), folder.getRoot().toString()}, new PrintStream(bytes, true, "UTF-8"));
+        assertEquals(1, rows);
+        String[] lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[1], lines[1].matches(".* \\* +handle +1200 +10\\.0 +100 +100 +100 +100"));
+    }
+
+    private static void write(Path dir, String node, int perSecond, long micros) throws Exception {
+        try (MetricsFile.Writer writer = new MetricsFile.Writer(dir, node, 1 << 20, 3)) {
+            for (int i = 0; i < 120; i++) {
+                LatencyHistogram histogram = new LatencyHistogram();
+                for (int n = 0; n < perSecond; n++) {
+                    histogram.record(micros);
+                }
+                writer.append(START + i, Arrays.asList(
+                        new MetricsFile.Sample(MetricsRecorder.SERIES_HANDLE, perSecond, histogram)));
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.xuecheng.test.rabbitmq.mq.quarantine;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ReturnListener;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 毒消息隔离的测试
+ */
+public class QuarantineGuardTest {
+    private final List<String> calls = new ArrayList<>();
+    private final List<AMQP.BasicProperties> published = new ArrayList<>();
+
+    /**
+     * 同一条消息失败达到阈值后转发到隔离队列，正常的消息不受影响
+     */
+    @Test
+    public void quarantinesAfterThreshold() throws Throwable {
+        QuarantineGuard guard = new QuarantineGuard(null, true, true, "quarantine", 3,
+                new FailureTracker(100, 60000));
+        MethodInterceptor advice = guard.advice();
+        Channel channel = recordingChannel();
+        Message poison = message("{broken", 7);
+        for (int attempt = 1; attempt <= 2; attempt++) {
+            try {
+                advice.invoke(invocation(channel, poison, true));
+                fail("没有达到阈值时应该抛出原来的异常");
+            } catch (RuntimeException expected) {
+                assertEquals("格式错误", expected.getCause().getMessage());
+            }
+        }
+        assertEquals("ok", advice.invoke(invocation(channel, message("{\"ok\":1}", 8), false)));
+        assertTrue(calls.isEmpty());
+
+        assertNull(advice.invoke(invocation(channel, poison, true)));
+        assertEquals("[publish quarantine, ack 7]", calls.toString());
+        AMQP.BasicProperties properties = published.get(0);
+        assertEquals(3, properties.getHeaders().get(QuarantineGuard.HEADER_FAILURES));
+        assertEquals("queue_inform_email", properties.getHeaders().get(QuarantineGuard.HEADER_QUEUE));
+        assertEquals("inform.email", properties.getHeaders().get(QuarantineGuard.HEADER_ROUTING_KEY));
+        assertEquals("IllegalStateException: 格式错误", properties.getHeaders().get(QuarantineGuard.HEADER_ERROR));
+        assertEquals("u1", properties.getHeaders().get("x-user-id"));
+        assertEquals(Integer.valueOf(2), properties.getDeliveryMode());
+        assertEquals(1, guard.getQuarantined());
+        //隔离后计数清零
+        assertEquals(0, guard.getTracker().size());
+    }
+
+    /**
+     * 重放直接发送到原队列，确认后才ack，原队列不存在时留在隔离队列
+     */
+    @Test
+    public void replaysToOriginalQueueAfterConfirm() throws Exception {
+        Deque<GetResponse> quarantine = new ArrayDeque<>();
+        quarantine.add(quarantined(1, "queue_inform_email"));
+        quarantine.add(quarantined(2, "queue_gone"));
+        QuarantineGuard guard = new QuarantineGuard(connectionFactory(replayChannel(quarantine)), true, true,
+                "quarantine", 3, new FailureTracker(100, 60000));
+
+        assertEquals(1, guard.process("all", 10, true));
+        assertEquals("[confirmSelect, publish '' queue_inform_email, wait, ack 1, publish '' queue_gone, wait, "
+                + "nack 2]", calls.toString());
+        assertNull(published.get(0).getHeaders().get(QuarantineGuard.HEADER_QUEUE));
+        assertEquals("u1", published.get(0).getHeaders().get("x-user-id"));
+    }
+
+    @Test
+    public void trackerIsBounded() {
+        FailureTracker tracker = new FailureTracker(100, 1000);
+        for (long i = 0; i < 1000; i++) {
+            tracker.recordFailure(i, 0);
+        }
+        assertTrue(tracker.size() <= 100);
+        assertEquals(1, tracker.recordFailure(5000, 10));
+        assertEquals(2, tracker.recordFailure(5000, 20));
+        //超过ttl没有再失败的重新计数
+        assertEquals(1, tracker.recordFailure(5000, 2000));
+    }
+
+    @Test
+    public void fingerprintDependsOnQueueAndBody() {
+        byte[] body = "send email msg to user".getBytes(StandardCharsets.UTF_8);
+        long fingerprint = Fingerprint.of("queue_inform_email", body);
+        assertEquals(fingerprint, Fingerprint.of("queue_inform_email", body.clone()));
+        assertNotEquals(fingerprint, Fingerprint.of("queue_inform_sms", body));
+        body[3]++;
+        assertNotEquals(fingerprint, Fingerprint.of("queue_inform_email", body));
+        assertEquals(fingerprint, Fingerprint.fromHex(Fingerprint.toHex(fingerprint)));
+        assertEquals(16, Fingerprint.toHex(1).length());
+    }
+
+    private static Message message(String body, long deliveryTag) {
+        MessageProperties properties = new MessageProperties();
+        properties.setConsumerQueue("queue_inform_email");
+        properties.setReceivedExchange("exchange_topics_inform");
+        properties.setReceivedRoutingKey("inform.email");
+        properties.setDeliveryTag(deliveryTag);
+        properties.setHeader("x-user-id", "u1");
+        return new Message(body.getBytes(StandardCharsets.UTF_8), properties);
+    }
+
+    /**
+     * 监听容器调用invokeListener(channel, message)
+     */
+    private static MethodInvocation invocation(Channel channel, Message message, boolean fail) {
+        return new MethodInvocation() {
+            @Override
+            public Method getMethod() {
+                return null;
+            }
+
+            @Override
+            public Object[] getArguments() {
+                return new Object[]{channel, message};
+            }
+
+            @Override
+            public Object proceed() {
+                if (fail) {
+                    throw new RuntimeException("监听方法出错", new IllegalStateException("格式错误"));
+                }
+                return "ok";
+            }
+
+            @Override
+            public Object getThis() {
+                return null;
+            }
+
+            @Override
+            public AccessibleObject getStaticPart() {
+                return null;
+            }
+        };
+    }
+
+    private static GetResponse quarantined(long tag, String queue) {
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(QuarantineGuard.HEADER_FINGERPRINT, Fingerprint.toHex(tag));
+        headers.put(QuarantineGuard.HEADER_QUEUE, queue);
+        headers.put(QuarantineGuard.HEADER_EXCHANGE, "exchange_topics_inform");
+        headers.put(QuarantineGuard.HEADER_ROUTING_KEY, "inform.email.sms");
+        headers.put("x-user-id", "u1");
+        return new GetResponse(new Envelope(tag, false, "", "quarantine"),
+                new AMQP.BasicProperties.Builder().headers(headers).build(), new byte[]{1}, 0);
+    }
+
+    /**
+     * 隔离队列的通道，发送到queue_gone的消息被退回
+     */
+    private Channel replayChannel(Deque<GetResponse> quarantine) {
+        List<ReturnListener> listeners = new ArrayList<>();
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicGet":
+                            return quarantine.poll();
+                        case "confirmSelect":
+                            calls.add("confirmSelect");
+                            return null;
+                        case "addReturnListener":
+                            listeners.add((ReturnListener) args[0]);
+                            return null;
+                        case "basicPublish":
+                            calls.add("publish '" + args[0] + "' " + args[1]);
+                            AMQP.BasicProperties properties = (AMQP.BasicProperties) args[args.length - 2];
+                            published.add(properties);
+                            if ("queue_gone".equals(args[1])) {
+                                for (ReturnListener listener : listeners) {
+                                    listener.handleReturn(312, "NO_ROUTE", "", "queue_gone", properties, null);
+                                }
+                            }
+                            return null;
+                        case "waitForConfirmsOrDie":
+                            calls.add("wait");
+                            return null;
+                        case "basicAck":
+                            calls.add("ack " + args[0]);
+                            return null;
+                        case "basicNack":
+                            calls.add("nack " + args[0]);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static ConnectionFactory connectionFactory(Channel channel) {
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> "createChannel".equals(method.getName()) ? channel : null);
+        return (ConnectionFactory) Proxy.newProxyInstance(ConnectionFactory.class.getClassLoader(),
+                new Class<?>[]{ConnectionFactory.class},
+                (proxy, method, args) -> "createConnection".equals(method.getName()) ? connection : null);
+    }
+
+    private Channel recordingChannel() {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    if ("basicPublish".equals(method.getName())) {
+                        calls.add("publish " + args[1]);
+                        published.add((AMQP.BasicProperties) args[args.length - 2]);
+                    } else if ("basicAck".equals(method.getName())) {
+                        calls.add("ack " + args[0]);
+                    }
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,63 @@
+package com.xuecheng.test.rabbitmq.mq.rpc;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import org.junit.Test;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 回复请求：消息属性经过监听容器默认的转换器后，回复带回原来的correlationId
+ */
+public class RpcResponderTest {
+    private final List<String> published = new ArrayList<>();
+    private final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+            new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+                if ("basicPublish".equals(method.getName())) {
+                    AMQP.BasicProperties properties = (AMQP.BasicProperties) args[2];
+                    published.add("'" + args[0] + "' " + args[1] + " " + properties.getCorrelationId() + " "
+                            + new String((byte[]) args[3], StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+
+    @Test
+    public void repliesWithCorrelationId() {
+        RpcResponder responder = new RpcResponder();
+        AMQP.BasicProperties request = new AMQP.BasicProperties.Builder()
+                .replyTo("amq.rabbitmq.reply-to.g1").correlationId("3f2a-7").build();
+        MessageProperties properties = new DefaultMessagePropertiesConverter()
+                .toMessageProperties(request, null, StandardCharsets.UTF_8.name());
+
+        responder.reply(channel, properties, RpcResponder.ACCEPTED);
+        assertEquals("['' amq.rabbitmq.reply-to.g1 3f2a-7 ACCEPTED]", published.toString());
+        assertEquals(1, responder.getReplies());
+    }
+
+    @Test
+    public void correlationIdAsString() {
+        MessageProperties properties = new MessageProperties();
+        assertNull(RpcResponder.correlationId(properties));
+        properties.setCorrelationIdString("3f2a-7");
+        assertEquals("3f2a-7", RpcResponder.correlationId(properties));
+    }
+
+    @Test
+    public void ignoresMessagesWithoutReplyTo() {
+        RpcResponder responder = new RpcResponder();
+        MessageProperties properties = new DefaultMessagePropertiesConverter().toMessageProperties(
+                new AMQP.BasicProperties.Builder().correlationId("1").build(), null, StandardCharsets.UTF_8.name());
+
+        responder.reply(channel, properties, RpcResponder.REJECTED);
+        assertEquals(0, published.size());
+        assertEquals(0, responder.getReplies());
+    }
+}
@@ -0,0 +1,115 @@
+package com.xuecheng.test.rabbitmq.mq.selector;
+
+import com.rabbitmq.client.impl.LongStringHelper;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 选择器的测试
+ */
+public class SelectorTest {
+
+    private static Map<String, Object> headers(Object... pairs) {
+        Map<String, Object> headers = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            headers.put((String) pairs[i], pairs[i + 1]);
+        }
+        return headers;
+    }
+
+    @Test
+    public void matchesConditions() {
+        Selector selector = Selector.compile(
+                "x-tenant IN ('acme', 'globex') AND (x-locale = zh-CN OR x-vip EXISTS) AND x-channel != push");
+        assertTrue(selector.matches(headers("x-tenant", "acme", "x-locale", "zh-CN")));
+        assertTrue(selector.matches(headers("x-tenant", "globex", "x-locale", "en", "x-vip", true)));
+        assertFalse(selector.matches(headers("x-tenant", "initech", "x-locale", "zh-CN")));
+        assertFalse(selector.matches(headers("x-tenant", "acme", "x-locale", "en")));
+        assertFalse(selector.matches(headers("x-tenant", "acme", "x-locale", "zh-CN", "x-channel", "push")));
+        //AMQP中收到的字符串消息头是LongString
+        assertTrue(selector.matches(headers("x-tenant", LongStringHelper.asLongString("acme"),
+                "x-locale", LongStringHelper.asLongString("zh-CN"))));
+        assertTrue(Selector.compile("x-retry NOT IN (1, 2)").matches(headers("x-retry", 3)));
+        assertFalse(Selector.compile("x-retry NOT IN (1, 2)").matches(headers("x-retry", 2)));
+        assertTrue(Selector.compile("  ").isAll());
+    }
+
+    /**
+     * 随机表达式和随机消息头，决策树的结果和解释执行语法树一致
+     */
+    @Test
+    public void compiledMatchesInterpreted() {
+        Random random = new Random(41);
+        String[] names = {"a", "b", "c", "d"};
+        String[] values = {"1", "2", "3"};
+        for (int round = 0; round < 300; round++) {
+            Selector selector = Selector.compile(randomExpression(random, names, values, 3));
+            for (int i = 0; i < 50; i++) {
+                Map<String, Object> headers = new HashMap<>();
+                for (String name : names) {
+                    int pick = random.nextInt(values.length + 2);
+                    if (pick < values.length) {
+                        headers.put(name, values[pick]);
+                    } else if (pick == values.length) {
+                        headers.put(name, "9");
+                    }
+                }
+                assertEquals(selector.getExpression() + " " + headers,
+                        selector.evaluate(headers), selector.matches(headers));
+            }
+        }
+    }
+
+    private static String randomExpression(Random random, String[] names, String[] values, int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            String name = names[random.nextInt(names.length)];
+            switch (random.nextInt(4)) {
+                case 0:
+                    return name + " = '" + values[random.nextInt(values.length)] + "'";
+                case 1:
+                    return name + " != " + values[random.nextInt(values.length)];
+                case 2:
+                    return name + " IN (" + values[random.nextInt(values.length)] + ", "
+                            + values[random.nextInt(values.length)] + ")";
+                default:
+                    return name + " EXISTS";
+            }
+        }
+        String op = random.nextBoolean() ? " AND " : " OR ";
+        String expression = "(" + randomExpression(random, names, values, depth - 1) + op
+                + randomExpression(random, names, values, depth - 1) + ")";
+        return random.nextInt(4) == 0 ? "NOT " + expression : expression;
+    }
+
+    /**
+     * 同一个消息头的多个条件合并到一个节点，不相关的分支共用节点
+     */
+    @Test
+    public void sharesNodes() {
+        Selector selector = Selector.compile("a = 1 OR a = 2 OR a IN (3, 4) OR a = 5");
+        assertEquals(3, selector.getNodes());
+        selector = Selector.compile("(a = 1 OR b = 1) AND c = 1");
+        //a、b、c各一个节点，a=1和b=1两条路径都指向同一个c节点
+        assertEquals(5, selector.getNodes());
+    }
+
+    @Test
+    public void rejectsInvalidExpression() {
+        for (String expression : new String[]{"a =", "a IN ()", "(a = 1", "a = 1 b = 2", "a > 1", "'a' = 1", "a = 'x"}) {
+            try {
+                Selector.compile(expression);
+                fail(expression);
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage().contains("选择器语法错误"));
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.xuecheng.test.rabbitmq.mq.soak;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SimulatedSoakRunnerTest {
+
+    @Test
+    public void prefetchHidesRoundTrip() throws Exception {
+        //往返2ms，处理几乎不花时间，prefetch=1时每个往返只能处理一条
+        SimulatedSoakRunner runner = new SimulatedSoakRunner(2000);
+        HandlerCostModel model = HandlerCostModel.cpuBound(10);
+        SoakResult one = runner.run(1, 1, 1, model, 300);
+        SoakResult many = runner.run(50, 1, 10, model, 300);
+        Assert.assertTrue(one.getThroughput() < 1000);
+        Assert.assertTrue(many.getThroughput() > one.getThroughput() * 5);
+    }
+
+    @Test
+    public void concurrencyScalesFixedLatency() throws Exception {
+        SimulatedSoakRunner runner = new SimulatedSoakRunner(100);
+        HandlerCostModel model = HandlerCostModel.parse("io:2");
+        SoakResult single = runner.run(10, 1, 1, model, 300);
+        SoakResult eight = runner.run(10, 8, 1, model, 300);
+        Assert.assertTrue(eight.getThroughput() > single.getThroughput() * 4);
+        Assert.assertTrue(single.getLatencyMicros().percentile(50) >= 2000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownModel() {
+        HandlerCostModel.parse("gpu:1");
+    }
+}
@@ -0,0 +1,112 @@
+package com.xuecheng.test.rabbitmq.mq.stream;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.admin.AdminServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 流队列消费者的起始位置解析和回溯
+ */
+public class StreamOffsetConsumerTest {
+    private static final String QUEUE = RabbitMQConfig.QUEUE_INFORM_SMS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Consumer> consumers = new ArrayList<>();
+
+    @Test
+    public void resolveOffset() throws IOException {
+        StreamOffsetConsumer consumer = consumer(null);
+        assertEquals("first", consumer.resolveOffset(QUEUE, "stored"));
+        assertEquals("last", consumer.resolveOffset(QUEUE, "last"));
+        assertEquals(12345L, consumer.resolveOffset(QUEUE, "12345"));
+        assertEquals(Date.from(LocalDateTime.of(2026, 10, 19, 8, 0).atZone(ZoneId.systemDefault()).toInstant()),
+                consumer.resolveOffset(QUEUE, "2026-10-19T08:00:00"));
+        long sixHoursAgo = System.currentTimeMillis() - 6 * 3600_000L;
+        long resolved = ((Date) consumer.resolveOffset(QUEUE, "PT6H")).getTime();
+        assertTrue(Math.abs(resolved - sixHoursAgo) < 60_000);
+        assertInvalid(consumer, "-5");
+        assertInvalid(consumer, "yesterday");
+
+        //本地记录了offset时从下一条继续
+        StreamOffsetStore store = new StreamOffsetStore(folder.getRoot().toPath(), 1);
+        store.track(QUEUE, 41);
+        assertEquals(42L, consumer(null).resolveOffset(QUEUE, "stored"));
+    }
+
+    /**
+     * 回溯后旧订阅还在路上的消息不记录offset
+     */
+    @Test
+    public void ignoresCancelledConsumers() throws IOException {
+        StreamOffsetConsumer consumer = consumer(connectionFactory());
+        consumer.start();
+        assertEquals(2, consumers.size());
+        consumer.rewind("first");
+        assertEquals(4, consumers.size());
+
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .headers(Collections.<String, Object>singletonMap("x-stream-offset", 7L)).build();
+        consumers.get(1).handleDelivery("tag-1", new Envelope(1, false, "", QUEUE), properties, new byte[0]);
+        assertNull(new StreamOffsetStore(folder.getRoot().toPath(), 1).committed(QUEUE));
+        consumer.stop();
+    }
+
+    private StreamOffsetConsumer consumer(ConnectionFactory connectionFactory) throws IOException {
+        return new StreamOffsetConsumer(connectionFactory, null, folder.getRoot().getPath(), 1, 500, "stored",
+                null, null, new AdminServer(false, null, 0));
+    }
+
+    private static void assertInvalid(StreamOffsetConsumer consumer, String from) {
+        try {
+            consumer.resolveOffset(QUEUE, from);
+            fail("应该不支持：" + from);
+        } catch (IllegalArgumentException expected) {
+            //格式不合法
+        }
+    }
+
+    private ConnectionFactory connectionFactory() {
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicConsume":
+                            consumers.add((Consumer) args[args.length - 1]);
+                            return "tag-" + consumers.size();
+                        case "isOpen":
+                            return true;
+                        default:
+                            return null;
+                    }
+                });
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> "createChannel".equals(method.getName()) ? channel : null);
+        return (ConnectionFactory) Proxy.newProxyInstance(ConnectionFactory.class.getClassLoader(),
+                new Class<?>[]{ConnectionFactory.class},
+                (proxy, method, args) -> "createConnection".equals(method.getName()) ? connection : null);
+    }
+}
@@ -0,0 +1,45 @@
+package com.xuecheng.test.rabbitmq.mq.stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 流队列offset本地存储的测试
+ */
+public class StreamOffsetStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 满一个批次才写文件，flush时写入剩余的offset
+     */
+    @Test
+    public void commitsInBatches() {
+        StreamOffsetStore store = new StreamOffsetStore(folder.getRoot().toPath(), 3);
+        store.track("queue_inform_email", 10);
+        store.track("queue_inform_email", 11);
+        assertNull(store.committed("queue_inform_email"));
+        store.track("queue_inform_email", 12);
+        assertEquals(Long.valueOf(12), store.committed("queue_inform_email"));
+        store.track("queue_inform_email", 13);
+        store.flush();
+        assertEquals(Long.valueOf(13), store.committed("queue_inform_email"));
+    }
+
+    /**
+     * 回溯后offset变小，直接覆盖，重启后的新实例能读到
+     */
+    @Test
+    public void rewindOverwritesAndSurvivesRestart() {
+        StreamOffsetStore store = new StreamOffsetStore(folder.getRoot().toPath(), 1);
+        store.track("queue_inform_sms", 100);
+        store.track("queue_inform_sms", 5);
+        StreamOffsetStore restarted = new StreamOffsetStore(folder.getRoot().toPath(), 1);
+        assertEquals(Long.valueOf(5), restarted.committed("queue_inform_sms"));
+        assertNull(restarted.committed("queue_inform_email"));
+    }
+}
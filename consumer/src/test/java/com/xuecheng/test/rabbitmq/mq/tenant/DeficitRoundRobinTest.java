@@ -0,0 +1,84 @@
+package com.xuecheng.test.rabbitmq.mq.tenant;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 赤字轮转调度的公平性
+ */
+public class DeficitRoundRobinTest {
+
+    @Test
+    public void sharesByWeightWhenAllBacklogged() {
+        DeficitRoundRobin<String> drr = new DeficitRoundRobin<>(1);
+        drr.addTenant("acme", 3);
+        drr.addTenant("globex", 1);
+        for (int i = 0; i < 1000; i++) {
+            drr.offer("acme", "a" + i, 1);
+            drr.offer("globex", "g" + i, 1);
+        }
+        for (int i = 0; i < 400; i++) {
+            drr.poll();
+        }
+        assertEquals(300, drr.served("acme"));
+        assertEquals(100, drr.served("globex"));
+    }
+
+    @Test
+    public void noisyTenantDoesNotDelayQuietTenant() throws InterruptedException {
+        DeficitRoundRobin<String> drr = new DeficitRoundRobin<>(1);
+        drr.addTenant("noisy", 1);
+        drr.addTenant("quiet", 1);
+        for (int i = 0; i < 10000; i++) {
+            drr.offer("noisy", "n" + i, 1);
+        }
+        drr.poll();
+        drr.offer("quiet", "q", 1);
+        //先进先出的话要等10000条之后，轮转时下一个就是它
+        assertEquals("q", drr.poll(0, TimeUnit.MILLISECONDS));
+        //只有一个租户有任务时可以用满处理能力
+        for (int i = 0; i < 9999; i++) {
+            drr.poll();
+        }
+        assertEquals(0, drr.size());
+        assertNull(drr.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void costFairnessAndNoBankingWhenIdle() {
+        DeficitRoundRobin<String> drr = new DeficitRoundRobin<>(1000);
+        drr.addTenant("big", 1);
+        drr.addTenant("small", 1);
+        for (int i = 0; i < 100; i++) {
+            drr.offer("big", "b" + i, 1000);
+            drr.offer("small", "s" + i, 100);
+        }
+        for (int i = 0; i < 44; i++) {
+            drr.poll();
+        }
+        //每轮各1000的额度：大消息1条，小消息10条
+        assertEquals(4, drr.served("big"));
+        assertEquals(40, drr.served("small"));
+        assertEquals(drr.servedCost("big"), drr.servedCost("small"));
+
+        //空闲时额度清零，回来后不能一次占用多轮的份额
+        DeficitRoundRobin<String> idle = new DeficitRoundRobin<>(1);
+        idle.addTenant("a", 1);
+        idle.addTenant("b", 1);
+        idle.offer("a", "a0", 1);
+        idle.poll();
+        for (int i = 0; i < 10; i++) {
+            idle.offer("a", "a" + (i + 1), 1);
+            idle.offer("b", "b" + i, 1);
+        }
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            order.append(idle.poll());
+        }
+        assertEquals("a1b0a2b1", order.toString());
+    }
+}
@@ -0,0 +1,133 @@
+package com.xuecheng.test.rabbitmq.mq.tuning;
+
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 运行中调参的测试，容器不启动，只检查参数是否设置到容器上
+ */
+public class ListenerTunerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SimpleMessageListenerContainer email = new SimpleMessageListenerContainer();
+    private final SimpleMessageListenerContainer sms = new SimpleMessageListenerContainer();
+    private final Collection<MessageListenerContainer> containers = Arrays.asList(email, sms);
+    private final ListenerSettings initial = new ListenerSettings(1, 1, 1, 1, 0);
+    private Path auditFile;
+
+    @Before
+    public void setUp() {
+        email.setQueueNames(RabbitMQConfig.QUEUE_INFORM_EMAIL);
+        sms.setQueueNames(RabbitMQConfig.QUEUE_INFORM_SMS);
+        auditFile = folder.getRoot().toPath().resolve("tuning-audit.log");
+    }
+
+    private ListenerTuner tuner(boolean coalescing, Path file) {
+        return new ListenerTuner(() -> containers, initial, coalescing, true, file, new TuningAudit(auditFile), 0);
+    }
+
+    @Test
+    public void appliesToContainersAndAudits() throws Exception {
+        ListenerTuner tuner = tuner(false, null);
+        tuner.apply(RabbitMQConfig.QUEUE_INFORM_EMAIL,
+                Collections.singletonMap(ListenerSettings.CONCURRENCY, "4"), "http");
+        tuner.apply(null, Collections.singletonMap(ListenerSettings.PREFETCH, "250"), "http");
+
+        assertEquals(4, ReflectionTestUtils.getField(email, "concurrentConsumers"));
+        assertEquals(4, ReflectionTestUtils.getField(email, "maxConcurrentConsumers"));
+        assertEquals(250, ReflectionTestUtils.getField(email, "prefetchCount"));
+        assertEquals(1, ReflectionTestUtils.getField(sms, "concurrentConsumers"));
+        assertEquals(250, ReflectionTestUtils.getField(sms, "prefetchCount"));
+
+        tuner.recordResults(System.currentTimeMillis());
+        List<String> lines = Files.readAllLines(auditFile, StandardCharsets.UTF_8);
+        assertEquals(6, lines.size());
+        assertTrue(lines.get(0).contains("http queue_inform_email concurrency 1->4, max-concurrency 1->4 调整前吞吐量="));
+        assertTrue(lines.get(5).contains("调整后吞吐量="));
+    }
+
+    /**
+     * 有一个参数不合法时，所有容器都不修改
+     */
+    @Test
+    public void rejectsInvalidChangesWithoutApplyingAny() {
+        ListenerTuner tuner = tuner(false, null);
+        try {
+            tuner.apply(null, Collections.singletonMap(ListenerSettings.BATCH_SIZE, "0"), "http");
+            fail("batch-size为0时应该拒绝");
+        } catch (IllegalArgumentException expected) {
+            assertEquals(1, tuner.settings(RabbitMQConfig.QUEUE_INFORM_EMAIL).getBatchSize());
+        }
+        try {
+            tuner.apply("queue_missing", Collections.singletonMap(ListenerSettings.PREFETCH, "10"), "http");
+            fail("队列不存在时应该拒绝");
+        } catch (IllegalArgumentException expected) {
+            //没有这个队列的容器
+        }
+        ListenerTuner coalescing = tuner(true, null);
+        try {
+            coalescing.apply(null, Collections.singletonMap(ListenerSettings.PREFETCH, "10"), "http");
+            fail("通知合并开启时不能修改prefetch");
+        } catch (IllegalStateException expected) {
+            assertEquals(1, ReflectionTestUtils.getField(email, "prefetchCount"));
+        }
+        coalescing.apply(null, Collections.singletonMap(ListenerSettings.RATE_LIMIT, "100"), "http");
+        assertEquals(100, coalescing.settings(RabbitMQConfig.QUEUE_INFORM_SMS).getRateLimit(), 0);
+    }
+
+    /**
+     * 参数文件修改后生效，带队列名的参数覆盖公共参数
+     */
+    @Test
+    public void reloadsWatchedFile() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("tuning.properties");
+        Files.write(file, ("batch-size=10\nprefetch=100\n" + RabbitMQConfig.QUEUE_INFORM_SMS + ".prefetch=20\n")
+                .getBytes(StandardCharsets.UTF_8));
+        ListenerTuner tuner = tuner(false, file);
+        tuner.reloadIfModified();
+        assertEquals(100, tuner.settings(RabbitMQConfig.QUEUE_INFORM_EMAIL).getPrefetch());
+        assertEquals(20, tuner.settings(RabbitMQConfig.QUEUE_INFORM_SMS).getPrefetch());
+        assertEquals(10, ReflectionTestUtils.getField(sms, "txSize"));
+
+        //文件没有修改时不重复记录
+        long before = Files.readAllLines(auditFile, StandardCharsets.UTF_8).size();
+        tuner.reloadIfModified();
+        assertEquals(before, Files.readAllLines(auditFile, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void measuresPerSecondThroughput() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        ThroughputMeter meter = new ThroughputMeter(now::get);
+        for (int second = 0; second < 10; second++) {
+            for (int i = 0; i < 50; i++) {
+                meter.record();
+            }
+            now.addAndGet(1000);
+        }
+        assertEquals(50, meter.rate(10), 0.001);
+        assertEquals(25, meter.rate(20), 0.001);
+        now.addAndGet(200_000);
+        assertEquals(0, meter.rate(10), 0.001);
+    }
+}
@@ -1,11 +1,21 @@
 package com.xuecheng.test.rabbitmq;
 
 import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.amqp.RabbitAutoConfiguration;
+import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
+import org.springframework.context.annotation.ComponentScan;
 
-@SpringBootApplication
+/**
+ * 只导入用到的自动配置，不加载spring.factories中的全部自动配置类再逐个判断条件，缩短启动时间
+ * 需要新的自动配置时加到@ImportAutoConfiguration中
+ */
+@SpringBootConfiguration
+@ComponentScan
+@ImportAutoConfiguration({PropertyPlaceholderAutoConfiguration.class, RabbitAutoConfiguration.class})
 public class ProducerApplication {
     public static void main(String[] args) {
         SpringApplication.run(ProducerApplication.class, args);
     }
-}
\ No newline at end of file
+}
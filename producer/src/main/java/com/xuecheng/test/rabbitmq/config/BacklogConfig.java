@@ -0,0 +1,90 @@
+package com.xuecheng.test.rabbitmq.config;
+
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.xuecheng.test.rabbitmq.mq.backlog.AmqpDepthProbe;
+import com.xuecheng.test.rabbitmq.mq.backlog.BacklogMonitor;
+import com.xuecheng.test.rabbitmq.mq.backlog.BudgetedPublisher;
+import com.xuecheng.test.rabbitmq.mq.backlog.MemoryBudget;
+import com.xuecheng.test.rabbitmq.mq.broker.AmqpPublishChannel;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import com.xuecheng.test.rabbitmq.mq.metrics.MetricsRecorder;
+import com.xuecheng.test.rabbitmq.mq.metrics.RecordingPublishChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 发送方内存预算的配置类，开启方式：xuecheng.mq.backlog.budget.enabled=true
+ * 使用单独的连接，连接参数沿用spring.rabbitmq，MQ的内存或磁盘告警通过这个连接的connection.blocked通知
+ */
+@Configuration
+@ConditionalOnProperty(name = "xuecheng.mq.backlog.budget.enabled", havingValue = "true")
+public class BacklogConfig {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BacklogConfig.class);
+
+    @Bean
+    public MemoryBudget memoryBudget(@Value("${xuecheng.mq.backlog.budget.max-bytes:268435456}") long maxBytes,
+                                     @Value("${xuecheng.mq.backlog.budget.resume-ratio:0.8}") double resumeRatio) {
+        return new MemoryBudget(maxBytes, resumeRatio);
+    }
+
+    @Bean(destroyMethod = "close")
+    public Connection backlogConnection(RabbitProperties rabbitProperties, MemoryBudget memoryBudget)
+            throws IOException, TimeoutException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(rabbitProperties.determineHost());
+        factory.setPort(rabbitProperties.determinePort());
+        factory.setUsername(rabbitProperties.determineUsername());
+        factory.setPassword(rabbitProperties.determinePassword());
+        factory.setVirtualHost(rabbitProperties.determineVirtualHost());
+        Connection connection = factory.newConnection("budgeted-publisher");
+        connection.addBlockedListener(new BlockedListener() {
+            @Override
+            public void handleBlocked(String reason) {
+                LOGGER.warn("MQ阻塞了发送：{}", reason);
+                memoryBudget.setBrokerBlocked(true);
+            }
+
+            @Override
+            public void handleUnblocked() {
+                LOGGER.info("MQ解除了发送阻塞");
+                memoryBudget.setBrokerBlocked(false);
+            }
+        });
+        return connection;
+    }
+
+    @Bean(destroyMethod = "close")
+    public BacklogMonitor backlogMonitor(Connection backlogConnection, MemoryBudget memoryBudget,
+                                         @Value("${xuecheng.mq.backlog.budget.queues:"
+                                                 + RabbitMQConfig.QUEUE_INFORM_EMAIL + ","
+                                                 + RabbitMQConfig.QUEUE_INFORM_SMS + "}") String[] queues,
+                                         @Value("${xuecheng.mq.backlog.budget.resident-ratio:1}") double residentRatio,
+                                         @Value("${xuecheng.mq.backlog.budget.poll-interval-ms:1000}") long intervalMillis) {
+        BacklogMonitor monitor = new BacklogMonitor(memoryBudget, new AmqpDepthProbe(backlogConnection),
+                Arrays.asList(queues), residentRatio);
+        monitor.start(intervalMillis);
+        return monitor;
+    }
+
+    @Bean(destroyMethod = "close")
+    public BudgetedPublisher budgetedPublisher(Connection backlogConnection, MemoryBudget memoryBudget,
+                                               ObjectProvider<MetricsRecorder> metricsRecorder,
+                                               @Value("${xuecheng.mq.backlog.budget.wait-ms:30000}") long waitMillis)
+            throws IOException {
+        PublishChannel channel = RecordingPublishChannel.wrap(
+                new AmqpPublishChannel(backlogConnection.createChannel()), metricsRecorder.getIfAvailable());
+        return new BudgetedPublisher(channel, memoryBudget, waitMillis);
+    }
+}
@@ -0,0 +1,48 @@
+package com.xuecheng.test.rabbitmq.config;
+
+import com.rabbitmq.client.ConnectionFactory;
+import com.xuecheng.test.rabbitmq.mq.broker.ConnectionGroup;
+import com.xuecheng.test.rabbitmq.mq.bulk.BulkPublisher;
+import com.xuecheng.test.rabbitmq.mq.metrics.MetricsRecorder;
+import com.xuecheng.test.rabbitmq.mq.metrics.RecordingPublishChannel;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 并行批量发送的配置类，开启方式：xuecheng.mq.bulk.enabled=true
+ * 使用独立的连接，不占用RabbitTemplate的连接，连接参数沿用spring.rabbitmq
+ */
+@Configuration
+@ConditionalOnProperty(name = "xuecheng.mq.bulk.enabled", havingValue = "true")
+public class BulkPublishConfig {
+
+    @Bean(destroyMethod = "close")
+    public ConnectionGroup bulkConnectionGroup(RabbitProperties rabbitProperties,
+                                               @Value("${xuecheng.mq.bulk.connections:2}") int connections) {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(rabbitProperties.determineHost());
+        factory.setPort(rabbitProperties.determinePort());
+        factory.setUsername(rabbitProperties.determineUsername());
+        factory.setPassword(rabbitProperties.determinePassword());
+        factory.setVirtualHost(rabbitProperties.determineVirtualHost());
+        return new ConnectionGroup(factory, connections, "bulk-publisher");
+    }
+
+    @Bean
+    public BulkPublisher bulkPublisher(ConnectionGroup bulkConnectionGroup,
+                                       ObjectProvider<MetricsRecorder> metricsRecorder,
+                                       @Value("${xuecheng.mq.bulk.partitions:8}") int partitions,
+                                       @Value("${xuecheng.mq.bulk.confirm-window:1000}") int confirmWindow,
+                                       @Value("${xuecheng.mq.bulk.chunk-size:1000}") int chunkSize,
+                                       @Value("${xuecheng.mq.bulk.max-attempts:3}") int maxAttempts,
+                                       @Value("${xuecheng.mq.bulk.confirm-timeout-ms:30000}") long confirmTimeoutMillis,
+                                       @Value("${xuecheng.mq.bulk.progress-interval-ms:5000}") long progressIntervalMillis) {
+        MetricsRecorder recorder = metricsRecorder.getIfAvailable();
+        return new BulkPublisher(() -> RecordingPublishChannel.wrap(bulkConnectionGroup.get(), recorder),
+                partitions, confirmWindow, chunkSize, maxAttempts, confirmTimeoutMillis, progressIntervalMillis);
+    }
+}
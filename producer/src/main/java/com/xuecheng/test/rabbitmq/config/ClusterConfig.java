@@ -0,0 +1,125 @@
+package com.xuecheng.test.rabbitmq.config;
+
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.xuecheng.test.rabbitmq.mq.TopicMatcher;
+import com.xuecheng.test.rabbitmq.mq.broker.AmqpPublishChannel;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import com.xuecheng.test.rabbitmq.mq.cluster.BrokerEndpoint;
+import com.xuecheng.test.rabbitmq.mq.cluster.EndpointSelector;
+import com.xuecheng.test.rabbitmq.mq.cluster.HealthProber;
+import com.xuecheng.test.rabbitmq.mq.cluster.MultiBrokerPublisher;
+import com.xuecheng.test.rabbitmq.mq.cluster.QueueLeaderLocator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 多节点发送配置类，开启方式：xuecheng.mq.cluster.enabled=true
+ * 用户名、密码和虚拟机沿用spring.rabbitmq
+ */
+@Configuration
+@ConditionalOnProperty(name = "xuecheng.mq.cluster.enabled", havingValue = "true")
+public class ClusterConfig {
+
+    @Bean(destroyMethod = "close")
+    public MultiBrokerPublisher multiBrokerPublisher(RabbitProperties rabbitProperties,
+                                                     @Value("${xuecheng.mq.cluster.endpoints:127.0.0.1:5672}") String endpointSpecs,
+                                                     @Value("${xuecheng.mq.cluster.strategy:weighted}") String strategy,
+                                                     @Value("${xuecheng.mq.cluster.probe-interval-ms:1000}") long probeInterval,
+                                                     @Value("${xuecheng.mq.cluster.probe-timeout-ms:500}") int probeTimeout,
+                                                     @Value("${xuecheng.mq.cluster.fall:2}") int fall,
+                                                     @Value("${xuecheng.mq.cluster.rise:3}") int rise,
+                                                     @Value("${xuecheng.mq.cluster.management-url:}") String managementUrl,
+                                                     @Value("${xuecheng.mq.cluster.leader-refresh-ms:30000}") long leaderRefresh) {
+        List<BrokerEndpoint> endpoints = new ArrayList<>();
+        for (String spec : StringUtils.commaDelimitedListToStringArray(endpointSpecs)) {
+            endpoints.add(BrokerEndpoint.parse(spec));
+        }
+        HealthProber prober = new HealthProber(endpoints, HealthProber.Probe.tcp(probeTimeout), fall, rise);
+        prober.start(probeInterval);
+
+        QueueLeaderLocator leaderLocator = null;
+        if (StringUtils.hasText(managementUrl)) {
+            leaderLocator = new QueueLeaderLocator(endpoints, QueueLeaderLocator.management(managementUrl,
+                    rabbitProperties.determineVirtualHost(), rabbitProperties.determineUsername(),
+                    rabbitProperties.determinePassword()));
+            QueueLeaderLocator locator = leaderLocator;
+            ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "queue-leader-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(locator::refresh, 0, leaderRefresh, TimeUnit.MILLISECONDS);
+        }
+        return new MultiBrokerPublisher(endpoints, endpoint -> open(rabbitProperties, endpoint),
+                EndpointSelector.of(strategy), prober, leaderLocator, ClusterConfig::targetQueue);
+    }
+
+    /**
+     * RoutingKey只匹配一个队列时返回这个队列
+     */
+    static String targetQueue(String routingKey) {
+        boolean email = TopicMatcher.matches(RabbitMQConfig.ROUTINGKEY_EMAIL, routingKey);
+        boolean sms = TopicMatcher.matches(RabbitMQConfig.ROUTINGKEY_SMS, routingKey);
+        if (email == sms) {
+            return null;
+        }
+        return email ? RabbitMQConfig.QUEUE_INFORM_EMAIL : RabbitMQConfig.QUEUE_INFORM_SMS;
+    }
+
+    private static PublishChannel open(RabbitProperties rabbitProperties, BrokerEndpoint endpoint)
+            throws IOException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(endpoint.getHost());
+        factory.setPort(endpoint.getPort());
+        factory.setUsername(rabbitProperties.determineUsername());
+        factory.setPassword(rabbitProperties.determinePassword());
+        factory.setVirtualHost(rabbitProperties.determineVirtualHost());
+        //断开后由健康检查和MultiBrokerPublisher切换节点，不使用客户端的自动恢复
+        factory.setAutomaticRecoveryEnabled(false);
+        Connection connection;
+        try {
+            connection = factory.newConnection("multi-broker-" + endpoint.getAddress());
+        } catch (TimeoutException e) {
+            throw new IOException("连接MQ节点超时：" + endpoint, e);
+        }
+        AmqpPublishChannel channel = new AmqpPublishChannel(connection.createChannel());
+        return new PublishChannel() {
+            @Override
+            public long getNextSeqNo() {
+                return channel.getNextSeqNo();
+            }
+
+            @Override
+            public long publish(String exchange, String routingKey, byte[] body) throws IOException {
+                return channel.publish(exchange, routingKey, body);
+            }
+
+            @Override
+            public void setConfirmHandler(ConfirmHandler handler) {
+                channel.setConfirmHandler(handler);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    channel.close();
+                } finally {
+                    connection.abort();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,31 @@
+package com.xuecheng.test.rabbitmq.config;
+
+import com.xuecheng.test.rabbitmq.mq.dedup.DedupFilter;
+import com.xuecheng.test.rabbitmq.mq.dedup.DedupPublisher;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 发送去重的配置类，开启方式：xuecheng.mq.dedup.enabled=true
+ * 内存占用约为 2 × 分片数 × 容量 × 4.2字节，桶数向上取2的幂，默认配置约16MB，一个窗口内最多记住约200万个消息ID
+ */
+@Configuration
+@ConditionalOnProperty(name = "xuecheng.mq.dedup.enabled", havingValue = "true")
+public class DedupConfig {
+
+    @Bean
+    public DedupFilter dedupFilter(@Value("${xuecheng.mq.dedup.shards:16}") int shards,
+                                   @Value("${xuecheng.mq.dedup.capacity-per-shard:124000}") int capacityPerShard,
+                                   @Value("${xuecheng.mq.dedup.window-ms:600000}") long windowMillis) {
+        return new DedupFilter(shards, capacityPerShard, windowMillis, System::currentTimeMillis);
+    }
+
+    @Bean(destroyMethod = "close")
+    public DedupPublisher dedupPublisher(RabbitTemplate rabbitTemplate, DedupFilter dedupFilter,
+                                         @Value("${xuecheng.mq.dedup.stats-interval-ms:60000}") long statsIntervalMillis) {
+        return new DedupPublisher(rabbitTemplate, dedupFilter, statsIntervalMillis);
+    }
+}
@@ -0,0 +1,27 @@
+package com.xuecheng.test.rabbitmq.config;
+
+import com.xuecheng.test.rabbitmq.mq.envelope.EnvelopePublisher;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 小消息打包发送的配置类，开启方式：xuecheng.mq.envelope.enabled=true
+ * 消费方总是能识别信封消息，不需要额外配置
+ */
+@Configuration
+@ConditionalOnProperty(name = "xuecheng.mq.envelope.enabled", havingValue = "true")
+public class EnvelopeConfig {
+
+    @Bean(destroyMethod = "close")
+    public EnvelopePublisher envelopePublisher(RabbitTemplate rabbitTemplate,
+                                               @Value("${xuecheng.mq.envelope.max-messages:100}") int maxMessages,
+                                               @Value("${xuecheng.mq.envelope.max-bytes:65536}") int maxBytes,
+                                               @Value("${xuecheng.mq.envelope.small-bytes:1024}") int smallBytes,
+                                               @Value("${xuecheng.mq.envelope.linger-ms:5}") long lingerMillis) {
+        return new EnvelopePublisher(rabbitTemplate, RabbitMQConfig.EXCHANGE_TOPICS_INFORM,
+                maxMessages, maxBytes, smallBytes, lingerMillis);
+    }
+}
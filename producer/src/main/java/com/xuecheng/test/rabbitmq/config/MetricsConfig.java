@@ -0,0 +1,80 @@
+package com.xuecheng.test.rabbitmq.config;
+
+import com.xuecheng.test.rabbitmq.mq.metrics.MetricsFile;
+import com.xuecheng.test.rabbitmq.mq.metrics.MetricsRecorder;
+import com.xuecheng.test.rabbitmq.mq.metrics.RecordingRabbitTemplate;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.retry.backoff.ExponentialBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * 性能数据记录的配置类，开启方式：xuecheng.mq.metrics.enabled=true
+ * 开启后BudgetedPublisher和BulkPublisher的通道，以及RabbitTemplate（DedupPublisher、ClaimCheckPublisher、
+ * HeadersPublisher、EnvelopePublisher等）记录每秒的发送、确认次数和耗时，RpcClient另外记录请求到回复的耗时，查询用MetricsQuery
+ * 延迟消息的BatchPublisher使用自己的通道，不记录
+ */
+@Configuration
+@ConditionalOnProperty(name = "xuecheng.mq.metrics.enabled", havingValue = "true")
+public class MetricsConfig {
+
+    @Bean(destroyMethod = "close")
+    public MetricsRecorder metricsRecorder(@Value("${xuecheng.mq.metrics.dir:metrics}") String dir,
+                                           @Value("${xuecheng.mq.metrics.node:}") String node,
+                                           @Value("${xuecheng.mq.metrics.max-file-bytes:67108864}") long maxFileBytes,
+                                           @Value("${xuecheng.mq.metrics.max-files:24}") int maxFiles)
+            throws IOException {
+        MetricsFile.Writer writer = new MetricsFile.Writer(Paths.get(dir),
+                StringUtils.hasText(node) ? node : MetricsFile.localNode("producer"), maxFileBytes, maxFiles);
+        MetricsRecorder recorder = new MetricsRecorder(writer, System::currentTimeMillis);
+        recorder.start();
+        return recorder;
+    }
+
+    /**
+     * 替换Spring Boot自动配置的RabbitTemplate，spring.rabbitmq.template的配置照常生效
+     */
+    @Bean
+    public RabbitTemplate rabbitTemplate(ConnectionFactory connectionFactory, MetricsRecorder metricsRecorder,
+                                         RabbitProperties rabbitProperties,
+                                         ObjectProvider<MessageConverter> messageConverter) {
+        RabbitTemplate template = new RecordingRabbitTemplate(connectionFactory, metricsRecorder);
+        MessageConverter converter = messageConverter.getIfUnique();
+        if (converter != null) {
+            template.setMessageConverter(converter);
+        }
+        RabbitProperties.Template properties = rabbitProperties.getTemplate();
+        template.setMandatory(properties.getMandatory() != null
+                ? properties.getMandatory() : rabbitProperties.isPublisherReturns());
+        RabbitProperties.Retry retry = properties.getRetry();
+        if (retry.isEnabled()) {
+            RetryTemplate retryTemplate = new RetryTemplate();
+            retryTemplate.setRetryPolicy(new SimpleRetryPolicy(retry.getMaxAttempts()));
+            ExponentialBackOffPolicy backOff = new ExponentialBackOffPolicy();
+            backOff.setInitialInterval(retry.getInitialInterval());
+            backOff.setMultiplier(retry.getMultiplier());
+            backOff.setMaxInterval(retry.getMaxInterval());
+            retryTemplate.setBackOffPolicy(backOff);
+            template.setRetryTemplate(retryTemplate);
+        }
+        if (properties.getReceiveTimeout() != null) {
+            template.setReceiveTimeout(properties.getReceiveTimeout());
+        }
+        if (properties.getReplyTimeout() != null) {
+            template.setReplyTimeout(properties.getReplyTimeout());
+        }
+        return template;
+    }
+}
@@ -2,8 +2,15 @@ package com.xuecheng.test.rabbitmq.config;
 
 import org.springframework.amqp.core.*;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.StringUtils;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * RabbitMQ配置类
@@ -30,6 +37,85 @@ public class RabbitMQConfig {
      * 短信RoutingKey，使用通配符，只接收短信的用户，发送inform.sms。都接收的用户，发送inform.email.sms
      */
     public static final String ROUTINGKEY_SMS = "inform.#.sms.#";
+    /**
+     * 消息头交换机，按消息头而不是RoutingKey路由，开启方式：xuecheng.mq.headers.enabled=true
+     */
+    public static final String EXCHANGE_HEADERS_INFORM = "exchange_headers_inform";
+    /**
+     * 消息头：发送邮件，值为true
+     */
+    public static final String HEADER_INFORM_EMAIL = "inform-email";
+    /**
+     * 消息头：发送短信，值为true，邮件和短信都发送的用户两个消息头都带上
+     */
+    public static final String HEADER_INFORM_SMS = "inform-sms";
+    /**
+     * 消息头：租户
+     */
+    public static final String HEADER_TENANT = "tenant";
+    /**
+     * 消息头：用户的语言，例如zh-CN
+     */
+    public static final String HEADER_LOCALE = "locale";
+    /**
+     * 队列类型：经典队列（默认）
+     */
+    public static final String QUEUE_TYPE_CLASSIC = "classic";
+    /**
+     * 队列类型：仲裁队列，基于Raft多副本，用于高可用
+     */
+    public static final String QUEUE_TYPE_QUORUM = "quorum";
+    /**
+     * 队列类型：流队列，消息消费后不删除，消费者可以按offset或时间戳重放
+     */
+    public static final String QUEUE_TYPE_STREAM = "stream";
+    /**
+     * 经典队列的lazy模式：消息尽早写入磁盘，内存中只保留少量，适合大量积压
+     */
+    public static final String QUEUE_MODE_LAZY = "lazy";
+    /**
+     * 溢出策略：超过长度上限时丢弃队头最老的消息（MQ的默认策略）
+     */
+    public static final String OVERFLOW_DROP_HEAD = "drop-head";
+    /**
+     * 溢出策略：超过长度上限时拒绝新消息，开启确认的发送方收到basic.nack
+     */
+    public static final String OVERFLOW_REJECT_PUBLISH = "reject-publish";
+    /**
+     * 溢出策略：同reject-publish，被拒绝的消息再转到死信交换机，只有经典队列支持
+     */
+    public static final String OVERFLOW_REJECT_PUBLISH_DLX = "reject-publish-dlx";
+
+    /**
+     * 队列类型，classic、quorum、stream
+     */
+    @Value("${xuecheng.mq.queue-type:" + QUEUE_TYPE_CLASSIC + "}")
+    private String queueType;
+    /**
+     * 流队列的保留时长，例如72h、7D，为空则不限制，只在stream类型时生效
+     */
+    @Value("${xuecheng.mq.stream.max-age:}")
+    private String streamMaxAge;
+    /**
+     * 经典队列的模式，为空是默认模式，lazy为lazy模式
+     */
+    @Value("${xuecheng.mq.backlog.queue-mode:}")
+    private String queueMode;
+    /**
+     * 队列最多多少条消息，不大于0则不限制
+     */
+    @Value("${xuecheng.mq.backlog.max-length:0}")
+    private long maxLength;
+    /**
+     * 队列消息体最多多少字节，不大于0则不限制
+     */
+    @Value("${xuecheng.mq.backlog.max-length-bytes:0}")
+    private long maxLengthBytes;
+    /**
+     * 超过上限时的溢出策略，为空使用MQ的默认策略drop-head
+     */
+    @Value("${xuecheng.mq.backlog.overflow:}")
+    private String overflow;
 
     //声明交换机
     @Bean("exchange")
@@ -45,7 +131,7 @@ public class RabbitMQConfig {
      */
     @Bean("emailQueue")
     public Queue emailQueue() {
-        return new Queue(QUEUE_INFORM_EMAIL);
+        return new Queue(QUEUE_INFORM_EMAIL, true, false, false, informQueueArguments());
     }
 
     /**
@@ -53,7 +139,7 @@ public class RabbitMQConfig {
      */
     @Bean("smsQueue")
     public Queue smsQueue() {
-        return new Queue(QUEUE_INFORM_SMS);
+        return new Queue(QUEUE_INFORM_SMS, true, false, false, informQueueArguments());
     }
 
     /**
@@ -87,4 +173,153 @@ public class RabbitMQConfig {
                 .with(ROUTINGKEY_SMS)
                 .noargs();
     }
-}
\ No newline at end of file
+
+    /**
+     * 声明消息头交换机
+     */
+    @Bean("headersExchange")
+    @ConditionalOnProperty(name = "xuecheng.mq.headers.enabled", havingValue = "true")
+    public Exchange headersExchange() {
+        return ExchangeBuilder.headersExchange(EXCHANGE_HEADERS_INFORM)
+                .durable(true)
+                .build();
+    }
+
+    /**
+     * 绑定消息头交换机和邮件队列，消息头inform-email=true，加上xuecheng.mq.headers.email-match的条件，全部满足时路由
+     */
+    @Bean
+    @ConditionalOnProperty(name = "xuecheng.mq.headers.enabled", havingValue = "true")
+    public Binding headersBindingEmailQueue(@Qualifier("emailQueue") Queue queue,
+                                            @Qualifier("headersExchange") Exchange headersExchange,
+                                            @Value("${xuecheng.mq.headers.email-match:}") String match) {
+        return BindingBuilder.bind(queue).to(headersExchange).with("")
+                .and(headersBindingArguments(HEADER_INFORM_EMAIL, match));
+    }
+
+    /**
+     * 绑定消息头交换机和短信队列，消息头inform-sms=true，加上xuecheng.mq.headers.sms-match的条件，全部满足时路由
+     */
+    @Bean
+    @ConditionalOnProperty(name = "xuecheng.mq.headers.enabled", havingValue = "true")
+    public Binding headersBindingSmsQueue(@Qualifier("smsQueue") Queue queue,
+                                          @Qualifier("headersExchange") Exchange headersExchange,
+                                          @Value("${xuecheng.mq.headers.sms-match:}") String match) {
+        return BindingBuilder.bind(queue).to(headersExchange).with("")
+                .and(headersBindingArguments(HEADER_INFORM_SMS, match));
+    }
+
+    /**
+     * 生成消息头交换机的绑定参数，x-match=all
+     *
+     * @param flag  通知类型的消息头，值为true
+     * @param match 附加的条件，格式tenant=acme,locale=zh-CN，不能用x-开头的消息头，为空则只按通知类型路由
+     * @return 绑定参数
+     */
+    public static Map<String, Object> headersBindingArguments(String flag, String match) {
+        Map<String, Object> arguments = new LinkedHashMap<>();
+        arguments.put("x-match", "all");
+        arguments.put(flag, "true");
+        if (StringUtils.hasText(match)) {
+            for (String pair : match.split(",")) {
+                int eq = pair.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("消息头绑定条件格式错误：" + pair);
+                }
+                String name = pair.substring(0, eq).trim();
+                if (name.startsWith("x-")) {
+                    //x-开头的绑定参数不参与匹配，写了也不会过滤
+                    throw new IllegalArgumentException("绑定条件不能使用x-开头的消息头：" + pair);
+                }
+                arguments.put(name, pair.substring(eq + 1).trim());
+            }
+        }
+        return arguments;
+    }
+
+    /**
+     * 邮件和短信队列的参数：队列类型加上积压相关的参数
+     * 修改后需要先删除已有的队列，或者改用策略（rabbitmqctl set_policy）设置，否则声明时参数不一致会报错
+     */
+    private Map<String, Object> informQueueArguments() {
+        return backlogArguments(queueArguments(queueType, streamMaxAge), queueType,
+                queueMode, maxLength, maxLengthBytes, overflow);
+    }
+
+    /**
+     * 根据队列类型生成队列参数，仲裁队列和流队列都必须是持久化、非独占、非自动删除的队列
+     *
+     * @param type   队列类型
+     * @param maxAge 流队列的保留时长
+     * @return 队列参数，经典队列返回null，和原来的声明保持一致
+     */
+    public static Map<String, Object> queueArguments(String type, String maxAge) {
+        if (!StringUtils.hasText(type) || QUEUE_TYPE_CLASSIC.equals(type)) {
+            return null;
+        }
+        if (!QUEUE_TYPE_QUORUM.equals(type) && !QUEUE_TYPE_STREAM.equals(type)) {
+            throw new IllegalArgumentException("不支持的队列类型：" + type);
+        }
+        Map<String, Object> arguments = new HashMap<>();
+        arguments.put("x-queue-type", type);
+        if (QUEUE_TYPE_STREAM.equals(type) && StringUtils.hasText(maxAge)) {
+            arguments.put("x-max-age", maxAge);
+        }
+        return arguments;
+    }
+
+    /**
+     * 在队列参数上加上积压相关的参数，只检查队列类型是否支持，不检查MQ版本
+     * <p>
+     * lazy模式只有经典队列有，仲裁队列和流队列本来就把消息放在磁盘上；RabbitMQ 3.12起经典队列总是按lazy的方式工作，这个参数被忽略
+     * 流队列只支持按字节限制（按段删除最老的数据），不支持按条数限制和溢出策略
+     *
+     * @param arguments      queueArguments的结果，可以为null
+     * @param type           队列类型
+     * @param mode           队列模式，为空或default为默认模式，lazy为lazy模式
+     * @param maxLength      最多多少条消息，不大于0则不限制
+     * @param maxLengthBytes 消息体最多多少字节，不大于0则不限制
+     * @param overflow       溢出策略，为空使用MQ的默认策略，必须同时设置上限
+     * @return 队列参数，没有任何参数时返回null，和原来的声明保持一致
+     */
+    public static Map<String, Object> backlogArguments(Map<String, Object> arguments, String type, String mode,
+                                                       long maxLength, long maxLengthBytes, String overflow) {
+        boolean classic = !StringUtils.hasText(type) || QUEUE_TYPE_CLASSIC.equals(type);
+        Map<String, Object> result = arguments == null ? new HashMap<>() : new HashMap<>(arguments);
+        if (StringUtils.hasText(mode) && !"default".equals(mode)) {
+            if (!QUEUE_MODE_LAZY.equals(mode)) {
+                throw new IllegalArgumentException("不支持的队列模式：" + mode);
+            }
+            if (!classic) {
+                throw new IllegalArgumentException("只有经典队列支持lazy模式，" + type + "队列的消息本来就在磁盘上");
+            }
+            result.put("x-queue-mode", QUEUE_MODE_LAZY);
+        }
+        if (maxLength > 0) {
+            if (QUEUE_TYPE_STREAM.equals(type)) {
+                throw new IllegalArgumentException("流队列不支持按条数限制，改用max-length-bytes");
+            }
+            result.put("x-max-length", maxLength);
+        }
+        if (maxLengthBytes > 0) {
+            result.put("x-max-length-bytes", maxLengthBytes);
+        }
+        if (StringUtils.hasText(overflow)) {
+            if (maxLength <= 0 && maxLengthBytes <= 0) {
+                throw new IllegalArgumentException("设置溢出策略时必须设置max-length或max-length-bytes");
+            }
+            if (QUEUE_TYPE_STREAM.equals(type)) {
+                throw new IllegalArgumentException("流队列不支持溢出策略");
+            }
+            if (!OVERFLOW_DROP_HEAD.equals(overflow) && !OVERFLOW_REJECT_PUBLISH.equals(overflow)
+                    && !OVERFLOW_REJECT_PUBLISH_DLX.equals(overflow)) {
+                throw new IllegalArgumentException("不支持的溢出策略：" + overflow);
+            }
+            if (OVERFLOW_REJECT_PUBLISH_DLX.equals(overflow) && !classic) {
+                throw new IllegalArgumentException("只有经典队列支持reject-publish-dlx");
+            }
+            result.put("x-overflow", overflow);
+        }
+        return result.isEmpty() ? null : result;
+    }
+}
@@ -0,0 +1,61 @@
+package com.xuecheng.test.rabbitmq.config;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.ConnectionFactory;
+import com.xuecheng.test.rabbitmq.mq.recovery.JitteredBackOff;
+import com.xuecheng.test.rabbitmq.mq.recovery.RecoveringConnection;
+import com.xuecheng.test.rabbitmq.mq.recovery.RecoveringPublisher;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Map;
+
+/**
+ * 断线重发的发送方配置类，开启方式：xuecheng.mq.recovery.publisher.enabled=true
+ * 连接参数沿用spring.rabbitmq
+ */
+@Configuration
+@ConditionalOnProperty(name = "xuecheng.mq.recovery.publisher.enabled", havingValue = "true")
+public class RecoveryConfig {
+
+    @Bean(destroyMethod = "close")
+    public RecoveringPublisher recoveringPublisher(RabbitProperties rabbitProperties,
+                                                   @Value("${xuecheng.mq.queue-type:classic}") String queueType,
+                                                   @Value("${xuecheng.mq.stream.max-age:}") String streamMaxAge,
+                                                   @Value("${xuecheng.mq.backlog.queue-mode:}") String queueMode,
+                                                   @Value("${xuecheng.mq.backlog.max-length:0}") long maxLength,
+                                                   @Value("${xuecheng.mq.backlog.max-length-bytes:0}") long maxLengthBytes,
+                                                   @Value("${xuecheng.mq.backlog.overflow:}") String overflow,
+                                                   @Value("${xuecheng.mq.recovery.initial-ms:100}") long initialMillis,
+                                                   @Value("${xuecheng.mq.recovery.max-ms:10000}") long maxMillis,
+                                                   @Value("${xuecheng.mq.recovery.multiplier:2}") double multiplier,
+                                                   @Value("${xuecheng.mq.recovery.publisher.max-buffered:100000}") int maxBuffered,
+                                                   @Value("${xuecheng.mq.recovery.publisher.max-attempts:5}") int maxAttempts) {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(rabbitProperties.determineHost());
+        factory.setPort(rabbitProperties.determinePort());
+        factory.setUsername(rabbitProperties.determineUsername());
+        factory.setPassword(rabbitProperties.determinePassword());
+        factory.setVirtualHost(rabbitProperties.determineVirtualHost());
+        JitteredBackOff backOff = new JitteredBackOff(initialMillis, maxMillis, multiplier);
+        RecoveringConnection connection = new RecoveringConnection(factory, backOff, "recovering-publisher");
+        //和RabbitMQConfig声明的参数保持一致，否则声明时参数不一致会报错
+        Map<String, Object> arguments = RabbitMQConfig.backlogArguments(
+                RabbitMQConfig.queueArguments(queueType, streamMaxAge), queueType,
+                queueMode, maxLength, maxLengthBytes, overflow);
+        RecoveringPublisher publisher = new RecoveringPublisher(connection, channel -> {
+            channel.exchangeDeclare(RabbitMQConfig.EXCHANGE_TOPICS_INFORM, BuiltinExchangeType.TOPIC, true);
+            channel.queueDeclare(RabbitMQConfig.QUEUE_INFORM_EMAIL, true, false, false, arguments);
+            channel.queueDeclare(RabbitMQConfig.QUEUE_INFORM_SMS, true, false, false, arguments);
+            channel.queueBind(RabbitMQConfig.QUEUE_INFORM_EMAIL, RabbitMQConfig.EXCHANGE_TOPICS_INFORM,
+                    RabbitMQConfig.ROUTINGKEY_EMAIL);
+            channel.queueBind(RabbitMQConfig.QUEUE_INFORM_SMS, RabbitMQConfig.EXCHANGE_TOPICS_INFORM,
+                    RabbitMQConfig.ROUTINGKEY_SMS);
+        }, maxBuffered, maxAttempts, backOff);
+        connection.start();
+        return publisher;
+    }
+}
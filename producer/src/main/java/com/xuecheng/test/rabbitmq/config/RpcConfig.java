@@ -0,0 +1,28 @@
+package com.xuecheng.test.rabbitmq.config;
+
+import com.xuecheng.test.rabbitmq.mq.metrics.MetricsRecorder;
+import com.xuecheng.test.rabbitmq.mq.rpc.RpcClient;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 请求/响应模式的配置类，开启方式：xuecheng.mq.rpc.enabled=true
+ * 回复通道使用RabbitTemplate的同一个连接
+ */
+@Configuration
+@ConditionalOnProperty(name = "xuecheng.mq.rpc.enabled", havingValue = "true")
+public class RpcConfig {
+
+    @Bean(destroyMethod = "close")
+    public RpcClient rpcClient(ConnectionFactory connectionFactory,
+                               ObjectProvider<MetricsRecorder> metricsRecorder,
+                               @Value("${xuecheng.mq.rpc.timeout-ms:5000}") long timeoutMillis,
+                               @Value("${xuecheng.mq.rpc.tick-ms:10}") long tickMillis) {
+        return new RpcClient(() -> connectionFactory.createConnection().createChannel(false),
+                timeoutMillis, tickMillis, metricsRecorder.getIfAvailable());
+    }
+}
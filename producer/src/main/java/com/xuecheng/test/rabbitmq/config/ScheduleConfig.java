@@ -0,0 +1,48 @@
+package com.xuecheng.test.rabbitmq.config;
+
+import com.xuecheng.test.rabbitmq.mq.BatchPublisher;
+import com.xuecheng.test.rabbitmq.mq.schedule.DelayedMessageScheduler;
+import com.xuecheng.test.rabbitmq.mq.schedule.ScheduleLog;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * 定时消息配置类，开启方式：xuecheng.mq.schedule.enabled=true
+ */
+@Configuration
+@ConditionalOnProperty(name = "xuecheng.mq.schedule.enabled", havingValue = "true")
+public class ScheduleConfig {
+
+    /**
+     * 定时消息的批量发送，使用独立的确认模式通道
+     */
+    @Bean(destroyMethod = "close")
+    public BatchPublisher scheduleBatchPublisher(ConnectionFactory connectionFactory,
+                                                 @Value("${xuecheng.mq.schedule.confirm-timeout-ms:5000}") long confirmTimeout) {
+        return new BatchPublisher(connectionFactory, confirmTimeout);
+    }
+
+    /**
+     * 定时消息调度器
+     */
+    @Bean
+    public DelayedMessageScheduler delayedMessageScheduler(BatchPublisher scheduleBatchPublisher,
+                                                           @Value("${xuecheng.mq.schedule.dir:schedule-log}") String dir,
+                                                           @Value("${xuecheng.mq.schedule.segment-bytes:67108864}") long segmentBytes,
+                                                           @Value("${xuecheng.mq.schedule.sync:false}") boolean sync,
+                                                           @Value("${xuecheng.mq.schedule.tick-ms:100}") long tickMillis,
+                                                           @Value("${xuecheng.mq.schedule.wheel-size:4096}") int wheelSize,
+                                                           @Value("${xuecheng.mq.schedule.batch-size:500}") int batchSize,
+                                                           @Value("${xuecheng.mq.schedule.retry-delay-ms:5000}") long retryDelay)
+            throws IOException {
+        ScheduleLog log = new ScheduleLog(Paths.get(dir), segmentBytes, sync);
+        return new DelayedMessageScheduler(log, tickMillis, wheelSize, batchSize, retryDelay,
+                scheduleBatchPublisher::publish);
+    }
+}
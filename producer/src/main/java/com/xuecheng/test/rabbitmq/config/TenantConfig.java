@@ -0,0 +1,55 @@
+package com.xuecheng.test.rabbitmq.config;
+
+import com.rabbitmq.client.ConnectionFactory;
+import com.xuecheng.test.rabbitmq.mq.tenant.TenantPublisher;
+import com.xuecheng.test.rabbitmq.mq.tenant.TenantSpec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 按租户隔离发送的配置类，开启方式：xuecheng.mq.tenant.enabled=true
+ * 连接参数沿用spring.rabbitmq，vhost方式时虚拟机改为前缀+租户名
+ */
+@Configuration
+@ConditionalOnProperty(name = "xuecheng.mq.tenant.enabled", havingValue = "true")
+public class TenantConfig {
+
+    @Bean(destroyMethod = "close")
+    public TenantPublisher tenantPublisher(RabbitProperties rabbitProperties,
+                                           @Value("${xuecheng.mq.tenant.tenants}") String tenants,
+                                           @Value("${xuecheng.mq.tenant.isolation:queue}") String isolation,
+                                           @Value("${xuecheng.mq.tenant.vhost-prefix:tenant-}") String vhostPrefix,
+                                           @Value("${xuecheng.mq.tenant.channels-per-weight:2}") int channelsPerWeight,
+                                           @Value("${xuecheng.mq.tenant.wait-ms:1000}") long waitMillis,
+                                           @Value("${xuecheng.mq.tenant.stats-interval-ms:60000}") long statsIntervalMillis,
+                                           @Value("${xuecheng.mq.queue-type:classic}") String queueType,
+                                           @Value("${xuecheng.mq.stream.max-age:}") String streamMaxAge,
+                                           @Value("${xuecheng.mq.backlog.queue-mode:}") String queueMode,
+                                           @Value("${xuecheng.mq.backlog.max-length:0}") long maxLength,
+                                           @Value("${xuecheng.mq.backlog.max-length-bytes:0}") long maxLengthBytes,
+                                           @Value("${xuecheng.mq.backlog.overflow:}") String overflow)
+            throws IOException, TimeoutException {
+        TenantPublisher publisher = new TenantPublisher(
+                TenantSpec.parse(tenants, isolation, rabbitProperties.determineVirtualHost(), vhostPrefix),
+                vhost -> {
+                    ConnectionFactory factory = new ConnectionFactory();
+                    factory.setHost(rabbitProperties.determineHost());
+                    factory.setPort(rabbitProperties.determinePort());
+                    factory.setUsername(rabbitProperties.determineUsername());
+                    factory.setPassword(rabbitProperties.determinePassword());
+                    factory.setVirtualHost(vhost);
+                    return factory.newConnection("tenant-publisher-" + vhost);
+                },
+                channelsPerWeight, waitMillis,
+                RabbitMQConfig.backlogArguments(RabbitMQConfig.queueArguments(queueType, streamMaxAge), queueType,
+                        queueMode, maxLength, maxLengthBytes, overflow));
+        publisher.startStats(statsIntervalMillis);
+        return publisher;
+    }
+}
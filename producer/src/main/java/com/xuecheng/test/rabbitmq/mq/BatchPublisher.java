@@ -0,0 +1,82 @@
+package com.xuecheng.test.rabbitmq.mq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.MessageProperties;
+import org.springframework.amqp.AmqpIOException;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 批量发送，一批消息在同一个通道上连续发送，最后统一等待确认
+ * <p>
+ * 和RabbitTemplate逐条发送相比，省去了每条消息从缓存取通道、等待确认的开销
+ * 使用独立的确认模式通道，不影响RabbitTemplate的通道缓存
+ * 每条消息使用自己的消息属性，没有指定时为持久化的text/plain
+ */
+public class BatchPublisher {
+    private final ConnectionFactory connectionFactory;
+    private final long confirmTimeoutMillis;
+    private Channel channel;
+
+    public BatchPublisher(ConnectionFactory connectionFactory, long confirmTimeoutMillis) {
+        this.connectionFactory = connectionFactory;
+        this.confirmTimeoutMillis = confirmTimeoutMillis;
+    }
+
+    /**
+     * 发送一批消息，全部确认后返回，有消息被拒绝或超时抛出异常，调用方负责重发整批
+     *
+     * @param batch 消息
+     */
+    public synchronized void publish(List<? extends OutboundMessage> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            Channel current = channel();
+            for (OutboundMessage message : batch) {
+                AMQP.BasicProperties properties = message.getProperties();
+                current.basicPublish(message.getExchange(), message.getRoutingKey(),
+                        properties != null ? properties : MessageProperties.PERSISTENT_TEXT_PLAIN, message.getBody());
+            }
+            current.waitForConfirmsOrDie(confirmTimeoutMillis);
+        } catch (IOException e) {
+            closeQuietly();
+            throw new AmqpIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeQuietly();
+            throw new AmqpIOException(new IOException("等待确认被中断", e));
+        } catch (TimeoutException e) {
+            closeQuietly();
+            throw new AmqpIOException(new IOException("等待确认超时", e));
+        }
+    }
+
+    private Channel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = connectionFactory.createConnection().createChannel(false);
+            channel.confirmSelect();
+        }
+        return channel;
+    }
+
+    private void closeQuietly() {
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.close();
+            }
+        } catch (IOException | TimeoutException ignored) {
+            //通道已经不可用，忽略
+        }
+        channel = null;
+    }
+
+    public synchronized void close() {
+        closeQuietly();
+    }
+}
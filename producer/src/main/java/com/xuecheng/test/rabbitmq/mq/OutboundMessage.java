@@ -0,0 +1,46 @@
+package com.xuecheng.test.rabbitmq.mq;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * 待发送的消息
+ */
+public class OutboundMessage {
+    private final String exchange;
+    private final String routingKey;
+    private final AMQP.BasicProperties properties;
+    private final byte[] body;
+
+    public OutboundMessage(String exchange, String routingKey, byte[] body) {
+        this(exchange, routingKey, null, body);
+    }
+
+    /**
+     * @param properties 消息属性（消息头、优先级等），为null时使用持久化的text/plain
+     */
+    public OutboundMessage(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.properties = properties;
+        this.body = body;
+    }
+
+    public String getExchange() {
+        return exchange;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    /**
+     * 消息属性，没有指定时为null
+     */
+    public AMQP.BasicProperties getProperties() {
+        return properties;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+}
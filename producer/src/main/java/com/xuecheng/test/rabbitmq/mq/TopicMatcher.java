@@ -0,0 +1,58 @@
+package com.xuecheng.test.rabbitmq.mq;
+
+/**
+ * 通配符模式RoutingKey的匹配，规则和topic交换机一致
+ * #：匹配零个或多个词
+ * *：只匹配一个词
+ */
+public final class TopicMatcher {
+    private TopicMatcher() {
+    }
+
+    /**
+     * 判断RoutingKey是否匹配绑定的通配符
+     *
+     * @param pattern    绑定时使用的RoutingKey，例如inform.#.email.#
+     * @param routingKey 发送时使用的RoutingKey，例如inform.email.sms
+     */
+    public static boolean matches(String pattern, String routingKey) {
+        String[] patternWords = pattern.split("\\.", -1);
+        String[] keyWords = routingKey.isEmpty() ? new String[0] : routingKey.split("\\.", -1);
+        return matches(patternWords, 0, keyWords, 0);
+    }
+
+    /**
+     * 统计RoutingKey会被路由到几个绑定上，也就是一条消息会被复制成几份
+     */
+    public static int countMatches(String routingKey, String... patterns) {
+        int count = 0;
+        for (String pattern : patterns) {
+            if (matches(pattern, routingKey)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] key, int k) {
+        if (p == pattern.length) {
+            return k == key.length;
+        }
+        if ("#".equals(pattern[p])) {
+            //#可以吃掉0到多个词
+            for (int i = k; i <= key.length; i++) {
+                if (matches(pattern, p + 1, key, i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (k == key.length) {
+            return false;
+        }
+        if ("*".equals(pattern[p]) || pattern[p].equals(key[k])) {
+            return matches(pattern, p + 1, key, k + 1);
+        }
+        return false;
+    }
+}
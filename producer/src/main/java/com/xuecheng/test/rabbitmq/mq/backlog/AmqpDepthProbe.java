@@ -0,0 +1,26 @@
+package com.xuecheng.test.rabbitmq.mq.backlog;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.io.IOException;
+
+/**
+ * 用被动声明读取队列的消息数，使用单独的通道，队列不存在时通道被关闭，下次重新创建
+ */
+public class AmqpDepthProbe implements BacklogMonitor.DepthProbe {
+    private final Connection connection;
+    private Channel channel;
+
+    public AmqpDepthProbe(Connection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public synchronized long depth(String queue) throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = connection.createChannel();
+        }
+        return channel.queueDeclarePassive(queue).getMessageCount();
+    }
+}
@@ -0,0 +1,92 @@
+package com.xuecheng.test.rabbitmq.mq.backlog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定时读取队列的消息数，估算MQ内存中积压的消息体大小，更新到MemoryBudget
+ * <p>
+ * 估算值 = 消息数 × 发送过的消息的平均大小 × 常驻内存比例
+ * 默认模式的经典队列积压的消息基本都在内存中，比例为1；lazy队列、仲裁队列、流队列的消息在磁盘上，比例可以设得很小
+ * 只统计本应用发送的队列，MQ上其他应用占用的内存不在估算范围内，预算上限要按本应用能用的份额设置
+ */
+public class BacklogMonitor implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BacklogMonitor.class);
+
+    private final MemoryBudget budget;
+    private final DepthProbe probe;
+    private final List<String> queues;
+    private final double residentRatio;
+    private final ScheduledExecutorService executor;
+    private volatile long depth;
+
+    /**
+     * @param residentRatio 积压的消息有多少比例在MQ内存中，0到1之间
+     */
+    public BacklogMonitor(MemoryBudget budget, DepthProbe probe, List<String> queues, double residentRatio) {
+        if (residentRatio < 0 || residentRatio > 1) {
+            throw new IllegalArgumentException("常驻内存比例必须在0和1之间：" + residentRatio);
+        }
+        this.budget = budget;
+        this.probe = probe;
+        this.queues = queues;
+        this.residentRatio = residentRatio;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mq-backlog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start(long intervalMillis) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (IOException e) {
+                //读不到时保留上一次的估算值
+                LOGGER.warn("读取队列消息数失败：{}", e.toString());
+            } catch (RuntimeException e) {
+                LOGGER.warn("读取队列消息数失败", e);
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 读取一次，返回估算的积压字节数
+     */
+    public long poll() throws IOException {
+        long total = 0;
+        for (String queue : queues) {
+            total += probe.depth(queue);
+        }
+        depth = total;
+        long bytes = (long) (total * budget.getAverageMessageBytes() * residentRatio);
+        budget.setBacklogBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * 最近一次读到的消息数合计
+     */
+    public long getDepth() {
+        return depth;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 读取队列的消息数，真实MQ用被动声明，进程内的模拟MQ直接读计数
+     */
+    public interface DepthProbe {
+        long depth(String queue) throws IOException;
+    }
+}
@@ -0,0 +1,275 @@
+package com.xuecheng.test.rabbitmq.mq.backlog;
+
+import com.xuecheng.test.rabbitmq.mq.OutboundMessage;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import com.xuecheng.test.rabbitmq.mq.buffer.BodyCodec;
+import com.xuecheng.test.rabbitmq.mq.buffer.BufferPool;
+import com.xuecheng.test.rabbitmq.mq.buffer.PooledBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 受内存预算限制的发送，开启方式：xuecheng.mq.backlog.budget.enabled=true
+ * <p>
+ * 发送前向MemoryBudget申请消息体大小，确认或拒绝后释放；预算用完时发送线程阻塞，最多等待waitMillis后抛出异常
+ * 被拒绝（basic.nack）的消息不自动重发，交给rejected回调，队列设置了reject-publish时说明队列已满，由调用方决定稍后重发还是丢弃
+ * 通道关闭时未确认的消息不会再有结果，同样释放预算并交给rejected回调，调用方重发时可能重复
+ * <p>
+ * publishText把文本直接编码到BufferPool的堆外缓冲区，确认或拒绝后归还，未确认的消息体不占用堆内存
+ */
+public class BudgetedPublisher implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BudgetedPublisher.class);
+
+    private final PublishChannel channel;
+    private final MemoryBudget budget;
+    private final long waitMillis;
+    private final Consumer<OutboundMessage> rejected;
+    private final BufferPool pool;
+    /**
+     * 发送序号 -> 未确认的消息，拒绝时交给回调
+     */
+    private final ConcurrentSkipListMap<Long, Pending> unconfirmed = new ConcurrentSkipListMap<>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong nacked = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    /**
+     * 被拒绝的消息只记录日志后丢弃
+     */
+    public BudgetedPublisher(PublishChannel channel, MemoryBudget budget, long waitMillis) {
+        this(channel, budget, waitMillis, null, new BufferPool());
+    }
+
+    /**
+     * @param rejected 被拒绝或者通道关闭时未确认的消息，在确认线程中调用，不能阻塞，也不能在回调中直接调用publish；
+     *                 为null时只记录日志
+     */
+    public BudgetedPublisher(PublishChannel channel, MemoryBudget budget, long waitMillis,
+                             Consumer<OutboundMessage> rejected) {
+        this(channel, budget, waitMillis, rejected, new BufferPool());
+    }
+
+    /**
+     * @param rejected 同上
+     * @param pool     publishText编码消息体使用的缓冲区池
+     */
+    public BudgetedPublisher(PublishChannel channel, MemoryBudget budget, long waitMillis,
+                             Consumer<OutboundMessage> rejected, BufferPool pool) {
+        this.channel = channel;
+        this.budget = budget;
+        this.waitMillis = waitMillis;
+        this.rejected = rejected;
+        this.pool = pool;
+        channel.setConfirmHandler(this::confirmed);
+        channel.setShutdownHandler(this::shutdown);
+    }
+
+    /**
+     * 发送一条消息，预算用完时阻塞
+     *
+     * @return 发送序号
+     * @throws IOException 等待预算超时、被中断或发送失败
+     */
+    public long publish(String exchange, String routingKey, byte[] body) throws IOException {
+        acquire(body.length);
+        return send(new Pending(exchange, routingKey, body, null, body.length),
+                () -> channel.publish(exchange, routingKey, body));
+    }
+
+    /**
+     * 按UTF-8编码后发送一条文本消息，消息体在堆外，确认后归还到池中，预算用完时阻塞
+     *
+     * @return 发送序号
+     * @throws IOException 等待预算超时、被中断或发送失败
+     */
+    public long publishText(String exchange, String routingKey, CharSequence text) throws IOException {
+        PooledBuffer body = BodyCodec.encodeUtf8(text, pool);
+        int size = body.buffer().remaining();
+        try {
+            acquire(size);
+        } catch (IOException | RuntimeException e) {
+            body.release();
+            throw e;
+        }
+        return send(new Pending(exchange, routingKey, null, body, size),
+                () -> channel.publish(exchange, routingKey, body.buffer().duplicate()));
+    }
+
+    private void acquire(int size) throws IOException {
+        try {
+            if (!budget.acquire(size, waitMillis)) {
+                throw new IOException("发送方内存预算已用完，等待" + waitMillis + "ms后仍未恢复：" + budget);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待内存预算被中断");
+        }
+    }
+
+    private synchronized long send(Pending pending, Send send) throws IOException {
+        //进程内的模拟MQ在publish中就会回调确认，必须先登记
+        long seqNo = channel.getNextSeqNo();
+        unconfirmed.put(seqNo, pending);
+        try {
+            send.send();
+        } catch (IOException | RuntimeException e) {
+            if (unconfirmed.remove(seqNo) != null) {
+                budget.release(pending.size);
+                pending.release();
+            }
+            throw e;
+        }
+        published.incrementAndGet();
+        return seqNo;
+    }
+
+    private void confirmed(long seqNo, boolean multiple, boolean ack) {
+        List<Pending> settled = new ArrayList<>();
+        if (multiple) {
+            ConcurrentNavigableMap<Long, Pending> confirmed = unconfirmed.headMap(seqNo, true);
+            for (Map.Entry<Long, Pending> entry : confirmed.entrySet()) {
+                if (confirmed.remove(entry.getKey()) != null) {
+                    settled.add(entry.getValue());
+                }
+            }
+        } else {
+            Pending pending = unconfirmed.remove(seqNo);
+            if (pending != null) {
+                settled.add(pending);
+            }
+        }
+        if (ack) {
+            release(settled);
+        } else if (!settled.isEmpty()) {
+            nacked.addAndGet(settled.size());
+            LOGGER.warn("{}条消息被MQ拒绝，队列可能已满", settled.size());
+            reject(settled);
+        }
+    }
+
+    /**
+     * 通道关闭，未确认的消息不会再收到确认，释放预算，否则断线一次预算就少一截，最后一直暂停
+     */
+    private void shutdown() {
+        List<Pending> pending = new ArrayList<>();
+        Map.Entry<Long, Pending> entry;
+        while ((entry = unconfirmed.pollFirstEntry()) != null) {
+            pending.add(entry.getValue());
+        }
+        if (!pending.isEmpty()) {
+            lost.addAndGet(pending.size());
+            LOGGER.warn("通道关闭，{}条消息没有收到确认", pending.size());
+            reject(pending);
+        }
+    }
+
+    private void release(List<Pending> settled) {
+        long bytes = 0;
+        for (Pending pending : settled) {
+            bytes += pending.size;
+            pending.release();
+        }
+        budget.release(bytes);
+    }
+
+    /**
+     * 先把消息体复制出来交给回调，再释放预算和缓冲区
+     */
+    private void reject(List<Pending> settled) {
+        List<OutboundMessage> messages = new ArrayList<>(settled.size());
+        if (rejected != null) {
+            for (Pending pending : settled) {
+                messages.add(pending.toMessage());
+            }
+        }
+        release(settled);
+        for (OutboundMessage message : messages) {
+            try {
+                rejected.accept(message);
+            } catch (RuntimeException e) {
+                LOGGER.warn("处理被拒绝的消息出错", e);
+            }
+        }
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    public MemoryBudget getBudget() {
+        return budget;
+    }
+
+    public int getUnconfirmed() {
+        return unconfirmed.size();
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getNacked() {
+        return nacked.get();
+    }
+
+    /**
+     * 通道关闭时没有收到确认的消息数
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        LOGGER.info("发送{}条，被拒绝{}条，未确认{}条，{}", getPublished(), getNacked(), getLost(), budget);
+    }
+
+    private interface Send {
+        void send() throws IOException;
+    }
+
+    /**
+     * 未确认的消息，消息体是堆内数组或者池化的堆外缓冲区
+     */
+    private static final class Pending {
+        private final String exchange;
+        private final String routingKey;
+        private final byte[] body;
+        private final PooledBuffer pooled;
+        private final int size;
+
+        private Pending(String exchange, String routingKey, byte[] body, PooledBuffer pooled, int size) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.body = body;
+            this.pooled = pooled;
+            this.size = size;
+        }
+
+        private OutboundMessage toMessage() {
+            if (body != null) {
+                return new OutboundMessage(exchange, routingKey, body);
+            }
+            byte[] copy = new byte[size];
+            pooled.buffer().duplicate().get(copy);
+            return new OutboundMessage(exchange, routingKey, copy);
+        }
+
+        private void release() {
+            if (pooled != null) {
+                pooled.release();
+            }
+        }
+    }
+}
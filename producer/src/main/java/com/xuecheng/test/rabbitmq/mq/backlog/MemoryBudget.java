@@ -0,0 +1,196 @@
+package com.xuecheng.test.rabbitmq.mq.backlog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 发送方的内存预算，在MQ触发内存告警之前停止发送
+ * <p>
+ * 占用 = 已发送未确认的消息体 + 估算的MQ内存中积压的消息体（BacklogMonitor定时更新）
+ * 占用达到上限时暂停，降到恢复线以下才继续，中间留出一段距离避免反复暂停、恢复
+ * MQ发出connection.blocked（内存或磁盘告警）时也暂停，直到connection.unblocked
+ * 没有暂停时acquire只有一次原子加法，不加锁
+ */
+public class MemoryBudget {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemoryBudget.class);
+
+    private final long maxBytes;
+    private final long resumeBytes;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong acquiredBytes = new AtomicLong();
+    private final AtomicLong acquiredMessages = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition resumed = lock.newCondition();
+
+    private volatile long backlogBytes;
+    private volatile boolean brokerBlocked;
+    private volatile boolean paused;
+    private long pausedAt;
+    private long pausedNanos;
+    private long pauses;
+    private long timeouts;
+
+    /**
+     * @param maxBytes    上限，字节
+     * @param resumeRatio 降到上限的多少比例以下恢复发送，0到1之间
+     */
+    public MemoryBudget(long maxBytes, double resumeRatio) {
+        if (maxBytes <= 0 || resumeRatio <= 0 || resumeRatio >= 1) {
+            throw new IllegalArgumentException("上限必须大于0，恢复比例必须在0和1之间");
+        }
+        this.maxBytes = maxBytes;
+        this.resumeBytes = (long) (maxBytes * resumeRatio);
+    }
+
+    /**
+     * 发送前申请，暂停时等待恢复
+     *
+     * @return 是否申请到，超时返回false，这时没有占用预算
+     */
+    public boolean acquire(int bytes, long timeoutMillis) throws InterruptedException {
+        if (paused && !awaitResume(timeoutMillis)) {
+            return false;
+        }
+        acquiredBytes.addAndGet(bytes);
+        acquiredMessages.incrementAndGet();
+        if (inFlightBytes.addAndGet(bytes) + backlogBytes >= maxBytes) {
+            update();
+        }
+        return true;
+    }
+
+    /**
+     * 消息确认或拒绝后释放
+     */
+    public void release(long bytes) {
+        inFlightBytes.addAndGet(-bytes);
+        if (paused) {
+            update();
+        }
+    }
+
+    /**
+     * 更新估算的MQ内存中积压的消息体大小
+     */
+    public void setBacklogBytes(long bytes) {
+        backlogBytes = Math.max(0, bytes);
+        update();
+    }
+
+    /**
+     * MQ的connection.blocked和connection.unblocked
+     */
+    public void setBrokerBlocked(boolean blocked) {
+        brokerBlocked = blocked;
+        update();
+    }
+
+    private boolean awaitResume(long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (paused) {
+                if (remaining <= 0) {
+                    timeouts++;
+                    return false;
+                }
+                remaining = resumed.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void update() {
+        lock.lock();
+        try {
+            long used = getUsedBytes();
+            if (!paused && (used >= maxBytes || brokerBlocked)) {
+                paused = true;
+                pauses++;
+                pausedAt = System.nanoTime();
+                LOGGER.warn("暂停发送：占用{}KB，上限{}KB，MQ阻塞={}", used / 1024, maxBytes / 1024, brokerBlocked);
+            } else if (paused && used <= resumeBytes && !brokerBlocked) {
+                paused = false;
+                long nanos = System.nanoTime() - pausedAt;
+                pausedNanos += nanos;
+                resumed.signalAll();
+                LOGGER.info("恢复发送：占用{}KB，暂停了{}ms", used / 1024, TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getUsedBytes() {
+        return inFlightBytes.get() + backlogBytes;
+    }
+
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    public long getBacklogBytes() {
+        return backlogBytes;
+    }
+
+    /**
+     * 发送过的消息的平均大小，用于估算积压占用的内存，还没有发送过时返回0
+     */
+    public long getAverageMessageBytes() {
+        long messages = acquiredMessages.get();
+        return messages == 0 ? 0 : acquiredBytes.get() / messages;
+    }
+
+    public long getPauses() {
+        lock.lock();
+        try {
+            return pauses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 累计暂停时长，包括正在进行的暂停
+     */
+    public long getPausedMillis() {
+        lock.lock();
+        try {
+            long nanos = pausedNanos + (paused ? System.nanoTime() - pausedAt : 0);
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTimeouts() {
+        lock.lock();
+        try {
+            return timeouts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "占用" + getUsedBytes() / 1024 + "KB/" + maxBytes / 1024 + "KB（未确认" + getInFlightBytes() / 1024
+                + "KB，积压" + getBacklogBytes() / 1024 + "KB），暂停" + getPauses() + "次共" + getPausedMillis()
+                + "ms，等待超时" + getTimeouts() + "次";
+    }
+}
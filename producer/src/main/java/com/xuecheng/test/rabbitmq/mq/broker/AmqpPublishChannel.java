@@ -0,0 +1,69 @@
+package com.xuecheng.test.rabbitmq.mq.broker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 基于RabbitMQ客户端通道的发送通道
+ */
+public class AmqpPublishChannel implements PublishChannel {
+    private final Channel channel;
+
+    public AmqpPublishChannel(Channel channel) throws IOException {
+        this.channel = channel;
+        channel.confirmSelect();
+    }
+
+    @Override
+    public long getNextSeqNo() {
+        return channel.getNextPublishSeqNo();
+    }
+
+    @Override
+    public long publish(String exchange, String routingKey, byte[] body) throws IOException {
+        return publish(exchange, routingKey, null, body);
+    }
+
+    @Override
+    public long publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body)
+            throws IOException {
+        long seqNo = channel.getNextPublishSeqNo();
+        channel.basicPublish(exchange, routingKey, properties, body);
+        return seqNo;
+    }
+
+    @Override
+    public void setConfirmHandler(ConfirmHandler handler) {
+        channel.addConfirmListener(new ConfirmListener() {
+            @Override
+            public void handleAck(long deliveryTag, boolean multiple) {
+                handler.handle(deliveryTag, multiple, true);
+            }
+
+            @Override
+            public void handleNack(long deliveryTag, boolean multiple) {
+                handler.handle(deliveryTag, multiple, false);
+            }
+        });
+    }
+
+    @Override
+    public void setShutdownHandler(Runnable handler) {
+        channel.addShutdownListener(cause -> handler.run());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        } catch (TimeoutException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.xuecheng.test.rabbitmq.mq.broker;
+
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 一组连接，通道轮流创建在不同的连接上
+ * <p>
+ * 同一个连接上的通道共用一个socket和一个读线程，大量发送时连接本身会成为瓶颈，
+ * 分散到多个连接上才能用满MQ的多个核
+ * 连接在第一次创建通道时建立，断开后下一次创建通道时重连
+ */
+public class ConnectionGroup implements Supplier<PublishChannel>, Closeable {
+    private final ConnectionFactory connectionFactory;
+    private final Connection[] connections;
+    private final String name;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public ConnectionGroup(ConnectionFactory connectionFactory, int size, String name) {
+        this.connectionFactory = connectionFactory;
+        this.connections = new Connection[size];
+        this.name = name;
+    }
+
+    /**
+     * 在下一个连接上创建确认模式的发送通道
+     */
+    @Override
+    public PublishChannel get() {
+        int index = Math.floorMod(next.getAndIncrement(), connections.length);
+        try {
+            return new AmqpPublishChannel(connection(index).createChannel());
+        } catch (IOException | TimeoutException e) {
+            throw new IllegalStateException("创建通道失败", e);
+        }
+    }
+
+    private synchronized Connection connection(int index) throws IOException, TimeoutException {
+        Connection connection = connections[index];
+        if (connection == null || !connection.isOpen()) {
+            connection = connectionFactory.newConnection(name + "-" + index);
+            connections[index] = connection;
+        }
+        return connection;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null && connections[i].isOpen()) {
+                connections[i].close();
+            }
+            connections[i] = null;
+        }
+    }
+}
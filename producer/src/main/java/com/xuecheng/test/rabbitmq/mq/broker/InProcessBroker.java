@@ -0,0 +1,198 @@
+package com.xuecheng.test.rabbitmq.mq.broker;
+
+import com.xuecheng.test.rabbitmq.mq.TopicMatcher;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的模拟MQ，用于没有RabbitMQ的环境下压测和基准测试
+ * <p>
+ * 只模拟topic交换机的路由和队列的消息数，不保存消息体，发送后立即确认
+ * 队列可以设置长度上限，溢出策略支持drop-head（丢弃最老的消息）和reject-publish（拒绝新消息，发送方收到nack）
+ * 可以用来测出客户端自身的开销上限，和真实MQ的结果对比就能知道瓶颈在哪一边
+ */
+public class InProcessBroker {
+    /**
+     * 交换机 -> 绑定
+     */
+    private final Map<String, CopyOnWriteArrayList<Binding>> bindings = new ConcurrentHashMap<>();
+    /**
+     * 队列 -> 统计
+     */
+    private final Map<String, QueueStats> queues = new ConcurrentHashMap<>();
+    private final AtomicLong unroutable = new AtomicLong();
+
+    /**
+     * 声明队列并绑定到交换机
+     */
+    public InProcessBroker bind(String queue, String exchange, String pattern) {
+        queues.computeIfAbsent(queue, q -> new QueueStats());
+        bindings.computeIfAbsent(exchange, e -> new CopyOnWriteArrayList<>()).add(new Binding(queue, pattern));
+        return this;
+    }
+
+    /**
+     * 设置队列的长度上限，和队列参数x-max-length、x-overflow对应
+     *
+     * @param maxLength     最多多少条消息
+     * @param rejectPublish true为reject-publish，false为drop-head
+     */
+    public InProcessBroker limit(String queue, long maxLength, boolean rejectPublish) {
+        QueueStats stats = queues.computeIfAbsent(queue, q -> new QueueStats());
+        stats.maxLength = maxLength;
+        stats.rejectPublish = rejectPublish;
+        return this;
+    }
+
+    /**
+     * 创建一个发送通道，每个线程使用自己的通道
+     */
+    public PublishChannel createChannel() {
+        return new InProcessChannel();
+    }
+
+    /**
+     * 模拟消费，从队列中取走消息
+     *
+     * @return 实际取走的条数
+     */
+    public long drain(String queue, long max) {
+        QueueStats stats = queues.get(queue);
+        if (stats == null) {
+            return 0;
+        }
+        while (true) {
+            long depth = stats.depth.get();
+            long taken = Math.min(depth, max);
+            if (stats.depth.compareAndSet(depth, depth - taken)) {
+                return taken;
+            }
+        }
+    }
+
+    /**
+     * 队列中的消息数
+     */
+    public long depth(String queue) {
+        QueueStats stats = queues.get(queue);
+        return stats == null ? 0 : stats.depth.get();
+    }
+
+    /**
+     * 进入过队列的消息总数
+     */
+    public long enqueued(String queue) {
+        QueueStats stats = queues.get(queue);
+        return stats == null ? 0 : stats.enqueued.get();
+    }
+
+    /**
+     * 因为超过长度上限被丢弃或拒绝的消息数
+     */
+    public long overflowed(String queue) {
+        QueueStats stats = queues.get(queue);
+        return stats == null ? 0 : stats.overflowed.get();
+    }
+
+    /**
+     * 没有匹配到任何队列的消息数
+     */
+    public long unroutable() {
+        return unroutable.get();
+    }
+
+    /**
+     * @return 是否确认，任何一个reject-publish的队列满了时返回false，和MQ一样其余队列仍然收到消息
+     */
+    private boolean route(String exchange, String routingKey) {
+        boolean routed = false;
+        boolean ack = true;
+        List<Binding> exchangeBindings = bindings.get(exchange);
+        for (Binding binding : exchangeBindings == null ? Collections.<Binding>emptyList() : exchangeBindings) {
+            if (TopicMatcher.matches(binding.pattern, routingKey)) {
+                ack &= queues.get(binding.queue).offer();
+                routed = true;
+            }
+        }
+        if (!routed) {
+            unroutable.incrementAndGet();
+        }
+        return ack;
+    }
+
+    private static final class Binding {
+        private final String queue;
+        private final String pattern;
+
+        private Binding(String queue, String pattern) {
+            this.queue = queue;
+            this.pattern = pattern;
+        }
+    }
+
+    private static final class QueueStats {
+        private final AtomicLong depth = new AtomicLong();
+        private final AtomicLong enqueued = new AtomicLong();
+        private final AtomicLong overflowed = new AtomicLong();
+        private volatile long maxLength = Long.MAX_VALUE;
+        private volatile boolean rejectPublish;
+
+        /**
+         * @return 是否进入了队列
+         */
+        boolean offer() {
+            while (true) {
+                long current = depth.get();
+                if (current < maxLength) {
+                    if (depth.compareAndSet(current, current + 1)) {
+                        enqueued.incrementAndGet();
+                        return true;
+                    }
+                } else {
+                    overflowed.incrementAndGet();
+                    if (rejectPublish) {
+                        return false;
+                    }
+                    //drop-head：丢掉最老的一条，新消息进入队列，消息数不变
+                    enqueued.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+    }
+
+    private final class InProcessChannel implements PublishChannel {
+        private long nextSeqNo = 1;
+        private ConfirmHandler handler;
+
+        @Override
+        public synchronized long getNextSeqNo() {
+            return nextSeqNo;
+        }
+
+        @Override
+        public synchronized long publish(String exchange, String routingKey, byte[] body) throws IOException {
+            long seqNo = nextSeqNo++;
+            boolean ack = route(exchange, routingKey);
+            if (handler != null) {
+                handler.handle(seqNo, false, ack);
+            }
+            return seqNo;
+        }
+
+        @Override
+        public void setConfirmHandler(ConfirmHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.xuecheng.test.rabbitmq.mq.broker;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 确认模式的发送通道，真实MQ和进程内的模拟MQ都实现这个接口，压测和基准测试不依赖具体的MQ
+ */
+public interface PublishChannel extends Closeable {
+
+    /**
+     * 下一条消息的发送序号，发送前读取，用于在确认回调之前记录发送时间
+     */
+    long getNextSeqNo();
+
+    /**
+     * 发送一条消息
+     *
+     * @return 发送序号，和确认回调中的序号对应
+     */
+    long publish(String exchange, String routingKey, byte[] body) throws IOException;
+
+    /**
+     * 带消息属性发送一条消息，properties为null时和publish(exchange, routingKey, body)相同
+     * 默认忽略消息属性，进程内的模拟MQ使用默认实现
+     *
+     * @return 发送序号，和确认回调中的序号对应
+     */
+    default long publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body)
+            throws IOException {
+        return publish(exchange, routingKey, body);
+    }
+
+    /**
+     * 发送缓冲区中position到limit之间的内容
+     * 客户端的basicPublish只接受数组，默认复制一份，复制的数组在发送后就没有引用了
+     *
+     * @return 发送序号，和确认回调中的序号对应
+     */
+    default long publish(String exchange, String routingKey, ByteBuffer body) throws IOException {
+        byte[] bytes = new byte[body.remaining()];
+        body.duplicate().get(bytes);
+        return publish(exchange, routingKey, bytes);
+    }
+
+    /**
+     * 设置确认回调，必须在发送之前设置
+     */
+    void setConfirmHandler(ConfirmHandler handler);
+
+    /**
+     * 设置通道关闭的回调，关闭后未确认的消息不会再收到确认，可能在其他线程中调用
+     * 默认不回调，进程内的模拟MQ不会意外关闭
+     */
+    default void setShutdownHandler(Runnable handler) {
+    }
+
+    /**
+     * 确认回调，可能在其他线程中调用
+     */
+    interface ConfirmHandler {
+        /**
+         * @param seqNo    发送序号
+         * @param multiple 为true时表示小于等于seqNo的消息都已确认
+         * @param ack      true为确认，false为拒绝
+         */
+        void handle(long seqNo, boolean multiple, boolean ack);
+    }
+}
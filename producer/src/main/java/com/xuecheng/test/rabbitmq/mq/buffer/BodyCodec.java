@@ -0,0 +1,80 @@
+package com.xuecheng.test.rabbitmq.mq.buffer;
+
+import com.alibaba.fastjson.JSON;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 把消息内容直接编码到池化的缓冲区，不经过String.getBytes()产生的中间数组
+ */
+public final class BodyCodec {
+    private static final ThreadLocal<CharsetEncoder> UTF8 = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private static final ThreadLocal<CharBuffer> CHARS = ThreadLocal.withInitial(() -> CharBuffer.allocate(1024));
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    private BodyCodec() {
+    }
+
+    /**
+     * 按UTF-8编码文本，返回的缓冲区已经flip，由调用方释放
+     */
+    public static PooledBuffer encodeUtf8(CharSequence text, BufferPool pool) {
+        //UTF-8每个char最多3字节（代理对是2个char共4字节）
+        int maxBytes = Math.max(text.length() * 3, 1);
+        //编码器对堆内数组有快速路径，先编码到复用的堆内暂存区，再整块复制到堆外，比逐字节写堆外快得多
+        ByteBuffer scratch = SCRATCH.get();
+        if (scratch.capacity() < maxBytes) {
+            scratch = ByteBuffer.allocate(Integer.highestOneBit(maxBytes - 1) << 1);
+            SCRATCH.set(scratch);
+        }
+        scratch.clear();
+        //CharBuffer.wrap(String)不是数组实现，编码器会走逐字符的慢路径，先复制到复用的char数组
+        CharBuffer chars = CHARS.get();
+        if (chars.capacity() < text.length()) {
+            chars = CharBuffer.allocate(Integer.highestOneBit(Math.max(text.length() - 1, 1)) << 1);
+            CHARS.set(chars);
+        }
+        chars.clear();
+        if (text instanceof String) {
+            ((String) text).getChars(0, text.length(), chars.array(), 0);
+            chars.position(text.length());
+        } else {
+            chars.append(text);
+        }
+        chars.flip();
+        CharsetEncoder encoder = UTF8.get().reset();
+        CoderResult result = encoder.encode(chars, scratch, true);
+        if (!result.isUnderflow()) {
+            throw new IllegalStateException("编码失败：" + result);
+        }
+        encoder.flush(scratch);
+        scratch.flip();
+        PooledBuffer pooled = pool.acquire(scratch.remaining());
+        ByteBuffer out = pooled.buffer();
+        out.put(scratch).flip();
+        return pooled;
+    }
+
+    /**
+     * 序列化成JSON再编码
+     */
+    public static PooledBuffer encodeJson(Object value, BufferPool pool) {
+        return encodeUtf8(JSON.toJSONString(value), pool);
+    }
+
+    /**
+     * 解码成文本，不改变缓冲区的position
+     */
+    public static String decodeUtf8(ByteBuffer body) {
+        return StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+    }
+}
@@ -0,0 +1,273 @@
+package com.xuecheng.test.rabbitmq.mq.buffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 堆外缓冲区池，按2的幂分级
+ * <p>
+ * 消息体从编码到收到确认都放在堆外，发送时只产生一个很快就被回收的临时数组，
+ * 未确认的消息体不会因为在堆内停留太久被晋升到老年代
+ * 超过最大级别的不入池，直接分配，释放后交给GC
+ * <p>
+ * 开启泄漏检测时（测试环境，或-Dxuecheng.mq.buffer.leak-detection=true），
+ * 记录每个缓冲区的申请位置，没有release就被GC的缓冲区会打印申请位置并收回到池中
+ */
+public class BufferPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BufferPool.class);
+
+    private final int minShift;
+    private final int maxShift;
+    private final int maxPooledPerClass;
+    private final SizeClass[] classes;
+    private final boolean leakDetection;
+    private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+    private final Set<LeakTracker> trackers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final AtomicLong leaks = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+
+    /**
+     * @param minSize           最小级别，向上取到2的幂
+     * @param maxSize           最大级别，向上取到2的幂
+     * @param maxPooledPerClass 每个级别最多缓存多少个空闲的缓冲区
+     * @param leakDetection     是否开启泄漏检测
+     */
+    public BufferPool(int minSize, int maxSize, int maxPooledPerClass, boolean leakDetection) {
+        this.minShift = shiftFor(minSize);
+        this.maxShift = shiftFor(maxSize);
+        this.maxPooledPerClass = maxPooledPerClass;
+        this.leakDetection = leakDetection;
+        this.classes = new SizeClass[maxShift - minShift + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (minShift + i));
+        }
+    }
+
+    /**
+     * 默认256B到1MB，泄漏检测由系统属性xuecheng.mq.buffer.leak-detection控制
+     */
+    public BufferPool() {
+        this(256, 1 << 20, 1024, Boolean.getBoolean("xuecheng.mq.buffer.leak-detection"));
+    }
+
+    /**
+     * 申请一个至少size字节的缓冲区，position为0，limit为size
+     */
+    public PooledBuffer acquire(int size) {
+        if (leakDetection) {
+            reclaimLeaks();
+        }
+        int shift = Math.max(shiftFor(size), minShift);
+        SizeClass sizeClass = shift > maxShift ? null : classes[shift - minShift];
+        ByteBuffer buffer;
+        if (sizeClass == null) {
+            unpooled.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(size);
+        } else {
+            buffer = sizeClass.take();
+        }
+        buffer.clear().limit(size);
+        PooledBuffer pooled = new PooledBuffer(this, sizeClass, buffer);
+        if (leakDetection) {
+            LeakTracker tracker = new LeakTracker(pooled, collected, sizeClass, buffer);
+            trackers.add(tracker);
+            pooled.tracker = tracker;
+        }
+        return pooled;
+    }
+
+    void release(PooledBuffer pooled) {
+        if (pooled.tracker != null) {
+            trackers.remove(pooled.tracker);
+            pooled.tracker.clear();
+        }
+        if (pooled.sizeClass != null) {
+            pooled.sizeClass.give(pooled.buffer);
+        }
+    }
+
+    private void reclaimLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) collected.poll()) != null) {
+            if (!trackers.remove(tracker)) {
+                continue;
+            }
+            leaks.incrementAndGet();
+            LOGGER.error("缓冲区没有release就被回收了，申请位置：", tracker.acquiredAt);
+            if (tracker.sizeClass != null) {
+                tracker.sizeClass.give(tracker.buffer);
+            }
+        }
+    }
+
+    /**
+     * 发现的泄漏数，只在开启泄漏检测时统计
+     */
+    public long getLeaks() {
+        if (leakDetection) {
+            reclaimLeaks();
+        }
+        return leaks.get();
+    }
+
+    /**
+     * 已申请未释放的缓冲区数，只在开启泄漏检测时统计，测试结束时应为0
+     */
+    public int getOutstanding() {
+        return trackers.size();
+    }
+
+    /**
+     * 池的使用情况
+     */
+    public Stats stats() {
+        long inUseBytes = 0;
+        long freeBytes = 0;
+        long allocated = 0;
+        long reused = 0;
+        for (SizeClass sizeClass : classes) {
+            inUseBytes += (long) sizeClass.inUse.get() * sizeClass.size;
+            freeBytes += (long) sizeClass.freeCount.get() * sizeClass.size;
+            allocated += sizeClass.allocated.get();
+            reused += sizeClass.reused.get();
+        }
+        return new Stats(inUseBytes, freeBytes, allocated, reused, unpooled.get());
+    }
+
+    private static int shiftFor(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * 一个级别的空闲缓冲区
+     */
+    final class SizeClass {
+        private final int size;
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger freeCount = new AtomicInteger();
+        private final AtomicInteger inUse = new AtomicInteger();
+        private final AtomicLong allocated = new AtomicLong();
+        private final AtomicLong reused = new AtomicLong();
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+
+        private ByteBuffer take() {
+            inUse.incrementAndGet();
+            ByteBuffer buffer = free.poll();
+            if (buffer != null) {
+                freeCount.decrementAndGet();
+                reused.incrementAndGet();
+                return buffer;
+            }
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        private void give(ByteBuffer buffer) {
+            inUse.decrementAndGet();
+            if (freeCount.incrementAndGet() <= maxPooledPerClass) {
+                free.offer(buffer);
+            } else {
+                freeCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 跟踪一个缓冲区，缓冲区对象被GC后进入引用队列
+     */
+    static final class LeakTracker extends PhantomReference<PooledBuffer> {
+        private final SizeClass sizeClass;
+        private final ByteBuffer buffer;
+        private final Throwable acquiredAt = new Throwable("申请位置");
+
+        private LeakTracker(PooledBuffer referent, ReferenceQueue<PooledBuffer> queue, SizeClass sizeClass,
+                            ByteBuffer buffer) {
+            super(referent, queue);
+            this.sizeClass = sizeClass;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * 使用情况的快照
+     */
+    public static final class Stats {
+        private final long inUseBytes;
+        private final long freeBytes;
+        private final long allocated;
+        private final long reused;
+        private final long unpooled;
+
+        Stats(long inUseBytes, long freeBytes, long allocated, long reused, long unpooled) {
+            this.inUseBytes = inUseBytes;
+            this.freeBytes = freeBytes;
+            this.allocated = allocated;
+            this.reused = reused;
+            this.unpooled = unpooled;
+        }
+
+        /**
+         * 正在使用的字节数，按级别大小计算
+         */
+        public long getInUseBytes() {
+            return inUseBytes;
+        }
+
+        /**
+         * 池中空闲的字节数
+         */
+        public long getFreeBytes() {
+            return freeBytes;
+        }
+
+        /**
+         * 池的利用率，正在使用的占池中总字节数的比例
+         */
+        public double getUtilization() {
+            long total = inUseBytes + freeBytes;
+            return total == 0 ? 0 : (double) inUseBytes / total;
+        }
+
+        /**
+         * 命中率，复用的占所有池内申请的比例
+         */
+        public double getHitRatio() {
+            long total = allocated + reused;
+            return total == 0 ? 0 : (double) reused / total;
+        }
+
+        public long getAllocated() {
+            return allocated;
+        }
+
+        public long getReused() {
+            return reused;
+        }
+
+        /**
+         * 超过最大级别、没有入池的申请数
+         */
+        public long getUnpooled() {
+            return unpooled;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("使用中%dB，空闲%dB，利用率%.2f，命中率%.2f，新分配%d，复用%d，未入池%d",
+                    inUseBytes, freeBytes, getUtilization(), getHitRatio(), allocated, reused, unpooled);
+        }
+    }
+}
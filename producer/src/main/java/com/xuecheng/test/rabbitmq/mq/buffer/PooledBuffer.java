@@ -0,0 +1,45 @@
+package com.xuecheng.test.rabbitmq.mq.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 从BufferPool申请的缓冲区，用完必须调用release()，只能释放一次
+ */
+public final class PooledBuffer {
+    private final BufferPool pool;
+    final BufferPool.SizeClass sizeClass;
+    final ByteBuffer buffer;
+    BufferPool.LeakTracker tracker;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    PooledBuffer(BufferPool pool, BufferPool.SizeClass sizeClass, ByteBuffer buffer) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+    }
+
+    /**
+     * 底层缓冲区，写入后需要flip()，释放后不能再使用
+     */
+    public ByteBuffer buffer() {
+        if (released.get()) {
+            throw new IllegalStateException("缓冲区已经释放");
+        }
+        return buffer;
+    }
+
+    /**
+     * 归还到池中
+     */
+    public void release() {
+        if (!released.compareAndSet(false, true)) {
+            throw new IllegalStateException("缓冲区重复释放");
+        }
+        pool.release(this);
+    }
+
+    public boolean isReleased() {
+        return released.get();
+    }
+}
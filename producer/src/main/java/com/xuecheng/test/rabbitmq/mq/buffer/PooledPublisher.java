@@ -0,0 +1,88 @@
+package com.xuecheng.test.rabbitmq.mq.buffer;
+
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 使用池化缓冲区的发送方，消息体在收到确认后才归还到池中
+ * 被拒绝的消息同样释放，只计数，需要重发的场景使用RecoveringPublisher
+ * 不是线程安全的，每个线程使用自己的通道和PooledPublisher
+ */
+public class PooledPublisher {
+    private final PublishChannel channel;
+    private final BufferPool pool;
+    private final ConcurrentSkipListMap<Long, PooledBuffer> unconfirmed = new ConcurrentSkipListMap<>();
+    private final AtomicLong nacked = new AtomicLong();
+
+    public PooledPublisher(PublishChannel channel, BufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+        channel.setConfirmHandler(this::confirmed);
+    }
+
+    /**
+     * 发送文本消息
+     */
+    public long publishText(String exchange, String routingKey, CharSequence text) throws IOException {
+        return publish(exchange, routingKey, BodyCodec.encodeUtf8(text, pool));
+    }
+
+    /**
+     * 发送消息，body的所有权交给PooledPublisher，确认后释放，发送失败时立即释放
+     */
+    public long publish(String exchange, String routingKey, PooledBuffer body) throws IOException {
+        //进程内的模拟MQ在publish中就会确认，先登记再发送
+        long seqNo = channel.getNextSeqNo();
+        unconfirmed.put(seqNo, body);
+        try {
+            return channel.publish(exchange, routingKey, body.buffer().duplicate());
+        } catch (IOException | RuntimeException e) {
+            if (unconfirmed.remove(seqNo) != null) {
+                body.release();
+            }
+            throw e;
+        }
+    }
+
+    private void confirmed(long seqNo, boolean multiple, boolean ack) {
+        int count = 0;
+        if (multiple) {
+            ConcurrentNavigableMap<Long, PooledBuffer> head = unconfirmed.headMap(seqNo, true);
+            for (Map.Entry<Long, PooledBuffer> entry : head.entrySet()) {
+                if (head.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().release();
+                    count++;
+                }
+            }
+        } else {
+            PooledBuffer body = unconfirmed.remove(seqNo);
+            if (body != null) {
+                body.release();
+                count++;
+            }
+        }
+        if (!ack) {
+            nacked.addAndGet(count);
+        }
+    }
+
+    /**
+     * 已发送未确认的消息数
+     */
+    public int getUnconfirmed() {
+        return unconfirmed.size();
+    }
+
+    public long getNacked() {
+        return nacked.get();
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+}
@@ -0,0 +1,109 @@
+package com.xuecheng.test.rabbitmq.mq.bulk;
+
+/**
+ * 批量发送的进度快照
+ */
+public class BulkProgress {
+    private final long skipped;
+    private final long read;
+    private final long published;
+    private final long confirmed;
+    private final long retried;
+    private final long failed;
+    private final long inFlight;
+    private final long checkpoint;
+    private final long elapsedMillis;
+    private final boolean done;
+
+    public BulkProgress(long skipped, long read, long published, long confirmed, long retried, long failed,
+                        long inFlight, long checkpoint, long elapsedMillis, boolean done) {
+        this.skipped = skipped;
+        this.read = read;
+        this.published = published;
+        this.confirmed = confirmed;
+        this.retried = retried;
+        this.failed = failed;
+        this.inFlight = inFlight;
+        this.checkpoint = checkpoint;
+        this.elapsedMillis = elapsedMillis;
+        this.done = done;
+    }
+
+    /**
+     * 按断点跳过的消息数
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * 本次从输入读取的消息数，不含跳过的
+     */
+    public long getRead() {
+        return read;
+    }
+
+    /**
+     * 发送次数，含重发
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * 已确认的消息数
+     */
+    public long getConfirmed() {
+        return confirmed;
+    }
+
+    /**
+     * 被拒绝后重发的次数
+     */
+    public long getRetried() {
+        return retried;
+    }
+
+    /**
+     * 重发次数用完仍被拒绝的消息数
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * 已发送未确认的消息数
+     */
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * 当前断点，输入中前checkpoint条消息都已确认，断点不会越过最终失败的消息
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * 每秒确认的消息数
+     */
+    public double getConfirmRate() {
+        return elapsedMillis == 0 ? 0 : confirmed * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s 读取=%d 跳过=%d 发送=%d 确认=%d 重发=%d 失败=%d 未确认=%d 断点=%d 耗时=%dms 速率=%.0f/s",
+                done ? "完成" : "进行中", read, skipped, published, confirmed, retried, failed, inFlight, checkpoint,
+                elapsedMillis, getConfirmRate());
+    }
+}
@@ -0,0 +1,407 @@
+package com.xuecheng.test.rabbitmq.mq.bulk;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.MessageProperties;
+import com.xuecheng.test.rabbitmq.mq.OutboundMessage;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * 并行批量发送，用于全量补发通知这类一次性发送大量消息的场景
+ * <p>
+ * 调用线程从输入中按顺序读取消息，切成固定大小的分片放入队列，partitions个工作线程各自持有一个通道，
+ * 谁空闲谁取下一个分片，慢的通道不会拖住快的通道
+ * 每个通道最多confirmWindow条未确认的消息，窗口满了就等确认，不会无限制地堆积在客户端
+ * 被拒绝的消息在同一个通道上重发，最多maxAttempts次，仍然失败的记为失败，不阻塞整个任务
+ * 每条消息使用自己的消息属性，没有指定时为持久化的text/plain
+ * <p>
+ * 断点是已确认的连续前缀长度，在报告进度时保存。通道出错或中断时任务终止，用同样的输入重新调用会从断点继续，
+ * 断点之后已经确认过的消息会再发一次，消费方需要能处理重复消息
+ * 最终失败的消息不算确认，断点停在它所在的分片之前，任务结束后重新调用会从那里重发
+ * 分片之间并行发送，不保证消息的先后顺序
+ */
+public class BulkPublisher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkPublisher.class);
+    private static final Chunk END = new Chunk(-1, new ArrayList<>());
+
+    private final Supplier<PublishChannel> channels;
+    private final int partitions;
+    private final int confirmWindow;
+    private final int chunkSize;
+    private final int maxAttempts;
+    private final long confirmTimeoutMillis;
+    private final long progressIntervalMillis;
+
+    /**
+     * @param channels               通道工厂，每个工作线程创建一个，任务结束后关闭
+     * @param partitions             并行的通道数
+     * @param confirmWindow          每个通道最多多少条未确认的消息
+     * @param chunkSize              每个分片的消息数
+     * @param maxAttempts            被拒绝时最多发送几次
+     * @param confirmTimeoutMillis   窗口满了之后等待确认的超时时间
+     * @param progressIntervalMillis 报告进度和保存断点的间隔
+     */
+    public BulkPublisher(Supplier<PublishChannel> channels, int partitions, int confirmWindow, int chunkSize,
+                         int maxAttempts, long confirmTimeoutMillis, long progressIntervalMillis) {
+        if (partitions < 1 || confirmWindow < 1 || chunkSize < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("partitions、confirmWindow、chunkSize、maxAttempts必须大于0");
+        }
+        this.channels = channels;
+        this.partitions = partitions;
+        this.confirmWindow = confirmWindow;
+        this.chunkSize = chunkSize;
+        this.maxAttempts = maxAttempts;
+        this.confirmTimeoutMillis = confirmTimeoutMillis;
+        this.progressIntervalMillis = progressIntervalMillis;
+    }
+
+    /**
+     * 发送流中的所有消息，全部确认或失败后返回
+     */
+    public BulkProgress publish(Stream<? extends OutboundMessage> messages, Checkpoint checkpoint,
+                                Consumer<BulkProgress> progress) throws IOException, InterruptedException {
+        return publish(messages.iterator(), checkpoint, progress);
+    }
+
+    /**
+     * 发送迭代器中的所有消息，全部确认或失败后返回
+     *
+     * @param messages   输入，断点续发时必须和上一次的顺序一致
+     * @param checkpoint 断点，开始时读取，发送过程中定期保存
+     * @param progress   进度回调，在调用线程中执行
+     * @return 最终的进度
+     * @throws IOException 通道出错或等待确认超时，断点已经保存，可以重新调用继续发送
+     */
+    public BulkProgress publish(Iterator<? extends OutboundMessage> messages, Checkpoint checkpoint,
+                                Consumer<BulkProgress> progress) throws IOException, InterruptedException {
+        return new Job(checkpoint, progress).run(messages);
+    }
+
+    /**
+     * 一次批量发送任务的状态
+     */
+    private final class Job {
+        private final Checkpoint checkpoint;
+        private final Consumer<BulkProgress> progress;
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(partitions * 2);
+        private final List<Worker> workers = new ArrayList<>();
+        private final AtomicLong published = new AtomicLong();
+        private final AtomicLong confirmed = new AtomicLong();
+        private final AtomicLong retried = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        /**
+         * 已完成但还不连续的分片，起始位置 -> 结束位置
+         */
+        private final Map<Long, Long> completed = new TreeMap<>();
+        private volatile Throwable failure;
+        private long watermark;
+        private long saved;
+        private long skipped;
+        private long read;
+        private long startNanos;
+        private long nextReport;
+
+        private Job(Checkpoint checkpoint, Consumer<BulkProgress> progress) {
+            this.checkpoint = checkpoint;
+            this.progress = progress;
+        }
+
+        private BulkProgress run(Iterator<? extends OutboundMessage> messages) throws IOException, InterruptedException {
+            long position = checkpoint.load();
+            while (skipped < position && messages.hasNext()) {
+                messages.next();
+                skipped++;
+            }
+            watermark = position;
+            saved = position;
+            startNanos = System.nanoTime();
+            nextReport = progressIntervalMillis;
+            if (position > 0) {
+                LOGGER.info("从断点{}继续批量发送", position);
+            }
+
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < partitions; i++) {
+                Worker worker = new Worker();
+                workers.add(worker);
+                Thread thread = new Thread(worker, "bulk-publisher-" + i);
+                threads.add(thread);
+                thread.start();
+            }
+            try {
+                while (messages.hasNext() && failure == null) {
+                    List<OutboundMessage> batch = new ArrayList<>(chunkSize);
+                    long start = position + read;
+                    while (batch.size() < chunkSize && messages.hasNext()) {
+                        batch.add(messages.next());
+                    }
+                    read += batch.size();
+                    Chunk chunk = new Chunk(start, batch);
+                    while (failure == null && !chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                        report();
+                    }
+                    report();
+                }
+                for (int i = 0; i < partitions; i++) {
+                    while (failure == null && !chunks.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                        report();
+                    }
+                }
+                for (Thread thread : threads) {
+                    while (thread.isAlive()) {
+                        thread.join(100);
+                        report();
+                    }
+                }
+            } catch (InterruptedException e) {
+                fail(e);
+                for (Thread thread : threads) {
+                    thread.interrupt();
+                }
+                saveCheckpoint();
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                //保存断点失败或者进度回调出错，通知工作线程停止
+                fail(e);
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                throw e;
+            }
+            saveCheckpoint();
+            if (failure != null) {
+                throw new IOException("批量发送失败，断点" + saved, failure);
+            }
+            if (failed.get() > 0) {
+                LOGGER.warn("{}条消息发送失败，断点停在{}，重新调用会从断点重发", failed.get(), saved);
+            }
+            BulkProgress last = snapshot(true);
+            progress.accept(last);
+            return last;
+        }
+
+        private void report() throws IOException {
+            if (elapsedMillis() < nextReport) {
+                return;
+            }
+            nextReport = elapsedMillis() + progressIntervalMillis;
+            saveCheckpoint();
+            progress.accept(snapshot(false));
+        }
+
+        private void saveCheckpoint() throws IOException {
+            long position;
+            synchronized (completed) {
+                position = watermark;
+            }
+            if (position > saved) {
+                checkpoint.save(position);
+                saved = position;
+            }
+        }
+
+        private BulkProgress snapshot(boolean done) {
+            long inFlight = 0;
+            for (Worker worker : workers) {
+                inFlight += worker.unconfirmed.size();
+            }
+            long position;
+            synchronized (completed) {
+                position = watermark;
+            }
+            return new BulkProgress(skipped, read, published.get(), confirmed.get(), retried.get(), failed.get(),
+                    inFlight, position, elapsedMillis(), done);
+        }
+
+        private long elapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        private void fail(Throwable cause) {
+            if (failure == null) {
+                failure = cause;
+            }
+        }
+
+        /**
+         * 一条消息已确认
+         */
+        private void done(Pending pending) {
+            Chunk chunk = pending.chunk;
+            if (chunk.remaining.decrementAndGet() == 0) {
+                synchronized (completed) {
+                    completed.put(chunk.start, chunk.start + chunk.messages.size());
+                    Long end;
+                    while ((end = completed.remove(watermark)) != null) {
+                        watermark = end;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 工作线程，持有一个通道，发送分片中的消息
+         */
+        private final class Worker implements Runnable {
+            private final Semaphore window = new Semaphore(confirmWindow);
+            private final ConcurrentSkipListMap<Long, Pending> unconfirmed = new ConcurrentSkipListMap<>();
+            private final ConcurrentLinkedQueue<Pending> retries = new ConcurrentLinkedQueue<>();
+            private PublishChannel channel;
+
+            @Override
+            public void run() {
+                try {
+                    channel = channels.get();
+                    channel.setConfirmHandler(this::confirmed);
+                    while (failure == null) {
+                        Chunk chunk = chunks.poll(100, TimeUnit.MILLISECONDS);
+                        if (chunk == END) {
+                            break;
+                        }
+                        if (chunk == null) {
+                            continue;
+                        }
+                        for (OutboundMessage message : chunk.messages) {
+                            retry();
+                            send(new Pending(chunk, message));
+                        }
+                    }
+                    //等待窗口中的消息全部确认，期间被拒绝的消息继续重发
+                    while (failure == null) {
+                        retry();
+                        if (!window.tryAcquire(confirmWindow, confirmTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                            throw new IOException("等待确认超时");
+                        }
+                        window.release(confirmWindow);
+                        if (retries.isEmpty()) {
+                            break;
+                        }
+                    }
+                } catch (Exception e) {
+                    if (failure == null) {
+                        LOGGER.warn("批量发送出错，任务终止：{}", e.toString());
+                    }
+                    fail(e);
+                } finally {
+                    closeChannel();
+                }
+            }
+
+            private void retry() throws IOException, InterruptedException {
+                Pending pending;
+                while ((pending = retries.poll()) != null) {
+                    retried.incrementAndGet();
+                    send(pending);
+                }
+            }
+
+            private void send(Pending pending) throws IOException, InterruptedException {
+                if (!window.tryAcquire(confirmTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("等待确认超时");
+                }
+                pending.attempts++;
+                OutboundMessage message = pending.message;
+                //进程内的模拟MQ在publish中就会确认，先登记再发送
+                long seqNo = channel.getNextSeqNo();
+                unconfirmed.put(seqNo, pending);
+                AMQP.BasicProperties properties = message.getProperties();
+                channel.publish(message.getExchange(), message.getRoutingKey(),
+                        properties != null ? properties : MessageProperties.PERSISTENT_TEXT_PLAIN, message.getBody());
+                published.incrementAndGet();
+            }
+
+            private void confirmed(long seqNo, boolean multiple, boolean ack) {
+                List<Pending> settled = new ArrayList<>();
+                if (multiple) {
+                    ConcurrentNavigableMap<Long, Pending> head = unconfirmed.headMap(seqNo, true);
+                    for (Map.Entry<Long, Pending> entry : head.entrySet()) {
+                        if (head.remove(entry.getKey(), entry.getValue())) {
+                            settled.add(entry.getValue());
+                        }
+                    }
+                } else {
+                    Pending pending = unconfirmed.remove(seqNo);
+                    if (pending != null) {
+                        settled.add(pending);
+                    }
+                }
+                for (Pending pending : settled) {
+                    if (ack) {
+                        confirmed.incrementAndGet();
+                        done(pending);
+                    } else if (pending.attempts < maxAttempts) {
+                        retries.add(pending);
+                    } else {
+                        failed.incrementAndGet();
+                        //不调用done，所在的分片不会完成，断点不会越过这条消息
+                        LOGGER.warn("消息被拒绝{}次，放弃发送，位置{}，路由键{}", pending.attempts,
+                                pending.chunk.start + pending.chunk.messages.indexOf(pending.message),
+                                pending.message.getRoutingKey());
+                    }
+                }
+                //先放入重发队列再释放窗口，等待窗口的线程醒来后一定能看到重发的消息
+                window.release(settled.size());
+            }
+
+            private void closeChannel() {
+                if (channel == null) {
+                    return;
+                }
+                try {
+                    channel.close();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.debug("关闭通道失败：{}", e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个分片，输入中从start开始的连续消息
+     */
+    private static final class Chunk {
+        private final long start;
+        private final List<OutboundMessage> messages;
+        private final AtomicInteger remaining;
+
+        private Chunk(long start, List<OutboundMessage> messages) {
+            this.start = start;
+            this.messages = messages;
+            this.remaining = new AtomicInteger(messages.size());
+        }
+    }
+
+    /**
+     * 已发送未确认的消息
+     */
+    private static final class Pending {
+        private final Chunk chunk;
+        private final OutboundMessage message;
+        private int attempts;
+
+        private Pending(Chunk chunk, OutboundMessage message) {
+            this.chunk = chunk;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.xuecheng.test.rabbitmq.mq.bulk;
+
+import java.io.IOException;
+
+/**
+ * 批量发送的断点，保存已确认的连续前缀长度：输入中前position条消息都已经确认
+ * 崩溃后用同样的输入重新发送，跳过前position条
+ */
+public interface Checkpoint {
+
+    /**
+     * 读取断点，没有断点时返回0
+     */
+    long load() throws IOException;
+
+    /**
+     * 保存断点
+     */
+    void save(long position) throws IOException;
+
+    /**
+     * 不保存断点，每次都从头发送
+     */
+    static Checkpoint none() {
+        return new Checkpoint() {
+            @Override
+            public long load() {
+                return 0;
+            }
+
+            @Override
+            public void save(long position) {
+            }
+        };
+    }
+}
@@ -0,0 +1,50 @@
+package com.xuecheng.test.rabbitmq.mq.bulk;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 保存在本地文件中的断点，先写临时文件再原子替换，崩溃时不会留下写了一半的文件
+ */
+public class FileCheckpoint implements Checkpoint {
+    private final Path file;
+    private final Path temp;
+
+    public FileCheckpoint(Path file) {
+        this.file = file;
+        this.temp = file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    @Override
+    public long load() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+        return text.isEmpty() ? 0 : Long.parseLong(text);
+    }
+
+    @Override
+    public void save(long position) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(temp, Long.toString(position).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 删除断点，下一次从头发送
+     */
+    public void clear() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,104 @@
+package com.xuecheng.test.rabbitmq.mq.claimcheck;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 大消息体的本地文件存储（发送方），按内容寻址
+ * <p>
+ * 目录结构和消费方的BlobStore一致：
+ * {dir}/{hash前2位}/{hash}.blob 消息体
+ * {dir}/{hash前2位}/{hash}.refs 引用计数，文本格式，修改时加文件锁，保证多进程安全
+ * <p>
+ * 相同内容只保存一份，每次发送增加引用计数，消费方确认后减少，为0后由消费方回收
+ */
+public class BlobStore {
+    private final Path dir;
+
+    public BlobStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * 保存消息体，并增加引用计数
+     *
+     * @param body 消息体
+     * @param refs 增加的引用数，等于消息会被投递到的队列数
+     * @return 内容的sha256
+     */
+    public String put(byte[] body, int refs) {
+        String hash = sha256(body);
+        Path blob = blobFile(hash);
+        try {
+            Files.createDirectories(blob.getParent());
+            //先加引用再写文件，避免消费方回收时把刚写入的文件删掉
+            addRefs(hash, refs);
+            if (!Files.exists(blob)) {
+                Path tmp = Files.createTempFile(blob.getParent(), hash, ".tmp");
+                Files.write(tmp, body);
+                Files.move(tmp, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return hash;
+        } catch (IOException e) {
+            throw new UncheckedIOException("保存消息体失败：" + blob, e);
+        }
+    }
+
+    /**
+     * 减少引用计数，发送失败时调用，文件由消费方回收
+     */
+    public void release(String hash, int refs) {
+        try {
+            addRefs(hash, -refs);
+        } catch (IOException e) {
+            throw new UncheckedIOException("修改引用计数失败：" + hash, e);
+        }
+    }
+
+    /**
+     * 修改引用计数
+     *
+     * @return 修改后的引用计数
+     */
+    synchronized int addRefs(String hash, int delta) throws IOException {
+        Path refs = blobFile(hash).resolveSibling(hash + ".refs");
+        try (FileChannel channel = FileChannel.open(refs,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            channel.read(buffer, 0);
+            String text = new String(buffer.array(), StandardCharsets.UTF_8).trim();
+            int count = (text.isEmpty() ? 0 : Integer.parseInt(text)) + delta;
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(String.valueOf(count).getBytes(StandardCharsets.UTF_8)), 0);
+            return count;
+        }
+    }
+
+    Path blobFile(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash + ".blob");
+    }
+
+    private static String sha256(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
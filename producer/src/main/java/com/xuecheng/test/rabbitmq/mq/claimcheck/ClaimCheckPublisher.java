@@ -0,0 +1,111 @@
+package com.xuecheng.test.rabbitmq.mq.claimcheck;
+
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.TopicMatcher;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * 大消息的发送方，Claim-Check模式
+ * <p>
+ * 消息体超过阈值时，消息体写入本地文件存储，MQ中只发送一个引用（消息头x-claim-check），
+ * 避免几MB的邮件正文和附件占用队列内存，阻塞同一通道上的其他消息
+ * 消费方根据引用读取文件，处理完成后减少引用计数
+ * <p>
+ * 按引用扇出：扇出型或通配符交换机会把消息体复制到每个绑定的队列，队列多时MQ内存成倍增加
+ * 开启后，扇出到多个队列的消息即使没有超过阈值，也只存一份消息体，每个队列中只有引用
+ */
+@Component
+public class ClaimCheckPublisher {
+    /**
+     * 引用的消息头，值为消息体的sha256
+     */
+    public static final String HEADER_CLAIM_CHECK = "x-claim-check";
+    /**
+     * 原消息体的大小
+     */
+    public static final String HEADER_CLAIM_CHECK_SIZE = "x-claim-check-size";
+
+    private final RabbitTemplate rabbitTemplate;
+    private final BlobStore blobStore;
+    private final int threshold;
+    private final boolean fanoutByReference;
+    private final int minFanout;
+    private final int referenceMinBytes;
+
+    public ClaimCheckPublisher(RabbitTemplate rabbitTemplate,
+                               @Value("${xuecheng.mq.claim-check.dir:claim-check}") String dir,
+                               @Value("${xuecheng.mq.claim-check.threshold:262144}") int threshold,
+                               @Value("${xuecheng.mq.claim-check.fanout-by-reference.enabled:false}") boolean fanoutByReference,
+                               @Value("${xuecheng.mq.claim-check.fanout-by-reference.min-fanout:2}") int minFanout,
+                               @Value("${xuecheng.mq.claim-check.fanout-by-reference.min-bytes:1024}") int referenceMinBytes) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.blobStore = new BlobStore(Paths.get(dir));
+        this.threshold = threshold;
+        this.fanoutByReference = fanoutByReference;
+        this.minFanout = minFanout;
+        this.referenceMinBytes = referenceMinBytes;
+    }
+
+    /**
+     * 发送文本消息到通配符交换机，引用计数按RoutingKey匹配到的队列数计算
+     *
+     * @param routingKey RoutingKey，例如inform.email
+     * @param text       消息内容
+     */
+    public void send(String routingKey, String text) {
+        int fanout = TopicMatcher.countMatches(routingKey,
+                RabbitMQConfig.ROUTINGKEY_EMAIL, RabbitMQConfig.ROUTINGKEY_SMS);
+        send(RabbitMQConfig.EXCHANGE_TOPICS_INFORM, routingKey, text.getBytes(StandardCharsets.UTF_8), fanout);
+    }
+
+    /**
+     * 发送消息
+     *
+     * @param exchange   交换机
+     * @param routingKey RoutingKey
+     * @param body       消息体
+     * @param fanout     消息会被投递到的队列数，作为引用计数
+     */
+    public void send(String exchange, String routingKey, byte[] body, int fanout) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_TEXT_PLAIN);
+        properties.setContentEncoding(StandardCharsets.UTF_8.name());
+        if (!byReference(body.length, fanout)) {
+            rabbitTemplate.send(exchange, routingKey, new Message(body, properties));
+            return;
+        }
+        String hash = blobStore.put(body, fanout);
+        properties.setHeader(HEADER_CLAIM_CHECK, hash);
+        properties.setHeader(HEADER_CLAIM_CHECK_SIZE, body.length);
+        try {
+            rabbitTemplate.send(exchange, routingKey, new Message(new byte[0], properties));
+        } catch (AmqpException e) {
+            //发送失败，把刚加的引用还回去
+            blobStore.release(hash, fanout);
+            throw e;
+        }
+    }
+
+    /**
+     * 是否只发送引用
+     * 超过阈值的大消息总是发送引用；开启按引用扇出时，扇出数达到minFanout且消息体不小于minBytes的也发送引用，
+     * 太小的消息体不值得多一次文件读写，引用消息的消息头本身也有几十字节
+     */
+    boolean byReference(int size, int fanout) {
+        if (fanout == 0) {
+            return false;
+        }
+        if (size >= threshold) {
+            return true;
+        }
+        return fanoutByReference && fanout >= minFanout && size >= referenceMinBytes;
+    }
+}
@@ -0,0 +1,99 @@
+package com.xuecheng.test.rabbitmq.mq.cluster;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 集群中的一个MQ节点
+ */
+public class BrokerEndpoint {
+    private final String host;
+    private final int port;
+    private final int weight;
+    /**
+     * 已发送未确认的消息数
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean healthy = true;
+
+    public BrokerEndpoint(String host, int port, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("节点权重必须大于0：" + host + ":" + port);
+        }
+        this.host = host;
+        this.port = port;
+        this.weight = weight;
+    }
+
+    /**
+     * 解析节点配置，格式host:port或host:port*weight，权重默认1
+     */
+    public static BrokerEndpoint parse(String spec) {
+        String address = spec.trim();
+        int weight = 1;
+        int star = address.indexOf('*');
+        if (star >= 0) {
+            weight = Integer.parseInt(address.substring(star + 1).trim());
+            address = address.substring(0, star).trim();
+        }
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new BrokerEndpoint(address, 5672, weight);
+        }
+        return new BrokerEndpoint(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), weight);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * host:port
+     */
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    public AtomicInteger getInFlight() {
+        return inFlight;
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    void published() {
+        published.incrementAndGet();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    void failed() {
+        failures.incrementAndGet();
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    @Override
+    public String toString() {
+        return getAddress();
+    }
+}
@@ -0,0 +1,28 @@
+package com.xuecheng.test.rabbitmq.mq.cluster;
+
+import java.util.List;
+
+/**
+ * 从可用节点中选择一个发送
+ */
+public interface EndpointSelector {
+
+    /**
+     * @param candidates 可用的节点，不为空
+     */
+    BrokerEndpoint select(List<BrokerEndpoint> candidates);
+
+    /**
+     * 按名称创建，weighted（加权轮询）或least-in-flight（未确认消息最少）
+     */
+    static EndpointSelector of(String name) {
+        switch (name) {
+            case "weighted":
+                return new WeightedRoundRobinSelector();
+            case "least-in-flight":
+                return new LeastInFlightSelector();
+            default:
+                throw new IllegalArgumentException("不支持的节点选择策略：" + name);
+        }
+    }
+}
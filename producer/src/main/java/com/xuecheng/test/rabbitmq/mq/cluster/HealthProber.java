@@ -0,0 +1,112 @@
+package com.xuecheng.test.rabbitmq.mq.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 节点健康检查
+ * <p>
+ * 连续fall次检查失败标记为不可用，连续rise次成功才恢复，避免节点在可用和不可用之间来回切换
+ * 发送失败时由发送方调用markDown()立即标记为不可用，不等下一次检查
+ */
+public class HealthProber implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HealthProber.class);
+
+    /**
+     * 检查一个节点
+     */
+    public interface Probe {
+        boolean check(BrokerEndpoint endpoint);
+
+        /**
+         * TCP连接检查，能建立连接就认为可用
+         */
+        static Probe tcp(int timeoutMillis) {
+            return endpoint -> {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(endpoint.getHost(), endpoint.getPort()), timeoutMillis);
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            };
+        }
+    }
+
+    private final List<BrokerEndpoint> endpoints;
+    private final Probe probe;
+    private final int fall;
+    private final int rise;
+    /**
+     * 节点 -> 连续相同结果的次数，正数为成功，负数为失败，只在检查线程中修改
+     */
+    private final Map<BrokerEndpoint, Integer> streaks = new IdentityHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    public HealthProber(List<BrokerEndpoint> endpoints, Probe probe, int fall, int rise) {
+        this.endpoints = endpoints;
+        this.probe = probe;
+        this.fall = fall;
+        this.rise = rise;
+    }
+
+    /**
+     * 定时检查
+     */
+    public synchronized void start(long intervalMillis) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "broker-health-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::probeAll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 检查所有节点一次
+     */
+    public synchronized void probeAll() {
+        for (BrokerEndpoint endpoint : endpoints) {
+            boolean ok = probe.check(endpoint);
+            int streak = streaks.getOrDefault(endpoint, 0);
+            streak = ok ? Math.max(streak, 0) + 1 : Math.min(streak, 0) - 1;
+            streaks.put(endpoint, streak);
+            if (endpoint.isHealthy() && streak <= -fall) {
+                endpoint.setHealthy(false);
+                LOGGER.warn("MQ节点{}不可用", endpoint);
+            } else if (!endpoint.isHealthy() && streak >= rise) {
+                endpoint.setHealthy(true);
+                LOGGER.info("MQ节点{}已恢复", endpoint);
+            }
+        }
+    }
+
+    /**
+     * 发送失败，立即标记为不可用，之后需要连续rise次检查成功才恢复
+     */
+    public synchronized void markDown(BrokerEndpoint endpoint) {
+        if (endpoint.isHealthy()) {
+            LOGGER.warn("MQ节点{}发送失败，标记为不可用", endpoint);
+        }
+        endpoint.setHealthy(false);
+        streaks.put(endpoint, -fall);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
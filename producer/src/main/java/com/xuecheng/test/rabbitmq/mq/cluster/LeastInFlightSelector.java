@@ -0,0 +1,29 @@
+package com.xuecheng.test.rabbitmq.mq.cluster;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 选择未确认消息数和权重之比最小的节点
+ * <p>
+ * 节点变慢时确认也会变慢，未确认的消息堆积，新消息自动转到其他节点
+ * 比值相同时从上次选择的下一个开始，避免空闲时全部落在第一个节点上
+ */
+public class LeastInFlightSelector implements EndpointSelector {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public BrokerEndpoint select(List<BrokerEndpoint> candidates) {
+        int size = candidates.size();
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        BrokerEndpoint best = null;
+        for (int i = 0; i < size; i++) {
+            BrokerEndpoint endpoint = candidates.get((start + i) % size);
+            if (best == null || (long) endpoint.getInFlight().get() * best.getWeight()
+                    < (long) best.getInFlight().get() * endpoint.getWeight()) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+}
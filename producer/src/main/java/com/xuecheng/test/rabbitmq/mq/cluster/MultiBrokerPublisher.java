@@ -0,0 +1,217 @@
+package com.xuecheng.test.rabbitmq.mq.cluster;
+
+import com.xuecheng.test.rabbitmq.mq.OutboundMessage;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+/**
+ * 向多个MQ节点发送，客户端负载均衡
+ * <p>
+ * 目标队列的主节点已知且可用时直接发到主节点，否则由EndpointSelector从可用节点中选择
+ * 发送失败时标记节点不可用，消息改发到其他节点；该节点上已发送未确认的消息也转发到其他节点
+ * 被节点拒绝（nack）的消息也改发到其他节点
+ * 转发的消息可能已经被原节点收下，消费方需要能处理重复消息
+ */
+public class MultiBrokerPublisher implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiBrokerPublisher.class);
+
+    /**
+     * 打开到某个节点的确认模式通道
+     */
+    public interface Connector {
+        PublishChannel open(BrokerEndpoint endpoint) throws IOException;
+    }
+
+    private final List<BrokerEndpoint> endpoints;
+    private final Connector connector;
+    private final EndpointSelector selector;
+    private final HealthProber prober;
+    private final QueueLeaderLocator leaderLocator;
+    private final Function<String, String> targetQueue;
+    private final Map<BrokerEndpoint, Link> links = new ConcurrentHashMap<>();
+
+    /**
+     * @param leaderLocator 为null时不按主节点发送
+     * @param targetQueue   RoutingKey -> 唯一的目标队列，匹配到多个队列时返回null
+     */
+    public MultiBrokerPublisher(List<BrokerEndpoint> endpoints, Connector connector, EndpointSelector selector,
+                                HealthProber prober, QueueLeaderLocator leaderLocator,
+                                Function<String, String> targetQueue) {
+        this.endpoints = endpoints;
+        this.connector = connector;
+        this.selector = selector;
+        this.prober = prober;
+        this.leaderLocator = leaderLocator;
+        this.targetQueue = targetQueue;
+    }
+
+    /**
+     * 发送一条消息，不等待确认
+     *
+     * @return 实际发送的节点
+     * @throws IOException 所有节点都不可用
+     */
+    public BrokerEndpoint publish(String exchange, String routingKey, byte[] body) throws IOException {
+        return publish(new OutboundMessage(exchange, routingKey, body));
+    }
+
+    private BrokerEndpoint publish(OutboundMessage message) throws IOException {
+        List<BrokerEndpoint> candidates = healthy();
+        BrokerEndpoint preferred = leaderLocator == null ? null
+                : leaderLocator.leaderOf(targetQueue.apply(message.getRoutingKey()));
+        while (!candidates.isEmpty()) {
+            BrokerEndpoint endpoint = preferred != null && candidates.contains(preferred)
+                    ? preferred : selector.select(candidates);
+            if (send(endpoint, message)) {
+                return endpoint;
+            }
+            candidates.remove(endpoint);
+        }
+        throw new IOException("没有可用的MQ节点");
+    }
+
+    private boolean send(BrokerEndpoint endpoint, OutboundMessage message) {
+        try {
+            link(endpoint).send(message);
+            endpoint.published();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("向MQ节点{}发送失败：{}", endpoint, e.toString());
+            fail(endpoint);
+            return false;
+        }
+    }
+
+    private Link link(BrokerEndpoint endpoint) throws IOException {
+        Link link = links.get(endpoint);
+        if (link == null) {
+            synchronized (links) {
+                link = links.get(endpoint);
+                if (link == null) {
+                    link = new Link(endpoint, connector.open(endpoint));
+                    links.put(endpoint, link);
+                }
+            }
+        }
+        return link;
+    }
+
+    /**
+     * 节点失败，关闭通道，未确认的消息转发到其他节点
+     */
+    private void fail(BrokerEndpoint endpoint) {
+        endpoint.failed();
+        prober.markDown(endpoint);
+        Link link = links.remove(endpoint);
+        if (link == null) {
+            return;
+        }
+        redirect(link.close());
+    }
+
+    private void redirect(List<OutboundMessage> messages) {
+        for (OutboundMessage message : messages) {
+            try {
+                publish(message);
+            } catch (IOException e) {
+                LOGGER.error("转发未确认的消息失败，丢弃：{} {}", message.getExchange(), message.getRoutingKey());
+            }
+        }
+    }
+
+    private List<BrokerEndpoint> healthy() {
+        List<BrokerEndpoint> candidates = new ArrayList<>(endpoints.size());
+        for (BrokerEndpoint endpoint : endpoints) {
+            if (endpoint.isHealthy()) {
+                candidates.add(endpoint);
+            }
+        }
+        return candidates;
+    }
+
+    public List<BrokerEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    @Override
+    public void close() {
+        prober.close();
+        for (Link link : links.values()) {
+            link.close();
+        }
+        links.clear();
+    }
+
+    /**
+     * 到一个节点的通道和它上面未确认的消息
+     */
+    private final class Link implements PublishChannel.ConfirmHandler {
+        private final BrokerEndpoint endpoint;
+        private final PublishChannel channel;
+        private final ConcurrentSkipListMap<Long, OutboundMessage> unconfirmed = new ConcurrentSkipListMap<>();
+
+        private Link(BrokerEndpoint endpoint, PublishChannel channel) {
+            this.endpoint = endpoint;
+            this.channel = channel;
+            channel.setConfirmHandler(this);
+        }
+
+        private synchronized void send(OutboundMessage message) throws IOException {
+            //进程内的模拟MQ在publish中就会确认，先登记再发送
+            long seqNo = channel.getNextSeqNo();
+            unconfirmed.put(seqNo, message);
+            endpoint.getInFlight().incrementAndGet();
+            try {
+                channel.publish(message.getExchange(), message.getRoutingKey(), message.getBody());
+            } catch (IOException | RuntimeException e) {
+                if (unconfirmed.remove(seqNo) != null) {
+                    endpoint.getInFlight().decrementAndGet();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void handle(long seqNo, boolean multiple, boolean ack) {
+            List<OutboundMessage> settled = new ArrayList<>();
+            if (multiple) {
+                ConcurrentNavigableMap<Long, OutboundMessage> head = unconfirmed.headMap(seqNo, true);
+                settled.addAll(head.values());
+                head.clear();
+            } else {
+                OutboundMessage message = unconfirmed.remove(seqNo);
+                if (message != null) {
+                    settled.add(message);
+                }
+            }
+            endpoint.getInFlight().addAndGet(-settled.size());
+            if (!ack) {
+                endpoint.failed();
+                redirect(settled);
+            }
+        }
+
+        private synchronized List<OutboundMessage> close() {
+            List<OutboundMessage> orphans = new ArrayList<>(unconfirmed.values());
+            endpoint.getInFlight().addAndGet(-unconfirmed.size());
+            unconfirmed.clear();
+            try {
+                channel.close();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("关闭到{}的通道失败", endpoint, e);
+            }
+            return orphans;
+        }
+    }
+}
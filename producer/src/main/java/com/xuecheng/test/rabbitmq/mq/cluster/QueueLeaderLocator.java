@@ -0,0 +1,120 @@
+package com.xuecheng.test.rabbitmq.mq.cluster;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 查找队列的主节点
+ * <p>
+ * 消息发到非主节点时，MQ要在集群内部再转发一次，直接连主节点可以省掉这一跳
+ * 节点名称（rabbit@host）按host匹配到配置的节点，也可以直接返回host:port
+ */
+public class QueueLeaderLocator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueueLeaderLocator.class);
+
+    /**
+     * 查询队列 -> 主节点名称
+     */
+    public interface Lookup {
+        Map<String, String> leaders() throws IOException;
+    }
+
+    private final List<BrokerEndpoint> endpoints;
+    private final Lookup lookup;
+    private volatile Map<String, BrokerEndpoint> leaders = Collections.emptyMap();
+
+    public QueueLeaderLocator(List<BrokerEndpoint> endpoints, Lookup lookup) {
+        this.endpoints = endpoints;
+        this.lookup = lookup;
+    }
+
+    /**
+     * 重新查询，失败时保留上次的结果
+     */
+    public void refresh() {
+        try {
+            Map<String, BrokerEndpoint> resolved = new HashMap<>();
+            for (Map.Entry<String, String> entry : lookup.leaders().entrySet()) {
+                BrokerEndpoint endpoint = match(entry.getValue());
+                if (endpoint != null) {
+                    resolved.put(entry.getKey(), endpoint);
+                }
+            }
+            leaders = resolved;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("查询队列主节点失败：{}", e.toString());
+        }
+    }
+
+    /**
+     * 队列的主节点，不知道时返回null
+     */
+    public BrokerEndpoint leaderOf(String queue) {
+        return queue == null ? null : leaders.get(queue);
+    }
+
+    private BrokerEndpoint match(String node) {
+        for (BrokerEndpoint endpoint : endpoints) {
+            if (endpoint.getAddress().equals(node)) {
+                return endpoint;
+            }
+        }
+        String host = node.substring(node.indexOf('@') + 1);
+        for (BrokerEndpoint endpoint : endpoints) {
+            if (endpoint.getHost().equals(host)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 通过管理插件的HTTP接口查询，仲裁队列取leader，经典队列取node
+     *
+     * @param baseUrl 例如http://127.0.0.1:15672
+     */
+    public static Lookup management(String baseUrl, String vhost, String username, String password) {
+        return () -> {
+            URL url = new URL(baseUrl + "/api/queues/" + URLEncoder.encode(vhost, "UTF-8") + "?columns=name,node,leader");
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(2000);
+            connection.setReadTimeout(5000);
+            connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder()
+                    .encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8)));
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                JSONArray queues = JSON.parseArray(new String(out.toByteArray(), StandardCharsets.UTF_8));
+                Map<String, String> result = new HashMap<>();
+                for (int i = 0; i < queues.size(); i++) {
+                    JSONObject queue = queues.getJSONObject(i);
+                    String leader = queue.getString("leader");
+                    result.put(queue.getString("name"), leader != null ? leader : queue.getString("node"));
+                }
+                return result;
+            } finally {
+                connection.disconnect();
+            }
+        };
+    }
+}
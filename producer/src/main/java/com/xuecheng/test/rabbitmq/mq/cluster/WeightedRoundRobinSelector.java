@@ -0,0 +1,35 @@
+package com.xuecheng.test.rabbitmq.mq.cluster;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 平滑加权轮询
+ * <p>
+ * 每次选择时所有节点的当前值加上自己的权重，选当前值最大的，被选中的减去总权重
+ * 权重3:1时顺序是A A B A，而不是A A A B，同一个节点不会连续收到一大段消息
+ * 节点不可用时不参与计算，恢复后从0开始
+ */
+public class WeightedRoundRobinSelector implements EndpointSelector {
+    private final Map<BrokerEndpoint, Integer> current = new IdentityHashMap<>();
+
+    @Override
+    public synchronized BrokerEndpoint select(List<BrokerEndpoint> candidates) {
+        int total = 0;
+        BrokerEndpoint best = null;
+        int bestValue = Integer.MIN_VALUE;
+        for (BrokerEndpoint endpoint : candidates) {
+            int value = current.getOrDefault(endpoint, 0) + endpoint.getWeight();
+            current.put(endpoint, value);
+            total += endpoint.getWeight();
+            if (value > bestValue) {
+                best = endpoint;
+                bestValue = value;
+            }
+        }
+        current.put(best, bestValue - total);
+        current.keySet().retainAll(candidates);
+        return best;
+    }
+}
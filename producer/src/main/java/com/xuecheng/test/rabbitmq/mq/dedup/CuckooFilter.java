@@ -0,0 +1,148 @@
+package com.xuecheng.test.rabbitmq.mq.dedup;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 布谷鸟过滤器，每个桶4个32位指纹，不是线程安全的，由调用方加锁
+ * <p>
+ * 和布隆过滤器相比：同样的误判率下更省内存，支持删除（发送失败时撤销），
+ * 32位指纹的误判率约为8/2^32（约2e-9），误判意味着一条不重复的消息被当成重复丢弃，所以指纹不能太短
+ * 每个元素约4.2字节（装载率95%）
+ */
+public class CuckooFilter {
+    private static final int SLOTS = 4;
+    private static final int MAX_KICKS = 500;
+
+    private final int[] table;
+    private final int bucketMask;
+    private int size;
+
+    /**
+     * @param capacity 预计的元素个数，按95%的装载率向上取2的幂个桶
+     */
+    public CuckooFilter(int capacity) {
+        int buckets = Integer.highestOneBit(Math.max(1, (int) Math.ceil(capacity / (SLOTS * 0.95)) - 1)) << 1;
+        this.table = new int[buckets * SLOTS];
+        this.bucketMask = buckets - 1;
+    }
+
+    /**
+     * @param hash 64位哈希，高32位作为指纹，低位选桶
+     */
+    public boolean contains(long hash) {
+        int fingerprint = fingerprint(hash);
+        int i1 = index(hash);
+        return bucketContains(i1, fingerprint) || bucketContains(alternate(i1, fingerprint), fingerprint);
+    }
+
+    /**
+     * 添加，满了时返回false，这时被踢出的某个指纹会丢失，调用方应该换一个新的过滤器
+     */
+    public boolean add(long hash) {
+        int fingerprint = fingerprint(hash);
+        int i1 = index(hash);
+        int i2 = alternate(i1, fingerprint);
+        if (insert(i1, fingerprint) || insert(i2, fingerprint)) {
+            size++;
+            return true;
+        }
+        //两个桶都满了，随机踢出一个指纹到它的另一个桶
+        int bucket = ThreadLocalRandom.current().nextBoolean() ? i1 : i2;
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            int slot = bucket * SLOTS + ThreadLocalRandom.current().nextInt(SLOTS);
+            int victim = table[slot];
+            table[slot] = fingerprint;
+            fingerprint = victim;
+            bucket = alternate(bucket, fingerprint);
+            if (insert(bucket, fingerprint)) {
+                size++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 删除一个之前添加过的元素
+     */
+    public boolean remove(long hash) {
+        int fingerprint = fingerprint(hash);
+        int i1 = index(hash);
+        if (delete(i1, fingerprint) || delete(alternate(i1, fingerprint), fingerprint)) {
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 占用的内存，字节
+     */
+    public long memoryBytes() {
+        return table.length * 4L;
+    }
+
+    /**
+     * 最多能放多少个指纹，实际能放到95%左右
+     */
+    public int slots() {
+        return table.length;
+    }
+
+    private boolean bucketContains(int bucket, int fingerprint) {
+        int base = bucket * SLOTS;
+        return table[base] == fingerprint || table[base + 1] == fingerprint
+                || table[base + 2] == fingerprint || table[base + 3] == fingerprint;
+    }
+
+    private boolean insert(int bucket, int fingerprint) {
+        int base = bucket * SLOTS;
+        for (int i = base; i < base + SLOTS; i++) {
+            if (table[i] == 0) {
+                table[i] = fingerprint;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean delete(int bucket, int fingerprint) {
+        int base = bucket * SLOTS;
+        for (int i = base; i < base + SLOTS; i++) {
+            if (table[i] == fingerprint) {
+                table[i] = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int index(long hash) {
+        return (int) hash & bucketMask;
+    }
+
+    /**
+     * 另一个桶只由当前桶和指纹决定，踢出时不需要原来的哈希
+     */
+    private int alternate(int bucket, int fingerprint) {
+        return (bucket ^ (fingerprint * 0x5bd1e995)) & bucketMask;
+    }
+
+    /**
+     * 0表示空位，指纹不能是0
+     */
+    private static int fingerprint(long hash) {
+        int fingerprint = (int) (hash >>> 32);
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+}
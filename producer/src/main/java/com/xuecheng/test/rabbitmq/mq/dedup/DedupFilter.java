@@ -0,0 +1,167 @@
+package com.xuecheng.test.rabbitmq.mq.dedup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 按时间窗口去重，分片减少锁竞争
+ * <p>
+ * 每个分片有两代布谷鸟过滤器：当前代和上一代，每过一个窗口丢弃上一代，当前代变成上一代
+ * 所以一条消息在发送后至少一个窗口、最多两个窗口内再次出现会被判为重复
+ * 当前代满了时提前轮换，这时窗口会变短，日志中的提前轮换次数不为0说明容量配小了
+ * 误判只会多丢消息不会漏判，误判率见CuckooFilter
+ */
+public class DedupFilter {
+    private final Shard[] shards;
+    private final int shardMask;
+    private final long windowMillis;
+    private final LongSupplier clock;
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong earlyRotations = new AtomicLong();
+
+    /**
+     * @param shards           分片数，向上取2的幂
+     * @param capacityPerShard 每个分片一个窗口内最多记住多少个消息ID
+     * @param windowMillis     去重窗口
+     * @param clock            毫秒时钟，测试时替换
+     */
+    public DedupFilter(int shards, int capacityPerShard, long windowMillis, LongSupplier clock) {
+        if (shards < 1 || capacityPerShard < 1 || windowMillis < 1) {
+            throw new IllegalArgumentException("分片数、容量和窗口都必须大于0");
+        }
+        int count = shards == 1 ? 1 : Integer.highestOneBit(shards - 1) << 1;
+        this.shards = new Shard[count];
+        this.shardMask = count - 1;
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        long now = clock.getAsLong();
+        for (int i = 0; i < count; i++) {
+            this.shards[i] = new Shard(capacityPerShard, now);
+        }
+    }
+
+    /**
+     * 第一次出现时记下并返回true，窗口内重复出现返回false
+     */
+    public boolean firstSeen(long hash) {
+        checked.incrementAndGet();
+        Shard shard = shard(hash);
+        synchronized (shard) {
+            shard.rotateIfExpired(clock.getAsLong());
+            if (shard.current.contains(hash) || shard.previous.contains(hash)) {
+                suppressed.incrementAndGet();
+                return false;
+            }
+            if (!shard.current.add(hash)) {
+                //满了，提前轮换后放到新的一代，被踢出的那个指纹会丢失，最多导致一次漏判
+                shard.rotate(clock.getAsLong());
+                earlyRotations.incrementAndGet();
+                shard.current.add(hash);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 撤销记录，发送失败后允许业务重试
+     */
+    public void forget(long hash) {
+        Shard shard = shard(hash);
+        synchronized (shard) {
+            if (!shard.current.remove(hash)) {
+                shard.previous.remove(hash);
+            }
+        }
+    }
+
+    public long getChecked() {
+        return checked.get();
+    }
+
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    public long getEarlyRotations() {
+        return earlyRotations.get();
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getShards() {
+        return shards.length;
+    }
+
+    /**
+     * 当前记住的消息ID个数（两代合计）
+     */
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.current.size() + shard.previous.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 过滤器表占用的内存，字节，创建后不变
+     */
+    public long memoryBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            bytes += shard.current.memoryBytes() + shard.previous.memoryBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "检查" + getChecked() + "条，丢弃重复" + getSuppressed() + "条，记住" + size()
+                + "个消息ID，占用内存" + memoryBytes() / 1024 + "KB，提前轮换" + getEarlyRotations() + "次";
+    }
+
+    private Shard shard(long hash) {
+        //指纹用高32位、选桶用低位，选分片用中间的位，互不相关
+        return shards[(int) (hash >>> 20) & shardMask];
+    }
+
+    private final class Shard {
+        private CuckooFilter current;
+        private CuckooFilter previous;
+        private long rotatedAt;
+
+        Shard(int capacity, long now) {
+            this.current = new CuckooFilter(capacity);
+            this.previous = new CuckooFilter(capacity);
+            this.rotatedAt = now;
+        }
+
+        void rotateIfExpired(long now) {
+            if (now - rotatedAt < windowMillis) {
+                return;
+            }
+            if (now - rotatedAt >= 2 * windowMillis) {
+                //两个窗口内没有消息，两代都过期了
+                current.clear();
+            }
+            rotate(now);
+        }
+
+        /**
+         * 上一代清空后复用为当前代，不重新分配内存
+         */
+        void rotate(long now) {
+            CuckooFilter oldest = previous;
+            oldest.clear();
+            previous = current;
+            current = oldest;
+            rotatedAt = now;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.xuecheng.test.rabbitmq.mq.dedup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按业务主键去重的发送，开启方式：xuecheng.mq.dedup.enabled=true
+ * <p>
+ * 消息ID由业务主键生成（MessageIds），设置到messageId属性和x-business-key消息头，消费方可以按消息ID再去重一次
+ * 同一个业务主键在去重窗口内重复发送时直接丢弃，不经过MQ
+ * 只在本进程内去重，多个发送方实例之间不共享，跨实例的重复仍然要靠消费方去重
+ */
+public class DedupPublisher implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DedupPublisher.class);
+    public static final String HEADER_BUSINESS_KEY = "x-business-key";
+
+    private final RabbitTemplate rabbitTemplate;
+    private final DedupFilter filter;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param statsIntervalMillis 打印统计的间隔，不大于0时不打印
+     */
+    public DedupPublisher(RabbitTemplate rabbitTemplate, DedupFilter filter, long statsIntervalMillis) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.filter = filter;
+        if (statsIntervalMillis > 0) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "mq-dedup-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(() -> LOGGER.info("发送去重：{}", filter),
+                    statsIntervalMillis, statsIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * 发送文本消息
+     *
+     * @return 是否发送，重复时返回false
+     */
+    public boolean send(String exchange, String routingKey, String businessKey, String text) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_TEXT_PLAIN);
+        properties.setContentEncoding(StandardCharsets.UTF_8.name());
+        return send(exchange, routingKey, businessKey, new Message(text.getBytes(StandardCharsets.UTF_8), properties));
+    }
+
+    /**
+     * 发送消息，会覆盖消息原有的messageId
+     *
+     * @return 是否发送，重复时返回false
+     * @throws AmqpException 发送失败，这时已经撤销去重记录，业务可以用同一个业务主键重试
+     */
+    public boolean send(String exchange, String routingKey, String businessKey, Message message) {
+        UUID messageId = MessageIds.of(businessKey);
+        long hash = MessageIds.hash(messageId);
+        if (!filter.firstSeen(hash)) {
+            LOGGER.debug("重复的消息，不发送：{}", businessKey);
+            return false;
+        }
+        MessageProperties properties = message.getMessageProperties();
+        properties.setMessageId(messageId.toString());
+        properties.setHeader(HEADER_BUSINESS_KEY, businessKey);
+        try {
+            rabbitTemplate.send(exchange, routingKey, message);
+            return true;
+        } catch (AmqpException e) {
+            filter.forget(hash);
+            throw e;
+        }
+    }
+
+    public DedupFilter getFilter() {
+        return filter;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        LOGGER.info("发送去重：{}", filter);
+    }
+}
@@ -0,0 +1,34 @@
+package com.xuecheng.test.rabbitmq.mq.dedup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * 由业务主键生成确定的消息ID，同一个业务主键重复发送时消息ID相同，消费方可以按消息ID去重
+ * <p>
+ * 使用基于名称的UUID（版本3），不同服务只要前缀一致，对同一个业务主键得到的消息ID也一致
+ */
+public final class MessageIds {
+    private static final String NAMESPACE = "xuecheng:";
+
+    private MessageIds() {
+    }
+
+    /**
+     * @param businessKey 业务主键，例如order:1001:paid
+     */
+    public static UUID of(String businessKey) {
+        if (businessKey == null || businessKey.isEmpty()) {
+            throw new IllegalArgumentException("业务主键不能为空");
+        }
+        return UUID.nameUUIDFromBytes((NAMESPACE + businessKey).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 消息ID的64位哈希，用于去重过滤器
+     * UUID本身来自MD5，高低两部分混合后分布已经足够均匀，高32位作为指纹，低位选桶
+     */
+    public static long hash(UUID messageId) {
+        return messageId.getMostSignificantBits() ^ Long.rotateLeft(messageId.getLeastSignificantBits(), 32);
+    }
+}
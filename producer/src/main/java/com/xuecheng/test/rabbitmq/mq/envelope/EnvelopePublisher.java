@@ -0,0 +1,272 @@
+package com.xuecheng.test.rabbitmq.mq.envelope;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 小消息打包发送，开启方式：xuecheng.mq.envelope.enabled=true
+ * <p>
+ * 同一RoutingKey的小消息先放进缓冲，攒够条数或字节数、或者第一条等待超过linger后打包成一条信封消息发送，格式见EnvelopeCodec
+ * 超过small-bytes的消息直接发送；打包时只有一条的也直接发送，消费方不需要拆包
+ * 信封只有批次级的属性，不能给单条消息设置消息头，需要消息头（用户ID、选择器条件等）的消息不要用这种方式发送
+ * 发送失败的批次放回缓冲，由后台线程重试；缓冲超过上限后send抛出异常
+ * <p>
+ * 同一RoutingKey的批次持有发送锁逐个发送，失败的批次放回最前面后才会取下一批，打包的消息按send的顺序到达；
+ * 直接发送的大消息不经过缓冲，可能先于之前缓冲中的小消息到达
+ */
+public class EnvelopePublisher implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnvelopePublisher.class);
+
+    private final RabbitTemplate rabbitTemplate;
+    private final String exchange;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final int smallBytes;
+    private final long lingerMillis;
+    private final int maxBuffered;
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong logical = new AtomicLong();
+    private final AtomicLong envelopes = new AtomicLong();
+    private final AtomicLong direct = new AtomicLong();
+
+    /**
+     * @param maxMessages  每个信封最多多少条
+     * @param maxBytes     每个信封的内容最多多少字节
+     * @param smallBytes   不超过这个大小的消息才打包
+     * @param lingerMillis 第一条消息最多等待多久
+     */
+    public EnvelopePublisher(RabbitTemplate rabbitTemplate, String exchange, int maxMessages, int maxBytes,
+                             int smallBytes, long lingerMillis) {
+        if (maxMessages < 2 || maxBytes < smallBytes || lingerMillis < 1) {
+            throw new IllegalArgumentException("每个信封至少2条，字节上限不能小于small-bytes，linger必须大于0");
+        }
+        this.rabbitTemplate = rabbitTemplate;
+        this.exchange = exchange;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.smallBytes = smallBytes;
+        this.lingerMillis = lingerMillis;
+        this.maxBuffered = maxMessages * 100;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mq-envelope");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tick = Math.max(1, lingerMillis / 2);
+        executor.scheduleWithFixedDelay(this::flushExpired, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 发送文本消息
+     */
+    public void send(String routingKey, String text) {
+        send(routingKey, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 发送消息，小消息放进缓冲后立即返回
+     *
+     * @throws AmqpException 直接发送失败，或者缓冲已满；攒满后打包发送失败时不抛出，消息已经放回缓冲，由后台线程重试
+     */
+    public void send(String routingKey, byte[] body) {
+        logical.incrementAndGet();
+        if (body.length > smallBytes) {
+            direct.incrementAndGet();
+            rabbitTemplate.send(exchange, routingKey, plain(body));
+            return;
+        }
+        Batch batch = batches.computeIfAbsent(routingKey, key -> new Batch());
+        boolean full = false;
+        synchronized (batch) {
+            if (batch.items.size() >= maxBuffered) {
+                throw new AmqpException("信封缓冲已满：" + routingKey + "有" + batch.items.size() + "条未发送");
+            }
+            if (batch.items.isEmpty()) {
+                batch.firstAt = System.nanoTime();
+            }
+            batch.items.add(body);
+            batch.bytes += body.length;
+            full = isFull(batch);
+        }
+        if (full) {
+            try {
+                synchronized (batch.sendLock) {
+                    List<byte[]> items;
+                    synchronized (batch) {
+                        //等发送锁期间可能已经被其他线程发走了
+                        if (!isFull(batch)) {
+                            return;
+                        }
+                        items = batch.take(maxMessages, maxBytes);
+                    }
+                    publish(routingKey, batch, items);
+                }
+            } catch (AmqpException e) {
+                LOGGER.warn("信封发送失败，稍后重试：{}", e.toString());
+            }
+        }
+    }
+
+    private boolean isFull(Batch batch) {
+        return batch.items.size() >= maxMessages || batch.bytes >= maxBytes;
+    }
+
+    /**
+     * 立即发送所有缓冲中的消息
+     */
+    public void flush() {
+        for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+            flush(entry.getKey(), entry.getValue(), false);
+        }
+    }
+
+    private void flushExpired() {
+        for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+            try {
+                flush(entry.getKey(), entry.getValue(), true);
+            } catch (AmqpException e) {
+                LOGGER.warn("信封发送失败，稍后重试：{}", e.toString());
+            } catch (RuntimeException e) {
+                LOGGER.error("信封发送失败，稍后重试", e);
+            }
+        }
+    }
+
+    private void flush(String routingKey, Batch batch, boolean expiredOnly) {
+        synchronized (batch.sendLock) {
+            while (true) {
+                List<byte[]> items;
+                synchronized (batch) {
+                    if (batch.items.isEmpty() || expiredOnly
+                            && System.nanoTime() - batch.firstAt < TimeUnit.MILLISECONDS.toNanos(lingerMillis)) {
+                        return;
+                    }
+                    items = batch.take(maxMessages, maxBytes);
+                }
+                publish(routingKey, batch, items);
+            }
+        }
+    }
+
+    /**
+     * 调用方持有batch.sendLock
+     */
+    private void publish(String routingKey, Batch batch, List<byte[]> items) {
+        try {
+            if (items.size() == 1) {
+                direct.incrementAndGet();
+                rabbitTemplate.send(exchange, routingKey, plain(items.get(0)));
+                return;
+            }
+            MessageProperties properties = new MessageProperties();
+            properties.setContentType(EnvelopeCodec.CONTENT_TYPE);
+            properties.setContentEncoding(StandardCharsets.UTF_8.name());
+            properties.setHeader(EnvelopeCodec.HEADER_COUNT, items.size());
+            rabbitTemplate.send(exchange, routingKey, new Message(EnvelopeCodec.encode(items), properties));
+            envelopes.incrementAndGet();
+        } catch (RuntimeException e) {
+            //放回缓冲的最前面，还持有发送锁，后面的批次不会先发出去
+            synchronized (batch) {
+                batch.restore(items);
+            }
+            throw e;
+        }
+    }
+
+    private static Message plain(byte[] body) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_TEXT_PLAIN);
+        properties.setContentEncoding(StandardCharsets.UTF_8.name());
+        return new Message(body, properties);
+    }
+
+    public long getLogical() {
+        return logical.get();
+    }
+
+    public long getEnvelopes() {
+        return envelopes.get();
+    }
+
+    public long getDirect() {
+        return direct.get();
+    }
+
+    /**
+     * 缓冲中还没发送的条数
+     */
+    public int getBuffered() {
+        int buffered = 0;
+        for (Batch batch : batches.values()) {
+            synchronized (batch) {
+                buffered += batch.items.size();
+            }
+        }
+        return buffered;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.error("关闭时发送信封失败，{}条消息丢失", getBuffered(), e);
+        }
+        LOGGER.info("信封发送：{}条消息，打包成{}个信封，直接发送{}条", getLogical(), getEnvelopes(), getDirect());
+    }
+
+    private static final class Batch {
+        /**
+         * 同一RoutingKey同时只有一个线程在发送，持有时再获取batch的锁，反过来不行
+         */
+        private final Object sendLock = new Object();
+        private List<byte[]> items = new ArrayList<>();
+        private int bytes;
+        private long firstAt;
+
+        /**
+         * 从前面取出一个信封的内容
+         */
+        List<byte[]> take(int maxMessages, int maxBytes) {
+            int count = 0;
+            int size = 0;
+            while (count < items.size() && count < maxMessages
+                    && (count == 0 || size + items.get(count).length <= maxBytes)) {
+                size += items.get(count).length;
+                count++;
+            }
+            List<byte[]> taken = new ArrayList<>(items.subList(0, count));
+            items = new ArrayList<>(items.subList(count, items.size()));
+            bytes -= size;
+            firstAt = System.nanoTime();
+            return taken;
+        }
+
+        void restore(List<byte[]> taken) {
+            List<byte[]> restored = new ArrayList<>(taken.size() + items.size());
+            restored.addAll(taken);
+            restored.addAll(items);
+            items = restored;
+            for (byte[] item : taken) {
+                bytes += item.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.xuecheng.test.rabbitmq.mq.headers;
+
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 发送到消息头交换机，开启方式：xuecheng.mq.headers.enabled=true
+ * <p>
+ * RoutingKey为空，由消息头决定路由到哪些队列，绑定条件见RabbitMQConfig.headersBindingArguments
+ */
+@Component
+@ConditionalOnProperty(name = "xuecheng.mq.headers.enabled", havingValue = "true")
+public class HeadersPublisher {
+    private final RabbitTemplate rabbitTemplate;
+
+    public HeadersPublisher(RabbitTemplate rabbitTemplate) {
+        this.rabbitTemplate = rabbitTemplate;
+    }
+
+    /**
+     * 发送文本消息
+     *
+     * @param headers 消息头，至少选择一种通知类型
+     * @param text    消息内容
+     */
+    public void send(InformHeaders headers, String text) {
+        if (!headers.hasTarget()) {
+            throw new IllegalArgumentException("没有选择通知类型，消息不会路由到任何队列：" + headers);
+        }
+        rabbitTemplate.send(RabbitMQConfig.EXCHANGE_HEADERS_INFORM, "", toMessage(headers, text));
+    }
+
+    static Message toMessage(InformHeaders headers, String text) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_TEXT_PLAIN);
+        properties.setContentEncoding(StandardCharsets.UTF_8.name());
+        for (Map.Entry<String, Object> header : headers.toMap().entrySet()) {
+            properties.setHeader(header.getKey(), header.getValue());
+        }
+        return new Message(text.getBytes(StandardCharsets.UTF_8), properties);
+    }
+}
@@ -0,0 +1,77 @@
+package com.xuecheng.test.rabbitmq.mq.headers;
+
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 通知消息的消息头，用于消息头交换机路由和消费方的选择器过滤
+ * <p>
+ * 和通配符RoutingKey相比，路由条件不再受RoutingKey中词的顺序限制，租户、语言等维度可以随意组合，
+ * 消费方也可以在解码消息体之前按消息头丢弃不需要的消息
+ */
+public final class InformHeaders {
+    private final Map<String, Object> headers = new LinkedHashMap<>();
+
+    private InformHeaders() {
+    }
+
+    public static InformHeaders create() {
+        return new InformHeaders();
+    }
+
+    /**
+     * 发送邮件
+     */
+    public InformHeaders email() {
+        headers.put(RabbitMQConfig.HEADER_INFORM_EMAIL, "true");
+        return this;
+    }
+
+    /**
+     * 发送短信
+     */
+    public InformHeaders sms() {
+        headers.put(RabbitMQConfig.HEADER_INFORM_SMS, "true");
+        return this;
+    }
+
+    public InformHeaders tenant(String tenant) {
+        return header(RabbitMQConfig.HEADER_TENANT, tenant);
+    }
+
+    public InformHeaders locale(String locale) {
+        return header(RabbitMQConfig.HEADER_LOCALE, locale);
+    }
+
+    /**
+     * 其他消息头，例如user-id，值为null时移除
+     */
+    public InformHeaders header(String name, Object value) {
+        if (value == null) {
+            headers.remove(name);
+        } else {
+            headers.put(name, value);
+        }
+        return this;
+    }
+
+    /**
+     * 一个通知类型也没有选的消息，消息头交换机不会路由到任何队列
+     */
+    public boolean hasTarget() {
+        return headers.containsKey(RabbitMQConfig.HEADER_INFORM_EMAIL)
+                || headers.containsKey(RabbitMQConfig.HEADER_INFORM_SMS);
+    }
+
+    public Map<String, Object> toMap() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    @Override
+    public String toString() {
+        return headers.toString();
+    }
+}
@@ -0,0 +1,202 @@
+package com.xuecheng.test.rabbitmq.mq.loadgen;
+
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import com.xuecheng.test.rabbitmq.mq.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 压测发送器，按流量模型用多个线程发送消息，统计吞吐量和确认延迟
+ * <p>
+ * 每个线程使用自己的通道，按计划的发送时间发送（开环），落后时立即补发，不会因为MQ变慢而降低发送压力
+ * 确认延迟从计划发送时间开始计算，包含了排队的时间
+ * 未确认的消息达到maxInFlight时，这次计划的发送跳过，计入skipped，实际发送的速率会低于流量模型
+ * 任何一个线程发送失败时所有线程停止，run()抛出这个异常
+ */
+public class LoadGenerator {
+    /**
+     * 预先生成的消息体个数，发送时随机选择，避免每条消息分配内存
+     */
+    private static final int SAMPLE_BODIES = 256;
+
+    private final TrafficProfile profile;
+    private final Supplier<PublishChannel> channels;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong confirmed = new AtomicLong();
+    private final AtomicLong nacked = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile boolean stopping;
+
+    /**
+     * @param profile  流量模型
+     * @param channels 发送通道的创建方法，每个线程调用一次
+     */
+    public LoadGenerator(TrafficProfile profile, Supplier<PublishChannel> channels) {
+        this.profile = profile;
+        this.channels = channels;
+    }
+
+    /**
+     * 运行压测，阻塞到结束
+     *
+     * @param progress 每秒一行的进度输出
+     * @throws IOException 发送失败
+     */
+    public LoadReport run(Consumer<String> progress) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < profile.getThreads(); i++) {
+            Thread worker = new Thread(new Worker(i, start), "load-generator-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        long deadline = start + TimeUnit.SECONDS.toNanos(profile.getDurationSeconds());
+        long lastConfirmed = 0;
+        for (int second = 1; System.nanoTime() < deadline && !stopping; second++) {
+            Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(start - System.nanoTime()) + second * 1000L));
+            long nowConfirmed = confirmed.get();
+            progress.accept(String.format("%3ds 目标%6.0f条/秒 确认%6d条/秒 跳过%6d次 p99=%dus", second,
+                    profile.rateAt(System.nanoTime() - start), nowConfirmed - lastConfirmed, skipped.get(),
+                    latency.percentile(99)));
+            lastConfirmed = nowConfirmed;
+        }
+        stopping = true;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e != null) {
+            throw new IllegalStateException("压测线程出错", e);
+        }
+        return new LoadReport(sent.get(), confirmed.get(), nacked.get(), skipped.get(), System.nanoTime() - start,
+                latency);
+    }
+
+    private void fail(Exception e) {
+        failure.compareAndSet(null, e);
+        stopping = true;
+    }
+
+    private byte[][] sampleBodies(Random random) {
+        byte[][] bodies = new byte[SAMPLE_BODIES][];
+        for (int i = 0; i < SAMPLE_BODIES; i++) {
+            bodies[i] = new byte[profile.pickPayloadSize(random)];
+            random.nextBytes(bodies[i]);
+        }
+        return bodies;
+    }
+
+    private final class Worker implements Runnable {
+        private final Random random;
+        private final Schedule schedule;
+        /**
+         * 发送序号 -> 计划发送时间
+         */
+        private final ConcurrentSkipListMap<Long, Long> outstanding = new ConcurrentSkipListMap<>();
+        private final Semaphore window = new Semaphore(profile.getMaxInFlight());
+
+        private Worker(int index, long start) {
+            this.random = new Random(index);
+            this.schedule = new Schedule(profile, start);
+        }
+
+        @Override
+        public void run() {
+            byte[][] bodies = sampleBodies(random);
+            try (PublishChannel channel = channels.get()) {
+                channel.setConfirmHandler(this::onConfirm);
+                while (!stopping) {
+                    long next = schedule.next(System.nanoTime());
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    if (!window.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                        //MQ跟不上，这次计划的发送放弃
+                        skipped.incrementAndGet();
+                        continue;
+                    }
+                    outstanding.put(channel.getNextSeqNo(), next);
+                    channel.publish(profile.getExchange(), profile.pickRoutingKey(random),
+                            bodies[random.nextInt(SAMPLE_BODIES)]);
+                    sent.incrementAndGet();
+                }
+                //等待剩余的确认
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (!outstanding.isEmpty() && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void onConfirm(long seqNo, boolean multiple, boolean ack) {
+            long now = System.nanoTime();
+            ConcurrentNavigableMap<Long, Long> done = multiple
+                    ? outstanding.headMap(seqNo, true)
+                    : outstanding.subMap(seqNo, true, seqNo, true);
+            int count = 0;
+            for (Map.Entry<Long, Long> entry : done.entrySet()) {
+                if (ack) {
+                    latency.record((now - entry.getValue()) / 1000);
+                }
+                count++;
+            }
+            done.clear();
+            (ack ? confirmed : nacked).addAndGet(count);
+            window.release(count);
+        }
+    }
+
+    /**
+     * 单个线程的发送计划，按流量模型的速率计算计划发送时间，和实际什么时候发出去无关
+     */
+    static final class Schedule {
+        private final TrafficProfile profile;
+        private final long start;
+        private long next;
+
+        Schedule(TrafficProfile profile, long start) {
+            this.profile = profile;
+            this.start = start;
+            this.next = start;
+        }
+
+        /**
+         * 下一次的计划发送时间，目标速率为0时从当前时间重新开始
+         *
+         * @param now 当前时间，纳秒
+         */
+        long next(long now) {
+            double rate = profile.rateAt(next - start) / profile.getThreads();
+            if (rate > 0) {
+                next += (long) (1e9 / rate);
+            } else {
+                next = now;
+            }
+            return next;
+        }
+    }
+}
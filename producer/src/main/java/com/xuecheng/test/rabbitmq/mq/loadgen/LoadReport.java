@@ -0,0 +1,67 @@
+package com.xuecheng.test.rabbitmq.mq.loadgen;
+
+import com.xuecheng.test.rabbitmq.mq.metrics.LatencyHistogram;
+
+/**
+ * 压测结果
+ */
+public class LoadReport {
+    private final long sent;
+    private final long confirmed;
+    private final long nacked;
+    private final long skipped;
+    private final long elapsedNanos;
+    private final LatencyHistogram confirmLatencyMicros;
+
+    public LoadReport(long sent, long confirmed, long nacked, long skipped, long elapsedNanos,
+                      LatencyHistogram confirmLatencyMicros) {
+        this.sent = sent;
+        this.confirmed = confirmed;
+        this.nacked = nacked;
+        this.skipped = skipped;
+        this.elapsedNanos = elapsedNanos;
+        this.confirmLatencyMicros = confirmLatencyMicros;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getConfirmed() {
+        return confirmed;
+    }
+
+    public long getNacked() {
+        return nacked;
+    }
+
+    /**
+     * 未确认的消息太多而跳过的计划发送次数，大于0时实际发送速率低于流量模型
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * 实际吞吐量，按确认的消息计算，条/秒
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : confirmed * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * 确认延迟，微秒
+     */
+    public LatencyHistogram getConfirmLatencyMicros() {
+        return confirmLatencyMicros;
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram h = confirmLatencyMicros;
+        return String.format("发送%d条，确认%d条，拒绝%d条，跳过%d次，耗时%.1f秒，吞吐量%.0f条/秒%n"
+                        + "确认延迟(微秒) p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                sent, confirmed, nacked, skipped, elapsedNanos / 1e9, getThroughput(),
+                h.percentile(50), h.percentile(90), h.percentile(99), h.percentile(99.9), h.max());
+    }
+}
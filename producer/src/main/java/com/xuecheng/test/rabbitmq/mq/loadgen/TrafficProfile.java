@@ -0,0 +1,243 @@
+package com.xuecheng.test.rabbitmq.mq.loadgen;
+
+import com.alibaba.fastjson.JSON;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 压测的流量模型，JSON格式，例子见resources/loadgen/production-mix.json
+ */
+public class TrafficProfile {
+    /**
+     * 交换机
+     */
+    private String exchange = RabbitMQConfig.EXCHANGE_TOPICS_INFORM;
+    /**
+     * RoutingKey -> 权重
+     */
+    private Map<String, Integer> routingKeys = new LinkedHashMap<>();
+    /**
+     * 消息体大小的分布
+     */
+    private List<SizeBucket> payloadSizes = new ArrayList<>();
+    /**
+     * 目标速率，条/秒，0表示不限速
+     */
+    private int rate;
+    /**
+     * 从0加速到目标速率的时间
+     */
+    private int rampSeconds;
+    /**
+     * 压测时长，包含加速时间
+     */
+    private int durationSeconds = 60;
+    /**
+     * 发送线程数，每个线程一个通道
+     */
+    private int threads = 1;
+    /**
+     * 每个通道最多有多少条消息在等待确认
+     */
+    private int maxInFlight = 1000;
+
+    private transient String[] keyTable;
+    private transient int[] keyWeights;
+    private transient int keyWeightSum;
+    private transient int sizeWeightSum;
+
+    public static TrafficProfile load(Path file) throws IOException {
+        String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        TrafficProfile profile = JSON.parseObject(json, TrafficProfile.class);
+        profile.validate();
+        return profile;
+    }
+
+    /**
+     * 检查配置并生成抽样用的累计权重
+     */
+    public void validate() {
+        if (routingKeys.isEmpty()) {
+            throw new IllegalArgumentException("routingKeys不能为空");
+        }
+        if (payloadSizes.isEmpty()) {
+            throw new IllegalArgumentException("payloadSizes不能为空");
+        }
+        if (threads < 1 || durationSeconds < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("threads、durationSeconds、maxInFlight必须大于0");
+        }
+        keyTable = routingKeys.keySet().toArray(new String[0]);
+        keyWeights = new int[keyTable.length];
+        keyWeightSum = 0;
+        for (int i = 0; i < keyTable.length; i++) {
+            keyWeightSum += routingKeys.get(keyTable[i]);
+            keyWeights[i] = keyWeightSum;
+        }
+        sizeWeightSum = 0;
+        for (SizeBucket bucket : payloadSizes) {
+            if (bucket.min < 0 || bucket.max < bucket.min) {
+                throw new IllegalArgumentException("消息体大小的范围不正确：" + bucket.min + "-" + bucket.max);
+            }
+            sizeWeightSum += bucket.weight;
+        }
+        if (keyWeightSum <= 0 || sizeWeightSum <= 0) {
+            throw new IllegalArgumentException("权重之和必须大于0");
+        }
+    }
+
+    /**
+     * 按权重随机选择一个RoutingKey
+     */
+    public String pickRoutingKey(Random random) {
+        int r = random.nextInt(keyWeightSum);
+        for (int i = 0; i < keyWeights.length; i++) {
+            if (r < keyWeights[i]) {
+                return keyTable[i];
+            }
+        }
+        return keyTable[keyTable.length - 1];
+    }
+
+    /**
+     * 按分布随机生成一个消息体大小
+     */
+    public int pickPayloadSize(Random random) {
+        int r = random.nextInt(sizeWeightSum);
+        for (SizeBucket bucket : payloadSizes) {
+            r -= bucket.weight;
+            if (r < 0) {
+                return bucket.min + random.nextInt(bucket.max - bucket.min + 1);
+            }
+        }
+        return payloadSizes.get(payloadSizes.size() - 1).max;
+    }
+
+    /**
+     * 某个时间点的目标速率，加速阶段线性增长
+     *
+     * @param elapsedNanos 开始后经过的时间
+     * @return 条/秒，0表示不限速
+     */
+    public double rateAt(long elapsedNanos) {
+        if (rate <= 0 || rampSeconds <= 0) {
+            return rate;
+        }
+        double progress = elapsedNanos / (rampSeconds * 1e9);
+        return progress >= 1 ? rate : Math.max(threads, rate * progress);
+    }
+
+    public String getExchange() {
+        return exchange;
+    }
+
+    public void setExchange(String exchange) {
+        this.exchange = exchange;
+    }
+
+    public Map<String, Integer> getRoutingKeys() {
+        return routingKeys;
+    }
+
+    public void setRoutingKeys(Map<String, Integer> routingKeys) {
+        this.routingKeys = new LinkedHashMap<>(routingKeys);
+    }
+
+    public List<SizeBucket> getPayloadSizes() {
+        return payloadSizes;
+    }
+
+    public void setPayloadSizes(List<SizeBucket> payloadSizes) {
+        this.payloadSizes = payloadSizes;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    public int getRampSeconds() {
+        return rampSeconds;
+    }
+
+    public void setRampSeconds(int rampSeconds) {
+        this.rampSeconds = rampSeconds;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public void setDurationSeconds(int durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * 消息体大小区间，区间内均匀分布
+     */
+    public static class SizeBucket {
+        private int min;
+        private int max;
+        private int weight;
+
+        public SizeBucket() {
+        }
+
+        public SizeBucket(int min, int max, int weight) {
+            this.min = min;
+            this.max = max;
+            this.weight = weight;
+        }
+
+        public int getMin() {
+            return min;
+        }
+
+        public void setMin(int min) {
+            this.min = min;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        public void setMax(int max) {
+            this.max = max;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public void setWeight(int weight) {
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.xuecheng.test.rabbitmq.mq.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 性能数据文件，每秒一条记录，包含这一秒内各个指标（publish、confirm、handle等）的次数和延迟直方图，只追加写入
+ * <p>
+ * 文件头是魔数XCM1和节点名，之后每条记录是长度（4字节）+内容+CRC32（4字节）
+ * 内容是秒级时间戳和各个指标，每个指标为名称、次数、最大值、非空桶的个数，以及每个非空桶的下标增量和个数，整数都用变长编码，
+ * 只有几个桶有数据的一秒只占几十个字节
+ * 进程崩溃时最后一条记录可能不完整，读取时校验长度和CRC，遇到不完整的记录就停止
+ * <p>
+ * 文件名为节点名-开始时间（UTC）.xcm，大小超过上限时换一个新文件，同一个节点最多保留maxFiles个文件
+ */
+public final class MetricsFile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsFile.class);
+
+    public static final String SUFFIX = ".xcm";
+    static final int MAGIC = 0x58434D31;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final DateTimeFormatter FILE_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+    private static final Pattern FILE_NAME_TAIL = Pattern.compile("\\d{8}-\\d{6}(-\\d+)?" + Pattern.quote(SUFFIX));
+
+    private MetricsFile() {
+    }
+
+    /**
+     * 本机的节点名：主机名-角色，取不到主机名时用localhost
+     */
+    public static String localNode(String role) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return safeName(host + "-" + role);
+    }
+
+    /**
+     * 节点名用在文件名中，只保留字母、数字、点、下划线和连字符
+     */
+    static String safeName(String node) {
+        String name = node.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("节点名不能为空");
+        }
+        return name;
+    }
+
+    /**
+     * 目录中一个节点的文件，从旧到新
+     */
+    public static List<Path> files(Path dir, String node) throws IOException {
+        String prefix = safeName(node) + "-";
+        try (Stream<Path> stream = Files.list(dir)) {
+            List<Path> files = stream.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(prefix) && FILE_NAME_TAIL.matcher(name.substring(prefix.length())).matches();
+            }).collect(Collectors.toList());
+            Collections.sort(files, (a, b) -> {
+                try {
+                    int byTime = Files.getLastModifiedTime(a).compareTo(Files.getLastModifiedTime(b));
+                    return byTime != 0 ? byTime : a.compareTo(b);
+                } catch (IOException e) {
+                    return a.compareTo(b);
+                }
+            });
+            return files;
+        }
+    }
+
+    /**
+     * 写入一条记录，在Writer的缓冲区中编码
+     */
+    private static void encode(DataOutput out, long epochSecond, List<Sample> samples) throws IOException {
+        out.writeLong(epochSecond);
+        writeVarLong(out, samples.size());
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        for (Sample sample : samples) {
+            out.writeUTF(sample.getName());
+            writeVarLong(out, sample.getCount());
+            LatencyHistogram histogram = sample.getHistogram();
+            writeVarLong(out, histogram.max());
+            //先复制一份，避免写入过程中还有线程在记录
+            int nonEmpty = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram.bucketCount(i);
+                if (counts[i] != 0) {
+                    nonEmpty++;
+                }
+            }
+            writeVarLong(out, nonEmpty);
+            int last = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    writeVarLong(out, i - last);
+                    writeVarLong(out, counts[i]);
+                    last = i;
+                }
+            }
+        }
+    }
+
+    private static Record decode(String node, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long epochSecond = in.readLong();
+        int size = (int) readVarLong(in);
+        List<Sample> samples = new ArrayList<>(size);
+        for (int s = 0; s < size; s++) {
+            String name = in.readUTF();
+            long count = readVarLong(in);
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.updateMax(readVarLong(in));
+            int nonEmpty = (int) readVarLong(in);
+            int index = 0;
+            for (int i = 0; i < nonEmpty; i++) {
+                index += (int) readVarLong(in);
+                if (index >= LatencyHistogram.BUCKETS) {
+                    throw new IOException("直方图的桶下标超出范围：" + index);
+                }
+                histogram.addToBucket(index, readVarLong(in));
+            }
+            samples.add(new Sample(name, count, histogram));
+        }
+        return new Record(node, epochSecond, samples);
+    }
+
+    /**
+     * 读取一个文件中[fromSecond, toSecond)之间的记录
+     *
+     * @return 读到的记录数
+     */
+    public static long read(Path file, long fromSecond, long toSecond, Consumer<Record> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            String node;
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("不是性能数据文件：" + file);
+                }
+                node = in.readUTF();
+            } catch (EOFException e) {
+                //刚创建还没写完文件头
+                return 0;
+            }
+            CRC32 crc = new CRC32();
+            long records = 0;
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] payload;
+                int stored;
+                try {
+                    if (length < Long.BYTES || length > MAX_RECORD_BYTES) {
+                        throw new EOFException("记录长度不合法：" + length);
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    stored = in.readInt();
+                } catch (EOFException e) {
+                    LOGGER.warn("{}末尾的记录不完整，已忽略", file);
+                    break;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != stored) {
+                    LOGGER.warn("{}中的记录校验失败，忽略之后的内容", file);
+                    break;
+                }
+                long epochSecond = ByteBuffer.wrap(payload).getLong();
+                if (epochSecond < fromSecond || epochSecond >= toSecond) {
+                    continue;
+                }
+                consumer.accept(decode(node, payload));
+                records++;
+            }
+            return records;
+        }
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("变长整数格式错误");
+    }
+
+    /**
+     * 一个指标在一秒内的次数和延迟
+     */
+    public static final class Sample {
+        private final String name;
+        private final long count;
+        private final LatencyHistogram histogram;
+
+        public Sample(String name, long count, LatencyHistogram histogram) {
+            this.name = name;
+            this.count = count;
+            this.histogram = histogram;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 次数，包括没有记录延迟的次数
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * 延迟，单位微秒
+         */
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+
+    /**
+     * 一个节点一秒的记录
+     */
+    public static final class Record {
+        private final String node;
+        private final long epochSecond;
+        private final List<Sample> samples;
+
+        Record(String node, long epochSecond, List<Sample> samples) {
+            this.node = node;
+            this.epochSecond = epochSecond;
+            this.samples = samples;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public long getEpochSecond() {
+            return epochSecond;
+        }
+
+        public List<Sample> getSamples() {
+            return samples;
+        }
+    }
+
+    /**
+     * 追加写入，非线程安全的部分都在synchronized方法中
+     */
+    public static final class Writer implements Closeable {
+        private final Path dir;
+        private final String node;
+        private final long maxFileBytes;
+        private final int maxFiles;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        private final CRC32 crc = new CRC32();
+        private DataOutputStream out;
+        private Path current;
+        private long written;
+
+        /**
+         * @param dir          目录，不存在时创建
+         * @param node         节点名，写在文件头和文件名中
+         * @param maxFileBytes 单个文件的大小上限，超过后换新文件
+         * @param maxFiles     同一个节点最多保留的文件数，超过时删除最早的文件
+         */
+        public Writer(Path dir, String node, long maxFileBytes, int maxFiles) throws IOException {
+            if (maxFileBytes < 1024 || maxFiles < 1) {
+                throw new IllegalArgumentException("maxFileBytes不能小于1024，maxFiles必须大于0");
+            }
+            this.dir = dir;
+            this.node = safeName(node);
+            this.maxFileBytes = maxFileBytes;
+            this.maxFiles = maxFiles;
+            Files.createDirectories(dir);
+        }
+
+        public synchronized void append(long epochSecond, List<Sample> samples) throws IOException {
+            buffer.reset();
+            encode(new DataOutputStream(buffer), epochSecond, samples);
+            if (out == null || written >= maxFileBytes) {
+                roll(epochSecond);
+            }
+            crc.reset();
+            crc.update(buffer.toByteArray(), 0, buffer.size());
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+            out.writeInt((int) crc.getValue());
+            //只刷到操作系统，进程崩溃不丢数据，不调用fsync
+            out.flush();
+            written += buffer.size() + 2 * Integer.BYTES;
+        }
+
+        private void roll(long epochSecond) throws IOException {
+            closeCurrent();
+            String prefix = node + "-" + FILE_TIME.format(Instant.ofEpochSecond(epochSecond));
+            Path file = dir.resolve(prefix + SUFFIX);
+            for (int i = 1; Files.exists(file); i++) {
+                file = dir.resolve(prefix + "-" + i + SUFFIX);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)));
+            out.writeInt(MAGIC);
+            out.writeUTF(node);
+            out.flush();
+            written = out.size();
+            current = file;
+            deleteOldFiles();
+        }
+
+        private void deleteOldFiles() throws IOException {
+            List<Path> files = files(dir, node);
+            for (int i = 0; i < files.size() - maxFiles; i++) {
+                Files.deleteIfExists(files.get(i));
+                LOGGER.info("删除过期的性能数据文件：{}", files.get(i));
+            }
+        }
+
+        /**
+         * 正在写入的文件
+         */
+        public synchronized Path getCurrent() {
+            return current;
+        }
+
+        private void closeCurrent() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closeCurrent();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.xuecheng.test.rabbitmq.mq.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 按秒记录吞吐量和延迟，写入MetricsFile，出了问题之后用MetricsQuery查看当时每秒的数据
+ * <p>
+ * 记录只有一次LongAdder计数和一次直方图的无锁写入，可以放在热路径上
+ * 后台线程每秒给每个指标换一组新的计数器，换下来的那一组等到下一秒再写文件，换的瞬间还在记录的线程不会丢数据
+ * 没有数据的秒不写
+ */
+public class MetricsRecorder implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsRecorder.class);
+
+    /**
+     * 发送：basicPublish的耗时
+     */
+    public static final String SERIES_PUBLISH = "publish";
+    /**
+     * 确认：发送到收到MQ确认的耗时
+     */
+    public static final String SERIES_CONFIRM = "confirm";
+    /**
+     * 被MQ拒绝（nack）的消息，发送到收到拒绝的耗时
+     */
+    public static final String SERIES_NACK = "nack";
+    /**
+     * 请求/响应：发送请求到收到回复的耗时
+     */
+    public static final String SERIES_RPC = "rpc";
+    /**
+     * 处理：监听方法的耗时
+     */
+    public static final String SERIES_HANDLE = "handle";
+    /**
+     * 处理失败的消息和耗时
+     */
+    public static final String SERIES_HANDLE_FAILED = "handle-failed";
+
+    private final MetricsFile.Writer writer;
+    private final LongSupplier clock;
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+    private ScheduledExecutorService ticker;
+
+    /**
+     * @param writer 写入的文件
+     * @param clock  毫秒时间，测试时可以替换
+     */
+    public MetricsRecorder(MetricsFile.Writer writer, LongSupplier clock) {
+        this.writer = writer;
+        this.clock = clock;
+    }
+
+    /**
+     * 取得一个指标，第一次使用时创建，调用方保存下来避免每次查找
+     */
+    public Series series(String name) {
+        return series.computeIfAbsent(name, key -> new Series(key, clock.getAsLong() / 1000));
+    }
+
+    /**
+     * 启动后台线程，对齐到整秒
+     */
+    public synchronized void start() {
+        if (ticker != null) {
+            return;
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-recorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long delay = 1000 - clock.getAsLong() % 1000;
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("写入性能数据失败", e);
+            }
+        }, delay, 1000, TimeUnit.MILLISECONDS);
+        LOGGER.info("性能数据记录已启动");
+    }
+
+    /**
+     * 换一组计数器，写入上一次换下来的那一组
+     */
+    synchronized void tick() throws IOException {
+        long second = currentSecond();
+        //按开始的秒分组，新建的指标第一组的开始时间可能和其他指标不同
+        Map<Long, List<MetricsFile.Sample>> done = new TreeMap<>();
+        for (Series s : series.values()) {
+            Interval interval = s.rotate(second);
+            if (interval == null) {
+                continue;
+            }
+            long count = interval.count.sum();
+            if (count > 0) {
+                done.computeIfAbsent(interval.second, key -> new ArrayList<>())
+                        .add(new MetricsFile.Sample(s.name, count, interval.histogram));
+            }
+        }
+        for (Map.Entry<Long, List<MetricsFile.Sample>> entry : done.entrySet()) {
+            writer.append(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 当前的秒，四舍五入，后台线程稍早或稍晚几毫秒执行时都算到同一秒
+     */
+    private long currentSecond() {
+        return Math.round(clock.getAsLong() / 1000.0);
+    }
+
+    /**
+     * 停止后台线程，写入最后两秒的数据
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (ticker != null) {
+            ticker.shutdown();
+            ticker = null;
+        }
+        tick();
+        tick();
+        writer.close();
+    }
+
+    /**
+     * 一个指标
+     */
+    public static final class Series {
+        private final String name;
+        private volatile Interval current;
+        /**
+         * 换下来还没写的一组，只在后台线程中访问
+         */
+        private Interval pending;
+
+        private Series(String name, long second) {
+            this.name = name;
+            this.current = new Interval(second);
+        }
+
+        /**
+         * 记录一次，带延迟
+         *
+         * @param micros 延迟，单位微秒
+         */
+        public void record(long micros) {
+            Interval interval = current;
+            interval.count.increment();
+            interval.histogram.record(micros);
+        }
+
+        /**
+         * 记录一次，不带延迟
+         */
+        public void increment() {
+            current.count.increment();
+        }
+
+        private Interval rotate(long second) {
+            Interval done = pending;
+            pending = current;
+            current = new Interval(second);
+            return done;
+        }
+    }
+
+    /**
+     * 一秒的计数器
+     */
+    private static final class Interval {
+        private final long second;
+        private final LongAdder count = new LongAdder();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private Interval(long second) {
+            this.second = second;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.xuecheng.test.rabbitmq.mq.metrics;
+
+import com.rabbitmq.client.AMQP;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 记录发送和确认耗时的发送通道，包装已有的通道，指标写入MetricsRecorder
+ * <p>
+ * 发送前按序号记下时间，确认回调（包括multiple确认）时取出计算确认耗时，被拒绝的消息记到nack
+ */
+public class RecordingPublishChannel implements PublishChannel {
+    private final PublishChannel delegate;
+    private final MetricsRecorder.Series publish;
+    private final MetricsRecorder.Series confirm;
+    private final MetricsRecorder.Series nack;
+    /**
+     * 发送序号 -> 发送时间（纳秒）
+     */
+    private final ConcurrentSkipListMap<Long, Long> sent = new ConcurrentSkipListMap<>();
+
+    public RecordingPublishChannel(PublishChannel delegate, MetricsRecorder recorder) {
+        this.delegate = delegate;
+        this.publish = recorder.series(MetricsRecorder.SERIES_PUBLISH);
+        this.confirm = recorder.series(MetricsRecorder.SERIES_CONFIRM);
+        this.nack = recorder.series(MetricsRecorder.SERIES_NACK);
+    }
+
+    /**
+     * 没有开启性能数据记录时原样返回
+     */
+    public static PublishChannel wrap(PublishChannel channel, MetricsRecorder recorder) {
+        return recorder == null ? channel : new RecordingPublishChannel(channel, recorder);
+    }
+
+    @Override
+    public long getNextSeqNo() {
+        return delegate.getNextSeqNo();
+    }
+
+    @Override
+    public long publish(String exchange, String routingKey, byte[] body) throws IOException {
+        return publish(() -> delegate.publish(exchange, routingKey, body));
+    }
+
+    @Override
+    public long publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body)
+            throws IOException {
+        return publish(() -> delegate.publish(exchange, routingKey, properties, body));
+    }
+
+    @Override
+    public long publish(String exchange, String routingKey, ByteBuffer body) throws IOException {
+        return publish(() -> delegate.publish(exchange, routingKey, body));
+    }
+
+    private long publish(Send send) throws IOException {
+        long start = System.nanoTime();
+        //确认可能在basicPublish返回之前到达，先按序号记下时间
+        long expected = delegate.getNextSeqNo();
+        sent.put(expected, start);
+        long seqNo;
+        try {
+            seqNo = send.send();
+        } catch (IOException | RuntimeException e) {
+            sent.remove(expected);
+            throw e;
+        }
+        if (seqNo != expected) {
+            sent.remove(expected);
+            sent.put(seqNo, start);
+        }
+        publish.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        return seqNo;
+    }
+
+    @Override
+    public void setConfirmHandler(ConfirmHandler handler) {
+        delegate.setConfirmHandler((seqNo, multiple, ack) -> {
+            long now = System.nanoTime();
+            MetricsRecorder.Series series = ack ? confirm : nack;
+            if (multiple) {
+                ConcurrentNavigableMap<Long, Long> confirmed = sent.headMap(seqNo, true);
+                for (Map.Entry<Long, Long> entry : confirmed.entrySet()) {
+                    series.record(TimeUnit.NANOSECONDS.toMicros(now - entry.getValue()));
+                }
+                confirmed.clear();
+            } else {
+                Long start = sent.remove(seqNo);
+                if (start != null) {
+                    series.record(TimeUnit.NANOSECONDS.toMicros(now - start));
+                }
+            }
+            handler.handle(seqNo, multiple, ack);
+        });
+    }
+
+    @Override
+    public void setShutdownHandler(Runnable handler) {
+        delegate.setShutdownHandler(() -> {
+            //通道关闭后不会再有确认
+            sent.clear();
+            handler.run();
+        });
+    }
+
+    /**
+     * 还没确认的消息数
+     */
+    public int getUnconfirmed() {
+        return sent.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    private interface Send {
+        long send() throws IOException;
+    }
+}
@@ -0,0 +1,67 @@
+package com.xuecheng.test.rabbitmq.mq.metrics;
+
+import com.rabbitmq.client.Channel;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 记录发送和确认耗时的RabbitTemplate，指标写入MetricsRecorder
+ * <p>
+ * 所有send、convertAndSend都经过doSend，在这里统计basicPublish的耗时
+ * 连接工厂开启了发送确认（spring.rabbitmq.publisher-confirms=true）时，占用RabbitTemplate唯一的ConfirmCallback，
+ * 发送时把CorrelationData换成带发送时间的SentAt，确认时计算确认耗时，被拒绝的消息记到nack
+ */
+public class RecordingRabbitTemplate extends RabbitTemplate {
+    private final MetricsRecorder.Series publish;
+    private final MetricsRecorder.Series confirm;
+    private final MetricsRecorder.Series nack;
+    private final boolean confirms;
+
+    public RecordingRabbitTemplate(ConnectionFactory connectionFactory, MetricsRecorder recorder) {
+        super(connectionFactory);
+        this.publish = recorder.series(MetricsRecorder.SERIES_PUBLISH);
+        this.confirm = recorder.series(MetricsRecorder.SERIES_CONFIRM);
+        this.nack = recorder.series(MetricsRecorder.SERIES_NACK);
+        this.confirms = connectionFactory instanceof CachingConnectionFactory
+                && ((CachingConnectionFactory) connectionFactory).isPublisherConfirms();
+        if (confirms) {
+            setConfirmCallback(this::confirmed);
+        }
+    }
+
+    @Override
+    protected void doSend(Channel channel, String exchange, String routingKey, Message message, boolean mandatory,
+                          CorrelationData correlationData) throws Exception {
+        long start = System.nanoTime();
+        CorrelationData correlation = confirms
+                ? new SentAt(correlationData == null ? null : correlationData.getId(), start) : correlationData;
+        super.doSend(channel, exchange, routingKey, message, mandatory, correlation);
+        publish.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    void confirmed(CorrelationData correlationData, boolean ack, String cause) {
+        MetricsRecorder.Series series = ack ? confirm : nack;
+        if (correlationData instanceof SentAt) {
+            series.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - ((SentAt) correlationData).nanos));
+        } else {
+            series.increment();
+        }
+    }
+
+    /**
+     * 带发送时间的CorrelationData，保留调用方的id
+     */
+    static final class SentAt extends CorrelationData {
+        private final long nanos;
+
+        SentAt(String id, long nanos) {
+            super(id);
+            this.nanos = nanos;
+        }
+    }
+}
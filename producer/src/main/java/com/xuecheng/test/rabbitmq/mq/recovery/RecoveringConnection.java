@@ -0,0 +1,183 @@
+package com.xuecheng.test.rabbitmq.mq.recovery;
+
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.backoff.BackOff;
+import org.springframework.util.backoff.BackOffExecution;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 断开后自动重连的连接
+ * <p>
+ * 客户端自带的自动恢复只能固定间隔重试，这里关闭自带的恢复，改用带抖动的指数退避
+ * 每次连接成功（包括第一次）都会回调所有Listener，由Listener声明交换机、队列，重新注册消费者或重发未确认的消息
+ * 应用主动关闭连接时不重连
+ */
+public class RecoveringConnection implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecoveringConnection.class);
+
+    /**
+     * 连接建立后的回调，在重连线程中调用，抛出异常时这次连接作废，按退避间隔重试
+     */
+    public interface Listener {
+        void onConnected(Connection connection) throws IOException;
+    }
+
+    private final ConnectionFactory factory;
+    private final BackOff backOff;
+    private final String name;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService executor;
+    private final AtomicLong recoveries = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private volatile Connection connection;
+    private volatile boolean closed;
+    private volatile long downSinceNanos;
+    private volatile long lastRecoveryMillis = -1;
+
+    public RecoveringConnection(ConnectionFactory factory, BackOff backOff, String name) {
+        this.factory = factory;
+        this.backOff = backOff;
+        this.name = name;
+        factory.setAutomaticRecoveryEnabled(false);
+        factory.setTopologyRecoveryEnabled(false);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, name + "-recovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 添加回调，需要在start()之前调用
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 建立第一次连接，失败时不抛出异常，和断开一样按退避间隔重连，MQ还没启动时应用也能正常启动
+     */
+    public void start() {
+        try {
+            connect();
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            downSinceNanos = System.nanoTime();
+            LOGGER.warn("连接{}建立失败，开始重连：{}", name, e.toString());
+            executor.execute(this::reconnect);
+        }
+    }
+
+    private synchronized void connect() throws IOException, TimeoutException {
+        Connection created = factory.newConnection(name);
+        try {
+            for (Listener listener : listeners) {
+                listener.onConnected(created);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(created);
+            throw e;
+        }
+        created.addShutdownListener(this::onShutdown);
+        connection = created;
+    }
+
+    private void onShutdown(ShutdownSignalException cause) {
+        if (closed || cause.isInitiatedByApplication()) {
+            return;
+        }
+        downSinceNanos = System.nanoTime();
+        LOGGER.warn("连接{}断开，开始重连：{}", name, cause.getMessage());
+        executor.execute(this::reconnect);
+    }
+
+    private void reconnect() {
+        BackOffExecution execution = backOff.start();
+        while (!closed) {
+            long delay = execution.nextBackOff();
+            if (delay == BackOffExecution.STOP) {
+                LOGGER.error("连接{}重连次数用完，放弃重连", name);
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                connect();
+                lastRecoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - downSinceNanos);
+                recoveries.incrementAndGet();
+                LOGGER.info("连接{}已恢复，耗时{}ms", name, lastRecoveryMillis);
+                return;
+            } catch (IOException | TimeoutException | RuntimeException e) {
+                failedAttempts.incrementAndGet();
+                LOGGER.warn("连接{}重连失败：{}", name, e.toString());
+            }
+        }
+    }
+
+    /**
+     * 当前的连接，断开期间可能是已关闭的连接
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public boolean isOpen() {
+        Connection current = connection;
+        return current != null && current.isOpen();
+    }
+
+    /**
+     * 恢复的次数
+     */
+    public long getRecoveries() {
+        return recoveries.get();
+    }
+
+    /**
+     * 失败的重连次数
+     */
+    public long getFailedAttempts() {
+        return failedAttempts.get();
+    }
+
+    /**
+     * 最近一次从断开到恢复（包括Listener执行完成）的耗时，没有恢复过返回-1
+     */
+    public long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        executor.shutdownNow();
+        Connection current = connection;
+        if (current != null && current.isOpen()) {
+            current.close();
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.abort();
+        } catch (RuntimeException e) {
+            LOGGER.debug("关闭连接失败", e);
+        }
+    }
+}
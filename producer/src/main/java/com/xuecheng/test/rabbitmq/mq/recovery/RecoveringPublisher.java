@@ -0,0 +1,300 @@
+package com.xuecheng.test.rabbitmq.mq.recovery;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.MessageProperties;
+import com.xuecheng.test.rabbitmq.mq.OutboundMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.backoff.BackOff;
+import org.springframework.util.backoff.BackOffExecution;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 断线不丢消息的发送方
+ * <p>
+ * 消息在收到MQ确认前保存在内存中，连接断开期间发送的消息也先放在内存中，
+ * 重连后在新通道上重新声明交换机和队列，再按原顺序重发所有未确认的消息
+ * 被MQ拒绝的消息（例如队列设置了reject-publish并且已满）按退避间隔延迟重发，最多maxAttempts次，仍被拒绝的丢弃并计数
+ * 断开前MQ可能已经收到了消息只是确认没有送达，重发会产生重复，消费方需要能处理重复消息
+ */
+public class RecoveringPublisher implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecoveringPublisher.class);
+
+    /**
+     * 声明交换机、队列和绑定，每次连接成功后调用
+     */
+    public interface Topology {
+        void declare(Channel channel) throws IOException;
+    }
+
+    private final RecoveringConnection connection;
+    private final Topology topology;
+    private final int maxBuffered;
+    private final int maxAttempts;
+    private final BackOff nackBackOff;
+    private final Object lock = new Object();
+    /**
+     * 已发送未确认的消息，key为当前通道的发送序号，由lock保护
+     */
+    private final TreeMap<Long, Pending> unconfirmed = new TreeMap<>();
+    /**
+     * 断开期间发送的消息，连接恢复后发送，由lock保护
+     */
+    private final ArrayDeque<Pending> waiting = new ArrayDeque<>();
+    /**
+     * 被拒绝后等待重发的消息数，由lock保护
+     */
+    private int delayed;
+    private final ScheduledExecutorService retries;
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong nacked = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile Channel channel;
+
+    /**
+     * 被拒绝时最多发送5次，退避间隔100ms起，最多10s
+     */
+    public RecoveringPublisher(RecoveringConnection connection, Topology topology, int maxBuffered) {
+        this(connection, topology, maxBuffered, 5, new JitteredBackOff(100, 10000, 2));
+    }
+
+    /**
+     * @param connection  自动重连的连接，由调用方start()
+     * @param topology    交换机和队列的声明
+     * @param maxBuffered 内存中最多保存多少条未确认的消息，超过后发送抛出异常
+     * @param maxAttempts 被拒绝时每条消息最多发送几次
+     * @param nackBackOff 被拒绝后重发的间隔
+     */
+    public RecoveringPublisher(RecoveringConnection connection, Topology topology, int maxBuffered, int maxAttempts,
+                               BackOff nackBackOff) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts必须大于0");
+        }
+        this.connection = connection;
+        this.topology = topology;
+        this.maxBuffered = maxBuffered;
+        this.maxAttempts = maxAttempts;
+        this.nackBackOff = nackBackOff;
+        this.retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "recovering-publisher-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        connection.addListener(this::onConnected);
+    }
+
+    private void onConnected(Connection created) throws IOException {
+        Channel opened = created.createChannel();
+        topology.declare(opened);
+        opened.confirmSelect();
+        opened.addConfirmListener(new ConfirmListener() {
+            @Override
+            public void handleAck(long deliveryTag, boolean multiple) {
+                confirmed(opened, deliveryTag, multiple, true);
+            }
+
+            @Override
+            public void handleNack(long deliveryTag, boolean multiple) {
+                confirmed(opened, deliveryTag, multiple, false);
+            }
+        });
+        synchronized (lock) {
+            List<Pending> replay = new ArrayList<>(unconfirmed.values());
+            unconfirmed.clear();
+            replay.addAll(waiting);
+            waiting.clear();
+            channel = opened;
+            replayed.addAndGet(replay.size());
+            for (Pending pending : replay) {
+                doPublish(pending);
+            }
+        }
+    }
+
+    /**
+     * 发送一条持久化消息，不等待确认
+     *
+     * @throws IOException 未确认的消息超过上限
+     */
+    public void publish(String exchange, String routingKey, byte[] body) throws IOException {
+        Pending pending = new Pending(new OutboundMessage(exchange, routingKey, body));
+        synchronized (lock) {
+            if (unconfirmed.size() + waiting.size() + delayed >= maxBuffered) {
+                throw new IOException("未确认的消息超过上限：" + maxBuffered);
+            }
+            publishOrWait(pending);
+        }
+    }
+
+    /**
+     * 连接正常时发送，断开时放入等待队列，调用方持有lock
+     */
+    private void publishOrWait(Pending pending) {
+        Channel current = channel;
+        if (current == null || !current.isOpen()) {
+            waiting.add(pending);
+            return;
+        }
+        doPublish(pending);
+    }
+
+    /**
+     * 在当前通道上发送，发送失败说明连接已经断开，放回等待队列，恢复后重发，调用方持有lock
+     */
+    private void doPublish(Pending pending) {
+        Channel current = channel;
+        OutboundMessage message = pending.message;
+        long seqNo = current.getNextPublishSeqNo();
+        unconfirmed.put(seqNo, pending);
+        try {
+            current.basicPublish(message.getExchange(), message.getRoutingKey(),
+                    MessageProperties.PERSISTENT_TEXT_PLAIN, message.getBody());
+        } catch (IOException | AlreadyClosedException e) {
+            unconfirmed.remove(seqNo);
+            waiting.add(pending);
+        }
+    }
+
+    private void confirmed(Channel from, long seqNo, boolean multiple, boolean ack) {
+        //和onConnected的重发在同一把锁下，重发时清空的序号不会被旧通道的确认再处理一次
+        synchronized (lock) {
+            //旧通道的确认晚到时，序号已经对应不上，忽略，消息会在新通道上重发
+            if (from != channel) {
+                return;
+            }
+            List<Pending> settled = new ArrayList<>();
+            if (multiple) {
+                Map<Long, Pending> head = unconfirmed.headMap(seqNo, true);
+                settled.addAll(head.values());
+                head.clear();
+            } else {
+                Pending pending = unconfirmed.remove(seqNo);
+                if (pending != null) {
+                    settled.add(pending);
+                }
+            }
+            if (ack || settled.isEmpty()) {
+                return;
+            }
+            nacked.addAndGet(settled.size());
+            for (Pending pending : settled) {
+                retryLater(pending);
+            }
+        }
+    }
+
+    /**
+     * 被拒绝的消息退避后重发，次数用完丢弃，调用方持有lock
+     * 在确认线程中直接重发，队列满时会变成发送、拒绝、再发送的死循环
+     */
+    private void retryLater(Pending pending) {
+        pending.attempts++;
+        if (pending.attempts >= maxAttempts) {
+            failed.incrementAndGet();
+            LOGGER.warn("消息被拒绝{}次，放弃发送：{} {}", pending.attempts, pending.message.getExchange(),
+                    pending.message.getRoutingKey());
+            return;
+        }
+        if (pending.backOff == null) {
+            pending.backOff = nackBackOff.start();
+        }
+        delayed++;
+        try {
+            retries.schedule(() -> {
+                synchronized (lock) {
+                    delayed--;
+                    publishOrWait(pending);
+                }
+            }, pending.backOff.nextBackOff(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //已经关闭
+            delayed--;
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * 等待所有消息被确认
+     *
+     * @return 超时返回false
+     */
+    public boolean waitForConfirms(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (getUnconfirmed() > 0) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    /**
+     * 未确认的消息数，包括断开期间等待发送的
+     */
+    public int getUnconfirmed() {
+        synchronized (lock) {
+            return unconfirmed.size() + waiting.size() + delayed;
+        }
+    }
+
+    /**
+     * 重连后重发的消息数
+     */
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * 被MQ拒绝的次数
+     */
+    public long getNacked() {
+        return nacked.get();
+    }
+
+    /**
+     * 拒绝次数用完后丢弃的消息数
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public RecoveringConnection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void close() throws IOException {
+        retries.shutdownNow();
+        connection.close();
+    }
+
+    /**
+     * 未确认的消息和它被拒绝的次数
+     */
+    private static final class Pending {
+        private final OutboundMessage message;
+        private int attempts;
+        private BackOffExecution backOff;
+
+        private Pending(OutboundMessage message) {
+            this.message = message;
+        }
+    }
+}
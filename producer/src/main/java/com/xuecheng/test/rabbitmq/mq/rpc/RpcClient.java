@@ -0,0 +1,331 @@
+package com.xuecheng.test.rabbitmq.mq.rpc;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.metrics.LatencyHistogram;
+import com.xuecheng.test.rabbitmq.mq.metrics.MetricsRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 请求/响应模式的客户端，使用direct reply-to，所有请求共用一个通道
+ * <p>
+ * 每次调用临时声明一个回复队列要多几次往返，MQ还要创建和删除队列；RabbitTemplate.sendAndReceive
+ * 每次调用也要在通道上注册和取消一次消费者。这里只在通道创建时消费一次amq.rabbitmq.reply-to，
+ * 之后所有请求带上同一个replyTo和各自的correlationId，回复按correlationId在ConcurrentHashMap中找到对应的调用
+ * <p>
+ * 超时：每个超时时长一个无锁的FIFO队列，同一个超时时长的到期时间和加入顺序一致，
+ * 清理线程每个tick只需要检查队首，已经完成的调用在队首出队时丢弃
+ * 回复通道关闭时，MQ不会再把回复投递给新的通道，所有未完成的调用立即失败
+ */
+public class RpcClient implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RpcClient.class);
+    /**
+     * direct reply-to的伪队列，不需要声明
+     */
+    public static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+    private final Supplier<Channel> channels;
+    private final long defaultTimeoutMillis;
+    private final String prefix;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, Call> calls = new ConcurrentHashMap<>();
+    /**
+     * 超时时长 -> 按到期时间排列的调用
+     */
+    private final Map<Long, Queue<Call>> deadlines = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+    private final LatencyHistogram latencyMicros = new LatencyHistogram();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final Object publishLock = new Object();
+    /**
+     * 没有开启性能数据记录时为null
+     */
+    private final MetricsRecorder.Series publishSeries;
+    private final MetricsRecorder.Series rpcSeries;
+
+    private volatile Channel channel;
+    private volatile String consumerTag;
+
+    /**
+     * @param channels             创建通道，通道断开后重新创建
+     * @param defaultTimeoutMillis 默认的超时时间
+     * @param tickMillis           检查超时的间隔，也就是超时的精度
+     */
+    public RpcClient(Supplier<Channel> channels, long defaultTimeoutMillis, long tickMillis) {
+        this(channels, defaultTimeoutMillis, tickMillis, null);
+    }
+
+    /**
+     * @param recorder 性能数据记录，记录发送请求和请求到回复的耗时，为null时不记录
+     */
+    public RpcClient(Supplier<Channel> channels, long defaultTimeoutMillis, long tickMillis,
+                     MetricsRecorder recorder) {
+        this.channels = channels;
+        this.publishSeries = recorder == null ? null : recorder.series(MetricsRecorder.SERIES_PUBLISH);
+        this.rpcSeries = recorder == null ? null : recorder.series(MetricsRecorder.SERIES_RPC);
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        //correlationId只需要在本客户端内唯一，随机前缀避免和重启前的回复混淆
+        this.prefix = Long.toHexString(ThreadLocalRandom.current().nextLong() & 0xFFFFFFFFL) + "-";
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rpc-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::expire, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 发送短信通知并等待消费方的受理结果
+     *
+     * @param routingKey RoutingKey，例如inform.sms
+     * @param text       消息内容
+     * @return 消费方的回复，例如ACCEPTED
+     */
+    public String call(String routingKey, String text) throws IOException, TimeoutException, InterruptedException {
+        try {
+            return callAsync(routingKey, text).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw (TimeoutException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * 异步发送文本消息到通配符交换机，使用默认的超时时间
+     */
+    public CompletableFuture<String> callAsync(String routingKey, String text) {
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .contentType("text/plain").contentEncoding(StandardCharsets.UTF_8.name()).build();
+        return callAsync(RabbitMQConfig.EXCHANGE_TOPICS_INFORM, routingKey, properties,
+                text.getBytes(StandardCharsets.UTF_8), defaultTimeoutMillis)
+                .thenApply(reply -> new String(reply, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 异步调用
+     *
+     * @param exchange      交换机
+     * @param routingKey    RoutingKey
+     * @param properties    消息属性，replyTo和correlationId会被覆盖
+     * @param body          消息体
+     * @param timeoutMillis 超时时间
+     * @return 回复的消息体，超时以TimeoutException结束，通道关闭以IOException结束
+     */
+    public CompletableFuture<byte[]> callAsync(String exchange, String routingKey, AMQP.BasicProperties properties,
+                                               byte[] body, long timeoutMillis) {
+        String correlationId = prefix + sequence.incrementAndGet();
+        Call call = new Call(correlationId, System.nanoTime(), timeoutMillis);
+        calls.put(correlationId, call);
+        //和expire()删除空队列互斥，不会加到已经删除的队列中
+        deadlines.compute(timeoutMillis, (t, queue) -> {
+            Queue<Call> pending = queue != null ? queue : new ConcurrentLinkedQueue<>();
+            pending.add(call);
+            return pending;
+        });
+        AMQP.BasicProperties request = properties.builder()
+                .replyTo(DIRECT_REPLY_TO).correlationId(correlationId).build();
+        try {
+            Channel current = channel();
+            call.channel = current;
+            long start = System.nanoTime();
+            synchronized (publishLock) {
+                current.basicPublish(exchange, routingKey, request, body);
+            }
+            if (publishSeries != null) {
+                publishSeries.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(call, e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+        return call.future;
+    }
+
+    /**
+     * 回复通道，没有或者已经关闭时重新创建并开始消费回复
+     * 必须先消费amq.rabbitmq.reply-to，再在同一个通道上发送请求
+     */
+    private Channel channel() throws IOException {
+        Channel current = channel;
+        if (current != null && current.isOpen()) {
+            return current;
+        }
+        synchronized (this) {
+            if (channel != null && channel.isOpen()) {
+                return channel;
+            }
+            Channel created = channels.get();
+            consumerTag = created.basicConsume(DIRECT_REPLY_TO, true, new DefaultConsumer(created) {
+                @Override
+                public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                                           byte[] body) {
+                    complete(properties.getCorrelationId(), body);
+                }
+
+                @Override
+                public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                    failAll(created, sig);
+                }
+            });
+            channel = created;
+            return created;
+        }
+    }
+
+    /**
+     * 收到回复
+     */
+    void complete(String correlationId, byte[] body) {
+        Call call = correlationId == null ? null : calls.remove(correlationId);
+        if (call == null) {
+            //已经超时，或者不是本客户端的请求
+            LOGGER.debug("丢弃没有对应请求的回复：{}", correlationId);
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - call.startNanos);
+        latencyMicros.record(micros);
+        if (rpcSeries != null) {
+            rpcSeries.record(micros);
+        }
+        call.future.complete(body);
+    }
+
+    /**
+     * 通道关闭，在这个通道上发送、还没有回复的调用都不会再有回复
+     */
+    private void failAll(Channel closed, ShutdownSignalException cause) {
+        if (channel == closed) {
+            channel = null;
+        }
+        IOException error = new IOException("回复通道已关闭", cause);
+        int failed = 0;
+        for (Call call : calls.values()) {
+            if (call.channel == closed) {
+                fail(call, error);
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            LOGGER.warn("回复通道已关闭，{}个调用失败：{}", failed, cause.getMessage());
+        }
+    }
+
+    private void fail(Call call, Exception error) {
+        if (calls.remove(call.correlationId, call)) {
+            call.future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * 检查每个超时队列的队首，删除已经空了的队列，调用方每次传不同的超时时间也不会一直增长
+     */
+    void expire() {
+        long now = System.nanoTime();
+        for (Map.Entry<Long, Queue<Call>> entry : deadlines.entrySet()) {
+            Queue<Call> queue = entry.getValue();
+            Call head;
+            while ((head = queue.peek()) != null && (head.future.isDone() || head.deadlineNanos - now <= 0)) {
+                queue.poll();
+                if (!head.future.isDone() && calls.remove(head.correlationId, head)) {
+                    timeouts.incrementAndGet();
+                    head.future.completeExceptionally(new TimeoutException(
+                            "RPC超时：" + head.correlationId + "，" + head.timeoutMillis + "ms内没有回复"));
+                }
+            }
+            if (queue.isEmpty()) {
+                deadlines.computeIfPresent(entry.getKey(), (t, current) -> current.isEmpty() ? null : current);
+            }
+        }
+    }
+
+    /**
+     * 未完成的调用数
+     */
+    public int getInFlight() {
+        return calls.size();
+    }
+
+    /**
+     * 还有未到期调用的超时时长个数
+     */
+    int getDeadlineQueues() {
+        return deadlines.size();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * 请求到回复的耗时，单位微秒
+     */
+    public LatencyHistogram getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+        Channel current = channel;
+        channel = null;
+        IOException error = new IOException("RPC客户端已关闭");
+        for (Call call : calls.values()) {
+            fail(call, error);
+        }
+        if (current != null && current.isOpen()) {
+            try {
+                //通道可能来自缓存，关闭前先取消消费者
+                current.basicCancel(consumerTag);
+                current.close();
+            } catch (Exception e) {
+                LOGGER.debug("关闭回复通道失败", e);
+            }
+        }
+    }
+
+    private static final class Call {
+        final String correlationId;
+        final long startNanos;
+        final long timeoutMillis;
+        final long deadlineNanos;
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        /**
+         * 发送请求的通道
+         */
+        volatile Channel channel;
+
+        Call(String correlationId, long startNanos, long timeoutMillis) {
+            this.correlationId = correlationId;
+            this.startNanos = startNanos;
+            this.timeoutMillis = timeoutMillis;
+            this.deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.xuecheng.test.rabbitmq.mq.schedule;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 定时消息调度器，例如"09:00发送这条短信"
+ * <p>
+ * 内存中用哈希时间轮保存待发送消息的位置，添加和到期都是O(1)，消息本身保存在ScheduleLog中，崩溃后从日志恢复
+ * 到期的消息按批交给发送方法，发送成功后在日志中标记完成，发送失败的稍后重试，所以消息至少发送一次
+ */
+public class DelayedMessageScheduler implements SmartLifecycle {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DelayedMessageScheduler.class);
+
+    private final ScheduleLog log;
+    private final long tickMillis;
+    private final int wheelSize;
+    private final int batchSize;
+    private final long retryDelayMillis;
+    private final Consumer<List<ScheduledMessage>> publisher;
+
+    private TimingWheel<Long> wheel;
+    private ScheduledExecutorService ticker;
+    private volatile boolean running;
+
+    /**
+     * @param log              持久化日志
+     * @param tickMillis       时间轮的精度
+     * @param wheelSize        时间轮的槽数
+     * @param batchSize        每批发送的消息数
+     * @param retryDelayMillis 发送失败后多久重试
+     * @param publisher        批量发送方法，抛出异常表示整批发送失败
+     */
+    public DelayedMessageScheduler(ScheduleLog log, long tickMillis, int wheelSize, int batchSize,
+                                   long retryDelayMillis, Consumer<List<ScheduledMessage>> publisher) {
+        this.log = log;
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.batchSize = batchSize;
+        this.retryDelayMillis = retryDelayMillis;
+        this.publisher = publisher;
+    }
+
+    /**
+     * 从日志恢复未发送的消息，不启动定时线程，start()会调用，单独测试时也可以直接调用
+     */
+    public synchronized void recover() {
+        wheel = new TimingWheel<>(wheelSize, tickMillis, System.currentTimeMillis());
+        try {
+            Map<Long, Long> pending = log.recover();
+            for (Map.Entry<Long, Long> entry : pending.entrySet()) {
+                wheel.schedule(entry.getKey(), entry.getValue());
+            }
+            LOGGER.info("恢复了{}条定时消息", pending.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("恢复定时消息失败", e);
+        }
+    }
+
+    /**
+     * 添加一条定时消息
+     *
+     * @param exchange   交换机
+     * @param routingKey RoutingKey
+     * @param body       消息体
+     * @param dueMillis  发送时间，已经过去的时间会在下一个tick发送
+     * @return 消息id
+     */
+    public synchronized long schedule(String exchange, String routingKey, byte[] body, long dueMillis) {
+        try {
+            long id = log.append(dueMillis, exchange, routingKey, body);
+            wheel.schedule(id, dueMillis);
+            return id;
+        } catch (IOException e) {
+            throw new UncheckedIOException("保存定时消息失败", e);
+        }
+    }
+
+    /**
+     * 等待发送的消息数
+     */
+    public synchronized int pending() {
+        return wheel.size();
+    }
+
+    /**
+     * 推进时间轮，发送到期的消息
+     *
+     * @return 发送的消息数
+     */
+    public int tick() {
+        List<Long> due;
+        synchronized (this) {
+            due = wheel.advance(System.currentTimeMillis());
+        }
+        int sent = 0;
+        for (int from = 0; from < due.size(); from += batchSize) {
+            List<Long> ids = due.subList(from, Math.min(due.size(), from + batchSize));
+            sent += release(ids);
+        }
+        return sent;
+    }
+
+    private int release(List<Long> ids) {
+        List<ScheduledMessage> batch = new ArrayList<>(ids.size());
+        try {
+            synchronized (this) {
+                for (Long id : ids) {
+                    batch.add(log.read(id));
+                }
+            }
+            publisher.accept(batch);
+            synchronized (this) {
+                for (Long id : ids) {
+                    log.markDone(id);
+                }
+            }
+            return batch.size();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("发送{}条定时消息失败，{}毫秒后重试", ids.size(), retryDelayMillis, e);
+            synchronized (this) {
+                long retryAt = System.currentTimeMillis() + retryDelayMillis;
+                for (Long id : ids) {
+                    wheel.schedule(id, retryAt);
+                }
+            }
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        recover();
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "delayed-message-scheduler"));
+        ticker.scheduleWithFixedDelay(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                LOGGER.error("定时消息调度出错", e);
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (ticker != null) {
+            ticker.shutdown();
+            try {
+                ticker.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            LOGGER.warn("关闭定时消息日志失败", e);
+        }
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        return 0;
+    }
+}
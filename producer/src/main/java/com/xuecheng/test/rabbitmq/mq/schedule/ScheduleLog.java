@@ -0,0 +1,284 @@
+package com.xuecheng.test.rabbitmq.mq.schedule;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 定时消息的持久化日志，用于崩溃后恢复
+ * <p>
+ * 日志按段存放（schedule-{段号}.log），只追加写：
+ * ADD记录：类型(1) 到期时间(8) 交换机长度(2) 交换机 RoutingKey长度(2) RoutingKey 消息体长度(4) 消息体
+ * DONE记录：类型(1) ADD记录的位置(8)
+ * 位置 = 段号 << 40 | 段内偏移，同时作为消息id
+ * <p>
+ * 消息体只保存在日志中，内存里的时间轮只保存位置，到期时再读出来，这样几百万条定时消息也不会占满堆内存
+ * 从最老的段开始，没有未完成消息的段会被删除，只删除最前面的段，保证DONE记录不会比对应的ADD记录先删除
+ */
+public class ScheduleLog implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScheduleLog.class);
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_DONE = 2;
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final boolean sync;
+    /**
+     * 段号 -> 段
+     */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment current;
+
+    /**
+     * @param dir          日志目录
+     * @param segmentBytes 单个段的大小，超过后写入新的段
+     * @param sync         每次写入后是否刷盘，关闭时只保证进程崩溃不丢数据，机器掉电可能丢失最后写入的记录
+     */
+    public ScheduleLog(Path dir, long segmentBytes, boolean sync) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.sync = sync;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * 读取所有段，返回未完成的消息，必须在写入之前调用一次
+     *
+     * @return 位置 -> 到期时间
+     */
+    public synchronized Map<Long, Long> recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "schedule-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring("schedule-".length(), name.length() - ".log".length()));
+                segments.put(id, new Segment(id, file));
+            }
+        }
+        Map<Long, Long> pending = new HashMap<>();
+        for (Segment segment : segments.values()) {
+            replay(segment, pending);
+        }
+        for (Long position : pending.keySet()) {
+            segments.get(segmentId(position)).pending++;
+        }
+        current = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (current == null || current.size >= segmentBytes) {
+            roll();
+        }
+        deleteCompletedSegments();
+        return pending;
+    }
+
+    /**
+     * 追加一条定时消息
+     *
+     * @return 位置
+     */
+    public synchronized long append(long dueMillis, String exchange, String routingKey, byte[] body)
+            throws IOException {
+        byte[] exchangeBytes = exchange.getBytes(StandardCharsets.UTF_8);
+        byte[] routingKeyBytes = routingKey.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 2 + exchangeBytes.length + 2 + routingKeyBytes.length
+                + 4 + body.length);
+        buffer.put(TYPE_ADD).putLong(dueMillis)
+                .putShort((short) exchangeBytes.length).put(exchangeBytes)
+                .putShort((short) routingKeyBytes.length).put(routingKeyBytes)
+                .putInt(body.length).put(body);
+        buffer.flip();
+        if (current.size >= segmentBytes) {
+            roll();
+        }
+        long position = write(buffer);
+        current.pending++;
+        return position;
+    }
+
+    /**
+     * 读取一条定时消息
+     */
+    public synchronized ScheduledMessage read(long position) throws IOException {
+        Segment segment = segments.get(segmentId(position));
+        if (segment == null) {
+            throw new IOException("日志段不存在：" + position);
+        }
+        long offset = position & OFFSET_MASK;
+        ByteBuffer head = readFully(segment.channel, offset, 1 + 8 + 2);
+        if (head.get() != TYPE_ADD) {
+            throw new IOException("不是定时消息记录：" + position);
+        }
+        long dueMillis = head.getLong();
+        offset += head.capacity();
+        ByteBuffer exchange = readFully(segment.channel, offset, (head.getShort() & 0xFFFF) + 2);
+        offset += exchange.capacity();
+        ByteBuffer routingKey = readFully(segment.channel, offset,
+                (exchange.getShort(exchange.capacity() - 2) & 0xFFFF) + 4);
+        offset += routingKey.capacity();
+        ByteBuffer body = readFully(segment.channel, offset, routingKey.getInt(routingKey.capacity() - 4));
+        return new ScheduledMessage(position, dueMillis,
+                new String(exchange.array(), 0, exchange.capacity() - 2, StandardCharsets.UTF_8),
+                new String(routingKey.array(), 0, routingKey.capacity() - 4, StandardCharsets.UTF_8),
+                body.array());
+    }
+
+    /**
+     * 标记消息已发送
+     */
+    public synchronized void markDone(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8);
+        buffer.put(TYPE_DONE).putLong(position);
+        buffer.flip();
+        if (current.size >= segmentBytes) {
+            roll();
+        }
+        write(buffer);
+        Segment segment = segments.get(segmentId(position));
+        if (segment != null && --segment.pending == 0) {
+            deleteCompletedSegments();
+        }
+    }
+
+    /**
+     * 日志段数
+     */
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+
+    private long write(ByteBuffer buffer) throws IOException {
+        long position = ((long) current.id << OFFSET_BITS) | current.size;
+        while (buffer.hasRemaining()) {
+            current.size += current.channel.write(buffer, current.size);
+        }
+        if (sync) {
+            current.channel.force(false);
+        }
+        return position;
+    }
+
+    private void roll() throws IOException {
+        int id = current == null ? 0 : current.id + 1;
+        current = new Segment(id, dir.resolve("schedule-" + id + ".log"));
+        segments.put(id, current);
+    }
+
+    private void deleteCompletedSegments() throws IOException {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == current || oldest.pending > 0) {
+                return;
+            }
+            segments.remove(oldest.id);
+            oldest.channel.close();
+            Files.deleteIfExists(oldest.file);
+        }
+    }
+
+    private void replay(Segment segment, Map<Long, Long> pending) throws IOException {
+        long offset = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(segment.file), 64 * 1024);
+             DataInputStream data = new DataInputStream(in)) {
+            while (true) {
+                long start = offset;
+                int type = data.read();
+                if (type < 0) {
+                    break;
+                }
+                if (type == TYPE_ADD) {
+                    long dueMillis = data.readLong();
+                    int exchangeLength = data.readUnsignedShort();
+                    skipFully(data, exchangeLength);
+                    int routingKeyLength = data.readUnsignedShort();
+                    skipFully(data, routingKeyLength);
+                    int bodyLength = data.readInt();
+                    skipFully(data, bodyLength);
+                    offset += 1 + 8 + 2 + exchangeLength + 2 + routingKeyLength + 4 + bodyLength;
+                    pending.put(((long) segment.id << OFFSET_BITS) | start, dueMillis);
+                } else if (type == TYPE_DONE) {
+                    pending.remove(data.readLong());
+                    offset += 1 + 8;
+                } else {
+                    throw new EOFException("未知的记录类型：" + type);
+                }
+            }
+        } catch (EOFException e) {
+            //崩溃时写了一半的记录，截断
+            LOGGER.warn("日志{}在{}处不完整，截断", segment.file, offset);
+            segment.channel.truncate(offset);
+        }
+        segment.size = offset;
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int skipped = 0;
+        while (skipped < length) {
+            int n = in.skipBytes(length - skipped);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            skipped += n;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int segmentId(long position) {
+        return (int) (position >>> OFFSET_BITS);
+    }
+
+    /**
+     * 日志段
+     */
+    private static final class Segment {
+        private final int id;
+        private final Path file;
+        private final FileChannel channel;
+        private long size;
+        /**
+         * 这个段中还没发送的消息数
+         */
+        private int pending;
+
+        private Segment(int id, Path file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+}
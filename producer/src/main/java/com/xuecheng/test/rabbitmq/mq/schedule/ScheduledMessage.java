@@ -0,0 +1,31 @@
+package com.xuecheng.test.rabbitmq.mq.schedule;
+
+import com.xuecheng.test.rabbitmq.mq.OutboundMessage;
+
+/**
+ * 定时消息，到期后发送到指定的交换机
+ */
+public class ScheduledMessage extends OutboundMessage {
+    /**
+     * 消息在日志中的位置，同时作为消息id
+     */
+    private final long id;
+    /**
+     * 到期时间
+     */
+    private final long dueMillis;
+
+    public ScheduledMessage(long id, long dueMillis, String exchange, String routingKey, byte[] body) {
+        super(exchange, routingKey, body);
+        this.id = id;
+        this.dueMillis = dueMillis;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getDueMillis() {
+        return dueMillis;
+    }
+}
@@ -0,0 +1,93 @@
+package com.xuecheng.test.rabbitmq.mq.schedule;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 哈希时间轮，添加和到期都是O(1)
+ * <p>
+ * 时间轴被划分为固定长度的tick，每个tick对应一个槽，槽数为2的幂，超过一圈的任务在槽里等待下一圈
+ * 不是线程安全的，由调用方加锁
+ *
+ * @param <T> 任务类型
+ */
+public class TimingWheel<T> {
+    private final ArrayDeque<Entry<T>>[] slots;
+    private final int mask;
+    private final long tickMillis;
+    /**
+     * 已经处理到的tick
+     */
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(int wheelSize, long tickMillis, long startMillis) {
+        int slotCount = Integer.highestOneBit(Math.max(2, wheelSize - 1) << 1);
+        this.slots = new ArrayDeque[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.mask = slotCount - 1;
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    /**
+     * 添加任务
+     *
+     * @param task           任务
+     * @param deadlineMillis 到期时间
+     */
+    public void schedule(T task, long deadlineMillis) {
+        //已经过期的放到下一个tick
+        long tick = Math.max(deadlineMillis / tickMillis, currentTick + 1);
+        slots[(int) (tick & mask)].addLast(new Entry<>(task, tick));
+        size++;
+    }
+
+    /**
+     * 推进到当前时间，返回所有到期的任务
+     *
+     * @param nowMillis 当前时间
+     */
+    public List<T> advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        long targetTick = nowMillis / tickMillis;
+        //落后超过一圈时，每个槽只需要扫描一次
+        long from = Math.max(currentTick + 1, targetTick - mask);
+        for (long tick = from; tick <= targetTick; tick++) {
+            ArrayDeque<Entry<T>> slot = slots[(int) (tick & mask)];
+            int count = slot.size();
+            for (int i = 0; i < count; i++) {
+                Entry<T> entry = slot.pollFirst();
+                if (entry.tick <= targetTick) {
+                    expired.add(entry.task);
+                    size--;
+                } else {
+                    slot.addLast(entry);
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, targetTick);
+        return expired;
+    }
+
+    /**
+     * 未到期的任务数
+     */
+    public int size() {
+        return size;
+    }
+
+    private static final class Entry<T> {
+        private final T task;
+        private final long tick;
+
+        private Entry(T task, long tick) {
+            this.task = task;
+            this.tick = tick;
+        }
+    }
+}
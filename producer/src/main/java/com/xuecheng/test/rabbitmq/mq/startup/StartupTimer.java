@@ -0,0 +1,41 @@
+package com.xuecheng.test.rabbitmq.mq.startup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * 记录JVM启动到容器就绪的耗时
+ * xuecheng.mq.startup.exit=ready时就绪后退出，用于生成AppCDS归档的训练运行
+ */
+@Component
+public class StartupTimer implements ApplicationListener<ApplicationReadyEvent> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StartupTimer.class);
+    public static final String EXIT_READY = "ready";
+
+    private final String exit;
+    private volatile long readyMillis = -1;
+
+    public StartupTimer(@Value("${xuecheng.mq.startup.exit:}") String exit) {
+        this.exit = exit;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        readyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        LOGGER.info("启动耗时：JVM启动到就绪{}ms", readyMillis);
+        if (EXIT_READY.equals(exit)) {
+            new Thread(() -> System.exit(SpringApplication.exit(event.getApplicationContext())), "startup-exit").start();
+        }
+    }
+
+    public long getReadyMillis() {
+        return readyMillis;
+    }
+}
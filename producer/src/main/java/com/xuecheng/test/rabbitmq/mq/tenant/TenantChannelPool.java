@@ -0,0 +1,90 @@
+package com.xuecheng.test.rabbitmq.mq.tenant;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个租户的通道池，大小固定，通道用完时等待，一个租户发得再多也只占用自己的通道
+ * 通道在第一次借用时创建，归还时已经关闭的通道丢弃，下次借用时补上
+ */
+public class TenantChannelPool {
+    private final Connection connection;
+    private final int size;
+    private final BlockingQueue<Channel> idle;
+    private final AtomicInteger created = new AtomicInteger();
+
+    public TenantChannelPool(Connection connection, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("通道池大小必须大于0");
+        }
+        this.connection = connection;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+    }
+
+    /**
+     * 借用一个通道
+     *
+     * @return 通道，等待超时返回null
+     */
+    public Channel borrow(long timeoutMillis) throws IOException, InterruptedException {
+        Channel channel = idle.poll();
+        if (channel != null) {
+            return channel;
+        }
+        while (true) {
+            int count = created.get();
+            if (count >= size) {
+                return idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            if (created.compareAndSet(count, count + 1)) {
+                try {
+                    return connection.createChannel();
+                } catch (IOException | RuntimeException e) {
+                    created.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 归还通道，关闭的通道不再放回池中
+     */
+    public void release(Channel channel) {
+        if (channel.isOpen()) {
+            idle.offer(channel);
+        } else {
+            created.decrementAndGet();
+        }
+    }
+
+    /**
+     * 正在使用的通道数
+     */
+    public int getBusy() {
+        return created.get() - idle.size();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void close() {
+        Channel channel;
+        while ((channel = idle.poll()) != null) {
+            try {
+                channel.close();
+            } catch (IOException | TimeoutException ignored) {
+                //连接随后关闭
+            }
+        }
+    }
+}
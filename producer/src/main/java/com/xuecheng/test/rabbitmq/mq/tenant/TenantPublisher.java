@@ -0,0 +1,202 @@
+package com.xuecheng.test.rabbitmq.mq.tenant;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按租户隔离的发送，开启方式：xuecheng.mq.tenant.enabled=true
+ * <p>
+ * 每个虚拟机一个连接，每个租户一个通道池（大小为每份权重的通道数×权重），消息发到租户自己的交换机，带上tenant消息头
+ * 一个租户突发大量发送时只会用完自己的通道，等待超时后抛出异常，不影响其他租户
+ * 每个租户分别统计发送条数、因通道用完被限流的条数和发送耗时（含等待通道的时间）
+ */
+public class TenantPublisher implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TenantPublisher.class);
+    private static final AMQP.BasicProperties PERSISTENT = new AMQP.BasicProperties.Builder()
+            .contentType("text/plain").contentEncoding("UTF-8").deliveryMode(2).build();
+
+    private final Map<String, Connection> connections = new LinkedHashMap<>();
+    private final Map<String, Tenant> tenants = new LinkedHashMap<>();
+    private final long waitMillis;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param specs            租户
+     * @param connectionSource 按虚拟机创建连接
+     * @param channelsPerWeight 每份权重的通道数
+     * @param waitMillis       通道用完时最多等待多久
+     * @param queueArguments   租户队列的参数，和共享队列一致
+     */
+    public TenantPublisher(List<TenantSpec> specs, ConnectionSource connectionSource, int channelsPerWeight,
+                           long waitMillis, Map<String, Object> queueArguments) throws IOException, TimeoutException {
+        this.waitMillis = waitMillis;
+        try {
+            for (TenantSpec spec : specs) {
+                Connection connection = connections.get(spec.getVhost());
+                if (connection == null) {
+                    connection = connectionSource.open(spec.getVhost());
+                    connections.put(spec.getVhost(), connection);
+                }
+                Channel channel = connection.createChannel();
+                spec.declareTopology(channel, queueArguments);
+                channel.close();
+                tenants.put(spec.getName(), new Tenant(spec,
+                        new TenantChannelPool(connection, channelsPerWeight * spec.getWeight())));
+            }
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 定时打印每个租户的统计
+     */
+    public synchronized void startStats(long intervalMillis) {
+        if (intervalMillis <= 0 || executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mq-tenant-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            for (Tenant tenant : tenants.values()) {
+                LOGGER.info("租户发送统计：{}", tenant.sample(intervalMillis));
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 发送一条文本消息到租户的交换机
+     *
+     * @param tenant     租户名
+     * @param routingKey 例如inform.email
+     * @throws IOException 租户的通道用完并等待超时，或者发送失败
+     */
+    public void publish(String tenant, String routingKey, byte[] body) throws IOException {
+        Tenant target = tenants.get(tenant);
+        if (target == null) {
+            throw new IllegalArgumentException("没有配置的租户：" + tenant);
+        }
+        long start = System.nanoTime();
+        Channel channel;
+        try {
+            channel = target.pool.borrow(waitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待租户" + tenant + "的通道被中断");
+        }
+        if (channel == null) {
+            target.throttled.incrementAndGet();
+            throw new IOException("租户" + tenant + "的" + target.pool.getSize() + "个通道都在使用中，等待"
+                    + waitMillis + "ms后超时");
+        }
+        try {
+            channel.basicPublish(target.spec.getExchange(), routingKey, target.properties, body);
+        } finally {
+            target.pool.release(channel);
+        }
+        target.published.incrementAndGet();
+        target.latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    public Collection<TenantSpec> getTenants() {
+        Collection<TenantSpec> specs = new ArrayList<>();
+        for (Tenant tenant : tenants.values()) {
+            specs.add(tenant.spec);
+        }
+        return Collections.unmodifiableCollection(specs);
+    }
+
+    public long getPublished(String tenant) {
+        return tenants.get(tenant).published.get();
+    }
+
+    public long getThrottled(String tenant) {
+        return tenants.get(tenant).throttled.get();
+    }
+
+    /**
+     * 发送耗时的直方图，微秒
+     */
+    public LatencyHistogram getLatencyMicros(String tenant) {
+        return tenants.get(tenant).latencyMicros;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (Tenant tenant : tenants.values()) {
+            tenant.pool.close();
+        }
+        for (Connection connection : connections.values()) {
+            try {
+                if (connection.isOpen()) {
+                    connection.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("关闭租户连接失败", e);
+            }
+        }
+    }
+
+    /**
+     * 按虚拟机创建连接
+     */
+    public interface ConnectionSource {
+        Connection open(String vhost) throws IOException, TimeoutException;
+    }
+
+    private static final class Tenant {
+        private final TenantSpec spec;
+        private final TenantChannelPool pool;
+        private final AMQP.BasicProperties properties;
+        private final AtomicLong published = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private final LatencyHistogram latencyMicros = new LatencyHistogram();
+        private long lastPublished;
+
+        Tenant(TenantSpec spec, TenantChannelPool pool) {
+            this.spec = spec;
+            this.pool = pool;
+            this.properties = PERSISTENT.builder()
+                    .headers(Collections.<String, Object>singletonMap(RabbitMQConfig.HEADER_TENANT, spec.getName()))
+                    .build();
+        }
+
+        /**
+         * 统计一个间隔内的吞吐量，只在统计线程中调用
+         */
+        String sample(long intervalMillis) {
+            long now = published.get();
+            long rate = (now - lastPublished) * 1000 / intervalMillis;
+            lastPublished = now;
+            return spec.getName() + "：" + rate + "条/秒，累计" + now + "条，限流" + throttled.get() + "条，通道"
+                    + pool.getBusy() + "/" + pool.getSize() + "，耗时p50=" + latencyMicros.percentile(50)
+                    + "us p99=" + latencyMicros.percentile(99) + "us max=" + latencyMicros.max() + "us";
+        }
+    }
+}
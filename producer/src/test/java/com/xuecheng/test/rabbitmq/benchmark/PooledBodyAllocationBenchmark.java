@@ -0,0 +1,68 @@
+package com.xuecheng.test.rabbitmq.benchmark;
+
+import com.xuecheng.test.rabbitmq.mq.backlog.BudgetedPublisher;
+import com.xuecheng.test.rabbitmq.mq.backlog.MemoryBudget;
+import com.xuecheng.test.rabbitmq.mq.broker.InProcessBroker;
+import com.xuecheng.test.rabbitmq.mq.buffer.BufferPool;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * 消息体构造的内存分配基准测试，不需要MQ，发送到进程内的模拟MQ
+ * <p>
+ * 对比convertAndSend的做法（每条消息一个Message和MessageProperties，消息体String.getBytes()）
+ * 和池化缓冲区（BudgetedPublisher.publishText，直接编码到堆外，确认后归还）
+ * 模拟MQ和真实客户端一样，堆外消息体发送时复制成一个临时数组，两种做法都经过BudgetedPublisher
+ * 直接运行main方法，参数：消息体字符数，默认1024
+ */
+public class PooledBodyAllocationBenchmark {
+    private static final int MESSAGES = 1_000_000;
+
+    public static void main(String[] args) throws IOException {
+        int length = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        char[] chars = new char[length];
+        Arrays.fill(chars, '信');
+        String text = new String(chars);
+        InProcessBroker broker = new InProcessBroker().bind("queue_inform_sms", "ex", "inform.#.sms.#");
+        BufferPool pool = new BufferPool();
+
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            MemoryBudget budget = new MemoryBudget(1L << 30, 0.5);
+            BudgetedPublisher plain = new BudgetedPublisher(broker.createChannel(), budget, 0);
+            SimpleMessageConverter converter = new SimpleMessageConverter();
+            run(print, "Message + getBytes()", () -> {
+                Message message = converter.toMessage(text, new MessageProperties());
+                plain.publish("ex", "inform.sms", message.getBody());
+            });
+            BudgetedPublisher pooled = new BudgetedPublisher(broker.createChannel(), budget, 0, null, pool);
+            run(print, "池化堆外缓冲区", () -> pooled.publishText("ex", "inform.sms", text));
+        }
+        System.out.println(pool.stats());
+    }
+
+    private interface Publish {
+        void run() throws IOException;
+    }
+
+    private static void run(boolean print, String name, Publish publish) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            publish.run();
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        if (print) {
+            System.out.println(String.format("%-24s 每条分配%8.1f字节  每条%6.1f纳秒", name,
+                    allocated / (double) MESSAGES, nanos / (double) MESSAGES));
+        }
+    }
+}
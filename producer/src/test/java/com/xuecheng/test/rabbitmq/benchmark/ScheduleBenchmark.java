@@ -0,0 +1,66 @@
+package com.xuecheng.test.rabbitmq.benchmark;
+
+import com.xuecheng.test.rabbitmq.mq.schedule.DelayedMessageScheduler;
+import com.xuecheng.test.rabbitmq.mq.schedule.ScheduleLog;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 定时消息调度器的基准测试，不需要MQ
+ * <p>
+ * 添加100万条定时消息，统计添加速度和堆内存占用，然后全部到期发送，统计发送速度
+ * 直接运行main方法
+ * 参数：消息数 消息体大小，默认1000000 200
+ */
+public class ScheduleBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int bodySize = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Path dir = Files.createTempDirectory("schedule-benchmark");
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        AtomicLong released = new AtomicLong();
+
+        ScheduleLog log = new ScheduleLog(dir, 64L * 1024 * 1024, false);
+        DelayedMessageScheduler scheduler = new DelayedMessageScheduler(log, 10, 4096, 1000, 1000,
+                batch -> released.addAndGet(batch.size()));
+        scheduler.recover();
+        long heapBefore = usedHeap();
+
+        //所有消息在5秒内陆续到期
+        long start = System.currentTimeMillis();
+        long spread = 5000;
+        for (int i = 0; i < count; i++) {
+            scheduler.schedule("exchange_topics_inform", "inform.sms", body, start + spread + (i % spread));
+        }
+        long insertMillis = System.currentTimeMillis() - start;
+        long heapAfter = usedHeap();
+        System.out.println(String.format("添加%d条：%d毫秒，%.0f条/秒", count, insertMillis,
+                count * 1000.0 / Math.max(1, insertMillis)));
+        System.out.println(String.format("堆内存增加：%.1fMB，每条%.1f字节（消息体%d字节保存在日志中）",
+                (heapAfter - heapBefore) / 1024.0 / 1024, (heapAfter - heapBefore) / (double) count, bodySize));
+
+        long releaseStart = System.currentTimeMillis();
+        while (released.get() < count) {
+            scheduler.tick();
+            Thread.sleep(10);
+        }
+        long releaseMillis = System.currentTimeMillis() - releaseStart;
+        System.out.println(String.format("全部发送：%d毫秒（包含等待到期的%d毫秒），剩余日志段%d个",
+                releaseMillis, Math.max(0, start + 2 * spread - releaseStart), log.segmentCount()));
+        scheduler.stop();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,61 @@
+package com.xuecheng.test.rabbitmq.mq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.MessageProperties;
+import org.junit.Test;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 批量发送的测试，通道是记录调用的代理
+ */
+public class BatchPublisherTest {
+    private final List<AMQP.BasicProperties> published = new ArrayList<>();
+
+    @Test
+    public void keepsPropertiesPerMessage() {
+        BatchPublisher publisher = new BatchPublisher(connectionFactory(), 1000);
+        AMQP.BasicProperties withHeaders = new AMQP.BasicProperties.Builder().contentType("application/json")
+                .deliveryMode(2).priority(5).headers(Collections.singletonMap("user-id", "u1")).build();
+        publisher.publish(Arrays.asList(
+                new OutboundMessage("ex", "inform.email", withHeaders, new byte[]{1}),
+                new OutboundMessage("ex", "inform.sms", new byte[]{2})));
+
+        assertEquals(2, published.size());
+        assertEquals("u1", published.get(0).getHeaders().get("user-id"));
+        assertEquals(Integer.valueOf(5), published.get(0).getPriority());
+        assertSame(MessageProperties.PERSISTENT_TEXT_PLAIN, published.get(1));
+        publisher.close();
+    }
+
+    private ConnectionFactory connectionFactory() {
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicPublish":
+                            published.add((AMQP.BasicProperties) args[2]);
+                            return null;
+                        case "isOpen":
+                            return true;
+                        default:
+                            return null;
+                    }
+                });
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> "createChannel".equals(method.getName()) ? channel : null);
+        return (ConnectionFactory) Proxy.newProxyInstance(ConnectionFactory.class.getClassLoader(),
+                new Class<?>[]{ConnectionFactory.class},
+                (proxy, method, args) -> "createConnection".equals(method.getName()) ? connection : null);
+    }
+}
@@ -0,0 +1,193 @@
+package com.xuecheng.test.rabbitmq.mq.backlog;
+
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.OutboundMessage;
+import com.xuecheng.test.rabbitmq.mq.broker.InProcessBroker;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import com.xuecheng.test.rabbitmq.mq.buffer.BufferPool;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 积压相关的队列参数、内存预算的暂停和恢复
+ */
+public class BudgetedPublisherTest {
+    private static final String EXCHANGE = "ex";
+    private static final String QUEUE = RabbitMQConfig.QUEUE_INFORM_SMS;
+
+    @Test
+    public void backlogArguments() {
+        assertNull(RabbitMQConfig.backlogArguments(null, "classic", "", 0, 0, ""));
+        Map<String, Object> arguments = RabbitMQConfig.backlogArguments(null, "classic",
+                RabbitMQConfig.QUEUE_MODE_LAZY, 10_000_000, 0, RabbitMQConfig.OVERFLOW_REJECT_PUBLISH);
+        assertEquals("lazy", arguments.get("x-queue-mode"));
+        assertEquals(10_000_000L, arguments.get("x-max-length"));
+        assertEquals("reject-publish", arguments.get("x-overflow"));
+        Map<String, Object> quorum = RabbitMQConfig.backlogArguments(RabbitMQConfig.queueArguments("quorum", null),
+                "quorum", "", 0, 1 << 30, RabbitMQConfig.OVERFLOW_DROP_HEAD);
+        assertEquals("quorum", quorum.get("x-queue-type"));
+        assertEquals((long) (1 << 30), quorum.get("x-max-length-bytes"));
+        assertInvalid("quorum", "lazy", 0, "");
+        assertInvalid("stream", "", 100, "");
+        assertInvalid("classic", "", 0, "reject-publish");
+        assertInvalid("quorum", "", 100, "reject-publish-dlx");
+    }
+
+    @Test
+    public void pausesUntilConfirmsFreeTheBudget() throws IOException {
+        ManualConfirmChannel channel = new ManualConfirmChannel();
+        MemoryBudget budget = new MemoryBudget(1000, 0.5);
+        BudgetedPublisher publisher = new BudgetedPublisher(channel, budget, 20);
+        for (int i = 0; i < 10; i++) {
+            publisher.publish(EXCHANGE, "inform.sms", new byte[100]);
+        }
+        assertTrue(budget.isPaused());
+        try {
+            publisher.publish(EXCHANGE, "inform.sms", new byte[100]);
+            fail("预算用完时应该等待超时");
+        } catch (IOException expected) {
+            assertEquals(1, budget.getTimeouts());
+        }
+        //确认4条后占用600，还在恢复线之上
+        channel.handler.handle(4, true, true);
+        assertTrue(budget.isPaused());
+        channel.handler.handle(6, true, true);
+        assertFalse(budget.isPaused());
+        assertEquals(400, budget.getInFlightBytes());
+        publisher.publish(EXCHANGE, "inform.sms", new byte[100]);
+        assertEquals(5, publisher.getUnconfirmed());
+        assertEquals(1, budget.getPauses());
+    }
+
+    @Test
+    public void backlogAndRejectPublish() throws IOException {
+        InProcessBroker broker = new InProcessBroker().bind(QUEUE, EXCHANGE, RabbitMQConfig.ROUTINGKEY_SMS)
+                .limit(QUEUE, 150, true);
+        MemoryBudget budget = new MemoryBudget(5000, 0.8);
+        List<OutboundMessage> rejected = new ArrayList<>();
+        BudgetedPublisher publisher = new BudgetedPublisher(broker.createChannel(), budget, 0, rejected::add);
+        BacklogMonitor monitor = new BacklogMonitor(budget, broker::depth, Collections.singletonList(QUEUE), 0.5);
+        for (int i = 0; i < 200; i++) {
+            publisher.publish(EXCHANGE, "inform.sms", new byte[100]);
+        }
+        //队列满了之后的50条被拒绝，确认和拒绝都释放了预算
+        assertEquals(50, publisher.getNacked());
+        //被拒绝的消息交给调用方
+        assertEquals(50, rejected.size());
+        assertEquals("inform.sms", rejected.get(0).getRoutingKey());
+        assertEquals(0, budget.getInFlightBytes());
+        //150条×100字节×0.5
+        assertEquals(7500, monitor.poll());
+        assertTrue(budget.isPaused());
+        broker.drain(QUEUE, 80);
+        assertEquals(3500, monitor.poll());
+        assertFalse(budget.isPaused());
+        monitor.close();
+    }
+
+    /**
+     * 通道关闭后未确认的消息释放预算并交给调用方，预算不会泄漏
+     */
+    @Test
+    public void shutdownReleasesUnconfirmed() throws IOException {
+        ManualConfirmChannel channel = new ManualConfirmChannel();
+        MemoryBudget budget = new MemoryBudget(1000, 0.5);
+        List<OutboundMessage> rejected = new ArrayList<>();
+        BudgetedPublisher publisher = new BudgetedPublisher(channel, budget, 0, rejected::add);
+        for (int i = 0; i < 10; i++) {
+            publisher.publish(EXCHANGE, "inform.sms", new byte[100]);
+        }
+        channel.handler.handle(3, true, true);
+        assertTrue(budget.isPaused());
+
+        channel.shutdownHandler.run();
+        assertEquals(0, budget.getInFlightBytes());
+        assertFalse(budget.isPaused());
+        assertEquals(0, publisher.getUnconfirmed());
+        assertEquals(7, publisher.getLost());
+        assertEquals(7, rejected.size());
+    }
+
+    /**
+     * publishText的消息体在确认、拒绝或通道关闭后都归还到池中，被拒绝的消息体复制给调用方
+     */
+    @Test
+    public void pooledBodiesReturnAfterSettle() throws IOException {
+        ManualConfirmChannel channel = new ManualConfirmChannel();
+        MemoryBudget budget = new MemoryBudget(1000, 0.5);
+        BufferPool pool = new BufferPool(256, 4096, 16, true);
+        List<OutboundMessage> rejected = new ArrayList<>();
+        BudgetedPublisher publisher = new BudgetedPublisher(channel, budget, 0, rejected::add, pool);
+        for (int i = 0; i < 6; i++) {
+            publisher.publishText(EXCHANGE, "inform.sms", "验证码" + i);
+        }
+        assertEquals(6, pool.getOutstanding());
+        assertEquals(6 * "验证码0".getBytes(StandardCharsets.UTF_8).length, budget.getInFlightBytes());
+
+        channel.handler.handle(2, true, true);
+        channel.handler.handle(3, false, false);
+        assertEquals(3, pool.getOutstanding());
+        assertEquals("验证码2", new String(rejected.get(0).getBody(), StandardCharsets.UTF_8));
+
+        channel.shutdownHandler.run();
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, budget.getInFlightBytes());
+        assertEquals(4, rejected.size());
+        assertEquals("验证码5", new String(rejected.get(3).getBody(), StandardCharsets.UTF_8));
+        assertEquals(0, pool.getLeaks());
+    }
+
+    private static void assertInvalid(String type, String mode, long maxLength, String overflow) {
+        try {
+            RabbitMQConfig.backlogArguments(null, type, mode, maxLength, 0, overflow);
+            fail("应该不支持：" + type + " " + mode + " " + maxLength + " " + overflow);
+        } catch (IllegalArgumentException expected) {
+            //不支持的组合
+        }
+    }
+
+    /**
+     * 不自动确认的通道，测试中手动回调确认
+     */
+    private static final class ManualConfirmChannel implements PublishChannel {
+        private long nextSeqNo = 1;
+        private ConfirmHandler handler;
+        private Runnable shutdownHandler;
+
+        @Override
+        public long getNextSeqNo() {
+            return nextSeqNo;
+        }
+
+        @Override
+        public long publish(String exchange, String routingKey, byte[] body) {
+            return nextSeqNo++;
+        }
+
+        @Override
+        public void setConfirmHandler(ConfirmHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void setShutdownHandler(Runnable handler) {
+            this.shutdownHandler = handler;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
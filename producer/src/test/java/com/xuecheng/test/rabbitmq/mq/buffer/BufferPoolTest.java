@@ -0,0 +1,89 @@
+package com.xuecheng.test.rabbitmq.mq.buffer;
+
+import com.xuecheng.test.rabbitmq.mq.broker.InProcessBroker;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 堆外缓冲区池的测试，开启泄漏检测
+ */
+public class BufferPoolTest {
+    private final BufferPool pool = new BufferPool(256, 4096, 16, true);
+
+    @Test
+    public void reusesBuffersWithinSizeClass() {
+        PooledBuffer first = pool.acquire(300);
+        ByteBuffer underlying = first.buffer();
+        assertEquals(512, underlying.capacity());
+        assertEquals(300, underlying.limit());
+        first.release();
+
+        PooledBuffer second = pool.acquire(500);
+        assertSame(underlying, second.buffer());
+        PooledBuffer other = pool.acquire(100);
+        assertNotSame(underlying, other.buffer());
+        assertEquals(256, other.buffer().capacity());
+
+        BufferPool.Stats stats = pool.stats();
+        assertEquals(768, stats.getInUseBytes());
+        assertEquals(1, stats.getReused());
+        second.release();
+        other.release();
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, pool.stats().getUtilization(), 0.0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsDoubleRelease() {
+        PooledBuffer buffer = pool.acquire(10);
+        buffer.release();
+        buffer.release();
+    }
+
+    @Test
+    public void encodesUtf8WithoutIntermediateArray() {
+        String text = "短信验证码123，😀";
+        PooledBuffer body = BodyCodec.encodeUtf8(text, pool);
+        assertEquals(text.getBytes(java.nio.charset.StandardCharsets.UTF_8).length, body.buffer().remaining());
+        assertEquals(text, BodyCodec.decodeUtf8(body.buffer()));
+        body.release();
+    }
+
+    @Test
+    public void releasesBodiesAfterConfirm() throws Exception {
+        InProcessBroker broker = new InProcessBroker().bind("queue_inform_sms", "ex", "inform.#.sms.#");
+        PooledPublisher publisher = new PooledPublisher(broker.createChannel(), pool);
+        for (int i = 0; i < 100; i++) {
+            publisher.publishText("ex", "inform.sms", "验证码" + i);
+        }
+        assertEquals(100, broker.enqueued("queue_inform_sms"));
+        assertEquals(0, publisher.getUnconfirmed());
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(99, pool.stats().getReused());
+    }
+
+    /**
+     * 没有release就丢掉的缓冲区被GC后能发现，并收回到池中
+     */
+    @Test
+    public void detectsLeaks() throws Exception {
+        leak();
+        for (int i = 0; i < 50 && pool.getLeaks() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.getLeaks());
+        assertEquals(0, pool.getOutstanding());
+        assertTrue(pool.stats().getFreeBytes() > 0);
+    }
+
+    private void leak() {
+        pool.acquire(1000).buffer().put((byte) 1);
+    }
+}
@@ -0,0 +1,185 @@
+package com.xuecheng.test.rabbitmq.mq.bulk;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.MessageProperties;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.OutboundMessage;
+import com.xuecheng.test.rabbitmq.mq.broker.InProcessBroker;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 并行批量发送的测试
+ */
+public class BulkPublisherTest {
+    private static final int TOTAL = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final InProcessBroker broker = new InProcessBroker()
+            .bind(RabbitMQConfig.QUEUE_INFORM_EMAIL, RabbitMQConfig.EXCHANGE_TOPICS_INFORM, RabbitMQConfig.ROUTINGKEY_EMAIL)
+            .bind(RabbitMQConfig.QUEUE_INFORM_SMS, RabbitMQConfig.EXCHANGE_TOPICS_INFORM, RabbitMQConfig.ROUTINGKEY_SMS);
+
+    private static Stream<OutboundMessage> messages() {
+        return IntStream.range(0, TOTAL).mapToObj(i -> new OutboundMessage(RabbitMQConfig.EXCHANGE_TOPICS_INFORM,
+                i % 2 == 0 ? "inform.email" : "inform.sms", ("user-" + i).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private long enqueued() {
+        return broker.enqueued(RabbitMQConfig.QUEUE_INFORM_EMAIL) + broker.enqueued(RabbitMQConfig.QUEUE_INFORM_SMS);
+    }
+
+    @Test
+    public void publishesEverythingAcrossPartitions() throws Exception {
+        List<BulkProgress> reports = new ArrayList<>();
+        BulkPublisher publisher = new BulkPublisher(broker::createChannel, 4, 64, 500, 3, 5000, 0);
+        BulkProgress progress = publisher.publish(messages(), Checkpoint.none(), reports::add);
+
+        assertTrue(progress.isDone());
+        assertEquals(TOTAL, progress.getRead());
+        assertEquals(TOTAL, progress.getConfirmed());
+        assertEquals(TOTAL, progress.getCheckpoint());
+        assertEquals(0, progress.getInFlight());
+        assertEquals(TOTAL, enqueued());
+        assertTrue(reports.size() > 1);
+    }
+
+    /**
+     * 被拒绝的消息重发，次数用完记为失败
+     */
+    @Test
+    public void retriesNackedMessages() throws Exception {
+        Supplier<PublishChannel> channels = () -> new FaultyChannel(broker.createChannel(), seqNo -> seqNo % 7 == 0);
+        BulkProgress progress = new BulkPublisher(channels, 4, 64, 500, 5, 5000, 1000)
+                .publish(messages(), Checkpoint.none(), p -> {
+                });
+        assertEquals(TOTAL, progress.getConfirmed());
+        assertEquals(0, progress.getFailed());
+        assertTrue(progress.getRetried() > 0);
+        assertEquals(TOTAL + progress.getRetried(), progress.getPublished());
+
+        progress = new BulkPublisher(() -> new FaultyChannel(broker.createChannel(), seqNo -> seqNo % 7 == 0),
+                4, 64, 500, 1, 5000, 1000).publish(messages(), Checkpoint.none(), p -> {
+        });
+        assertTrue(progress.getFailed() > 0);
+        assertEquals(TOTAL, progress.getConfirmed() + progress.getFailed());
+        //失败的消息没有确认，断点不能越过它
+        assertTrue(progress.getCheckpoint() < TOTAL);
+    }
+
+    /**
+     * 消息属性原样发送，没有指定时为持久化的text/plain
+     */
+    @Test
+    public void keepsMessageProperties() throws Exception {
+        List<AMQP.BasicProperties> sent = new ArrayList<>();
+        Supplier<PublishChannel> channels = () -> new FaultyChannel(broker.createChannel(), seqNo -> false) {
+            @Override
+            public long publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body)
+                    throws IOException {
+                synchronized (sent) {
+                    sent.add(properties);
+                }
+                return super.publish(exchange, routingKey, properties, body);
+            }
+        };
+        AMQP.BasicProperties withHeaders = new AMQP.BasicProperties.Builder().deliveryMode(2)
+                .messageId("backfill-1").headers(Collections.singletonMap("x-user-id", "u1")).build();
+        BulkProgress progress = new BulkPublisher(channels, 1, 64, 500, 3, 5000, 0).publish(Stream.of(
+                new OutboundMessage(RabbitMQConfig.EXCHANGE_TOPICS_INFORM, "inform.email", withHeaders, new byte[]{1}),
+                new OutboundMessage(RabbitMQConfig.EXCHANGE_TOPICS_INFORM, "inform.sms", new byte[]{2})),
+                Checkpoint.none(), p -> {
+                });
+        assertEquals(2, progress.getConfirmed());
+        assertSame(withHeaders, sent.get(0));
+        assertSame(MessageProperties.PERSISTENT_TEXT_PLAIN, sent.get(1));
+    }
+
+    /**
+     * 通道出错后任务终止，重新调用从断点继续，断点之前的消息不再发送
+     */
+    @Test
+    public void resumesFromCheckpoint() throws Exception {
+        FileCheckpoint checkpoint = new FileCheckpoint(folder.getRoot().toPath().resolve("backfill.checkpoint"));
+        AtomicLong published = new AtomicLong();
+        Supplier<PublishChannel> crashing = () -> new FaultyChannel(broker.createChannel(), seqNo -> false) {
+            @Override
+            public long publish(String exchange, String routingKey, byte[] body) throws IOException {
+                if (published.incrementAndGet() > TOTAL / 2) {
+                    throw new IOException("连接断开");
+                }
+                return super.publish(exchange, routingKey, body);
+            }
+        };
+        try {
+            new BulkPublisher(crashing, 4, 64, 500, 3, 5000, 0).publish(messages(), checkpoint, p -> {
+            });
+            fail("通道出错时应该抛出异常");
+        } catch (IOException expected) {
+            //断点已保存
+        }
+        long position = checkpoint.load();
+        assertTrue(position > 0 && position <= TOTAL / 2);
+        long before = enqueued();
+
+        BulkProgress progress = new BulkPublisher(broker::createChannel, 4, 64, 500, 3, 5000, 0)
+                .publish(messages(), checkpoint, p -> {
+                });
+        assertEquals(position, progress.getSkipped());
+        assertEquals(TOTAL - position, progress.getConfirmed());
+        assertEquals(TOTAL, checkpoint.load());
+        assertEquals(TOTAL - position, enqueued() - before);
+    }
+
+    /**
+     * 按发送序号拒绝部分消息的通道
+     */
+    private static class FaultyChannel implements PublishChannel {
+        private final PublishChannel delegate;
+        private final LongPredicate nack;
+
+        FaultyChannel(PublishChannel delegate, LongPredicate nack) {
+            this.delegate = delegate;
+            this.nack = nack;
+        }
+
+        @Override
+        public long getNextSeqNo() {
+            return delegate.getNextSeqNo();
+        }
+
+        @Override
+        public long publish(String exchange, String routingKey, byte[] body) throws IOException {
+            return delegate.publish(exchange, routingKey, body);
+        }
+
+        @Override
+        public void setConfirmHandler(ConfirmHandler handler) {
+            delegate.setConfirmHandler((seqNo, multiple, ack) -> handler.handle(seqNo, multiple, ack && !nack.test(seqNo)));
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.xuecheng.test.rabbitmq.mq.claimcheck;
+
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.TopicMatcher;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 发送方大消息体存储的测试
+ */
+public class BlobStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 相同内容只保存一份，引用计数累加
+     */
+    @Test
+    public void sameContentIsStoredOnce() throws Exception {
+        BlobStore store = new BlobStore(folder.getRoot().toPath());
+        byte[] body = "<html>邮件正文</html>".getBytes(StandardCharsets.UTF_8);
+        String hash = store.put(body, 2);
+        assertEquals(hash, store.put(body, 1));
+        Path blob = store.blobFile(hash);
+        assertArrayEquals(body, Files.readAllBytes(blob));
+        assertEquals(3, store.addRefs(hash, 0));
+    }
+
+    /**
+     * inform.email.sms会同时投递到邮件和短信队列，引用计数为2
+     */
+    @Test
+    public void fanoutFollowsTopicBindings() {
+        String[] bindings = {RabbitMQConfig.ROUTINGKEY_EMAIL, RabbitMQConfig.ROUTINGKEY_SMS};
+        assertEquals(1, TopicMatcher.countMatches("inform.email", bindings));
+        assertEquals(1, TopicMatcher.countMatches("inform.sms", bindings));
+        assertEquals(2, TopicMatcher.countMatches("inform.email.sms", bindings));
+        assertEquals(0, TopicMatcher.countMatches("other.email", bindings));
+    }
+}
@@ -0,0 +1,28 @@
+package com.xuecheng.test.rabbitmq.mq.claimcheck;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 是否只发送引用的判断
+ */
+public class ClaimCheckPublisherTest {
+
+    @Test
+    public void largeBodiesAlwaysGoByReference() {
+        ClaimCheckPublisher publisher = new ClaimCheckPublisher(null, "claim-check", 262144, false, 2, 1024);
+        assertTrue(publisher.byReference(300000, 1));
+        assertFalse(publisher.byReference(300000, 0));
+        assertFalse(publisher.byReference(4096, 20));
+    }
+
+    @Test
+    public void fanoutByReferenceNeedsEnoughQueuesAndBytes() {
+        ClaimCheckPublisher publisher = new ClaimCheckPublisher(null, "claim-check", 262144, true, 2, 1024);
+        assertTrue(publisher.byReference(4096, 2));
+        assertFalse(publisher.byReference(4096, 1));
+        assertFalse(publisher.byReference(512, 20));
+    }
+}
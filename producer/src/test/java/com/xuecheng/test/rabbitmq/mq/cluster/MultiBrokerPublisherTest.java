@@ -0,0 +1,146 @@
+package com.xuecheng.test.rabbitmq.mq.cluster;
+
+import com.xuecheng.test.rabbitmq.mq.broker.InProcessBroker;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多节点发送的测试，每个节点是一个进程内的模拟MQ，各自监听一个本地端口供健康检查使用
+ */
+public class MultiBrokerPublisherTest {
+    private static final String EXCHANGE = "exchange_topics_inform";
+
+    private final List<ServerSocket> sockets = new ArrayList<>();
+    private final List<BrokerEndpoint> endpoints = new ArrayList<>();
+    private final Map<BrokerEndpoint, InProcessBroker> brokers = new HashMap<>();
+    private final Map<BrokerEndpoint, Boolean> broken = new HashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        int[] weights = {3, 1, 1};
+        for (int weight : weights) {
+            ServerSocket socket = new ServerSocket(0);
+            sockets.add(socket);
+            BrokerEndpoint endpoint = new BrokerEndpoint("127.0.0.1", socket.getLocalPort(), weight);
+            endpoints.add(endpoint);
+            brokers.put(endpoint, new InProcessBroker().bind("queue_inform_email", EXCHANGE, "inform.#.email.#"));
+            broken.put(endpoint, false);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (ServerSocket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void weightedRoundRobinIsSmooth() {
+        WeightedRoundRobinSelector selector = new WeightedRoundRobinSelector();
+        List<BrokerEndpoint> picked = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            picked.add(selector.select(endpoints));
+        }
+        BrokerEndpoint a = endpoints.get(0);
+        assertEquals(Arrays.asList(a, endpoints.get(1), a, endpoints.get(2), a), picked);
+    }
+
+    @Test
+    public void leastInFlightPrefersIdleNode() {
+        endpoints.get(0).getInFlight().set(30);
+        endpoints.get(1).getInFlight().set(5);
+        endpoints.get(2).getInFlight().set(20);
+        assertSame(endpoints.get(1), new LeastInFlightSelector().select(endpoints));
+    }
+
+    @Test
+    public void failsOverAndProbesBack() throws IOException {
+        HealthProber prober = new HealthProber(endpoints, HealthProber.Probe.tcp(200), 1, 2);
+        MultiBrokerPublisher publisher = new MultiBrokerPublisher(endpoints, this::connect,
+                new WeightedRoundRobinSelector(), prober, null, key -> null);
+        BrokerEndpoint first = endpoints.get(0);
+        broken.put(first, true);
+
+        for (int i = 0; i < 10; i++) {
+            assertFalse(publisher.publish(EXCHANGE, "inform.email", new byte[8]) == first);
+        }
+        assertFalse(first.isHealthy());
+        assertEquals(10, brokers.get(endpoints.get(1)).enqueued("queue_inform_email")
+                + brokers.get(endpoints.get(2)).enqueued("queue_inform_email"));
+
+        //健康检查连续成功2次才恢复
+        broken.put(first, false);
+        prober.probeAll();
+        assertFalse(first.isHealthy());
+        prober.probeAll();
+        assertTrue(first.isHealthy());
+
+        //端口关闭后检查失败
+        sockets.get(2).close();
+        prober.probeAll();
+        assertFalse(endpoints.get(2).isHealthy());
+        publisher.close();
+    }
+
+    @Test
+    public void routesToQueueLeader() throws IOException {
+        BrokerEndpoint leader = endpoints.get(2);
+        QueueLeaderLocator locator = new QueueLeaderLocator(endpoints,
+                () -> Collections.singletonMap("queue_inform_email", leader.getAddress()));
+        locator.refresh();
+        MultiBrokerPublisher publisher = new MultiBrokerPublisher(endpoints, this::connect,
+                new WeightedRoundRobinSelector(), new HealthProber(endpoints, e -> true, 1, 1), locator,
+                key -> "inform.email".equals(key) ? "queue_inform_email" : null);
+
+        for (int i = 0; i < 5; i++) {
+            assertSame(leader, publisher.publish(EXCHANGE, "inform.email", new byte[8]));
+        }
+        assertSame(endpoints.get(0), publisher.publish(EXCHANGE, "inform.email.sms", new byte[8]));
+        publisher.close();
+    }
+
+    private PublishChannel connect(BrokerEndpoint endpoint) throws IOException {
+        PublishChannel channel = brokers.get(endpoint).createChannel();
+        return new PublishChannel() {
+            @Override
+            public long getNextSeqNo() {
+                return channel.getNextSeqNo();
+            }
+
+            @Override
+            public long publish(String exchange, String routingKey, byte[] body) throws IOException {
+                if (broken.get(endpoint)) {
+                    throw new IOException("Connection reset");
+                }
+                return channel.publish(exchange, routingKey, body);
+            }
+
+            @Override
+            public void setConfirmHandler(ConfirmHandler handler) {
+                channel.setConfirmHandler(handler);
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,86 @@
+package com.xuecheng.test.rabbitmq.mq.dedup;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 消息ID生成、布谷鸟过滤器和按窗口去重
+ */
+public class DedupFilterTest {
+
+    @Test
+    public void messageIdIsDeterministic() {
+        assertEquals(MessageIds.of("order:1001:paid"), MessageIds.of("order:1001:paid"));
+        assertFalse(MessageIds.of("order:1001:paid").equals(MessageIds.of("order:1002:paid")));
+    }
+
+    @Test
+    public void cuckooFilterAddContainsRemove() {
+        CuckooFilter filter = new CuckooFilter(10000);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.add(hash(i)));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.contains(hash(i)));
+        }
+        int falsePositives = 0;
+        for (int i = 10000; i < 110000; i++) {
+            if (filter.contains(hash(i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("误判" + falsePositives, falsePositives <= 1);
+        assertTrue(filter.remove(hash(42)));
+        assertFalse(filter.contains(hash(42)));
+        assertEquals(9999, filter.size());
+    }
+
+    @Test
+    public void suppressesDuplicatesWithinWindow() {
+        AtomicLong now = new AtomicLong(1000);
+        DedupFilter filter = new DedupFilter(4, 1000, 100, now::get);
+        assertTrue(filter.firstSeen(hash(1)));
+        assertFalse(filter.firstSeen(hash(1)));
+        //一个窗口后还在上一代中
+        now.addAndGet(150);
+        assertFalse(filter.firstSeen(hash(1)));
+        //两个窗口后过期
+        now.addAndGet(250);
+        assertTrue(filter.firstSeen(hash(1)));
+        assertEquals(4, filter.getChecked());
+        assertEquals(2, filter.getSuppressed());
+    }
+
+    @Test
+    public void forgetAllowsRetry() {
+        DedupFilter filter = new DedupFilter(1, 100, 1000, () -> 0);
+        long hash = MessageIds.hash(MessageIds.of("order:1001:paid"));
+        assertTrue(filter.firstSeen(hash));
+        filter.forget(hash);
+        assertTrue(filter.firstSeen(hash));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    public void rotatesEarlyWhenFull() {
+        DedupFilter filter = new DedupFilter(2, 100, 60000, () -> 0);
+        //100/(4×0.95)向上取2的幂是32个桶，每个桶4个int，两个分片各两代共2KB
+        assertEquals(2, filter.getShards());
+        assertEquals(2048, filter.memoryBytes());
+        for (int i = 0; i < 5000; i++) {
+            filter.firstSeen(hash(i));
+        }
+        assertTrue(filter.getEarlyRotations() > 0);
+        //最近发送的仍然能识别为重复
+        assertFalse(filter.firstSeen(hash(4999)));
+    }
+
+    private static long hash(int i) {
+        return MessageIds.hash(MessageIds.of("key-" + i));
+    }
+}
@@ -0,0 +1,154 @@
+package com.xuecheng.test.rabbitmq.mq.envelope;
+
+import org.junit.Test;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 信封的编码和按RoutingKey打包发送
+ */
+public class EnvelopePublisherTest {
+
+    @Test
+    public void codecRoundTrip() {
+        List<byte[]> items = Arrays.asList("a".getBytes(), new byte[0], new byte[300], "短信".getBytes(StandardCharsets.UTF_8));
+        byte[] body = EnvelopeCodec.encode(items);
+        //版本1字节、条数1字节、长度1+1+2+1字节
+        assertEquals(1 + 1 + 5 + 1 + 300 + 6, body.length);
+        List<ByteBuffer> decoded = EnvelopeCodec.decode(body);
+        assertEquals(4, decoded.size());
+        assertEquals(300, decoded.get(2).remaining());
+        assertEquals("短信", StandardCharsets.UTF_8.decode(decoded.get(3)).toString());
+        try {
+            EnvelopeCodec.decode(Arrays.copyOf(body, body.length - 1));
+            fail("截断的信封应该报错");
+        } catch (IllegalArgumentException expected) {
+            //长度不一致
+        }
+    }
+
+    @Test
+    public void packsPerRoutingKey() {
+        List<Message> sent = new ArrayList<>();
+        List<String> routingKeys = new ArrayList<>();
+        EnvelopePublisher publisher = new EnvelopePublisher(recording(sent, routingKeys, new boolean[1]),
+                "ex", 3, 65536, 100, 60000);
+        for (int i = 0; i < 8; i++) {
+            publisher.send("inform.sms", "sms" + i);
+        }
+        publisher.send("inform.email", "email");
+        //大消息直接发送
+        publisher.send("inform.email", new String(new char[200]));
+        assertEquals(3, sent.size());
+        assertTrue(EnvelopeCodec.isEnvelope(sent.get(0)));
+        assertEquals(3, sent.get(0).getMessageProperties().getHeaders().get(EnvelopeCodec.HEADER_COUNT));
+        assertFalse(EnvelopeCodec.isEnvelope(sent.get(2)));
+
+        publisher.flush();
+        //inform.sms剩两条打包，inform.email只有一条直接发送
+        assertEquals(5, sent.size());
+        assertEquals(Arrays.asList("inform.sms", "inform.sms", "inform.email"), routingKeys.subList(0, 3));
+        int sms = routingKeys.lastIndexOf("inform.sms");
+        assertEquals(2, EnvelopeCodec.decode(sent.get(sms).getBody()).size());
+        assertFalse(EnvelopeCodec.isEnvelope(sent.get(routingKeys.lastIndexOf("inform.email"))));
+        assertEquals(10, publisher.getLogical());
+        assertEquals(3, publisher.getEnvelopes());
+        publisher.close();
+    }
+
+    @Test
+    public void failedBatchStaysBuffered() {
+        List<Message> sent = new ArrayList<>();
+        boolean[] down = {true};
+        EnvelopePublisher publisher = new EnvelopePublisher(recording(sent, new ArrayList<>(), down),
+                "ex", 2, 65536, 100, 60000);
+        publisher.send("inform.sms", "a");
+        publisher.send("inform.sms", "b");
+        assertEquals(2, publisher.getBuffered());
+        down[0] = false;
+        publisher.send("inform.sms", "c");
+        publisher.flush();
+        assertEquals(0, publisher.getBuffered());
+        //顺序不变
+        assertEquals("a", StandardCharsets.UTF_8.decode(EnvelopeCodec.decode(sent.get(0).getBody()).get(0)).toString());
+        assertEquals("c", new String(sent.get(1).getBody(), StandardCharsets.UTF_8));
+        publisher.close();
+    }
+
+    /**
+     * 一个批次发送失败放回缓冲之前，其他线程攒满的下一批不能先发出去
+     */
+    @Test
+    public void failedBatchIsRetriedBeforeLaterBatches() throws Exception {
+        List<String> sent = new ArrayList<>();
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RabbitTemplate template = new RabbitTemplate() {
+            private boolean first = true;
+
+            @Override
+            public void send(String exchange, String routingKey, Message message) {
+                if (first) {
+                    first = false;
+                    sending.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new AmqpException("broker down");
+                }
+                for (ByteBuffer item : EnvelopeCodec.decode(message.getBody())) {
+                    sent.add(StandardCharsets.UTF_8.decode(item).toString());
+                }
+            }
+        };
+        EnvelopePublisher publisher = new EnvelopePublisher(template, "ex", 2, 65536, 100, 60000);
+        Thread first = new Thread(() -> {
+            publisher.send("inform.sms", "a");
+            publisher.send("inform.sms", "b");
+        });
+        first.start();
+        sending.await();
+        Thread second = new Thread(() -> {
+            publisher.send("inform.sms", "c");
+            publisher.send("inform.sms", "d");
+        });
+        second.start();
+        while (second.isAlive() && second.getState() != Thread.State.BLOCKED) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        first.join();
+        second.join();
+        publisher.flush();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), sent);
+        publisher.close();
+    }
+
+    private static RabbitTemplate recording(List<Message> sent, List<String> routingKeys, boolean[] down) {
+        return new RabbitTemplate() {
+            @Override
+            public void send(String exchange, String routingKey, Message message) {
+                if (down[0]) {
+                    throw new AmqpException("broker down");
+                }
+                sent.add(message);
+                routingKeys.add(routingKey);
+            }
+        };
+    }
+}
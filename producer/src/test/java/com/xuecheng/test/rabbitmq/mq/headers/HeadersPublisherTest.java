@@ -0,0 +1,55 @@
+package com.xuecheng.test.rabbitmq.mq.headers;
+
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 消息头交换机的绑定参数和发送的消息头
+ */
+public class HeadersPublisherTest {
+
+    @Test
+    public void bindingArguments() {
+        Map<String, Object> arguments = RabbitMQConfig.headersBindingArguments(
+                RabbitMQConfig.HEADER_INFORM_EMAIL, " tenant=acme, locale = zh-CN");
+        assertEquals("all", arguments.get("x-match"));
+        assertEquals("true", arguments.get(RabbitMQConfig.HEADER_INFORM_EMAIL));
+        assertEquals("acme", arguments.get(RabbitMQConfig.HEADER_TENANT));
+        assertEquals("zh-CN", arguments.get(RabbitMQConfig.HEADER_LOCALE));
+        assertEquals(2, RabbitMQConfig.headersBindingArguments(RabbitMQConfig.HEADER_INFORM_SMS, "").size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bindingArgumentsCannotOverrideMatch() {
+        RabbitMQConfig.headersBindingArguments(RabbitMQConfig.HEADER_INFORM_EMAIL, "x-match=any");
+    }
+
+    /**
+     * 消息头交换机忽略x-开头的绑定参数，写了也不会过滤
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void bindingArgumentsRejectReservedPrefix() {
+        RabbitMQConfig.headersBindingArguments(RabbitMQConfig.HEADER_INFORM_EMAIL, "x-tenant=acme");
+    }
+
+    @Test
+    public void messageHeaders() {
+        InformHeaders headers = InformHeaders.create().email().sms().tenant("acme").header("user-id", "u1");
+        assertTrue(headers.hasTarget());
+        assertFalse(InformHeaders.create().tenant("acme").hasTarget());
+        Message message = HeadersPublisher.toMessage(headers, "hello");
+        Map<String, Object> sent = message.getMessageProperties().getHeaders();
+        assertEquals("true", sent.get(RabbitMQConfig.HEADER_INFORM_EMAIL));
+        assertEquals("true", sent.get(RabbitMQConfig.HEADER_INFORM_SMS));
+        assertEquals("acme", sent.get(RabbitMQConfig.HEADER_TENANT));
+        assertEquals("u1", sent.get("user-id"));
+        assertEquals("hello", new String(message.getBody()));
+    }
+}
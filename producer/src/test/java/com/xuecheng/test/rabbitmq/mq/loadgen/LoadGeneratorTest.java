@@ -0,0 +1,174 @@
+package com.xuecheng.test.rabbitmq.mq.loadgen;
+
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import com.xuecheng.test.rabbitmq.mq.broker.InProcessBroker;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 压测发送器的测试，使用进程内的模拟MQ
+ */
+public class LoadGeneratorTest {
+
+    @Test
+    public void bundledProfileIsValid() throws Exception {
+        TrafficProfile profile = TrafficProfile.load(Paths.get(
+                getClass().getResource("/loadgen/production-mix.json").toURI()));
+        assertEquals(3, profile.getRoutingKeys().size());
+        assertEquals(5000, profile.getRate());
+        assertEquals(2500, profile.rateAt(5_000_000_000L), 0.1);
+    }
+
+    /**
+     * 发送计划由传入的时间驱动，和机器快慢无关
+     */
+    @Test
+    public void scheduleFollowsProfileRate() {
+        TrafficProfile profile = profile(2000, 2);
+        LoadGenerator.Schedule schedule = new LoadGenerator.Schedule(profile, 0);
+        int slots = 0;
+        //每个线程1000条/秒，2秒内2000次
+        for (long next = schedule.next(0); next <= 2_000_000_000L; next = schedule.next(next)) {
+            slots++;
+        }
+        assertEquals(2000, slots);
+    }
+
+    @Test
+    public void sendsRoutingMix() throws Exception {
+        TrafficProfile profile = profile(2000, 2);
+        InProcessBroker broker = new InProcessBroker()
+                .bind(RabbitMQConfig.QUEUE_INFORM_EMAIL, profile.getExchange(), RabbitMQConfig.ROUTINGKEY_EMAIL)
+                .bind(RabbitMQConfig.QUEUE_INFORM_SMS, profile.getExchange(), RabbitMQConfig.ROUTINGKEY_SMS);
+
+        LoadReport report = new LoadGenerator(profile, broker::createChannel).run(line -> { });
+
+        assertTrue(report.getSent() > 0);
+        assertEquals(report.getSent(), report.getConfirmed());
+        assertEquals(0, report.getSkipped());
+        //所有消息都进邮件队列，一半同时进短信队列
+        assertEquals(report.getSent(), broker.enqueued(RabbitMQConfig.QUEUE_INFORM_EMAIL));
+        double smsShare = broker.enqueued(RabbitMQConfig.QUEUE_INFORM_SMS) / (double) report.getSent();
+        assertTrue(String.valueOf(smsShare), smsShare > 0.4 && smsShare < 0.6);
+    }
+
+    /**
+     * 确认跟不上时跳过的计划发送计入skipped
+     */
+    @Test
+    public void countsSkippedSlots() throws Exception {
+        TrafficProfile profile = profile(200, 1);
+        profile.setDurationSeconds(1);
+        profile.setMaxInFlight(2);
+        ScheduledExecutorService confirms = Executors.newSingleThreadScheduledExecutor();
+        try {
+            LoadReport report = new LoadGenerator(profile, () -> new DelayedConfirmChannel(confirms))
+                    .run(line -> { });
+            assertTrue(report.toString(), report.getSkipped() > 0);
+            assertEquals(report.getSent(), report.getConfirmed());
+        } finally {
+            confirms.shutdownNow();
+        }
+    }
+
+    @Test
+    public void propagatesPublishFailure() throws Exception {
+        TrafficProfile profile = profile(100, 2);
+        profile.setDurationSeconds(30);
+        InProcessBroker broker = new InProcessBroker();
+        try {
+            new LoadGenerator(profile, () -> new FailingChannel(broker.createChannel())).run(line -> { });
+            fail("发送失败应该抛出异常");
+        } catch (IOException expected) {
+            assertEquals("连接已断开", expected.getMessage());
+        }
+    }
+
+    private static TrafficProfile profile(int rate, int threads) {
+        TrafficProfile profile = new TrafficProfile();
+        profile.getRoutingKeys().put("inform.email", 1);
+        profile.getRoutingKeys().put("inform.email.sms", 1);
+        profile.getPayloadSizes().add(new TrafficProfile.SizeBucket(100, 200, 1));
+        profile.setRate(rate);
+        profile.setDurationSeconds(1);
+        profile.setThreads(threads);
+        profile.validate();
+        return profile;
+    }
+
+    /**
+     * 200毫秒后才确认的通道
+     */
+    private static final class DelayedConfirmChannel implements PublishChannel {
+        private final ScheduledExecutorService confirms;
+        private final AtomicLong nextSeqNo = new AtomicLong(1);
+        private volatile ConfirmHandler handler;
+
+        private DelayedConfirmChannel(ScheduledExecutorService confirms) {
+            this.confirms = confirms;
+        }
+
+        @Override
+        public long getNextSeqNo() {
+            return nextSeqNo.get();
+        }
+
+        @Override
+        public long publish(String exchange, String routingKey, byte[] body) {
+            long seqNo = nextSeqNo.getAndIncrement();
+            confirms.schedule(() -> handler.handle(seqNo, false, true), 200, TimeUnit.MILLISECONDS);
+            return seqNo;
+        }
+
+        @Override
+        public void setConfirmHandler(ConfirmHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 第一次发送就失败的通道
+     */
+    private static final class FailingChannel implements PublishChannel {
+        private final PublishChannel delegate;
+
+        private FailingChannel(PublishChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public long getNextSeqNo() {
+            return delegate.getNextSeqNo();
+        }
+
+        @Override
+        public long publish(String exchange, String routingKey, byte[] body) throws IOException {
+            throw new IOException("连接已断开");
+        }
+
+        @Override
+        public void setConfirmHandler(ConfirmHandler handler) {
+            delegate.setConfirmHandler(handler);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.xuecheng.test.rabbitmq.mq.metrics;
+
+import com.rabbitmq.client.Channel;
+import com.xuecheng.test.rabbitmq.mq.broker.PublishChannel;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 性能数据文件的测试：按秒写入、滚动和保留、不完整的记录、确认耗时
+ */
+public class MetricsFileTest {
+    private static final long START = 1_800_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recorderWritesOneRecordPerSecond() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        AtomicLong clock = new AtomicLong(START * 1000 + 10);
+        MetricsRecorder recorder = new MetricsRecorder(new MetricsFile.Writer(dir, "node-1", 1 << 20, 3), clock::get);
+        MetricsRecorder.Series publish = recorder.series(MetricsRecorder.SERIES_PUBLISH);
+        publish.record(100);
+        publish.record(3000);
+        clock.set((START + 1) * 1000);
+        recorder.tick();
+        publish.record(50);
+        clock.set((START + 2) * 1000);
+        recorder.tick();
+        clock.set((START + 3) * 1000);
+        recorder.tick();
+        recorder.close();
+
+        //START + 2和之后没有数据，不写
+        List<MetricsFile.Record> records = readAll(dir, "node-1");
+        assertEquals(2, records.size());
+        MetricsFile.Record first = records.get(0);
+        assertEquals("node-1", first.getNode());
+        assertEquals(START, first.getEpochSecond());
+        MetricsFile.Sample sample = first.getSamples().get(0);
+        assertEquals(MetricsRecorder.SERIES_PUBLISH, sample.getName());
+        assertEquals(2, sample.getCount());
+        assertEquals(3000, sample.getHistogram().max());
+        //百分位数取桶的上界，100所在的桶是[100, 101]
+        assertEquals(101, sample.getHistogram().percentile(50));
+        assertEquals(START + 1, records.get(1).getEpochSecond());
+        assertEquals(50, records.get(1).getSamples().get(0).getHistogram().max());
+    }
+
+    @Test
+    public void rollsOverAndKeepsNewestFiles() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MetricsFile.Writer writer = new MetricsFile.Writer(dir, "node-1", 1024, 2);
+        for (int i = 0; i < 200; i++) {
+            writer.append(START + i, Collections.singletonList(sample(1 + i % 3)));
+        }
+        writer.close();
+
+        List<Path> files = MetricsFile.files(dir, "node-1");
+        assertEquals(2, files.size());
+        List<MetricsFile.Record> records = readAll(dir, "node-1");
+        assertTrue(records.size() > 10 && records.size() < 200);
+        assertEquals(START + 199, records.get(records.size() - 1).getEpochSecond());
+        //文件名中是UTC的开始时间
+        assertTrue(files.get(0).getFileName().toString().startsWith("node-1-2027"));
+    }
+
+    /**
+     * 进程崩溃时最后一条记录只写了一部分，之前的记录照常读取
+     */
+    @Test
+    public void ignoresTruncatedTail() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MetricsFile.Writer writer = new MetricsFile.Writer(dir, "node-1", 1 << 20, 3);
+        for (int i = 0; i < 3; i++) {
+            writer.append(START + i, Collections.singletonList(sample(i + 1)));
+        }
+        Path file = writer.getCurrent();
+        writer.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+        List<MetricsFile.Record> records = new ArrayList<>();
+        assertEquals(2, MetricsFile.read(file, Long.MIN_VALUE, Long.MAX_VALUE, records::add));
+        assertEquals(1, MetricsFile.read(file, START + 1, START + 3, r -> { }));
+    }
+
+    @Test
+    public void recordsConfirmLatencyForMultipleAcks() throws Exception {
+        AtomicLong clock = new AtomicLong(START * 1000);
+        MetricsRecorder recorder = new MetricsRecorder(
+                new MetricsFile.Writer(folder.getRoot().toPath(), "node-1", 1 << 20, 3), clock::get);
+        FakeChannel fake = new FakeChannel();
+        RecordingPublishChannel channel = new RecordingPublishChannel(fake, recorder);
+        List<String> confirms = new ArrayList<>();
+        channel.setConfirmHandler((seqNo, multiple, ack) -> confirms.add(seqNo + (ack ? " ack" : " nack")));
+        for (int i = 0; i < 3; i++) {
+            channel.publish("exchange", "inform.email", new byte[]{1});
+        }
+        assertEquals(3, channel.getUnconfirmed());
+        fake.handler.handle(2, true, true);
+        fake.handler.handle(3, false, false);
+        assertEquals("[2 ack, 3 nack]", confirms.toString());
+        assertEquals(0, channel.getUnconfirmed());
+
+        clock.set((START + 1) * 1000);
+        recorder.close();
+        List<MetricsFile.Record> records = readAll(folder.getRoot().toPath(), "node-1");
+        assertEquals(1, records.size());
+        long publishes = 0;
+        long acks = 0;
+        long nacks = 0;
+        for (MetricsFile.Sample sample : records.get(0).getSamples()) {
+            switch (sample.getName()) {
+                case MetricsRecorder.SERIES_PUBLISH:
+                    publishes = sample.getCount();
+                    break;
+                case MetricsRecorder.SERIES_CONFIRM:
+                    acks = sample.getCount();
+                    break;
+                case MetricsRecorder.SERIES_NACK:
+                    nacks = sample.getCount();
+                    break;
+                default:
+            }
+        }
+        assertEquals(3, publishes);
+        assertEquals(2, acks);
+        assertEquals(1, nacks);
+    }
+
+    /**
+     * RabbitTemplate的发送和确认，确认时带回发送时间
+     */
+    @Test
+    public void recordsRabbitTemplateSends() throws Exception {
+        AtomicLong clock = new AtomicLong(START * 1000);
+        MetricsRecorder recorder = new MetricsRecorder(
+                new MetricsFile.Writer(folder.getRoot().toPath(), "node-1", 1 << 20, 3), clock::get);
+        CachingConnectionFactory connectionFactory = new CachingConnectionFactory();
+        connectionFactory.setPublisherConfirms(true);
+        RecordingRabbitTemplate template = new RecordingRabbitTemplate(connectionFactory, recorder);
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class}, (proxy, method, args) -> null);
+        for (int i = 0; i < 2; i++) {
+            template.doSend(channel, "exchange", "inform.email", new Message(new byte[]{1}, new MessageProperties()),
+                    false, new CorrelationData("c" + i));
+        }
+        template.confirmed(new RecordingRabbitTemplate.SentAt("c0", System.nanoTime()), true, null);
+        template.confirmed(new RecordingRabbitTemplate.SentAt("c1", System.nanoTime()), false, "nack");
+        template.confirmed(null, true, null);
+        connectionFactory.destroy();
+
+        clock.set((START + 1) * 1000);
+        recorder.close();
+        List<MetricsFile.Record> records = readAll(folder.getRoot().toPath(), "node-1");
+        assertEquals(1, records.size());
+        long publishes = 0;
+        long acks = 0;
+        long nacks = 0;
+        for (MetricsFile.Sample sample : records.get(0).getSamples()) {
+            switch (sample.getName()) {
+                case MetricsRecorder.SERIES_PUBLISH:
+                    publishes = sample.getCount();
+                    break;
+                case MetricsRecorder.SERIES_CONFIRM:
+                    acks = sample.getCount();
+                    break;
+                case MetricsRecorder.SERIES_NACK:
+                    nacks = sample.getCount();
+                    break;
+                default:
+            }
+        }
+        assertEquals(2, publishes);
+        assertEquals(2, acks);
+        assertEquals(1, nacks);
+    }
+
+    private static MetricsFile.Sample sample(int values) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= values; i++) {
+            histogram.record(i * 10L);
+        }
+        return new MetricsFile.Sample(MetricsRecorder.SERIES_CONFIRM, values, histogram);
+    }
+
+    private static List<MetricsFile.Record> readAll(Path dir, String node) throws IOException {
+        List<MetricsFile.Record> records = new ArrayList<>();
+        for (Path file : MetricsFile.files(dir, node)) {
+            MetricsFile.read(file, Long.MIN_VALUE, Long.MAX_VALUE, records::add);
+        }
+        return records;
+    }
+
+    /**
+     * 序号从1开始，确认由测试手动触发
+     */
+    private static final class FakeChannel implements PublishChannel {
+        private long next = 1;
+        private ConfirmHandler handler;
+
+        @Override
+        public long getNextSeqNo() {
+            return next;
+        }
+
+        @Override
+        public long publish(String exchange, String routingKey, byte[] body) {
+            return next++;
+        }
+
+        @Override
+        public void setConfirmHandler(ConfirmHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
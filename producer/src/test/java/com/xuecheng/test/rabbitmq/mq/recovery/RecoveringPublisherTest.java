@@ -0,0 +1,206 @@
+package com.xuecheng.test.rabbitmq.mq.recovery;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 断线重发的测试，用代理模拟连接和通道，可以在任意时刻断开
+ */
+public class RecoveringPublisherTest {
+    private final List<FakeConnection> connections = new CopyOnWriteArrayList<>();
+    private volatile int refuseConnects;
+    private RecoveringPublisher publisher;
+
+    @Before
+    public void setUp() throws Exception {
+        ConnectionFactory factory = new ConnectionFactory() {
+            @Override
+            public Connection newConnection(String clientProvidedName) throws IOException {
+                if (refuseConnects > 0) {
+                    refuseConnects--;
+                    throw new IOException("Connection refused");
+                }
+                FakeConnection connection = new FakeConnection();
+                connections.add(connection);
+                return connection.proxy;
+            }
+        };
+        RecoveringConnection connection = new RecoveringConnection(factory, new JitteredBackOff(10, 40, 2), "test");
+        publisher = new RecoveringPublisher(connection, channel -> channel.exchangeDeclare("ex", "topic", true), 100,
+                2, new JitteredBackOff(10, 40, 2));
+        connection.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        publisher.close();
+    }
+
+    /**
+     * 断开前未确认的和断开期间发送的消息，重连后按顺序重发
+     */
+    @Test
+    public void replaysUnconfirmedAfterReconnect() throws Exception {
+        publisher.publish("ex", "inform.email", bytes("a"));
+        publisher.publish("ex", "inform.email", bytes("b"));
+        publisher.publish("ex", "inform.email", bytes("c"));
+        current().confirm(1, false, true);
+        assertEquals(2, publisher.getUnconfirmed());
+
+        refuseConnects = 1;
+        current().kill();
+        publisher.publish("ex", "inform.email", bytes("d"));
+        waitForRecovery();
+
+        FakeConnection recovered = current();
+        assertEquals(Arrays.asList("b", "c", "d"), recovered.published);
+        assertEquals(Arrays.asList("ex"), recovered.declared);
+        assertEquals(3, publisher.getReplayed());
+        assertEquals(1, publisher.getConnection().getFailedAttempts());
+        assertTrue(publisher.getConnection().getLastRecoveryMillis() >= 0);
+
+        recovered.confirm(3, true, true);
+        assertTrue(publisher.waitForConfirms(100));
+    }
+
+    /**
+     * 被MQ拒绝的消息退避后重发，次数用完丢弃
+     */
+    @Test
+    public void republishesNackedWithBackOff() throws Exception {
+        publisher.publish("ex", "inform.sms", bytes("a"));
+        publisher.publish("ex", "inform.sms", bytes("b"));
+        current().confirm(2, true, false);
+        //退避期间仍算未确认
+        assertEquals(2, publisher.getUnconfirmed());
+
+        waitUntil(() -> current().published.size() == 4);
+        //两条消息各自退避，重发顺序不固定
+        assertEquals(Arrays.asList("a", "b"), current().published.subList(0, 2));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(current().published.subList(2, 4)));
+        assertEquals(2, publisher.getNacked());
+        assertEquals(2, publisher.getUnconfirmed());
+
+        current().confirm(3, false, true);
+        current().confirm(4, false, false);
+        assertEquals(1, publisher.getFailed());
+        assertTrue(publisher.waitForConfirms(100));
+        assertEquals(4, current().published.size());
+    }
+
+    private FakeConnection current() {
+        return connections.get(connections.size() - 1);
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private void waitForRecovery() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (publisher.getConnection().getRecoveries() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, publisher.getConnection().getRecoveries());
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 一个连接和它上面唯一的通道
+     */
+    private static class FakeConnection {
+        final List<String> published = new CopyOnWriteArrayList<>();
+        final List<String> declared = new ArrayList<>();
+        final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<>();
+        volatile boolean open = true;
+        volatile ConfirmListener confirmListener;
+        long nextSeqNo = 1;
+        final Channel channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Channel.class}, (p, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return open;
+                        case "getNextPublishSeqNo":
+                            return nextSeqNo;
+                        case "basicPublish":
+                            if (!open) {
+                                throw new AlreadyClosedException(new ShutdownSignalException(true, false, null, p));
+                            }
+                            nextSeqNo++;
+                            published.add(new String((byte[]) args[args.length - 1], StandardCharsets.UTF_8));
+                            return null;
+                        case "exchangeDeclare":
+                            declared.add((String) args[0]);
+                            return null;
+                        case "addConfirmListener":
+                            confirmListener = (ConfirmListener) args[0];
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+        final Connection proxy = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Connection.class}, (p, method, args) -> {
+                    switch (method.getName()) {
+                        case "createChannel":
+                            return channel;
+                        case "isOpen":
+                            return open;
+                        case "addShutdownListener":
+                            shutdownListeners.add((ShutdownListener) args[0]);
+                            return null;
+                        case "close":
+                        case "abort":
+                            open = false;
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+
+        void kill() {
+            open = false;
+            ShutdownSignalException cause = new ShutdownSignalException(true, false, null, proxy);
+            for (ShutdownListener listener : shutdownListeners) {
+                listener.shutdownCompleted(cause);
+            }
+        }
+
+        void confirm(long seqNo, boolean multiple, boolean ack) throws IOException {
+            if (ack) {
+                confirmListener.handleAck(seqNo, multiple);
+            } else {
+                confirmListener.handleNack(seqNo, multiple);
+            }
+        }
+    }
+}
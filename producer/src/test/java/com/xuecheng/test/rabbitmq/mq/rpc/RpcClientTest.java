@@ -0,0 +1,130 @@
+package com.xuecheng.test.rabbitmq.mq.rpc;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 请求/响应客户端的测试，通道是记录调用的代理
+ */
+public class RpcClientTest {
+    private final List<Consumer> consumers = new ArrayList<>();
+    private final List<AMQP.BasicProperties> requests = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean open = true;
+    private RpcClient client;
+
+    @After
+    public void close() {
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    /**
+     * 所有请求共用一个回复消费者，回复乱序到达也能对应到各自的调用
+     */
+    @Test
+    public void multiplexesRepliesByCorrelationId() throws Exception {
+        client = new RpcClient(this::channel, 5000, 10);
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(client.callAsync("inform.sms", "m" + i));
+        }
+        assertEquals(1, consumers.size());
+        assertEquals(100, client.getInFlight());
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            AMQP.BasicProperties request = requests.get(i);
+            assertEquals(RpcClient.DIRECT_REPLY_TO, request.getReplyTo());
+            reply(request.getCorrelationId(), "ACCEPTED-" + i);
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("ACCEPTED-" + i, futures.get(i).get(1, TimeUnit.SECONDS));
+        }
+        assertEquals(0, client.getInFlight());
+        assertEquals(100, client.getLatencyMicros().count());
+    }
+
+    @Test
+    public void timesOutWithoutReply() throws Exception {
+        client = new RpcClient(this::channel, 30, 5);
+        CompletableFuture<String> future = client.callAsync("inform.sms", "m");
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("应该超时");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, client.getTimeouts());
+        assertEquals(0, client.getInFlight());
+        //空了的超时队列被删除
+        client.expire();
+        assertEquals(0, client.getDeadlineQueues());
+        //超时后才到的回复直接丢弃
+        reply(requests.get(0).getCorrelationId(), "ACCEPTED");
+        assertEquals(1, client.getTimeouts());
+    }
+
+    /**
+     * 回复通道关闭后未完成的调用立即失败，下一次调用重新创建通道
+     */
+    @Test
+    public void failsPendingCallsWhenChannelCloses() throws Exception {
+        client = new RpcClient(this::channel, 5000, 10);
+        CompletableFuture<String> pending = client.callAsync("inform.sms", "m1");
+        open = false;
+        consumers.get(0).handleShutdownSignal("tag", new ShutdownSignalException(false, false, null, null));
+        try {
+            pending.get(1, TimeUnit.SECONDS);
+            fail("通道关闭后应该失败");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        open = true;
+        CompletableFuture<String> next = client.callAsync("inform.sms", "m2");
+        assertEquals(2, consumers.size());
+        reply(requests.get(1).getCorrelationId(), "ACCEPTED");
+        assertEquals("ACCEPTED", next.get(1, TimeUnit.SECONDS));
+    }
+
+    private void reply(String correlationId, String body) throws IOException {
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().correlationId(correlationId).build();
+        consumers.get(consumers.size() - 1).handleDelivery("tag", null, properties,
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Channel channel() {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicConsume":
+                            consumers.add((Consumer) args[args.length - 1]);
+                            return "tag";
+                        case "basicPublish":
+                            requests.add((AMQP.BasicProperties) args[args.length - 2]);
+                            return null;
+                        case "isOpen":
+                            return open;
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
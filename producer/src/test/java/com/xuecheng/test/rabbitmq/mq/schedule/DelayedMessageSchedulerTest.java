@@ -0,0 +1,94 @@
+package com.xuecheng.test.rabbitmq.mq.schedule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 定时消息调度器的测试
+ */
+public class DelayedMessageSchedulerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 到期的消息被发送，未到期的消息在重启后恢复
+     */
+    @Test
+    public void releasesDueMessagesAndRecoversPending() throws Exception {
+        List<String> sent = new ArrayList<>();
+        DelayedMessageScheduler scheduler = newScheduler(sent, false);
+        long now = System.currentTimeMillis();
+        scheduler.schedule("exchange_topics_inform", "inform.sms", bytes("now"), now - 1);
+        scheduler.schedule("exchange_topics_inform", "inform.sms", bytes("later"), now + 3600_000);
+        Thread.sleep(20);
+        assertEquals(1, scheduler.tick());
+        assertEquals("[inform.sms:now]", sent.toString());
+        scheduler.stop();
+
+        //模拟重启，只恢复未发送的消息
+        DelayedMessageScheduler restarted = newScheduler(sent, false);
+        assertEquals(1, restarted.pending());
+        restarted.stop();
+    }
+
+    /**
+     * 发送失败的消息留在时间轮中重试，不会标记完成
+     */
+    @Test
+    public void failedBatchIsRetried() throws Exception {
+        List<String> sent = new ArrayList<>();
+        DelayedMessageScheduler scheduler = newScheduler(sent, true);
+        scheduler.schedule("exchange_topics_inform", "inform.email", bytes("x"), System.currentTimeMillis() - 1);
+        Thread.sleep(20);
+        assertEquals(0, scheduler.tick());
+        assertEquals(1, scheduler.pending());
+        scheduler.stop();
+        DelayedMessageScheduler restarted = newScheduler(sent, false);
+        assertEquals(1, restarted.pending());
+        restarted.stop();
+    }
+
+    /**
+     * 全部发送完成后，老的日志段被删除
+     */
+    @Test
+    public void completedSegmentsAreDeleted() throws Exception {
+        ScheduleLog log = new ScheduleLog(folder.getRoot().toPath(), 64, false);
+        log.recover();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(log.append(i, "exchange_topics_inform", "inform.sms", bytes("message-" + i)));
+        }
+        assertEquals("message-3", new String(log.read(ids.get(3)).getBody(), StandardCharsets.UTF_8));
+        for (Long id : ids) {
+            log.markDone(id);
+        }
+        assertEquals(1, log.segmentCount());
+        log.close();
+    }
+
+    private DelayedMessageScheduler newScheduler(List<String> sent, boolean fail) throws Exception {
+        ScheduleLog log = new ScheduleLog(folder.getRoot().toPath(), 1024, false);
+        DelayedMessageScheduler scheduler = new DelayedMessageScheduler(log, 10, 64, 100, 60_000, batch -> {
+            if (fail) {
+                throw new IllegalStateException("broker down");
+            }
+            for (ScheduledMessage message : batch) {
+                sent.add(message.getRoutingKey() + ":" + new String(message.getBody(), StandardCharsets.UTF_8));
+            }
+        });
+        scheduler.recover();
+        return scheduler;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,121 @@
+package com.xuecheng.test.rabbitmq.mq.tenant;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.xuecheng.test.rabbitmq.config.RabbitMQConfig;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * 租户解析、通道池隔离和发送的消息头
+ */
+public class TenantPublisherTest {
+
+    @Test
+    public void parseTenants() {
+        List<TenantSpec> queue = TenantSpec.parse("acme*3, globex", TenantSpec.ISOLATION_QUEUE, "/", "tenant-");
+        assertEquals(3, queue.get(0).getWeight());
+        assertEquals("/", queue.get(1).getVhost());
+        assertEquals(RabbitMQConfig.QUEUE_INFORM_EMAIL + ".globex", queue.get(1).getEmailQueue());
+        List<TenantSpec> vhost = TenantSpec.parse("acme", TenantSpec.ISOLATION_VHOST, "/", "tenant-");
+        assertEquals("tenant-acme", vhost.get(0).getVhost());
+        assertEquals(RabbitMQConfig.EXCHANGE_TOPICS_INFORM, vhost.get(0).getExchange());
+        for (String invalid : Arrays.asList("", "Acme", "acme*0", "acme,acme")) {
+            try {
+                TenantSpec.parse(invalid, TenantSpec.ISOLATION_QUEUE, "/", "tenant-");
+                fail("应该不合法：" + invalid);
+            } catch (IllegalArgumentException expected) {
+                //不合法的租户配置
+            }
+        }
+    }
+
+    @Test
+    public void poolLimitsOneTenantOnly() throws Exception {
+        Connection connection = connection(new ArrayList<>());
+        TenantChannelPool pool = new TenantChannelPool(connection, 2);
+        Channel first = pool.borrow(0);
+        Channel second = pool.borrow(0);
+        assertNull(pool.borrow(10));
+        assertEquals(2, pool.getBusy());
+        pool.release(first);
+        assertSame(first, pool.borrow(0));
+        pool.release(second);
+    }
+
+    @Test
+    public void publishesToTenantExchangeWithHeader() throws Exception {
+        List<Object[]> published = new ArrayList<>();
+        List<String> vhosts = new ArrayList<>();
+        TenantPublisher publisher = new TenantPublisher(
+                TenantSpec.parse("acme*2,globex", TenantSpec.ISOLATION_QUEUE, "/", "tenant-"),
+                vhost -> {
+                    vhosts.add(vhost);
+                    return connection(published);
+                }, 1, 0, null);
+        publisher.publish("acme", "inform.email", "hi".getBytes());
+        //queue方式共用一个连接
+        assertEquals(Arrays.asList("/"), vhosts);
+        Object[] args = published.get(0);
+        assertEquals(RabbitMQConfig.EXCHANGE_TOPICS_INFORM + ".acme", args[0]);
+        assertEquals("acme", ((AMQP.BasicProperties) args[2]).getHeaders().get(RabbitMQConfig.HEADER_TENANT));
+        assertEquals(1, publisher.getPublished("acme"));
+        assertEquals(0, publisher.getPublished("globex"));
+        try {
+            publisher.publish("initech", "inform.email", new byte[0]);
+            fail("没有配置的租户");
+        } catch (IllegalArgumentException expected) {
+            //没有配置的租户
+        }
+        publisher.close();
+    }
+
+    /**
+     * 每次createChannel返回一个新的通道，basicPublish记录参数
+     */
+    private static Connection connection(List<Object[]> published) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    if ("createChannel".equals(method.getName())) {
+                        return channel(published);
+                    }
+                    if ("isOpen".equals(method.getName())) {
+                        return false;
+                    }
+                    return null;
+                });
+    }
+
+    private static Channel channel(List<Object[]> published) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicPublish":
+                            if (args.length == 4) {
+                                published.add(new Object[]{args[0], args[1], args[2], args[3]});
+                            }
+                            return null;
+                        case "isOpen":
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            //声明和关闭的返回值没有用到
+                            return null;
+                    }
+                });
+    }
+}